@@ -49,6 +49,8 @@ public class HcConstants {
 
     public static final String SNOMED_URN = "http://snomed.info/sct";
 
+    public static final String CT_FHIR_NDJSON = "application/fhir+ndjson";
+
     public static final long VERSION = 1L;
 
     public static final String SSN_CODING = "SB";
@@ -67,6 +69,63 @@ public class HcConstants {
 
     public static final String UNICODE = "UTF-8";
 
+    public static final long DEFAULT_PATIENT_CACHE_WEIGHT = 50_000_000L;
+    public static final long DEFAULT_PATIENT_CACHE_IDLE_MINUTES = 30L;
+    public static final long DEFAULT_PATIENT_CACHE_TTL_SECONDS = 300L;
+    public static final int DEFAULT_PATIENT_CACHE_REFRESH_AHEAD_PERCENT = 80;
+    public static final long DEFAULT_PATIENT_CACHE_MAX_STALE_SECONDS = 60L;
+    public static final int DEFAULT_PATIENT_CACHE_REFRESH_THREADS = 4;
+    public static final long DEFAULT_REFERENCE_CACHE_ENTRIES = 1000L;
+    public static final long DEFAULT_REFERENCE_CACHE_TTL_MINUTES = 60L;
+    public static final long DEFAULT_LOCATION_REFRESH_MINUTES = 60L;
+    public static final double DEFAULT_LOCATION_CALLS_PER_SECOND = 2.0;
+    public static final int DEFAULT_DOWNSAMPLE_BUCKETS = 200;
+    public static final int MAX_DOWNSAMPLE_BUCKETS = 10000;
+    public static final int DEFAULT_WARMUP_MAX_ENTRIES = 500;
+    public static final long DEFAULT_WARMUP_SAVE_MINUTES = 5L;
+    public static final double DEFAULT_WARMUP_CALLS_PER_SECOND = 5.0;
+    public static final long DEFAULT_WARMUP_READY_TIMEOUT_SECONDS = 300L;
+    public static final int DEFAULT_PATIENT_INDEX_BATCH_SIZE = 500;
+    public static final int DEFAULT_PATIENT_INDEX_MAX_EMPTY_BATCHES = 10;
+    public static final long DEFAULT_PATIENT_INDEX_REFRESH_MINUTES = 15L;
+    public static final long DEFAULT_PATIENT_INDEX_FULL_REFRESH_HOURS = 24L;
+    public static final double DEFAULT_PATIENT_INDEX_CALLS_PER_SECOND = 2.0;
+    public static final double DEFAULT_KNOWN_PATIENT_FALSE_POSITIVE_RATE = 0.01;
+    public static final long DEFAULT_KNOWN_PATIENT_MAX_MISSES = 10_000L;
+    public static final long DEFAULT_KNOWN_PATIENT_MISS_SECONDS = 60L;
+    public static final double DEFAULT_COHORT_INDEX_CALLS_PER_SECOND = 2.0;
+    public static final long DEFAULT_COHORT_INDEX_REFRESH_HOURS = 24L;
+    public static final int DEFAULT_COHORT_FETCH_THREADS = 8;
+    public static final double DEFAULT_COHORT_CALLS_PER_SECOND = 20.0;
+    public static final int DEFAULT_VISTA_MAX_OUTSTANDING_CALLS = 16;
+    public static final int DEFAULT_BULK_PATIENTS_IN_FLIGHT = 4;
+    public static final String DEFAULT_EXPORT_DIRECTORY_NAME = "vista-fhir-export";
+    public static final int DEFAULT_EXPORT_PATIENTS_IN_FLIGHT = 4;
+    public static final double DEFAULT_EXPORT_PATIENTS_PER_SECOND = 5.0;
+    public static final long DEFAULT_EXPORT_RETENTION_HOURS = 24L;
+    public static final int DEFAULT_EXPORT_CHECKPOINT_PATIENTS = 100;
+    public static final long DEFAULT_CHANGE_LOG_MAX_TRACKED = 1_000_000L;
+    public static final int DEFAULT_CHANGES_PAGE_SIZE = 100;
+    public static final int MAX_CHANGES_PAGE_SIZE = 1000;
+    public static final int DEFAULT_PAGING_PAGE_SIZE = 100;
+    public static final int DEFAULT_PAGING_MAX_PAGE_SIZE = 1000;
+    public static final long DEFAULT_PAGING_MAX_RESOURCES = 200_000L;
+    public static final long DEFAULT_PAGING_TTL_MINUTES = 30L;
+
+    public static final long DEFAULT_INCLUDE_MAX_PRACTITIONERS = 10_000L;
+    public static final int DEFAULT_INCLUDE_MAX_REVINCLUDE_PATIENTS = 50;
+
+    public static final int DEFAULT_BATCH_THREADS = 8;
+    public static final int DEFAULT_BATCH_MAX_ENTRIES = 100;
+    public static final int DEFAULT_BATCH_QUEUE_SIZE = 1000;
+
+    public static final String DEFAULT_WRITES_DIRECTORY_NAME = "vista-fhir-writes";
+    public static final int DEFAULT_WRITES_CONCURRENCY = 4;
+    public static final int DEFAULT_WRITES_MAX_QUEUED = 10_000;
+    public static final long DEFAULT_WRITES_RETENTION_HOURS = 24L;
+
+    public static final int DEFAULT_IMPORT_IN_FLIGHT = 8;
+
     static final String SERVER_DESC = "HealthConcourse FHIR API using VistA as a data source";
     static final String SERVER_NAME = "HealthConcourse VistA FHIR API";
     static final String SERVER_VERSION = "2.0";
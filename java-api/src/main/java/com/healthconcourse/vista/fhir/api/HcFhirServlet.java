@@ -17,14 +17,42 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api;
 
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.healthconcourse.vista.fhir.api.interceptor.AccessHistoryInterceptor;
+import com.healthconcourse.vista.fhir.api.interceptor.AsyncWriteInterceptor;
+import com.healthconcourse.vista.fhir.api.interceptor.WarmupReadinessInterceptor;
 import com.healthconcourse.vista.fhir.api.provider.*;
+import com.healthconcourse.vista.fhir.api.service.BulkImport;
+import com.healthconcourse.vista.fhir.api.service.ConditionWriteQueue;
+import com.healthconcourse.vista.fhir.api.service.ExportService;
+import com.healthconcourse.vista.fhir.api.service.ImportMapper;
+import com.healthconcourse.vista.fhir.api.service.PatientFetcher;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
+import org.springframework.util.StringUtils;
 import org.springframework.web.cors.CorsConfiguration;
+import com.healthconcourse.vista.fhir.api.cache.AccessHistory;
+import com.healthconcourse.vista.fhir.api.cache.CacheWarmer;
+import com.healthconcourse.vista.fhir.api.cache.ChangeLog;
+import com.healthconcourse.vista.fhir.api.cache.CohortIndex;
+import com.healthconcourse.vista.fhir.api.cache.LocationDirectory;
+import com.healthconcourse.vista.fhir.api.cache.PagingStore;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 
 import ca.uhn.fhir.context.FhirContext;
@@ -43,14 +71,42 @@ public class HcFhirServlet extends RestfulServer {
 
     private static final long serialVersionUID = 1L;
     private VistaData service;
+    private ReferenceDataCache references;
+    private LocationDirectory locations;
+    private AccessHistory history;
+    private CacheWarmer warmer;
+    private PatientSearchIndex searchIndex;
+    private VistaPatientService patients;
+    private CohortIndex cohorts;
+    private PatientFetcher fetcher;
+    private VistaCallScheduler scheduler;
+    private ExportService exports;
+    private ChangeLog changes;
+    private ConditionWriteQueue writes;
 
     private Environment env;
 
     @Autowired
-    HcFhirServlet(VistaData dataService, Environment environment) {
+    HcFhirServlet(VistaData dataService, ReferenceDataCache referenceCache, LocationDirectory locationDirectory,
+                  AccessHistory accessHistory, CacheWarmer cacheWarmer, PatientSearchIndex patientSearchIndex,
+                  VistaPatientService patientService, CohortIndex cohortIndex, PatientFetcher patientFetcher,
+                  VistaCallScheduler callScheduler, ExportService exportService, ChangeLog changeLog, ConditionWriteQueue writeQueue,
+                  Environment environment) {
 
         super(FhirContext.forR4());
         this.service = dataService;
+        this.references = referenceCache;
+        this.locations = locationDirectory;
+        this.history = accessHistory;
+        this.warmer = cacheWarmer;
+        this.searchIndex = patientSearchIndex;
+        this.patients = patientService;
+        this.cohorts = cohortIndex;
+        this.fetcher = patientFetcher;
+        this.scheduler = callScheduler;
+        this.exports = exportService;
+        this.changes = changeLog;
+        this.writes = writeQueue;
         this.env = environment;
     }
 
@@ -58,14 +114,55 @@ public class HcFhirServlet extends RestfulServer {
     public void initialize() {
 
         List<IResourceProvider> providers = new ArrayList<>();
-
-        providers.add(new PatientProvider(service));
-        providers.add(new ConditionProvider(service));
-        providers.add(new ObservationProvider(service));
-        providers.add(new LocationProvider(service));
-        providers.add(new CareTeamProvider(service));
+        providers.add(new PatientProvider(patients, scheduler,
+                env.getProperty("bulk.patientsInFlight", Integer.class, HcConstants.DEFAULT_BULK_PATIENTS_IN_FLIGHT),
+                env.getProperty("include.maxPractitioners", Long.class, HcConstants.DEFAULT_INCLUDE_MAX_PRACTITIONERS),
+                env.getProperty("include.maxRevIncludePatients", Integer.class, HcConstants.DEFAULT_INCLUDE_MAX_REVINCLUDE_PATIENTS)));
+        providers.add(new ConditionProvider(service, patients, cohorts, searchIndex, fetcher));
+        providers.add(new ObservationProvider(service, patients));
+        providers.add(new LocationProvider(service, references, locations));
+        providers.add(new CareTeamProvider(service, references));
         providers.add(new MedicationProvider(service));
         setResourceProviders(providers);
+        registerProvider(new ExportProvider(exports));
+        registerProvider(new ChangeProvider(patients, changes));
+        registerProvider(new ConditionWriteProvider(writes));
+
+        AtomicInteger batchThreads = new AtomicInteger();
+        int batchThreadCount = Math.max(env.getProperty("batch.threads", Integer.class, HcConstants.DEFAULT_BATCH_THREADS), 1);
+        // Bounded, so entries beyond what the pool can get through are refused rather than queued without end
+        ExecutorService batchRunner = new ThreadPoolExecutor(batchThreadCount, batchThreadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(env.getProperty("batch.queueSize", Integer.class, HcConstants.DEFAULT_BATCH_QUEUE_SIZE), 1)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "batch-entry-" + batchThreads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        registerProvider(new BatchProvider(this, service, batchRunner,
+                env.getProperty("batch.maxEntries", Integer.class, HcConstants.DEFAULT_BATCH_MAX_ENTRIES)));
+
+        int importInFlight = Math.max(env.getProperty("import.inFlight", Integer.class, HcConstants.DEFAULT_IMPORT_IN_FLIGHT), 1);
+        AtomicInteger importThreads = new AtomicInteger();
+        ExecutorService importSender = Executors.newFixedThreadPool(importInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "import-" + importThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        registerProvider(new ImportProvider(new BulkImport(service, new ImportMapper(env.getProperty("import.labLocation")),
+                importSender, importInFlight)));
+
+    /*
+     * Keep search results between pages, so next links are served without asking VistA again
+     */
+        String spillDirectory = env.getProperty("paging.spillDirectory");
+        PagingStore paging = new PagingStore(getFhirContext(),
+                env.getProperty("paging.maxResources", Long.class, HcConstants.DEFAULT_PAGING_MAX_RESOURCES),
+                Duration.ofMinutes(env.getProperty("paging.ttlMinutes", Long.class, HcConstants.DEFAULT_PAGING_TTL_MINUTES)),
+                StringUtils.isEmpty(spillDirectory) ? null : Paths.get(spillDirectory),
+                ForkJoinPool.commonPool());
+        paging.setDefaultPageSize(env.getProperty("paging.defaultPageSize", Integer.class, HcConstants.DEFAULT_PAGING_PAGE_SIZE));
+        paging.setMaximumPageSize(env.getProperty("paging.maxPageSize", Integer.class, HcConstants.DEFAULT_PAGING_MAX_PAGE_SIZE));
+        setPagingProvider(paging);
 
         setDefaultResponseEncoding(EncodingEnum.JSON);
         setImplementationDescription(HcConstants.SERVER_DESC);
@@ -91,6 +188,22 @@ public class HcFhirServlet extends RestfulServer {
         getFhirContext().setNarrativeGenerator(narrativeGen);
      */
 
+    /*
+     * Optionally hold requests back until the caches have been warmed, and record
+     * what is requested so the next start up knows what to warm
+     */
+        int readyPercent = env.getProperty("warmup.readyPercent", Integer.class, 0);
+        if (readyPercent > 0) {
+            Duration maxWait = Duration.ofSeconds(env.getProperty("warmup.readyTimeoutSeconds", Long.class, HcConstants.DEFAULT_WARMUP_READY_TIMEOUT_SECONDS));
+            registerInterceptor(new WarmupReadinessInterceptor(warmer, readyPercent, maxWait));
+        }
+        registerInterceptor(new AccessHistoryInterceptor(history));
+
+    /*
+     * Condition creates sent with Prefer: respond-async are queued and written in the background
+     */
+        registerInterceptor(new AsyncWriteInterceptor(writes));
+
     /*
      * Enable CORS
      */
@@ -98,6 +211,8 @@ public class HcFhirServlet extends RestfulServer {
         CorsInterceptor corsInterceptor = new CorsInterceptor(config);
         config.addAllowedHeader("Accept");
         config.addAllowedHeader("Content-Type");
+        config.addAllowedHeader("Prefer");
+        config.addAllowedHeader(AsyncWriteInterceptor.IDEMPOTENCY_KEY);
         config.addAllowedOrigin("*");
         config.addExposedHeader("Location");
         config.addExposedHeader("Content-Location");
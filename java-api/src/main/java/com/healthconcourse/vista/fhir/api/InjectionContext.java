@@ -16,20 +16,292 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api;
 
+import com.healthconcourse.vista.fhir.api.cache.AccessHistory;
+import com.healthconcourse.vista.fhir.api.cache.CacheWarmer;
+import com.healthconcourse.vista.fhir.api.cache.ChangeLog;
+import com.healthconcourse.vista.fhir.api.cache.CohortCrawler;
+import com.healthconcourse.vista.fhir.api.cache.CohortIndex;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.InvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.LocalInvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.LocationDirectory;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientIndexCrawler;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
+import com.healthconcourse.vista.fhir.api.service.BulkEverything;
+import com.healthconcourse.vista.fhir.api.service.ConditionWriteQueue;
+import com.healthconcourse.vista.fhir.api.service.ExportService;
+import com.healthconcourse.vista.fhir.api.service.PatientFetcher;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.service.VistaCareTeamService;
+import com.healthconcourse.vista.fhir.api.service.VistaLocationService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import com.healthconcourse.vista.fhir.api.vista.WebVistaData;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @Configuration
 public class InjectionContext {
 
     @Autowired
     @Bean
-    public VistaData vistaData(Environment env) {
+    public VistaData vistaData(InvalidationBus invalidations, Environment env) {
+
+        return new WebVistaData(env.getProperty("vistaUrl"), invalidations);
+    }
+
+    @Bean
+    public InvalidationBus invalidationBus() {
+
+        return new LocalInvalidationBus();
+    }
+
+    @Autowired
+    @Bean
+    public PatientSnapshotCache patientSnapshotCache(ChangeLog changeLog, InvalidationBus invalidations, Environment env) {
+
+        PatientCacheSettings settings = new PatientCacheSettings();
+        settings.setMaxWeight(env.getProperty("patientCache.maxWeight", Long.class, HcConstants.DEFAULT_PATIENT_CACHE_WEIGHT));
+        settings.setIdleTimeout(Duration.ofMinutes(env.getProperty("patientCache.idleMinutes", Long.class, HcConstants.DEFAULT_PATIENT_CACHE_IDLE_MINUTES)));
+        settings.setDefaultTimeToLive(Duration.ofSeconds(env.getProperty("patientCache.ttlSeconds", Long.class, HcConstants.DEFAULT_PATIENT_CACHE_TTL_SECONDS)));
+        settings.setRefreshAheadPercent(env.getProperty("patientCache.refreshAheadPercent", Integer.class, HcConstants.DEFAULT_PATIENT_CACHE_REFRESH_AHEAD_PERCENT));
+        settings.setMaxStale(Duration.ofSeconds(env.getProperty("patientCache.maxStaleSeconds", Long.class, HcConstants.DEFAULT_PATIENT_CACHE_MAX_STALE_SECONDS)));
+        settings.setRefreshThreads(env.getProperty("patientCache.refreshThreads", Integer.class, HcConstants.DEFAULT_PATIENT_CACHE_REFRESH_THREADS));
+
+        for (DataCategory category : DataCategory.values()) {
+            Long seconds = env.getProperty("patientCache.ttlSeconds." + category.name(), Long.class);
+            if (seconds != null) {
+                settings.setTimeToLive(category, Duration.ofSeconds(seconds));
+            }
+        }
+
+        PatientSnapshotCache cache = new PatientSnapshotCache(settings, changeLog);
+        invalidations.subscribe(cache::invalidate);
+        return cache;
+    }
+
+    @Autowired
+    @Bean
+    public ChangeLog changeLog(Environment env) {
+
+        return new ChangeLog(env.getProperty("changeLog.maxEntries", Integer.class, 0),
+                env.getProperty("changeLog.maxTracked", Long.class, HcConstants.DEFAULT_CHANGE_LOG_MAX_TRACKED));
+    }
+
+    @Autowired
+    @Bean
+    public ReferenceDataCache referenceDataCache(Environment env) {
+
+        return new ReferenceDataCache(
+                env.getProperty("referenceCache.maxEntries", Long.class, HcConstants.DEFAULT_REFERENCE_CACHE_ENTRIES),
+                Duration.ofMinutes(env.getProperty("referenceCache.ttlMinutes", Long.class, HcConstants.DEFAULT_REFERENCE_CACHE_TTL_MINUTES)));
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "stop")
+    public LocationDirectory locationDirectory(VistaData vistaData, Environment env) {
+
+        LocationDirectory directory = new LocationDirectory(vistaData,
+                new RateLimiter(env.getProperty("locations.callsPerSecond", Double.class, HcConstants.DEFAULT_LOCATION_CALLS_PER_SECOND)),
+                Duration.ofMinutes(env.getProperty("locations.refreshMinutes", Long.class, HcConstants.DEFAULT_LOCATION_REFRESH_MINUTES)));
+        directory.addNames(Arrays.asList(StringUtils.split(env.getProperty("locations.names", ""), ',')));
+        directory.start();
+
+        return directory;
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "save")
+    public AccessHistory accessHistory(Environment env) {
+
+        String file = env.getProperty("warmup.historyFile");
+
+        AccessHistory history = new AccessHistory(
+                env.getProperty("warmup.maxEntries", Integer.class, HcConstants.DEFAULT_WARMUP_MAX_ENTRIES),
+                StringUtils.isEmpty(file) ? null : Paths.get(file));
+        history.load();
+        history.startSaving(Duration.ofMinutes(env.getProperty("warmup.saveIntervalMinutes", Long.class, HcConstants.DEFAULT_WARMUP_SAVE_MINUTES)));
+
+        return history;
+    }
+
+    @Autowired
+    @Bean(initMethod = "start")
+    public CacheWarmer cacheWarmer(VistaData vistaData, VistaPatientService patientService, ReferenceDataCache references,
+                                   LocationDirectory locations, AccessHistory history, VistaCallScheduler callScheduler,
+                                   Environment env) {
+
+        return new CacheWarmer(history,
+                patientService,
+                new VistaLocationService(vistaData, references, locations),
+                new VistaCareTeamService(vistaData, references),
+                new RateLimiter(env.getProperty("warmup.callsPerSecond", Double.class, HcConstants.DEFAULT_WARMUP_CALLS_PER_SECOND)),
+                callScheduler,
+                env.getProperty("warmup.maxEntries", Integer.class, HcConstants.DEFAULT_WARMUP_MAX_ENTRIES));
+    }
+
+    @Autowired
+    @Bean
+    public VistaPatientService vistaPatientService(VistaData vistaData, PatientSnapshotCache snapshots, PatientSearchIndex patients,
+                                                   KnownPatientFilter knownPatients) {
+
+        return new VistaPatientService(vistaData, snapshots, patients, knownPatients);
+    }
+
+    @Bean
+    public PatientSearchIndex patientSearchIndex() {
+
+        return new PatientSearchIndex();
+    }
+
+    @Autowired
+    @Bean
+    public KnownPatientFilter knownPatientFilter(Environment env) {
+
+        return new KnownPatientFilter(env.getProperty("patientIndex.falsePositiveRate", Double.class, HcConstants.DEFAULT_KNOWN_PATIENT_FALSE_POSITIVE_RATE),
+                env.getProperty("patientIndex.maxMisses", Long.class, HcConstants.DEFAULT_KNOWN_PATIENT_MAX_MISSES),
+                Duration.ofSeconds(env.getProperty("patientIndex.missSeconds", Long.class, HcConstants.DEFAULT_KNOWN_PATIENT_MISS_SECONDS)));
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "stop")
+    public PatientIndexCrawler patientIndexCrawler(VistaData vistaData, PatientSearchIndex index, KnownPatientFilter knownPatients,
+                                                   Environment env) {
+
+        PatientIndexCrawler crawler = new PatientIndexCrawler(vistaData, index, knownPatients,
+                new RateLimiter(env.getProperty("patientIndex.callsPerSecond", Double.class, HcConstants.DEFAULT_PATIENT_INDEX_CALLS_PER_SECOND)),
+                env.getProperty("patientIndex.batchSize", Integer.class, HcConstants.DEFAULT_PATIENT_INDEX_BATCH_SIZE),
+                env.getProperty("patientIndex.maxEmptyBatches", Integer.class, HcConstants.DEFAULT_PATIENT_INDEX_MAX_EMPTY_BATCHES),
+                Duration.ofMinutes(env.getProperty("patientIndex.refreshMinutes", Long.class, HcConstants.DEFAULT_PATIENT_INDEX_REFRESH_MINUTES)),
+                Duration.ofHours(env.getProperty("patientIndex.fullRefreshHours", Long.class, HcConstants.DEFAULT_PATIENT_INDEX_FULL_REFRESH_HOURS)));
+
+        if (env.getProperty("patientIndex.enabled", Boolean.class, false)) {
+            crawler.start();
+        }
+
+        return crawler;
+    }
+
+    @Bean
+    public CohortIndex cohortIndex() {
+
+        return new CohortIndex();
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "stop")
+    public CohortCrawler cohortCrawler(VistaData vistaData, PatientSearchIndex patients, CohortIndex cohorts,
+                                       InvalidationBus invalidations, Environment env) {
+
+        CohortCrawler crawler = new CohortCrawler(vistaData, patients, cohorts,
+                new RateLimiter(env.getProperty("cohortIndex.callsPerSecond", Double.class, HcConstants.DEFAULT_COHORT_INDEX_CALLS_PER_SECOND)),
+                Duration.ofHours(env.getProperty("cohortIndex.refreshHours", Long.class, HcConstants.DEFAULT_COHORT_INDEX_REFRESH_HOURS)));
+        invalidations.subscribe(crawler::invalidated);
+
+        if (env.getProperty("patientIndex.enabled", Boolean.class, false) && env.getProperty("cohortIndex.enabled", Boolean.class, false)) {
+            crawler.start();
+        }
+
+        return crawler;
+    }
+
+    @Autowired
+    @Bean
+    public PatientFetcher patientFetcher(VistaPatientService patientService, PatientSnapshotCache snapshots, Environment env) {
+
+        int threads = Math.max(env.getProperty("cohort.fetchThreads", Integer.class, HcConstants.DEFAULT_COHORT_FETCH_THREADS), 1);
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "patient-fetcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new PatientFetcher(patientService, snapshots, executor,
+                new RateLimiter(env.getProperty("cohort.callsPerSecond", Double.class, HcConstants.DEFAULT_COHORT_CALLS_PER_SECOND)),
+                threads);
+    }
+
+    @Autowired
+    @Bean
+    public VistaCallScheduler vistaCallScheduler(Environment env) {
+
+        int maxOutstanding = Math.max(env.getProperty("vista.maxOutstandingCalls", Integer.class, HcConstants.DEFAULT_VISTA_MAX_OUTSTANDING_CALLS), 1);
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(maxOutstanding, runnable -> {
+            Thread thread = new Thread(runnable, "vista-call-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new VistaCallScheduler(workers, maxOutstanding);
+    }
+
+    @Autowired
+    @Bean
+    public ExportService exportService(VistaData vistaData, PatientSearchIndex patients, KnownPatientFilter knownPatients,
+                                       VistaCallScheduler scheduler, ChangeLog changeLog, Environment env) {
+
+        // Exports read through no cache, so walking every patient does not evict the ones being looked at,
+        // but what they read still feeds the change log
+        PatientService service = new VistaPatientService(vistaData, PatientSnapshotCache.disabled(changeLog), patients, knownPatients);
+        BulkEverything everything = new BulkEverything(service, scheduler,
+                env.getProperty("export.patientsInFlight", Integer.class, HcConstants.DEFAULT_EXPORT_PATIENTS_IN_FLIGHT));
+
+        ExecutorService jobRunner = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Path directory = Paths.get(env.getProperty("export.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), HcConstants.DEFAULT_EXPORT_DIRECTORY_NAME).toString()));
+
+        ExportService exports = new ExportService(service, patients, everything,
+                new RateLimiter(env.getProperty("export.patientsPerSecond", Double.class, HcConstants.DEFAULT_EXPORT_PATIENTS_PER_SECOND)),
+                jobRunner, directory,
+                Duration.ofHours(env.getProperty("export.retentionHours", Long.class, HcConstants.DEFAULT_EXPORT_RETENTION_HOURS)),
+                env.getProperty("export.checkpointPatients", Integer.class, HcConstants.DEFAULT_EXPORT_CHECKPOINT_PATIENTS));
+        exports.resume();
+        return exports;
+    }
+
+    @Autowired
+    @Bean
+    public ConditionWriteQueue conditionWriteQueue(VistaData vistaData, Environment env) {
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(
+                Math.max(env.getProperty("writes.concurrency", Integer.class, HcConstants.DEFAULT_WRITES_CONCURRENCY), 1), runnable -> {
+                    Thread thread = new Thread(runnable, "condition-write-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        Path directory = Paths.get(env.getProperty("writes.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), HcConstants.DEFAULT_WRITES_DIRECTORY_NAME).toString()));
 
-        return new WebVistaData(env.getProperty("vistaUrl"));
+        ConditionWriteQueue writes = new ConditionWriteQueue(vistaData, writers, directory,
+                Duration.ofHours(env.getProperty("writes.retentionHours", Long.class, HcConstants.DEFAULT_WRITES_RETENTION_HOURS)),
+                env.getProperty("writes.maxQueued", Integer.class, HcConstants.DEFAULT_WRITES_MAX_QUEUED));
+        writes.resume();
+        return writes;
     }
 }
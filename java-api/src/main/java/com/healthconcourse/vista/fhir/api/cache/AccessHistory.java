@@ -0,0 +1,223 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts how often, and how recently, patients and reference data are requested so
+ * that the busiest keys can be loaded into the caches after a restart.
+ *
+ * The history is kept to a bounded number of keys and saved as a small tab
+ * separated file: kind, access count, last access (epoch millis) and key.
+ */
+public class AccessHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AccessHistory.class);
+
+    private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final Path file;
+    private final Clock clock;
+
+    /**
+     * @param maxEntries Required. How many keys to keep
+     * @param file Optional. Where the history is saved, null keeps it in memory only
+     */
+    public AccessHistory(int maxEntries, Path file) {
+        this(maxEntries, file, Clock.systemUTC());
+    }
+
+    public AccessHistory(int maxEntries, Path file, Clock clock) {
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.file = file;
+        this.clock = clock;
+    }
+
+    /**
+     * Note that a key was requested
+     */
+    public void record(AccessKind kind, String key) {
+
+        if (key == null || key.isEmpty() || key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0) {
+            return;
+        }
+
+        long now = clock.millis();
+        items.compute(kind.name() + '\t' + key, (k, item) -> item == null
+                ? new Item(kind, key, 1, now)
+                : new Item(kind, key, item.count + 1, now));
+
+        if (items.size() > maxEntries * 2) {
+            prune();
+        }
+    }
+
+    /**
+     * @return up to limit keys, busiest first. Keys are ranked by their access count,
+     * discounted by the number of days since they were last requested.
+     */
+    public List<Item> getMostUsed(int limit) {
+        long now = clock.millis();
+        List<Item> result = new ArrayList<>(items.values());
+        result.sort(Comparator.comparingDouble((Item item) -> item.score(now)).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Read a previously saved history, if there is one
+     */
+    public void load() {
+
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    AccessKind kind = AccessKind.valueOf(fields[0]);
+                    Item item = new Item(kind, fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    items.merge(kind.name() + '\t' + item.key, item, (a, b) -> a.lastAccess >= b.lastAccess ? a : b);
+                } catch (IllegalArgumentException ex) {
+                    LOG.warn("Skipping unreadable access history entry: " + line);
+                }
+            }
+            LOG.info(String.format("Loaded %d entries of access history from %s", items.size(), file));
+        } catch (IOException ex) {
+            LOG.error("Unable to read access history from " + file, ex);
+        }
+    }
+
+    /**
+     * Write the busiest keys to the history file, replacing it atomically
+     */
+    public synchronized void save() {
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = Files.createTempFile(parent, "access-history", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Item item : getMostUsed(maxEntries)) {
+                    writer.write(item.kind.name() + '\t' + item.count + '\t' + item.lastAccess + '\t' + item.key);
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.error("Unable to save access history to " + file, ex);
+        }
+    }
+
+    /**
+     * Save the history on a background thread at a fixed interval
+     */
+    public void startSaving(Duration interval) {
+        if (file == null || interval.isZero() || interval.isNegative()) {
+            return;
+        }
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "access-history-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::save, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void prune() {
+        if (items.size() <= maxEntries * 2) {
+            return;
+        }
+        List<Item> ranked = getMostUsed(Integer.MAX_VALUE);
+        for (Item item : ranked.subList(maxEntries, ranked.size())) {
+            items.remove(item.kind.name() + '\t' + item.key, item);
+        }
+    }
+
+    /**
+     * One recorded key
+     */
+    public static final class Item {
+
+        private final AccessKind kind;
+        private final String key;
+        private final long count;
+        private final long lastAccess;
+
+        Item(AccessKind kind, String key, long count, long lastAccess) {
+            this.kind = kind;
+            this.key = key;
+            this.count = count;
+            this.lastAccess = lastAccess;
+        }
+
+        public AccessKind getKind() {
+            return kind;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        private double score(long now) {
+            double days = Math.max(now - lastAccess, 0) / (double) TimeUnit.DAYS.toMillis(1);
+            return count / (1 + days);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+/**
+ * The kinds of keys recorded in the {@link AccessHistory} and pre-loaded on startup.
+ */
+public enum AccessKind {
+    PATIENT,
+    LOCATION,
+    CARE_TEAM
+}
@@ -0,0 +1,169 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.service.CareTeamService;
+import com.healthconcourse.vista.fhir.api.service.LocationService;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the busiest patients and reference data from the {@link AccessHistory} into
+ * the caches after a restart, in the background and at a pace limited by a
+ * {@link RateLimiter} so that warming does not compete with live traffic for VistA.
+ * The calls go through the {@link VistaCallScheduler}, so they also count towards
+ * its cap on outstanding calls.
+ */
+public class CacheWarmer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+    // Reference data is not any one patient's; it takes its turn in the scheduler under this key
+    private static final String SCHEDULER_KEY = "cache-warmer";
+
+    private final AccessHistory history;
+    private final PatientService patients;
+    private final LocationService locations;
+    private final CareTeamService careTeams;
+    private final RateLimiter limiter;
+    private final VistaCallScheduler scheduler;
+    private final int maxEntries;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean finished;
+
+    /**
+     * @param history Required. The keys to warm
+     * @param patients Required. Loads patient data into the snapshot cache
+     * @param locations Required. Loads locations into the reference data cache
+     * @param careTeams Required. Loads care teams into the reference data cache
+     * @param limiter Required. Paces the VistA calls, one permit per call
+     * @param scheduler Required. Runs the VistA calls within the cap on outstanding calls shared with requests
+     * @param maxEntries Required. The most keys to warm
+     */
+    public CacheWarmer(AccessHistory history, PatientService patients, LocationService locations, CareTeamService careTeams,
+                       RateLimiter limiter, VistaCallScheduler scheduler, int maxEntries) {
+        this.history = history;
+        this.patients = patients;
+        this.locations = locations;
+        this.careTeams = careTeams;
+        this.limiter = limiter;
+        this.scheduler = scheduler;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Start warming on a background thread
+     */
+    public void start() {
+        Thread thread = new Thread(this::warm, "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Warm every key on the calling thread
+     */
+    public void warm() {
+
+        List<AccessHistory.Item> items = history.getMostUsed(maxEntries);
+        total.set(items.size());
+        LOG.info(String.format("Warming caches for %d entries", items.size()));
+
+        long started = System.currentTimeMillis();
+        int lastReported = 0;
+
+        try {
+            for (AccessHistory.Item item : items) {
+                limiter.acquire(getCallCount(item.getKind()));
+                try {
+                    warm(item);
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    LOG.debug(String.format("Unable to warm %s %s: %s", item.getKind(), item.getKey(), ex.getMessage()));
+                }
+                completed.incrementAndGet();
+
+                int percent = getPercentComplete();
+                if (percent / 10 > lastReported / 10) {
+                    lastReported = percent;
+                    LOG.info(String.format("Cache warming %d%% complete (%d of %d, %d failed)", percent, completed.get(), total.get(), failed.get()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Cache warming interrupted");
+        } finally {
+            finished = true;
+        }
+
+        LOG.info(String.format("Cache warming finished in %d ms, %d of %d entries loaded", System.currentTimeMillis() - started,
+                completed.get() - failed.get(), total.get()));
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return how much of the history has been warmed, 100 when there is nothing to warm
+     */
+    public int getPercentComplete() {
+        int count = total.get();
+        return count == 0 ? (finished ? 100 : 0) : completed.get() * 100 / count;
+    }
+
+    private void warm(AccessHistory.Item item) {
+        switch (item.getKind()) {
+            case PATIENT:
+                patients.getEverything(item.getKey(), scheduler.forPatient(item.getKey())).join();
+                break;
+            case LOCATION:
+                CompletableFuture.runAsync(() -> locations.findLocationByName(item.getKey()), scheduler.forPatient(SCHEDULER_KEY)).join();
+                break;
+            case CARE_TEAM:
+                CompletableFuture.runAsync(() -> careTeams.getCareTeamByName(item.getKey()), scheduler.forPatient(SCHEDULER_KEY)).join();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int getCallCount(AccessKind kind) {
+        // $everything reads every category of the patient snapshot
+        return kind == AccessKind.PATIENT ? DataCategory.values().length : 1;
+    }
+}
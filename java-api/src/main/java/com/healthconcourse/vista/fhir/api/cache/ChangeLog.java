@@ -0,0 +1,208 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records which categories of which patients have changed, for incremental sync.
+ *
+ * Every payload fetched from VistA is hashed and compared with the hash of the last
+ * payload seen for the same patient and category; when it differs the change is logged
+ * under a new sequence number. Only the latest change per patient and category is kept.
+ * Sequence numbers are taken from the clock so they keep increasing across restarts.
+ * The hashes are not kept across restarts, and nor are those evicted once more keys are
+ * tracked than allowed, so the first payload seen for a key is always logged as a
+ * change; consumers may be told about data which has not changed.
+ *
+ * Changes are only seen when the server reads a patient again, a change to a patient
+ * nobody reads afterwards is never logged. The log is only complete alongside a periodic
+ * full read of every patient, such as a scheduled $export.
+ */
+public class ChangeLog {
+
+    private static final long SEQUENCES_PER_MILLI = 1000;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final Clock clock;
+    private final Cache<String, Long> hashes;
+    private final TreeMap<Long, Change> changes = new TreeMap<>();
+    private final Map<String, Long> latest = new HashMap<>();
+    private long lastSequence;
+    private long droppedThrough;
+
+    /**
+     * @param maxEntries Required. How many changes are kept, 0 disables the log
+     * @param maxTracked Required. How many patient and category hashes are kept
+     */
+    public ChangeLog(int maxEntries, long maxTracked) {
+        this(maxEntries, maxTracked, Clock.systemUTC());
+    }
+
+    public ChangeLog(int maxEntries, long maxTracked, Clock clock) {
+        this.enabled = maxEntries > 0;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.hashes = Caffeine.newBuilder().maximumSize(Math.max(maxTracked, 0)).build();
+        this.lastSequence = clock.millis() * SEQUENCES_PER_MILLI;
+        this.droppedThrough = lastSequence;
+    }
+
+    /**
+     * A log which records nothing
+     */
+    public static ChangeLog disabled() {
+        return new ChangeLog(0, 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Compare a freshly fetched payload with the last one seen, logging a change when it differs
+     *
+     * @return true when a change was logged
+     */
+    public boolean record(String icn, DataCategory category, String payload) {
+
+        if (!enabled) {
+            return false;
+        }
+
+        String key = icn + '\t' + category.name();
+        long hash = hash(payload);
+
+        // Compared and logged under one lock so concurrent reads of a key log in the order they replaced its hash
+        synchronized (this) {
+            Long previous = hashes.asMap().put(key, hash);
+            if (previous != null && previous == hash) {
+                return false;
+            }
+
+            lastSequence = Math.max(lastSequence + 1, clock.millis() * SEQUENCES_PER_MILLI);
+            Long replaced = latest.put(key, lastSequence);
+            if (replaced != null) {
+                changes.remove(replaced);
+            }
+            changes.put(lastSequence, new Change(lastSequence, clock.millis(), icn, category));
+
+            while (changes.size() > maxEntries) {
+                Change dropped = changes.pollFirstEntry().getValue();
+                latest.remove(dropped.getIcn() + '\t' + dropped.getCategory().name());
+                droppedThrough = Math.max(droppedThrough, dropped.getSequence());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param since Required. The sequence of the last change already seen
+     * @param max Required. The most changes to return
+     * @return the changes after since, oldest first
+     */
+    public synchronized List<Change> getChanges(long since, int max) {
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes.tailMap(since, false).values()) {
+            if (result.size() >= max) {
+                break;
+            }
+            result.add(change);
+        }
+        return result;
+    }
+
+    /**
+     * @return true when changes after since may have been dropped from the log, or
+     * happened before it started, so a consumer at since needs a full resync
+     */
+    public synchronized boolean isTooOld(long since) {
+        return since < droppedThrough;
+    }
+
+    /**
+     * @return the sequence of the latest change, or of the start of the log when there are none
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized int size() {
+        return changes.size();
+    }
+
+    private static long hash(String payload) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest((payload == null ? "" : payload).getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * A patient's category which changed
+     */
+    public static final class Change {
+
+        private final long sequence;
+        private final long changedAt;
+        private final String icn;
+        private final DataCategory category;
+
+        Change(long sequence, long changedAt, String icn, DataCategory category) {
+            this.sequence = sequence;
+            this.changedAt = changedAt;
+            this.icn = icn;
+            this.category = category;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return when the change was seen, in milliseconds since the epoch
+         */
+        public long getChangedAt() {
+            return changedAt;
+        }
+
+        public String getIcn() {
+            return icn;
+        }
+
+        public DataCategory getCategory() {
+            return category;
+        }
+    }
+}
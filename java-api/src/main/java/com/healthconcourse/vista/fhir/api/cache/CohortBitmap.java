@@ -0,0 +1,475 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative integers, laid out the way Roaring bitmaps are: values
+ * are grouped by their upper 16 bits and each group is held as a sorted array while it
+ * is sparse and as a 65536 bit bitmap once it is dense. Set operations work a group at
+ * a time, so intersecting two large cohorts costs little more than a few word-wise ANDs.
+ *
+ * Instances are not thread safe, callers guard them.
+ */
+public final class CohortBitmap {
+
+    private static final int ARRAY_LIMIT = 4096;
+
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size;
+
+    public static CohortBitmap of(int... values) {
+        CohortBitmap result = new CohortBitmap();
+        for (int value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    public void add(int value) {
+        char key = (char) (value >>> 16);
+        int index = indexOf(key);
+        if (index >= 0) {
+            containers[index] = containers[index].add((char) value);
+        } else {
+            insert(-index - 1, key, new ArrayContainer().add((char) value));
+        }
+    }
+
+    public void remove(int value) {
+        int index = indexOf((char) (value >>> 16));
+        if (index >= 0) {
+            Container container = containers[index].remove((char) value);
+            if (container.cardinality() == 0) {
+                System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+                System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+                containers[--size] = null;
+            } else {
+                containers[index] = container;
+            }
+        }
+    }
+
+    public boolean contains(int value) {
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public int cardinality() {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result += containers[i].cardinality();
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    public int[] toArray() {
+        int[] result = new int[cardinality()];
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            offset = containers[i].fill(result, offset, keys[i] << 16);
+        }
+        return result;
+    }
+
+    public CohortBitmap copy() {
+        CohortBitmap result = new CohortBitmap();
+        result.keys = Arrays.copyOf(keys, size);
+        result.containers = new Container[size];
+        for (int i = 0; i < size; i++) {
+            result.containers[i] = containers[i].copy();
+        }
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * @return the values in both this and the other bitmap
+     */
+    public CohortBitmap and(CohortBitmap other) {
+        CohortBitmap result = new CohortBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.append(keys[i], and(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the values in either this or the other bitmap
+     */
+    public CohortBitmap or(CohortBitmap other) {
+        CohortBitmap result = new CohortBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j >= other.size || (i < size && keys[i] < other.keys[j])) {
+                result.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i >= size || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.append(keys[i], or(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the values in this bitmap which are not in the other
+     */
+    public CohortBitmap andNot(CohortBitmap other) {
+        CohortBitmap result = new CohortBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                result.append(keys[i], andNot(containers[i], other.containers[j]));
+            } else {
+                result.append(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(int index, char key, Container container) {
+        ensureCapacity();
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    /**
+     * Add a group after all the existing ones, dropping it if it is empty
+     */
+    private void append(char key, Container container) {
+        if (container.cardinality() > 0) {
+            ensureCapacity();
+            keys[size] = key;
+            containers[size] = container;
+            size++;
+        }
+    }
+
+    private void ensureCapacity() {
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+    }
+
+    private static Container and(Container a, Container b) {
+        if (a instanceof BitmapContainer && b instanceof BitmapContainer) {
+            long[] words = ((BitmapContainer) a).words.clone();
+            long[] others = ((BitmapContainer) b).words;
+            for (int i = 0; i < words.length; i++) {
+                words[i] &= others[i];
+            }
+            return new BitmapContainer(words).normalize();
+        }
+        ArrayContainer array = (ArrayContainer) (a instanceof ArrayContainer ? a : b);
+        return array.filter(a instanceof ArrayContainer ? b : a, true);
+    }
+
+    private static Container or(Container a, Container b) {
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer
+                && a.cardinality() + b.cardinality() <= ARRAY_LIMIT) {
+            return ((ArrayContainer) a).union((ArrayContainer) b);
+        }
+        BitmapContainer result = a.toBitmap();
+        if (b instanceof BitmapContainer) {
+            long[] others = ((BitmapContainer) b).words;
+            for (int i = 0; i < others.length; i++) {
+                result.words[i] |= others[i];
+            }
+            result.recount();
+        } else {
+            ArrayContainer array = (ArrayContainer) b;
+            for (int i = 0; i < array.count; i++) {
+                result.add(array.values[i]);
+            }
+        }
+        return result.normalize();
+    }
+
+    private static Container andNot(Container a, Container b) {
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, false);
+        }
+        BitmapContainer result = (BitmapContainer) a.copy();
+        if (b instanceof BitmapContainer) {
+            long[] others = ((BitmapContainer) b).words;
+            for (int i = 0; i < others.length; i++) {
+                result.words[i] &= ~others[i];
+            }
+            result.recount();
+        } else {
+            ArrayContainer array = (ArrayContainer) b;
+            for (int i = 0; i < array.count; i++) {
+                result.remove(array.values[i]);
+            }
+        }
+        return result.normalize();
+    }
+
+    /**
+     * The values of one group, identified by their lower 16 bits
+     */
+    private abstract static class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract BitmapContainer toBitmap();
+
+        abstract Container copy();
+
+        abstract int fill(int[] target, int offset, int high);
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] values;
+        private int count;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int count) {
+            this.values = values;
+            this.count = count;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, count, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, count, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (count >= ARRAY_LIMIT) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(count * 2, ARRAY_LIMIT));
+            }
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = value;
+            count++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, count, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, count - index - 1);
+                count--;
+            }
+            return this;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer(new long[1024]);
+            for (int i = 0; i < count; i++) {
+                result.add(values[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(count, 1)), count);
+        }
+
+        @Override
+        int fill(int[] target, int offset, int high) {
+            for (int i = 0; i < count; i++) {
+                target[offset++] = high | values[i];
+            }
+            return offset;
+        }
+
+        /**
+         * @return the values which are (or are not) in the other group
+         */
+        ArrayContainer filter(Container other, boolean keep) {
+            char[] result = new char[Math.max(count, 1)];
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                if (other.contains(values[i]) == keep) {
+                    result[found++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, found);
+        }
+
+        ArrayContainer union(ArrayContainer other) {
+            char[] result = new char[Math.max(count + other.count, 1)];
+            int i = 0;
+            int j = 0;
+            int found = 0;
+            while (i < count || j < other.count) {
+                if (j >= other.count || (i < count && values[i] < other.values[j])) {
+                    result[found++] = values[i++];
+                } else if (i >= count || values[i] > other.values[j]) {
+                    result[found++] = other.values[j++];
+                } else {
+                    result[found++] = values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(result, found);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private int count;
+
+        BitmapContainer(long[] words) {
+            this.words = words;
+            recount();
+        }
+
+        void recount() {
+            int total = 0;
+            for (long word : words) {
+                total += Long.bitCount(word);
+            }
+            count = total;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            long mask = 1L << value;
+            if ((words[value >>> 6] & mask) == 0) {
+                words[value >>> 6] |= mask;
+                count++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long mask = 1L << value;
+            if ((words[value >>> 6] & mask) != 0) {
+                words[value >>> 6] &= ~mask;
+                count--;
+            }
+            return normalize();
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return (BitmapContainer) copy();
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone());
+        }
+
+        @Override
+        int fill(int[] target, int offset, int high) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    target[offset++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * @return an array group once the values are sparse enough
+         */
+        Container normalize() {
+            if (count > ARRAY_LIMIT) {
+                return this;
+            }
+            char[] values = new char[Math.max(count, 1)];
+            int found = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[found++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, found);
+        }
+    }
+}
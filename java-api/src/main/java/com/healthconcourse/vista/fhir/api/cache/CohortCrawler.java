@@ -0,0 +1,218 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.parser.ConditionParser;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a {@link CohortIndex} by reading the conditions of every patient in the
+ * {@link PatientSearchIndex}, in the background and at a pace set by a {@link RateLimiter}.
+ * The walk starts once the patient index has been loaded and is repeated periodically.
+ * Between walks a patient is read again whenever their conditions are written.
+ *
+ * VistA answers both a failed call and a patient without conditions with nothing, so an
+ * empty reply never replaces the codes recorded for a patient; it only adds a patient
+ * not seen before, with no codes. The index is only marked ready by a walk over a
+ * non-empty patient list in which at least one patient was read.
+ */
+public class CohortCrawler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CohortCrawler.class);
+    private static final long WAIT_FOR_PATIENTS_SECONDS = 60;
+
+    private final VistaData data;
+    private final PatientSearchIndex patients;
+    private final CohortIndex cohorts;
+    private final RateLimiter limiter;
+    private final Duration refreshInterval;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param data Required. Where the conditions are read from
+     * @param patients Required. The patients to walk
+     * @param cohorts Required. The index to fill
+     * @param limiter Required. Paces the VistA calls, one permit per patient
+     * @param refreshInterval Required. How long to wait between walks
+     */
+    public CohortCrawler(VistaData data, PatientSearchIndex patients, CohortIndex cohorts, RateLimiter limiter, Duration refreshInterval) {
+        this.data = data;
+        this.patients = patients;
+        this.cohorts = cohorts;
+        this.limiter = limiter;
+        this.refreshInterval = refreshInterval;
+    }
+
+    public synchronized void start() {
+
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cohort-crawler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::run, 0, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Read the conditions of every indexed patient
+     *
+     * @return how many patients could not be read, including those VistA gave no reply for
+     */
+    public int crawl() throws InterruptedException {
+
+        long started = System.currentTimeMillis();
+        List<String> icns = patients.getIcns();
+        if (icns.isEmpty()) {
+            LOG.warn("Cohort crawl skipped, the patient index is empty");
+            return 0;
+        }
+
+        int failed = 0;
+        for (String icn : icns) {
+            limiter.acquire(1);
+            try {
+                if (!read(icn)) {
+                    failed++;
+                }
+            } catch (RuntimeException ex) {
+                failed++;
+                LOG.debug(String.format("Unable to read conditions for %s: %s", icn, ex.getMessage()));
+            }
+        }
+
+        if (failed == icns.size()) {
+            LOG.warn(String.format("Cohort crawl could not read any of %d patients, the index is left as it was", icns.size()));
+            return failed;
+        }
+
+        cohorts.retainAll(icns);
+        cohorts.setReady(true);
+        LOG.info(String.format("Cohort index loaded for %d patients (%d failed or without conditions) in %d ms", icns.size() - failed,
+                failed, System.currentTimeMillis() - started));
+        return failed;
+    }
+
+    /**
+     * Listens for writes; once the index is in use, a patient whose conditions changed
+     * is read again in the background
+     */
+    public void invalidated(String icn, Set<DataCategory> categories) {
+
+        if (!categories.contains(DataCategory.CONDITION) || !cohorts.isReady()) {
+            return;
+        }
+
+        CompletableFuture.runAsync(() -> refresh(icn))
+                .exceptionally(ex -> {
+                    LOG.warn("Unable to refresh conditions for " + icn, ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Read the conditions of one patient again
+     */
+    public void refresh(String icn) {
+
+        if (!read(icn)) {
+            LOG.debug("No conditions read for " + icn + ", the codes recorded are kept");
+        }
+    }
+
+    /**
+     * @return the SNOMED codes of the conditions, which are what DHPPATS4CON is searched by
+     */
+    public static Set<String> getCodes(List<Condition> conditions) {
+        Set<String> codes = new HashSet<>();
+        for (Condition condition : conditions) {
+            for (Coding coding : condition.getCode().getCoding()) {
+                if (HcConstants.SNOMED_URN.equals(coding.getSystem()) && coding.hasCode()) {
+                    codes.add(coding.getCode());
+                }
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @return false when VistA gave no reply, in which case codes already recorded are kept
+     */
+    private boolean read(String icn) {
+
+        String payload = data.getConditions(icn);
+        if (payload == null || payload.isEmpty()) {
+            if (!cohorts.contains(icn)) {
+                cohorts.update(icn, Collections.emptySet());
+            }
+            return false;
+        }
+
+        cohorts.update(icn, getCodes(new ConditionParser().parseList(payload)));
+        return true;
+    }
+
+    private void run() {
+
+        long delay = refreshInterval.toMillis();
+        try {
+            if (patients.isReady()) {
+                crawl();
+            } else {
+                delay = TimeUnit.SECONDS.toMillis(WAIT_FOR_PATIENTS_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Cohort crawl interrupted");
+            return;
+        } catch (RuntimeException ex) {
+            LOG.warn("Cohort crawl failed", ex);
+        }
+
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.schedule(this::run, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Which patients have which SNOMED condition codes, for population queries.
+ *
+ * Each ICN is given a dense integer id and each code holds a {@link CohortBitmap} of the
+ * ids of the patients with it, so that combining codes with AND, OR and NOT is a handful
+ * of bitmap operations instead of one VistA scan per code.
+ */
+public class CohortIndex {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> icns = new ArrayList<>();
+    private final Map<Integer, Set<String>> codesByPatient = new HashMap<>();
+    private final Map<String, CohortBitmap> patientsByCode = new HashMap<>();
+    private final CohortBitmap everyone = new CohortBitmap();
+    private volatile boolean ready;
+
+    /**
+     * @return true once the conditions of every patient have been loaded
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * @return true when the condition codes of the patient have been recorded
+     */
+    public boolean contains(String icn) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(icn);
+            return id != null && codesByPatient.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record the condition codes a patient has, replacing those recorded before
+     */
+    public void update(String icn, Collection<String> codes) {
+
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(icn);
+            if (id == null) {
+                id = icns.size();
+                ids.put(icn, id);
+                icns.add(icn);
+            }
+
+            Set<String> current = new HashSet<>(codes);
+            Set<String> previous = codesByPatient.put(id, current);
+            if (previous != null) {
+                for (String code : previous) {
+                    if (!current.contains(code)) {
+                        CohortBitmap patients = patientsByCode.get(code);
+                        patients.remove(id);
+                        if (patients.isEmpty()) {
+                            patientsByCode.remove(code);
+                        }
+                    }
+                }
+            }
+
+            for (String code : current) {
+                patientsByCode.computeIfAbsent(code, key -> new CohortBitmap()).add(id);
+            }
+            everyone.add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget the codes of every patient not in a complete list of ICNs, e.g. patients
+     * merged or removed in VistA since they were indexed
+     */
+    public void retainAll(Collection<String> current) {
+
+        Set<String> keep = new HashSet<>(current);
+
+        lock.writeLock().lock();
+        try {
+            for (int id = 0; id < icns.size(); id++) {
+                if (keep.contains(icns.get(id))) {
+                    continue;
+                }
+                Set<String> previous = codesByPatient.remove(id);
+                if (previous != null) {
+                    for (String code : previous) {
+                        CohortBitmap patients = patientsByCode.get(code);
+                        patients.remove(id);
+                        if (patients.isEmpty()) {
+                            patientsByCode.remove(code);
+                        }
+                    }
+                }
+                everyone.remove(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the patients with all of one set of codes, at least one of another set and
+     * none of a third. Empty sets are ignored; with no required codes the search starts
+     * from every indexed patient.
+     *
+     * @return the matching ICNs
+     */
+    public List<String> find(Collection<String> all, Collection<String> any, Collection<String> none) {
+
+        lock.readLock().lock();
+        try {
+            CohortBitmap result = everyone;
+
+            for (String code : all) {
+                result = result.and(get(code));
+            }
+
+            if (!any.isEmpty()) {
+                CohortBitmap either = new CohortBitmap();
+                for (String code : any) {
+                    either = either.or(get(code));
+                }
+                result = result.and(either);
+            }
+
+            for (String code : none) {
+                result = result.andNot(get(code));
+            }
+
+            List<String> found = new ArrayList<>();
+            for (int id : result.toArray()) {
+                found.add(icns.get(id));
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of patients with the code
+     */
+    public int count(String code) {
+        lock.readLock().lock();
+        try {
+            return get(code).cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getPatientCount() {
+        lock.readLock().lock();
+        try {
+            return everyone.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getCodes() {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableSet(new HashSet<>(patientsByCode.keySet()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private CohortBitmap get(String code) {
+        CohortBitmap patients = patientsByCode.get(code);
+        return patients == null ? new CohortBitmap() : patients;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+/**
+ * The kinds of per-patient data fetched from VistA. Each category is cached
+ * (and expires) independently inside a {@link PatientSnapshot}.
+ */
+public enum DataCategory {
+
+    PATIENT("DHPPATDEMICN"),
+    CONDITION("DHPPATCONICN"),
+    ENCOUNTER("DHPPATENCICN"),
+    ENCOUNTER_PROVIDER("DHPPATPRVICN"),
+    PRACTITIONER("DHPPATPRVICN"),
+    VITALS("DHPPATVITICN"),
+    LABS("DHPPATLABICN"),
+    HEALTH_FACTOR("DHPPATHLFICN"),
+    MENTAL_HEALTH("DHPPATOBSICN"),
+    MEDICATION_STATEMENT("DHPPATMEDSICN"),
+    MEDICATION_DISPENSE("DHPPATMEDAICN"),
+    MEDICATION_ADMINISTRATION("DHPPATMEDAICN"),
+    PROCEDURE("DHPPATPRCICN"),
+    FLAG("DHPPATFLGICN"),
+    APPOINTMENT("DHPPATAPTICN"),
+    ALLERGY("DHPPATALLICN"),
+    IMMUNIZATION("DHPPATIMMICN"),
+    GOAL("DHPPATGOLICN"),
+    DIAGNOSTIC_REPORT("DHPPATDXRICN"),
+    CARE_PLAN("DHPPATCPALLI"),
+    NOTE("DHPPATTIUICN");
+
+    private final String vistaEndpoint;
+
+    DataCategory(String vistaEndpoint) {
+        this.vistaEndpoint = vistaEndpoint;
+    }
+
+    /**
+     * @return the VistA REST endpoint the category is loaded from
+     */
+    public String getVistaEndpoint() {
+        return vistaEndpoint;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import java.util.Set;
+
+/**
+ * Carries news of VistA writes to everything holding copies of that patient's data, so
+ * a write is seen by the next read rather than once the cached copy expires.
+ *
+ * {@link LocalInvalidationBus} delivers within this process; an implementation over a
+ * shared broker would let several servers in front of the same VistA drop their copies too.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Tell every listener that VistA data for a patient has changed
+     *
+     * @param icn Required. The patient written
+     * @param categories Required. The kinds of data the write changed
+     */
+    void publish(String icn, Set<DataCategory> categories);
+
+    void subscribe(Listener listener);
+
+    /**
+     * Something which holds patient data and must drop or reload it once VistA changes
+     */
+    @FunctionalInterface
+    interface Listener {
+
+        void invalidated(String icn, Set<DataCategory> categories);
+    }
+}
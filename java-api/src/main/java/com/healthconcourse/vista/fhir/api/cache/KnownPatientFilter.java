@@ -0,0 +1,181 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the ICNs held by VistA, so that requests for patients which do not
+ * exist can be refused without calling VistA.
+ *
+ * The filter can say an ICN is definitely unknown or probably known; it never turns away
+ * a patient it was given. Until it has been filled from a complete list of patients every
+ * ICN is treated as possibly known.
+ *
+ * ICNs the filter does not hold may belong to patients registered since it was filled.
+ * Those VistA has just been asked about and did not have are remembered for a short
+ * while, so a repeated request for a missing patient is refused without another call.
+ */
+public class KnownPatientFilter {
+
+    private static final double LOG_2 = Math.log(2);
+    private static final int MIN_CAPACITY = 1024;
+
+    private final double falsePositiveRate;
+    private final Cache<String, Boolean> misses;
+    private volatile Bits bits;
+    private volatile boolean ready;
+
+    /**
+     * @param falsePositiveRate Required. The share of unknown ICNs let through when the filter is full, e.g. 0.01
+     */
+    public KnownPatientFilter(double falsePositiveRate) {
+        this(falsePositiveRate, HcConstants.DEFAULT_KNOWN_PATIENT_MAX_MISSES,
+                Duration.ofSeconds(HcConstants.DEFAULT_KNOWN_PATIENT_MISS_SECONDS));
+    }
+
+    /**
+     * @param falsePositiveRate Required. The share of unknown ICNs let through when the filter is full, e.g. 0.01
+     * @param maxMisses Required. How many ICNs VistA did not have are remembered
+     * @param missTimeToLive Required. How long they are remembered for
+     */
+    public KnownPatientFilter(double falsePositiveRate, long maxMisses, Duration missTimeToLive) {
+        this.falsePositiveRate = Math.min(Math.max(falsePositiveRate, 0.0001), 0.5);
+        this.bits = new Bits(MIN_CAPACITY, this.falsePositiveRate);
+        this.misses = Caffeine.newBuilder()
+                .maximumSize(Math.max(maxMisses, 0))
+                .expireAfterWrite(missTimeToLive)
+                .build();
+    }
+
+    /**
+     * @return true once the filter has been filled from a complete list of patients
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Replace the contents of the filter with a complete list of ICNs. The filter is
+     * sized with room for as many again, to absorb patients registered before the next
+     * complete list
+     */
+    public void replaceAll(Collection<String> icns) {
+        Bits replacement = new Bits(Math.max(icns.size() * 2, MIN_CAPACITY), falsePositiveRate);
+        for (String icn : icns) {
+            replacement.put(icn);
+        }
+        bits = replacement;
+        ready = true;
+        misses.invalidateAll();
+    }
+
+    /**
+     * Add a newly seen ICN
+     */
+    public void put(String icn) {
+        bits.put(icn);
+        misses.invalidate(icn);
+    }
+
+    /**
+     * Remember that VistA was asked for an ICN the filter does not hold and did not have it
+     */
+    public void putMissing(String icn) {
+        misses.put(icn, Boolean.TRUE);
+    }
+
+    /**
+     * @return true when the ICN is not held and VistA recently did not have it either
+     */
+    public boolean isRecentlyMissing(String icn) {
+        return !mightContain(icn) && misses.getIfPresent(icn) != null;
+    }
+
+    /**
+     * @return false only when the ICN is certainly not known to VistA
+     */
+    public boolean mightContain(String icn) {
+        return !ready || bits.mightContain(icn);
+    }
+
+    /**
+     * The bit array and the number of hashes for a given capacity and false positive rate
+     */
+    private static final class Bits {
+
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+
+        Bits(int capacity, double falsePositiveRate) {
+            long bitCount = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LOG_2 * LOG_2));
+            this.words = new AtomicLongArray((int) ((bitCount + 63) / 64));
+            this.size = words.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) size / capacity * LOG_2));
+        }
+
+        void put(String icn) {
+            long hash = hash(icn);
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((first + (long) i * second) & Long.MAX_VALUE) % size;
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        boolean mightContain(String icn) {
+            long hash = hash(icn);
+            int first = (int) hash;
+            int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((first + (long) i * second) & Long.MAX_VALUE) % size;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 64 bit FNV-1a with a final mix, split into two 32 bit hashes which are combined to give the rest
+         */
+        private static long hash(String icn) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : icn.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers invalidations to listeners in this process, on the thread which made the
+ * write, so the caches are clear by the time the write is answered.
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalInvalidationBus.class);
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(String icn, Set<DataCategory> categories) {
+        for (Listener listener : listeners) {
+            try {
+                listener.invalidated(icn, categories);
+            } catch (RuntimeException ex) {
+                LOG.warn("Unable to invalidate " + categories + " for " + icn, ex);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+}
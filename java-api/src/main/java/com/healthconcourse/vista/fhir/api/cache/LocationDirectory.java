@@ -0,0 +1,273 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.parser.LocationParser;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the hospital locations, so that Location reads, searches and the
+ * references made to locations from encounters and observations are answered without
+ * calling VistA.
+ *
+ * VistA only looks locations up one name at a time (DHPHLOCINSTHLOCNAM), so the
+ * directory cannot walk the location file. It holds the configured names along with
+ * every location found by name since, and looks all of them up again in the background
+ * at a pace set by a {@link RateLimiter}. Locations are indexed by ID and by upper case
+ * name in a sorted map for prefix matching.
+ */
+public class LocationDirectory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationDirectory.class);
+
+    private final VistaData data;
+    private final RateLimiter limiter;
+    private final Duration refreshInterval;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Set<String> names = new LinkedHashSet<>();
+    private final Map<String, Location> byId = new HashMap<>();
+    private final NavigableMap<String, Location> byName = new TreeMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param data Required. Where the locations are read from
+     * @param limiter Required. Paces the VistA calls, one permit per name
+     * @param refreshInterval Required. How often every location is looked up again
+     */
+    public LocationDirectory(VistaData data, RateLimiter limiter, Duration refreshInterval) {
+        this.data = data;
+        this.limiter = limiter;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Look locations up on the next refresh
+     */
+    public void addNames(Collection<String> locationNames) {
+        lock.writeLock().lock();
+        try {
+            for (String name : locationNames) {
+                if (StringUtils.isNotBlank(name)) {
+                    names.add(normalize(name));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hold a location found in VistA, and keep it up to date from then on
+     *
+     * @param name Required. The name it was looked up by
+     * @param location Required. What VistA answered
+     */
+    public void put(String name, Location location) {
+        lock.writeLock().lock();
+        try {
+            names.add(normalize(name));
+            add(name, location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Optional<Location> getById(String id) {
+        lock.readLock().lock();
+        try {
+            return Optional.ofNullable(byId.get(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Optional<Location> getByName(String name) {
+        lock.readLock().lock();
+        try {
+            return Optional.ofNullable(byName.get(normalize(name)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param text Required. What to match, ignoring case
+     * @param contains When true the text may appear anywhere in the name, otherwise it matches the start
+     * @return the matching locations ordered by name, each once
+     */
+    public List<Location> search(String text, boolean contains) {
+
+        String key = normalize(text);
+        Map<String, Location> found = new LinkedHashMap<>();
+
+        lock.readLock().lock();
+        try {
+            Map<String, Location> candidates = contains ? byName : byName.subMap(key, true, key + Character.MAX_VALUE, true);
+            for (Map.Entry<String, Location> entry : candidates.entrySet()) {
+                if (!contains || entry.getKey().contains(key)) {
+                    found.putIfAbsent(entry.getValue().getIdElement().getIdPart(), entry.getValue());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new ArrayList<>(found.values());
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load every location on a background thread, then keep them up to date
+     */
+    public synchronized void start() {
+
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "location-directory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, Math.max(refreshInterval.toMillis(), 1), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Look every known name up again and replace the contents of the directory. A
+     * location VistA answers it no longer has is dropped; one which could not be read,
+     * including an empty reply, is kept as it was.
+     */
+    public void refresh() {
+        try {
+            refreshAll();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Location directory refresh interrupted");
+        } catch (RuntimeException ex) {
+            LOG.warn("Location directory refresh failed", ex);
+        }
+    }
+
+    private void refreshAll() throws InterruptedException {
+
+        long started = System.currentTimeMillis();
+        List<String> current;
+        lock.readLock().lock();
+        try {
+            current = new ArrayList<>(names);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        LocationParser parser = new LocationParser();
+        Map<String, Location> loaded = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String name : current) {
+            limiter.acquire(1);
+            try {
+                String payload = data.getLocationByName(name);
+                Optional<Location> location = parser.parseSingleLocation(payload);
+                if (location.isPresent()) {
+                    loaded.put(name, location.get());
+                } else if (parser.isNotFound(payload)) {
+                    missing.add(name);
+                } else {
+                    LOG.debug(String.format("No location read for %s, the entry is kept", name));
+                    getByName(name).ifPresent(previous -> loaded.put(name, previous));
+                }
+            } catch (RuntimeException ex) {
+                LOG.debug(String.format("Unable to read location %s: %s", name, ex.getMessage()));
+                getByName(name).ifPresent(location -> loaded.put(name, location));
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            // Locations found while the refresh was running are kept as they are
+            Set<String> refreshed = new HashSet<>(current);
+            for (String name : names) {
+                if (!refreshed.contains(name) && byName.containsKey(name)) {
+                    loaded.put(name, byName.get(name));
+                }
+            }
+            names.removeAll(missing);
+            byId.clear();
+            byName.clear();
+            for (Map.Entry<String, Location> entry : loaded.entrySet()) {
+                add(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        LOG.info(String.format("Location directory loaded with %d locations in %d ms", size(), System.currentTimeMillis() - started));
+    }
+
+    private void add(String name, Location location) {
+        byId.put(location.getIdElement().getIdPart(), location);
+        byName.put(normalize(name), location);
+        if (location.hasName()) {
+            byName.put(normalize(location.getName()), location);
+        }
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A patient's observations grouped by code (SNOMED CT or LOINC), each group sorted
+ * oldest first by effective time. Codes can be looked up on their own or as system|code.
+ *
+ * The index only holds references to the cached observations, so it is cheap to keep
+ * in the {@link PatientSnapshot} next to the data it was built from.
+ */
+public final class ObservationIndex {
+
+    private static final Comparator<Observation> BY_EFFECTIVE_TIME = Comparator.comparingLong(ObservationIndex::getEffectiveTime);
+
+    private final Map<String, List<Observation>> byCode;
+    private final Set<String> codes;
+    private final int size;
+
+    private ObservationIndex(Map<String, List<Observation>> byCode, Set<String> codes, int size) {
+        this.byCode = byCode;
+        this.codes = codes;
+        this.size = size;
+    }
+
+    /**
+     * Index observations from one or more lists
+     */
+    public static ObservationIndex build(Collection<? extends List<Observation>> sources) {
+
+        Map<String, List<Observation>> byCode = new HashMap<>();
+        Set<String> codes = new LinkedHashSet<>();
+        int size = 0;
+
+        for (List<Observation> source : sources) {
+            for (Observation observation : source) {
+                size++;
+                Set<String> keys = new LinkedHashSet<>();
+                for (Coding coding : observation.getCode().getCoding()) {
+                    if (coding.hasCode()) {
+                        keys.add(coding.getCode());
+                        codes.add(coding.getCode());
+                        if (coding.hasSystem()) {
+                            keys.add(coding.getSystem() + "|" + coding.getCode());
+                        }
+                    }
+                }
+                for (String key : keys) {
+                    byCode.computeIfAbsent(key, k -> new ArrayList<>()).add(observation);
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Observation>> entry : byCode.entrySet()) {
+            entry.getValue().sort(BY_EFFECTIVE_TIME);
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        return new ObservationIndex(byCode, Collections.unmodifiableSet(codes), size);
+    }
+
+    /**
+     * @param code Required. A code, or system|code
+     * @return the matching observations, oldest first
+     */
+    public List<Observation> find(String code) {
+        return byCode.getOrDefault(code, Collections.emptyList());
+    }
+
+    /**
+     * Find the most recent observations for a code by scanning back from the newest
+     *
+     * @param code Required. A code, or system|code
+     * @param max Required. The most observations to return
+     * @param filter Required. Which observations may be returned
+     * @return up to max matching observations, newest first
+     */
+    public List<Observation> findLatest(String code, int max, Predicate<Observation> filter) {
+
+        List<Observation> observations = find(code);
+        List<Observation> results = new ArrayList<>(Math.min(max, observations.size()));
+
+        for (int i = observations.size() - 1; i >= 0 && results.size() < max; i--) {
+            if (filter.test(observations.get(i))) {
+                results.add(observations.get(i));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return every code in the index, without systems
+     */
+    public Set<String> getCodes() {
+        return codes;
+    }
+
+    /**
+     * @return the number of observations indexed
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the effective time of an observation in epoch milliseconds, or
+     * Long.MIN_VALUE when it has none so undated observations sort first
+     */
+    public static long getEffectiveTime(Observation observation) {
+        if (observation.hasEffectiveDateTimeType() && observation.getEffectiveDateTimeType().getValue() != null) {
+            return observation.getEffectiveDateTimeType().getValue().getTime();
+        }
+        if (observation.hasEffectivePeriod() && observation.getEffectivePeriod().getStart() != null) {
+            return observation.getEffectivePeriod().getStart().getTime();
+        }
+        return Long.MIN_VALUE;
+    }
+}
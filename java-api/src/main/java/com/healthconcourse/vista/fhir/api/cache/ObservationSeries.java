@@ -0,0 +1,314 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The numeric values recorded for one code (or one component of a code, such as
+ * systolic blood pressure) held as two parallel primitive arrays sorted by time.
+ * Summaries are computed over these arrays rather than over Observation resources.
+ */
+public final class ObservationSeries {
+
+    private final String code;
+    private final String display;
+    private final String component;
+    private final long[] times;
+    private final double[] values;
+
+    ObservationSeries(String code, String display, String component, long[] times, double[] values) {
+        this.code = code;
+        this.display = display;
+        this.component = component;
+        this.times = times;
+        this.values = values;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getDisplay() {
+        return display;
+    }
+
+    /**
+     * @return the component name for multi-valued observations (systolic, diastolic), otherwise null
+     */
+    public String getComponent() {
+        return component;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return the index of the first value recorded at or after the given time
+     */
+    public int indexOf(long time) {
+        int index = Arrays.binarySearch(times, time);
+        if (index < 0) {
+            return -index - 1;
+        }
+        while (index > 0 && times[index - 1] == time) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Summarize the values recorded in a time range
+     *
+     * @param from Required. The start of the range in epoch milliseconds, inclusive
+     * @param to Required. The end of the range in epoch milliseconds, inclusive
+     * @return the summary, with a count of 0 when nothing was recorded in the range
+     */
+    public Summary summarize(long from, long to) {
+
+        int start = indexOf(from);
+        int end = endOf(to);
+
+        return summarize(start, end);
+    }
+
+    /**
+     * Split a time range into equal width buckets and summarize each one. Empty
+     * buckets are left out.
+     *
+     * @param from Required. The start of the range in epoch milliseconds, inclusive
+     * @param to Required. The end of the range in epoch milliseconds, inclusive
+     * @param buckets Required. The number of buckets to split the recorded values into
+     * @return one summary per non-empty bucket, oldest first
+     */
+    public List<Bucket> bucketize(long from, long to, int buckets) {
+
+        int start = indexOf(from);
+        int end = endOf(to);
+        List<Bucket> results = new ArrayList<>();
+
+        if (start >= end || buckets < 1) {
+            return results;
+        }
+
+        // Buckets span the values actually recorded in the range rather than an open ended range
+        long first = times[start];
+        double width = Math.max((times[end - 1] - first + 1) / (double) buckets, 1);
+
+        int bucketStart = start;
+        while (bucketStart < end) {
+            int bucket = (int) Math.min((times[bucketStart] - first) / width, buckets - 1);
+            long bucketEnd = bucket == buckets - 1 ? Long.MAX_VALUE : first + (long) Math.ceil((bucket + 1) * width);
+
+            int next = bucketStart;
+            while (next < end && times[next] < bucketEnd) {
+                next++;
+            }
+
+            long bucketFrom = first + (long) Math.ceil(bucket * width);
+            long bucketTo = bucket == buckets - 1 ? times[end - 1] : bucketEnd - 1;
+            results.add(new Bucket(bucketFrom, bucketTo, summarize(bucketStart, next), values[next - 1]));
+            bucketStart = next;
+        }
+
+        return results;
+    }
+
+    /**
+     * Reduce the values recorded in a time range to at most threshold points using
+     * Largest-Triangle-Three-Buckets, which keeps the visual shape of the series. The
+     * first and last points are always kept.
+     *
+     * @param from Required. The start of the range in epoch milliseconds, inclusive
+     * @param to Required. The end of the range in epoch milliseconds, inclusive
+     * @param threshold Required. The most points to return, at least 3 to reduce anything
+     * @return the reduced series
+     */
+    public ObservationSeries largestTriangleThreeBuckets(long from, long to, int threshold) {
+
+        int start = indexOf(from);
+        int end = endOf(to);
+        int length = Math.max(end - start, 0);
+
+        if (threshold >= length || threshold < 3) {
+            return new ObservationSeries(code, display, component, Arrays.copyOfRange(times, start, start + length),
+                    Arrays.copyOfRange(values, start, start + length));
+        }
+
+        long[] sampledTimes = new long[threshold];
+        double[] sampledValues = new double[threshold];
+
+        sampledTimes[0] = times[start];
+        sampledValues[0] = values[start];
+
+        // Every bucket but the first and last holds an equal share of the points in between
+        double every = (double) (length - 2) / (threshold - 2);
+        int selected = start;
+
+        for (int i = 0; i < threshold - 2; i++) {
+
+            // Average of the next bucket, used as the third point of the triangle
+            int nextStart = start + (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min(start + (int) Math.floor((i + 2) * every) + 1, end);
+            double averageTime = 0;
+            double averageValue = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                averageTime += times[j];
+                averageValue += values[j];
+            }
+            int nextLength = Math.max(nextEnd - nextStart, 1);
+            averageTime /= nextLength;
+            averageValue /= nextLength;
+
+            // Pick the point in this bucket forming the largest triangle with the previously selected point
+            int rangeStart = start + (int) Math.floor(i * every) + 1;
+            int rangeEnd = start + (int) Math.floor((i + 1) * every) + 1;
+            double maxArea = -1;
+            int maxIndex = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((times[selected] - averageTime) * (values[j] - values[selected])
+                        - (times[selected] - times[j]) * (averageValue - values[selected]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIndex = j;
+                }
+            }
+
+            sampledTimes[i + 1] = times[maxIndex];
+            sampledValues[i + 1] = values[maxIndex];
+            selected = maxIndex;
+        }
+
+        sampledTimes[threshold - 1] = times[end - 1];
+        sampledValues[threshold - 1] = values[end - 1];
+
+        return new ObservationSeries(code, display, component, sampledTimes, sampledValues);
+    }
+
+    private int endOf(long to) {
+        return to == Long.MAX_VALUE ? times.length : indexOf(to + 1);
+    }
+
+    private Summary summarize(int start, int end) {
+
+        if (start >= end) {
+            return new Summary(0, Double.NaN, Double.NaN, Double.NaN, 0, 0);
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+
+        return new Summary(end - start, min, max, sum / (end - start), times[start], times[end - 1]);
+    }
+
+    /**
+     * Count, minimum, maximum and mean of a range of values, along with when the
+     * first and last of them were recorded.
+     */
+    public static final class Summary {
+
+        private final int count;
+        private final double minimum;
+        private final double maximum;
+        private final double average;
+        private final long first;
+        private final long last;
+
+        Summary(int count, double minimum, double maximum, double average, long first, long last) {
+            this.count = count;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.average = average;
+            this.first = first;
+            this.last = last;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMinimum() {
+            return minimum;
+        }
+
+        public double getMaximum() {
+            return maximum;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        public long getFirst() {
+            return first;
+        }
+
+        public long getLast() {
+            return last;
+        }
+    }
+
+    /**
+     * The summary of one time bucket, along with the last value recorded in it.
+     */
+    public static final class Bucket {
+
+        private final long start;
+        private final long end;
+        private final Summary summary;
+        private final double last;
+
+        Bucket(long start, long end, Summary summary, double last) {
+            this.start = start;
+            this.end = end;
+            this.summary = summary;
+            this.last = last;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public Summary getSummary() {
+            return summary;
+        }
+
+        public double getLastValue() {
+            return last;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A patient's numeric vitals and lab results as {@link ObservationSeries}, keyed by
+ * code. Values such as blood pressure which are recorded as "systolic/diastolic"
+ * are split into one series per component, and non-numeric results are left out.
+ */
+public final class ObservationSeriesIndex {
+
+    private static final String[] BLOOD_PRESSURE_COMPONENTS = {"systolic", "diastolic"};
+
+    private final Map<String, List<ObservationSeries>> byCode;
+
+    private ObservationSeriesIndex(Map<String, List<ObservationSeries>> byCode) {
+        this.byCode = byCode;
+    }
+
+    /**
+     * Build series from one or more lists of observations
+     */
+    public static ObservationSeriesIndex build(Collection<? extends List<Observation>> sources) {
+
+        Map<String, List<Point>> points = new LinkedHashMap<>();
+        Map<String, Coding> codings = new HashMap<>();
+
+        for (List<Observation> source : sources) {
+            for (Observation observation : source) {
+                long time = ObservationIndex.getEffectiveTime(observation);
+                Coding coding = observation.getCode().getCodingFirstRep();
+                double[] values = getValues(observation);
+                if (time == Long.MIN_VALUE || !coding.hasCode() || values == null) {
+                    continue;
+                }
+                for (int i = 0; i < values.length; i++) {
+                    String key = coding.getCode() + '\t' + (values.length == 1 ? "" : BLOOD_PRESSURE_COMPONENTS[i]);
+                    points.computeIfAbsent(key, k -> new ArrayList<>()).add(new Point(time, values[i]));
+                    codings.putIfAbsent(key, coding);
+                }
+            }
+        }
+
+        Map<String, List<ObservationSeries>> byCode = new HashMap<>();
+        for (Map.Entry<String, List<Point>> entry : points.entrySet()) {
+            List<Point> list = entry.getValue();
+            list.sort(Comparator.comparingLong(point -> point.time));
+
+            long[] times = new long[list.size()];
+            double[] values = new double[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                times[i] = list.get(i).time;
+                values[i] = list.get(i).value;
+            }
+
+            Coding coding = codings.get(entry.getKey());
+            String component = entry.getKey().substring(entry.getKey().indexOf('\t') + 1);
+            ObservationSeries series = new ObservationSeries(coding.getCode(), coding.getDisplay(),
+                    component.isEmpty() ? null : component, times, values);
+
+            byCode.computeIfAbsent(coding.getCode(), k -> new ArrayList<>()).add(series);
+            if (coding.hasSystem()) {
+                byCode.computeIfAbsent(coding.getSystem() + "|" + coding.getCode(), k -> new ArrayList<>()).add(series);
+            }
+        }
+
+        return new ObservationSeriesIndex(byCode);
+    }
+
+    /**
+     * @param code Required. A code, or system|code
+     * @return the series recorded for the code, one per component
+     */
+    public List<ObservationSeries> find(String code) {
+        return Collections.unmodifiableList(byCode.getOrDefault(code, Collections.emptyList()));
+    }
+
+    /**
+     * Read the numeric value(s) of an observation; VistA reports vitals and labs as strings
+     */
+    private static double[] getValues(Observation observation) {
+
+        if (observation.hasValueQuantity()) {
+            Quantity quantity = observation.getValueQuantity();
+            if (!quantity.hasValue() || !Double.isFinite(quantity.getValue().doubleValue())) {
+                return null;
+            }
+            return new double[] {quantity.getValue().doubleValue()};
+        }
+
+        String raw = observation.hasValue() ? observation.getValue().primitiveValue() : null;
+        if (raw == null) {
+            return null;
+        }
+
+        String[] parts = raw.trim().split("/");
+        if (parts.length > BLOOD_PRESSURE_COMPONENTS.length) {
+            return null;
+        }
+
+        double[] values = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Double.parseDouble(parts[i].trim());
+                // NaN and Infinity parse, but cannot be summarized or written back as decimals
+                if (!Double.isFinite(values[i])) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return values;
+    }
+
+    private static final class Point {
+
+        private final long time;
+        private final double value;
+
+        private Point(long time, double value) {
+            this.time = time;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps search results between pages, so that following a next link serves a slice of
+ * the results already fetched instead of asking VistA again.
+ *
+ * Result sets are weighed by the number of resources they hold and the least recently
+ * used are evicted once the total passes the limit. When a spill directory is given,
+ * result sets evicted for size are written there as gzipped NDJSON and read back if
+ * their next page is asked for. Result sets, in memory or spilled, expire once unused
+ * for the time-to-live.
+ */
+public class PagingStore extends BasePagingProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PagingStore.class);
+    private static final String SPILL_SUFFIX = ".ndjson.gz";
+    private static final long PURGE_INTERVAL_MILLIS = 60_000L;
+
+    private final FhirContext context;
+    private final Cache<String, List<IBaseResource>> results;
+    private final Path spillDirectory;
+    private final Duration timeToLive;
+    private volatile long lastPurge;
+
+    /**
+     * @param context Required. Used to write and read spilled result sets
+     * @param maxResources Required. The total number of resources held in memory
+     * @param timeToLive Required. How long an unused result set is kept
+     * @param spillDirectory Optional. Where result sets evicted for size are written, null drops them
+     * @param spiller Required. Writes evicted result sets
+     */
+    public PagingStore(FhirContext context, long maxResources, Duration timeToLive, Path spillDirectory, Executor spiller) {
+        this.context = context;
+        this.spillDirectory = spillDirectory;
+        this.timeToLive = timeToLive;
+        this.results = Caffeine.newBuilder()
+                .maximumWeight(Math.max(maxResources, 0))
+                .weigher((String id, List<IBaseResource> resources) -> Math.max(resources.size(), 1))
+                .expireAfterAccess(timeToLive)
+                .executor(spiller)
+                .removalListener((String id, List<IBaseResource> resources, RemovalCause cause) -> {
+                    if (cause == RemovalCause.SIZE && spillDirectory != null && id != null && resources != null) {
+                        spill(id, resources);
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public String storeResultList(RequestDetails request, IBundleProvider provider) {
+
+        Integer size = provider.size();
+        List<IBaseResource> resources = provider.getResources(0, size == null ? Integer.MAX_VALUE : size);
+
+        String id = UUID.randomUUID().toString();
+        results.put(id, Collections.unmodifiableList(new ArrayList<>(resources)));
+        purgeSpilled();
+        return id;
+    }
+
+    @Override
+    public IBundleProvider retrieveResultList(RequestDetails request, String id) {
+
+        List<IBaseResource> resources = results.getIfPresent(id);
+        if (resources == null) {
+            resources = unspill(id);
+            if (resources == null) {
+                return null;
+            }
+            results.put(id, resources);
+        }
+
+        return new SimpleBundleProvider(resources, id);
+    }
+
+    /**
+     * @return the number of resources held in memory
+     */
+    public long getWeight() {
+        return results.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+    }
+
+    public void cleanUp() {
+        results.cleanUp();
+    }
+
+    private void spill(String id, List<IBaseResource> resources) {
+        IParser parser = context.newJsonParser();
+        try {
+            Files.createDirectories(spillDirectory);
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(getSpillFile(id))), StandardCharsets.UTF_8)) {
+                for (IBaseResource resource : resources) {
+                    writer.write(parser.encodeResourceToString(resource));
+                    writer.write("\n");
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Unable to spill search results " + id, ex);
+        }
+    }
+
+    private List<IBaseResource> unspill(String id) {
+        if (spillDirectory == null || !isId(id)) {
+            return null;
+        }
+
+        Path file = getSpillFile(id);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        IParser parser = context.newJsonParser();
+        List<IBaseResource> resources = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                resources.add(parser.parseResource(line));
+            }
+            Files.delete(file);
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Unable to read spilled search results " + id, ex);
+            return null;
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Delete spilled result sets unused for longer than the time-to-live, at most once a minute
+     */
+    private void purgeSpilled() {
+        long now = System.currentTimeMillis();
+        if (spillDirectory == null || now - lastPurge < PURGE_INTERVAL_MILLIS || !Files.isDirectory(spillDirectory)) {
+            return;
+        }
+        lastPurge = now;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory, "*" + SPILL_SUFFIX)) {
+            for (Path file : files) {
+                if (now - Files.getLastModifiedTime(file).toMillis() > timeToLive.toMillis()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Unable to purge spilled search results", ex);
+        }
+    }
+
+    private Path getSpillFile(String id) {
+        return spillDirectory.resolve(id + SPILL_SUFFIX);
+    }
+
+    /**
+     * Page ids come from the request, only ones this store could have made are looked for on disk
+     */
+    private static boolean isId(String id) {
+        try {
+            return UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+}
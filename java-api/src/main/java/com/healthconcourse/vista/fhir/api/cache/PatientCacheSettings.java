@@ -0,0 +1,112 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.HcConstants;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Tuning for the {@link PatientSnapshotCache}.
+ */
+public class PatientCacheSettings {
+
+    private long maxWeight = HcConstants.DEFAULT_PATIENT_CACHE_WEIGHT;
+    private Duration idleTimeout = Duration.ofMinutes(HcConstants.DEFAULT_PATIENT_CACHE_IDLE_MINUTES);
+    private Duration defaultTimeToLive = Duration.ofSeconds(HcConstants.DEFAULT_PATIENT_CACHE_TTL_SECONDS);
+    private Map<DataCategory, Duration> timeToLive = new EnumMap<>(DataCategory.class);
+    private int refreshAheadPercent = HcConstants.DEFAULT_PATIENT_CACHE_REFRESH_AHEAD_PERCENT;
+    private Duration maxStale = Duration.ofSeconds(HcConstants.DEFAULT_PATIENT_CACHE_MAX_STALE_SECONDS);
+    private int refreshThreads = HcConstants.DEFAULT_PATIENT_CACHE_REFRESH_THREADS;
+
+    /**
+     * @return the total VistA payload size (in characters) to hold, 0 disables caching
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return how long a snapshot is kept without being accessed
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return how long a category is considered fresh unless overridden
+     */
+    public Duration getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    public void setDefaultTimeToLive(Duration defaultTimeToLive) {
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    public Duration getTimeToLive(DataCategory category) {
+        return timeToLive.getOrDefault(category, defaultTimeToLive);
+    }
+
+    public void setTimeToLive(DataCategory category, Duration duration) {
+        timeToLive.put(category, duration);
+    }
+
+    /**
+     * @return the percentage of the time-to-live after which an accessed category is
+     * reloaded in the background, 0 disables refresh-ahead
+     */
+    public int getRefreshAheadPercent() {
+        return refreshAheadPercent;
+    }
+
+    public void setRefreshAheadPercent(int refreshAheadPercent) {
+        this.refreshAheadPercent = refreshAheadPercent;
+    }
+
+    /**
+     * @return how long past its time-to-live a category may still be served while it
+     * is reloaded in the background, zero disables stale-while-revalidate
+     */
+    public Duration getMaxStale() {
+        return maxStale;
+    }
+
+    public void setMaxStale(Duration maxStale) {
+        this.maxStale = maxStale;
+    }
+
+    /**
+     * @return the number of threads used for background reloads
+     */
+    public int getRefreshThreads() {
+        return refreshThreads;
+    }
+
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+}
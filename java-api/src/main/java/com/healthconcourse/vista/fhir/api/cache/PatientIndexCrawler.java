@@ -0,0 +1,202 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.parser.PatientParser;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fills a {@link PatientSearchIndex} and a {@link KnownPatientFilter} by walking the patient file in DFN ranges with
+ * DHPPATDEMRNG, in the background and at a pace set by a {@link RateLimiter}.
+ *
+ * DFNs are not contiguous, so a crawl ends once a number of ranges in a row come back
+ * empty. New patients are given higher DFNs, so between full crawls only the ranges from
+ * the last one which held patients onwards are fetched again.
+ *
+ * A range VistA does not answer ends the crawl with an exception rather than counting as
+ * empty. A full crawl only replaces the index and filter once every range was read, so
+ * while VistA is down they keep what the previous crawl found, and are retried from the
+ * start if they were never filled.
+ */
+public class PatientIndexCrawler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientIndexCrawler.class);
+
+    private final VistaData data;
+    private final PatientSearchIndex index;
+    private final KnownPatientFilter knownPatients;
+    private final RateLimiter limiter;
+    private final int batchSize;
+    private final int maxEmptyBatches;
+    private final Duration refreshInterval;
+    private final Duration fullRefreshInterval;
+
+    private ScheduledExecutorService scheduler;
+    private volatile long resumeFrom = 1;
+    private volatile long lastFullCrawl;
+
+    /**
+     * @param data Required. Where the patients are read from
+     * @param index Required. The index to fill
+     * @param knownPatients Required. The filter of known ICNs to fill
+     * @param limiter Required. Paces the VistA calls, one permit per range
+     * @param batchSize Required. How many DFNs to fetch per call
+     * @param maxEmptyBatches Required. How many empty ranges in a row end a crawl
+     * @param refreshInterval Required. How often new patients are looked for
+     * @param fullRefreshInterval Required. How often every patient is fetched again
+     */
+    public PatientIndexCrawler(VistaData data, PatientSearchIndex index, KnownPatientFilter knownPatients, RateLimiter limiter,
+                               int batchSize, int maxEmptyBatches, Duration refreshInterval, Duration fullRefreshInterval) {
+        this.data = data;
+        this.index = index;
+        this.knownPatients = knownPatients;
+        this.limiter = limiter;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxEmptyBatches = Math.max(maxEmptyBatches, 1);
+        this.refreshInterval = refreshInterval;
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+
+    /**
+     * Crawl every patient on a background thread, then keep the index up to date
+     */
+    public synchronized void start() {
+
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patient-index-crawler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, Math.max(refreshInterval.toMillis(), 1), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Run a full crawl if one is due, otherwise look for new patients
+     */
+    public void refresh() {
+        try {
+            if (!index.isReady() || System.currentTimeMillis() - lastFullCrawl >= fullRefreshInterval.toMillis()) {
+                crawlAll();
+            } else {
+                crawlNew();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Patient index crawl interrupted");
+        } catch (RuntimeException ex) {
+            LOG.warn("Patient index crawl failed", ex);
+        }
+    }
+
+    /**
+     * Fetch every patient and replace the contents of the index and filter. A failed
+     * crawl leaves both as they were.
+     */
+    public void crawlAll() throws InterruptedException {
+
+        long started = System.currentTimeMillis();
+        List<Patient> patients = new ArrayList<>();
+        long last = crawl(1, patients::addAll);
+
+        List<String> icns = new ArrayList<>(patients.size());
+        for (Patient patient : patients) {
+            icns.add(patient.getIdElement().getIdPart());
+        }
+
+        index.replaceAll(patients);
+        knownPatients.replaceAll(icns);
+        resumeFrom = last;
+        lastFullCrawl = started;
+
+        LOG.info(String.format("Patient index loaded with %d patients in %d ms", patients.size(), System.currentTimeMillis() - started));
+    }
+
+    /**
+     * Fetch patients from the last range which held any onwards and add them to the index and filter.
+     * Patients found before a failed range are kept, and the next crawl starts where this one did.
+     */
+    public void crawlNew() throws InterruptedException {
+
+        int before = index.size();
+        resumeFrom = crawl(resumeFrom, patients -> {
+            index.putAll(patients);
+            for (Patient patient : patients) {
+                knownPatients.put(patient.getIdElement().getIdPart());
+            }
+        });
+
+        if (index.size() > before) {
+            LOG.info(String.format("Patient index added %d patients", index.size() - before));
+        }
+    }
+
+    public long getResumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * Walk DFN ranges from a starting point until enough of them in a row are empty
+     *
+     * @return the start of the last range which held patients
+     * @throws RuntimeException when a range could not be read
+     */
+    private long crawl(long from, Consumer<List<Patient>> consumer) throws InterruptedException {
+
+        PatientParser parser = new PatientParser();
+        long lastFound = from;
+        int empty = 0;
+
+        for (long first = from; empty < maxEmptyBatches; first += batchSize) {
+            limiter.acquire(1);
+
+            String payload = data.getPatientsByRange(first, first + batchSize - 1);
+            List<Patient> patients = payload == null ? new ArrayList<>() : parser.parseList(payload);
+
+            if (patients.isEmpty()) {
+                empty++;
+            } else {
+                empty = 0;
+                lastFound = first;
+                consumer.accept(patients);
+            }
+        }
+
+        return lastFound;
+    }
+}
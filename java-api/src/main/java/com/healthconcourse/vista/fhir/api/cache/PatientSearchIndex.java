@@ -0,0 +1,423 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the demographics of every patient, so that Patient searches can be
+ * answered without DHPPATDEMALL making VistA walk the patient file.
+ *
+ * Names are held in sorted maps which give the same upper case prefix matching as
+ * VistA, birth dates in a sorted map for range lookups and ICNs in a hash map. Search
+ * follows DHPPATDEMALL: name and family match the start of the full "FAMILY,GIVEN" name,
+ * given matches the start of the given names, birthdate matches a day, month or year,
+ * gender matches the first letter of the birth sex, and results are ordered by name and
+ * paged with _count and _page.
+ */
+public class PatientSearchIndex {
+
+    private static final String BIRTH_SEX_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-birthsex";
+    private static final int DEFAULT_COUNT = 100;
+    private static final Set<String> CONTROL_PARAMETERS = new HashSet<>(Arrays.asList(
+            "_count", "_page", "_summary", "_elements", "_format", "_revinclude"));
+    private static final Set<String> SEARCH_PARAMETERS = new HashSet<>(Arrays.asList(
+            "_id", "identifier", "family", "name", "given", "birthdate", "gender"));
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Entry> byIcn = new HashMap<>();
+    private final NavigableMap<String, Set<String>> byName = new TreeMap<>();
+    private final NavigableMap<String, Set<String>> byGiven = new TreeMap<>();
+    private final NavigableMap<LocalDate, Set<String>> byBirthDate = new TreeMap<>();
+    private final Map<String, Set<String>> bySex = new HashMap<>();
+    private volatile boolean ready;
+
+    /**
+     * @return true once a full set of patients has been loaded, until then searches go to VistA
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byIcn.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the indexed patient with the ICN, if there is one
+     */
+    public Optional<Patient> get(String icn) {
+        lock.readLock().lock();
+        try {
+            Entry entry = byIcn.get(icn);
+            return entry == null ? Optional.empty() : Optional.of(entry.patient);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the ICNs of every indexed patient
+     */
+    public List<String> getIcns() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(byIcn.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the contents of the index with a complete set of patients
+     */
+    public void replaceAll(Collection<Patient> patients) {
+        lock.writeLock().lock();
+        try {
+            byIcn.clear();
+            byName.clear();
+            byGiven.clear();
+            byBirthDate.clear();
+            bySex.clear();
+            for (Patient patient : patients) {
+                add(patient);
+            }
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add patients to the index, replacing any already held with the same ICN
+     */
+    public void putAll(Collection<Patient> patients) {
+        lock.writeLock().lock();
+        try {
+            for (Patient patient : patients) {
+                add(patient);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search the index with the parameters that would otherwise be passed to DHPPATDEMALL
+     *
+     * @param options Required. The search parameters, by name
+     * @return the page of matching patients, or empty if the index is not ready or the
+     * search uses something the index does not hold (a parameter other than _id, identifier,
+     * family, name, given, birthdate and gender, a DFN or SSN identifier, or a birthdate
+     * comparison other than eq, lt, le, gt and ge)
+     */
+    public Optional<List<Patient>> search(Map<String, String> options) {
+
+        int count = getNumber(options.get("_count"), DEFAULT_COUNT);
+        int page = getNumber(options.get("_page"), 1);
+
+        lock.readLock().lock();
+        try {
+            Optional<List<Entry>> matches = match(options);
+            if (!matches.isPresent()) {
+                return Optional.empty();
+            }
+
+            List<Patient> result = new ArrayList<>();
+            long first = (long) (page - 1) * count;
+            for (long i = first; i < matches.get().size() && i < first + count; i++) {
+                result.add(matches.get().get((int) i).patient);
+            }
+            return Optional.of(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the patients matching a search, across all pages
+     *
+     * @param options Required. The search parameters, by name
+     * @return the number of matching patients, or empty when {@link #search} would be empty
+     */
+    public Optional<Integer> count(Map<String, String> options) {
+
+        lock.readLock().lock();
+        try {
+            return match(options).map(List::size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Optional<List<Entry>> match(Map<String, String> options) {
+
+        if (!ready) {
+            return Optional.empty();
+        }
+
+        for (String parameter : options.keySet()) {
+            if (!CONTROL_PARAMETERS.contains(parameter) && !SEARCH_PARAMETERS.contains(parameter)) {
+                return Optional.empty();
+            }
+        }
+
+        List<Set<String>> criteria = new ArrayList<>();
+
+        String identifier = options.containsKey("_id") ? options.get("_id") : options.get("identifier");
+        if (identifier != null) {
+            Optional<String> icn = getIcn(identifier);
+            if (!icn.isPresent()) {
+                return Optional.empty();
+            }
+            Entry entry = byIcn.get(icn.get());
+            return Optional.of(entry == null ? Collections.emptyList() : Collections.singletonList(entry));
+        }
+
+        for (String name : new String[] {options.get("family"), options.get("name")}) {
+            if (name != null) {
+                criteria.add(findByPrefix(byName, name.toUpperCase()));
+            }
+        }
+
+        String given = options.get("given");
+        if (given != null) {
+            criteria.add(findByPrefix(byGiven, given.toUpperCase()));
+        }
+
+        String birthDate = options.get("birthdate");
+        if (birthDate != null) {
+            Optional<Set<String>> found = findByBirthDate(birthDate);
+            if (!found.isPresent()) {
+                return Optional.empty();
+            }
+            criteria.add(found.get());
+        }
+
+        String gender = options.get("gender");
+        if (!StringUtils.isEmpty(gender)) {
+            criteria.add(bySex.getOrDefault(gender.substring(0, 1).toUpperCase(), Collections.emptySet()));
+        }
+
+        List<Entry> matches = new ArrayList<>();
+        for (String icn : intersect(criteria)) {
+            matches.add(byIcn.get(icn));
+        }
+        matches.sort(Comparator.comparing((Entry entry) -> entry.name).thenComparing(entry -> entry.icn));
+
+        return Optional.of(matches);
+    }
+
+    private void add(Patient patient) {
+
+        String icn = patient.getIdElement().getIdPart();
+        if (StringUtils.isEmpty(icn)) {
+            return;
+        }
+
+        Entry previous = byIcn.remove(icn);
+        if (previous != null) {
+            remove(byName, previous.name, icn);
+            remove(byGiven, previous.given, icn);
+            remove(byBirthDate, previous.birthDate, icn);
+            remove(bySex, previous.sex, icn);
+        }
+
+        Entry entry = new Entry(icn, patient);
+        byIcn.put(icn, entry);
+        add(byName, entry.name, icn);
+        add(byGiven, entry.given, icn);
+        add(byBirthDate, entry.birthDate, icn);
+        add(bySex, entry.sex, icn);
+    }
+
+    private static <K> void add(Map<K, Set<String>> map, K key, String icn) {
+        if (key != null) {
+            map.computeIfAbsent(key, k -> new HashSet<>()).add(icn);
+        }
+    }
+
+    private static <K> void remove(Map<K, Set<String>> map, K key, String icn) {
+        if (key != null) {
+            Set<String> icns = map.get(key);
+            if (icns != null && icns.remove(icn) && icns.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static Set<String> findByPrefix(NavigableMap<String, Set<String>> map, String prefix) {
+        Set<String> result = new HashSet<>();
+        for (Set<String> icns : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            result.addAll(icns);
+        }
+        return result;
+    }
+
+    /**
+     * Birth dates may be given to the day, month or year and with a comparison prefix
+     */
+    private Optional<Set<String>> findByBirthDate(String value) {
+
+        String prefix = "eq";
+        if (value.length() > 2 && Character.isLetter(value.charAt(0))) {
+            prefix = value.substring(0, 2);
+            value = value.substring(2);
+        }
+
+        LocalDate start;
+        LocalDate end;
+        try {
+            switch (value.length()) {
+                case 4:
+                    start = LocalDate.of(Integer.parseInt(value), 1, 1);
+                    end = start.plusYears(1);
+                    break;
+                case 7:
+                    start = LocalDate.parse(value + "-01");
+                    end = start.plusMonths(1);
+                    break;
+                default:
+                    start = LocalDate.parse(value.substring(0, Math.min(value.length(), 10)));
+                    end = start.plusDays(1);
+                    break;
+            }
+        } catch (NumberFormatException | DateTimeParseException | StringIndexOutOfBoundsException ex) {
+            return Optional.empty();
+        }
+
+        Collection<Set<String>> found;
+        switch (prefix) {
+            case "eq":
+                found = byBirthDate.subMap(start, true, end, false).values();
+                break;
+            case "lt":
+                found = byBirthDate.headMap(start, false).values();
+                break;
+            case "le":
+                found = byBirthDate.headMap(end, false).values();
+                break;
+            case "gt":
+                found = byBirthDate.tailMap(end, true).values();
+                break;
+            case "ge":
+                found = byBirthDate.tailMap(start, true).values();
+                break;
+            default:
+                return Optional.empty();
+        }
+
+        Set<String> result = new HashSet<>();
+        for (Set<String> icns : found) {
+            result.addAll(icns);
+        }
+        return Optional.of(result);
+    }
+
+    /**
+     * Identifiers are an ICN, optionally with a system; DFN and SSN identifiers are left to VistA
+     */
+    private static Optional<String> getIcn(String identifier) {
+        int bar = identifier.indexOf('|');
+        if (bar < 0) {
+            return Optional.of(identifier);
+        }
+        String system = identifier.substring(0, bar).toLowerCase();
+        if (system.contains("dfn") || system.contains("ssn")) {
+            return Optional.empty();
+        }
+        return Optional.of(identifier.substring(bar + 1));
+    }
+
+    private Set<String> intersect(List<Set<String>> criteria) {
+
+        if (criteria.isEmpty()) {
+            return byIcn.keySet();
+        }
+
+        criteria.sort(Comparator.comparingInt(Set::size));
+        Set<String> result = new HashSet<>(criteria.get(0));
+        for (int i = 1; i < criteria.size() && !result.isEmpty(); i++) {
+            result.retainAll(criteria.get(i));
+        }
+        return result;
+    }
+
+    private static int getNumber(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Math.max(Integer.parseInt(value), 1);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A patient along with the keys it is held under
+     */
+    private static final class Entry {
+
+        private final String icn;
+        private final Patient patient;
+        private final String name;
+        private final String given;
+        private final LocalDate birthDate;
+        private final String sex;
+
+        Entry(String icn, Patient patient) {
+            this.icn = icn;
+            this.patient = patient;
+
+            HumanName humanName = patient.getNameFirstRep();
+            String family = StringUtils.defaultString(humanName.getFamily()).toUpperCase();
+            this.given = humanName.getGivenAsSingleString().toUpperCase();
+            this.name = given.isEmpty() ? family : family + "," + given;
+
+            String date = patient.getBirthDateElement().getValueAsString();
+            this.birthDate = date == null || date.length() < 10 ? null : LocalDate.parse(date.substring(0, 10));
+
+            Extension birthSex = patient.getExtensionByUrl(BIRTH_SEX_URL);
+            String code = birthSex != null && birthSex.getValue() != null ? birthSex.getValue().primitiveValue()
+                    : patient.hasGender() ? patient.getGender().toCode() : null;
+            this.sex = StringUtils.isEmpty(code) ? null : code.substring(0, 1).toUpperCase();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.healthconcourse.vista.fhir.api.utils.Projection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything fetched from VistA for a single patient, held per {@link DataCategory}.
+ *
+ * Each category is stored as a future so that concurrent requests for the same
+ * category share one VistA call instead of each issuing their own.
+ */
+public class PatientSnapshot {
+
+    private final String icn;
+    private final ConcurrentMap<DataCategory, CompletableFuture<Entry<?>>> entries = new ConcurrentHashMap<>();
+    private final Set<DataCategory> refreshing = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Derived> derived = new ConcurrentHashMap<>();
+
+    PatientSnapshot(String icn) {
+        this.icn = icn;
+    }
+
+    public String getIcn() {
+        return icn;
+    }
+
+    /**
+     * @return the categories which currently hold loaded data
+     */
+    public Set<DataCategory> getCachedCategories() {
+        Set<DataCategory> result = EnumSet.noneOf(DataCategory.class);
+        for (Map.Entry<DataCategory, CompletableFuture<Entry<?>>> item : entries.entrySet()) {
+            if (completedEntry(item.getValue()) != null) {
+                result.add(item.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The weight of the snapshot is the total size of the VistA payloads it was
+     * built from, used as a proxy for the memory held by the parsed resources.
+     */
+    int getWeight() {
+        long weight = 1;
+        for (CompletableFuture<Entry<?>> future : entries.values()) {
+            Entry<?> entry = completedEntry(future);
+            if (entry != null) {
+                weight += entry.weight;
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    CompletableFuture<Entry<?>> get(DataCategory category) {
+        return entries.get(category);
+    }
+
+    boolean start(DataCategory category, CompletableFuture<Entry<?>> loader) {
+        return entries.putIfAbsent(category, loader) == null;
+    }
+
+    boolean restart(DataCategory category, CompletableFuture<Entry<?>> current, CompletableFuture<Entry<?>> loader) {
+        return entries.replace(category, current, loader);
+    }
+
+    void abandon(DataCategory category, CompletableFuture<Entry<?>> loader) {
+        entries.remove(category, loader);
+    }
+
+    boolean beginRefresh(DataCategory category) {
+        return refreshing.add(category);
+    }
+
+    void endRefresh(DataCategory category) {
+        refreshing.remove(category);
+    }
+
+    void invalidate(DataCategory category) {
+        entries.remove(category);
+    }
+
+    Object getDerived(String name, List<? extends List<?>> sources) {
+        Derived item = derived.get(name);
+        return item != null && item.isBuiltFrom(sources) ? item.value : null;
+    }
+
+    void putDerived(String name, List<? extends List<?>> sources, Object value) {
+        derived.put(name, new Derived(new ArrayList<>(sources), value));
+    }
+
+    static Entry<?> completedEntry(CompletableFuture<Entry<?>> future) {
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.getNow(null);
+    }
+
+    /**
+     * Parsed data for one category along with when, from how much VistA data, and with
+     * which elements it was built.
+     */
+    static final class Entry<T> {
+
+        final List<T> data;
+        final int weight;
+        final long loadedAt;
+        final Projection projection;
+
+        Entry(List<T> data, int weight, long loadedAt, Projection projection) {
+            this.data = Collections.unmodifiableList(data);
+            this.weight = weight;
+            this.loadedAt = loadedAt;
+            this.projection = projection;
+        }
+    }
+
+    /**
+     * A value computed from category data, along with the lists it was computed from.
+     */
+    private static final class Derived {
+
+        private final List<? extends List<?>> sources;
+        private final Object value;
+
+        Derived(List<? extends List<?>> sources, Object value) {
+            this.sources = sources;
+            this.value = value;
+        }
+
+        /**
+         * Cached lists are only replaced, never changed, so the value is current as
+         * long as it was built from the very same lists
+         */
+        boolean isBuiltFrom(List<? extends List<?>> current) {
+            if (current.size() != sources.size()) {
+                return false;
+            }
+            for (int i = 0; i < current.size(); i++) {
+                if (current.get(i) != sources.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
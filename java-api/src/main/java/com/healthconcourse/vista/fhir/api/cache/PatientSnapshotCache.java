@@ -0,0 +1,417 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Cache of {@link PatientSnapshot}s keyed by ICN.
+ *
+ * A chart-open session reads the patient and then walks many compartments; with
+ * this cache each compartment (and $everything) is answered from the same snapshot,
+ * so VistA is only called for categories that are missing or past their time-to-live.
+ * Snapshots are evicted by total payload weight and after a period without access.
+ * Categories nearing or just past their time-to-live are reloaded in the background.
+ * Every payload fetched, cached or not, is passed to the {@link ChangeLog}.
+ */
+public class PatientSnapshotCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientSnapshotCache.class);
+
+    private final Cache<String, PatientSnapshot> snapshots;
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+
+    private final boolean enabled;
+    private final Executor refresher;
+    private final ChangeLog changes;
+    private final Ticker ticker;
+    private final int refreshAheadPercent;
+    private final long maxStaleNanos;
+    private final Map<DataCategory, Long> timeToLiveNanos = new EnumMap<>(DataCategory.class);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public PatientSnapshotCache(PatientCacheSettings settings) {
+        this(settings, ChangeLog.disabled());
+    }
+
+    public PatientSnapshotCache(PatientCacheSettings settings, ChangeLog changes) {
+        this(settings, createRefreshExecutor(settings.getRefreshThreads()), Ticker.systemTicker(), changes);
+    }
+
+    public PatientSnapshotCache(PatientCacheSettings settings, Executor refresher, Ticker ticker) {
+        this(settings, refresher, ticker, ChangeLog.disabled());
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param settings Required. Sizes, time-to-live and refresh tuning
+     * @param refresher Required. Runs background reloads
+     * @param ticker Required. The time source for expiry
+     * @param changes Required. Told about every payload fetched
+     */
+    public PatientSnapshotCache(PatientCacheSettings settings, Executor refresher, Ticker ticker, ChangeLog changes) {
+
+        this.enabled = settings.getMaxWeight() > 0;
+        this.refresher = refresher;
+        this.changes = changes;
+        this.ticker = ticker;
+        this.refreshAheadPercent = Math.max(0, Math.min(settings.getRefreshAheadPercent(), 100));
+        this.maxStaleNanos = Math.max(settings.getMaxStale().toNanos(), 0);
+
+        for (DataCategory category : DataCategory.values()) {
+            timeToLiveNanos.put(category, settings.getTimeToLive(category).toNanos());
+        }
+
+        this.snapshots = Caffeine.newBuilder()
+                .maximumWeight(Math.max(settings.getMaxWeight(), 0))
+                .weigher((String icn, PatientSnapshot snapshot) -> snapshot.getWeight())
+                .expireAfterAccess(settings.getIdleTimeout())
+                .ticker(ticker)
+                .build();
+    }
+
+    /**
+     * A cache which never holds anything, every request goes to VistA.
+     */
+    public static PatientSnapshotCache disabled() {
+        return disabled(ChangeLog.disabled());
+    }
+
+    /**
+     * A cache which never holds anything but still tells the change log what it fetches
+     */
+    public static PatientSnapshotCache disabled(ChangeLog changes) {
+        PatientCacheSettings settings = new PatientCacheSettings();
+        settings.setMaxWeight(0);
+        return new PatientSnapshotCache(settings, Runnable::run, Ticker.systemTicker(), changes);
+    }
+
+    /**
+     * Get the parsed data for one category of a patient, loading it from VistA when it
+     * is not cached or is no longer fresh. Failures are not cached.
+     *
+     * Data accessed late in its time-to-live is reloaded in the background while the
+     * cached copy is returned, and data which has only recently expired is still
+     * returned (up to the configured staleness bound) while it is reloaded, so that a
+     * patient who is being looked at does not wait on VistA when their data ages out.
+     *
+     * @param icn Required. The patient ICN
+     * @param category Required. The category being requested
+     * @param fetcher Required. Calls VistA and returns the raw payload
+     * @param parser Required. Turns the raw payload into resources
+     * @return an unmodifiable list of the parsed data
+     */
+    public <T> List<T> get(String icn, DataCategory category, Supplier<String> fetcher, Function<String, List<T>> parser) {
+        return get(icn, category, Projection.ALL, fetcher, parser);
+    }
+
+    /**
+     * Get the data for one category, where only the elements in the projection are needed.
+     * Data cached for a wider projection is served as it is. Otherwise the category is
+     * loaded with the projected parser and cached as partial, so a later request needing
+     * more elements loads it again.
+     *
+     * @param icn Required. The patient ICN
+     * @param category Required. The category being requested
+     * @param projection Required. The elements the caller needs
+     * @param fetcher Required. Calls VistA and returns the raw payload
+     * @param parser Required. Turns the raw payload into resources holding at least the projected elements
+     * @return an unmodifiable list of the parsed data
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(String icn, DataCategory category, Projection projection, Supplier<String> fetcher,
+                           Function<String, List<T>> parser) {
+
+        if (!enabled) {
+            String payload = fetcher.get();
+            List<T> data = parser.apply(payload);
+            changes.record(icn, category, payload);
+            return data;
+        }
+
+        PatientSnapshot snapshot = snapshots.get(icn, PatientSnapshot::new);
+
+        while (true) {
+            CompletableFuture<PatientSnapshot.Entry<?>> current = snapshot.get(category);
+
+            if (current == null) {
+                CompletableFuture<PatientSnapshot.Entry<?>> loader = new CompletableFuture<>();
+                if (snapshot.start(category, loader)) {
+                    return load(snapshot, category, loader, projection, fetcher, parser);
+                }
+                continue;
+            }
+
+            if (!current.isDone()) {
+                PatientSnapshot.Entry<?> loaded = await(current);
+                if (loaded.projection.covers(projection)) {
+                    hits.incrementAndGet();
+                    return (List<T>) loaded.data;
+                }
+                continue;
+            }
+
+            PatientSnapshot.Entry<?> entry = PatientSnapshot.completedEntry(current);
+            if (entry != null && entry.projection.covers(projection)) {
+                long age = ticker.read() - entry.loadedAt;
+                long timeToLive = timeToLiveNanos.get(category);
+
+                if (age < timeToLive || (timeToLive > 0 && age < timeToLive + maxStaleNanos)) {
+                    hits.incrementAndGet();
+                    // A narrower caller does not refresh, its parser would drop elements others need
+                    boolean canRefresh = projection.covers(entry.projection);
+                    if (age >= timeToLive) {
+                        staleHits.incrementAndGet();
+                        if (canRefresh) {
+                            refresh(snapshot, category, current, projection, fetcher, parser);
+                        }
+                    } else if (canRefresh && refreshAheadPercent > 0 && age >= timeToLive / 100 * refreshAheadPercent) {
+                        refresh(snapshot, category, current, projection, fetcher, parser);
+                    }
+                    return (List<T>) entry.data;
+                }
+            }
+
+            CompletableFuture<PatientSnapshot.Entry<?>> loader = new CompletableFuture<>();
+            if (snapshot.restart(category, current, loader)) {
+                return load(snapshot, category, loader, projection, fetcher, parser);
+            }
+        }
+    }
+
+    /**
+     * Count the resources in one category of a patient without building them. Data the
+     * cache would serve is counted from its parsed list, otherwise the payload is read
+     * from VistA and counted as it is. A payload read only to be counted is not parsed,
+     * so it is not cached.
+     *
+     * @param icn Required. The patient ICN
+     * @param category Required. The category being counted
+     * @param fetcher Required. Calls VistA and returns the raw payload
+     * @param counter Required. Counts the resources in the raw payload
+     * @return the number of resources
+     */
+    public int count(String icn, DataCategory category, Supplier<String> fetcher, ToIntFunction<String> counter) {
+
+        PatientSnapshot snapshot = enabled ? snapshots.getIfPresent(icn) : null;
+        PatientSnapshot.Entry<?> entry = snapshot == null ? null : PatientSnapshot.completedEntry(snapshot.get(category));
+
+        if (entry != null) {
+            long age = ticker.read() - entry.loadedAt;
+            long timeToLive = timeToLiveNanos.get(category);
+            if (age < timeToLive || (timeToLive > 0 && age < timeToLive + maxStaleNanos)) {
+                hits.incrementAndGet();
+                return entry.data.size();
+            }
+        }
+
+        String payload = fetcher.get();
+        int count = counter.applyAsInt(payload);
+        changes.record(icn, category, payload);
+        return count;
+    }
+
+    /**
+     * Get a value computed from cached category data, such as an index over it. The
+     * value is kept in the patient's snapshot and only rebuilt once one of the lists
+     * it was built from has been reloaded or invalidated.
+     *
+     * @param icn Required. The patient ICN
+     * @param name Required. Identifies the derived value within the snapshot
+     * @param sources Required. The lists, as returned by {@link #get}, the value is built from
+     * @param builder Required. Builds the value from the sources
+     * @return the cached or newly built value
+     */
+    @SuppressWarnings("unchecked")
+    public <D> D derive(String icn, String name, List<? extends List<?>> sources, Supplier<D> builder) {
+
+        PatientSnapshot snapshot = enabled ? snapshots.getIfPresent(icn) : null;
+        if (snapshot == null) {
+            return builder.get();
+        }
+
+        Object value = snapshot.getDerived(name, sources);
+        if (value == null) {
+            value = builder.get();
+            snapshot.putDerived(name, sources, value);
+        }
+        return (D) value;
+    }
+
+    /**
+     * @return the snapshot for a patient if one is cached
+     */
+    public PatientSnapshot getIfPresent(String icn) {
+        return snapshots.getIfPresent(icn);
+    }
+
+    /**
+     * Drop everything cached for a patient
+     */
+    public void invalidate(String icn) {
+        snapshots.invalidate(icn);
+    }
+
+    /**
+     * Drop some categories cached for a patient
+     */
+    public void invalidate(String icn, Set<DataCategory> categories) {
+        PatientSnapshot snapshot = snapshots.getIfPresent(icn);
+        if (snapshot != null) {
+            for (DataCategory category : categories) {
+                snapshot.invalidate(category);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many hits were served past their time-to-live
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return how many background reloads have completed
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    public long size() {
+        return snapshots.estimatedSize();
+    }
+
+    /**
+     * Reload a category in the background, keeping the current entry readable until the
+     * new one is ready. Only one refresh runs per category at a time, and if the
+     * category is invalidated or reloaded while the refresh runs, its result is discarded.
+     */
+    private <T> void refresh(PatientSnapshot snapshot, DataCategory category, CompletableFuture<PatientSnapshot.Entry<?>> current,
+                             Projection projection, Supplier<String> fetcher, Function<String, List<T>> parser) {
+
+        if (!snapshot.beginRefresh(category)) {
+            return;
+        }
+
+        try {
+            refresher.execute(() -> {
+                try {
+                    String payload = fetcher.get();
+                    List<T> data = parser.apply(payload);
+                    changes.record(snapshot.getIcn(), category, payload);
+                    PatientSnapshot.Entry<T> entry = new PatientSnapshot.Entry<>(data, payload == null ? 0 : payload.length(), ticker.read(), projection);
+                    if (snapshot.restart(category, current, CompletableFuture.completedFuture(entry))) {
+                        refreshes.incrementAndGet();
+                        reweigh(snapshot);
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.warn("Unable to refresh " + category + " for " + snapshot.getIcn(), ex);
+                } finally {
+                    snapshot.endRefresh(category);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            snapshot.endRefresh(category);
+            LOG.debug("Refresh queue full, skipping refresh of " + category + " for " + snapshot.getIcn());
+        }
+    }
+
+    private <T> List<T> load(PatientSnapshot snapshot, DataCategory category, CompletableFuture<PatientSnapshot.Entry<?>> loader,
+                             Projection projection, Supplier<String> fetcher, Function<String, List<T>> parser) {
+        misses.incrementAndGet();
+        try {
+            String payload = fetcher.get();
+            List<T> data = parser.apply(payload);
+            changes.record(snapshot.getIcn(), category, payload);
+            PatientSnapshot.Entry<T> entry = new PatientSnapshot.Entry<>(data, payload == null ? 0 : payload.length(), ticker.read(), projection);
+            loader.complete(entry);
+
+            reweigh(snapshot);
+
+            return entry.data;
+        } catch (RuntimeException ex) {
+            snapshot.abandon(category, loader);
+            loader.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Weigh a snapshot again now that it holds more data. Only done while it is still the
+     * one cached for the patient: one evicted, invalidated or replaced during the load is
+     * not put back, so it cannot hide a newer snapshot or bring back invalidated data.
+     */
+    private void reweigh(PatientSnapshot snapshot) {
+        snapshots.asMap().replace(snapshot.getIcn(), snapshot, snapshot);
+    }
+
+    private static Executor createRefreshExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        int size = Math.max(threads, 1);
+        return new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(REFRESH_QUEUE_SIZE), runnable -> {
+            Thread thread = new Thread(runnable, "patient-cache-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static PatientSnapshot.Entry<?> await(CompletableFuture<PatientSnapshot.Entry<?>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            LOG.error("Unable to load cached patient data", ex);
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Cache of slowly changing reference data (locations, care teams) looked up by name.
+ */
+public class ReferenceDataCache {
+
+    private final Cache<String, List<?>> entries;
+    private final boolean enabled;
+
+    /**
+     * @param maxEntries Required. How many lookups to hold, 0 disables caching
+     * @param timeToLive Required. How long a lookup is kept
+     */
+    public ReferenceDataCache(long maxEntries, Duration timeToLive) {
+        this.enabled = maxEntries > 0;
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(Math.max(maxEntries, 0))
+                .expireAfterWrite(timeToLive)
+                .build();
+    }
+
+    /**
+     * A cache which never holds anything, every request goes to VistA.
+     */
+    public static ReferenceDataCache disabled() {
+        return new ReferenceDataCache(0, Duration.ZERO);
+    }
+
+    /**
+     * Get a cached lookup, loading it when it is missing. Failures are not cached.
+     *
+     * @param kind Required. The type of reference data
+     * @param key Required. The name being looked up
+     * @param loader Required. Calls VistA and parses the result
+     * @return the parsed data
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(AccessKind kind, String key, Supplier<List<T>> loader) {
+
+        if (!enabled) {
+            return loader.get();
+        }
+
+        return (List<T>) entries.get(kind.name() + '\t' + key, k -> {
+            List<T> data = loader.get();
+            return data == null ? null : Collections.unmodifiableList(data);
+        });
+    }
+
+    public long size() {
+        return entries.estimatedSize();
+    }
+}
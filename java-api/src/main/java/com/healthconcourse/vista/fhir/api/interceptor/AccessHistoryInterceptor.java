@@ -0,0 +1,71 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.interceptor;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import com.healthconcourse.vista.fhir.api.cache.AccessHistory;
+import com.healthconcourse.vista.fhir.api.cache.AccessKind;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Records the patients, locations and care teams clients ask for in the {@link AccessHistory}.
+ */
+public class AccessHistoryInterceptor extends InterceptorAdapter {
+
+    private static final String PATIENT = "Patient";
+    private static final String[] PATIENT_PARAMETERS = {"patient", "subject"};
+
+    private final AccessHistory history;
+
+    public AccessHistoryInterceptor(AccessHistory history) {
+        this.history = history;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) {
+
+        String resourceName = theRequestDetails.getResourceName();
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+
+        if (PATIENT.equals(resourceName) && theRequestDetails.getId() != null && theRequestDetails.getId().hasIdPart()) {
+            history.record(AccessKind.PATIENT, theRequestDetails.getId().getIdPart());
+        }
+
+        for (String name : PATIENT_PARAMETERS) {
+            String value = getFirst(parameters, name);
+            if (value != null) {
+                history.record(AccessKind.PATIENT, value.startsWith(PATIENT + "/") ? value.substring(PATIENT.length() + 1) : value);
+            }
+        }
+
+        if ("Location".equals(resourceName)) {
+            history.record(AccessKind.LOCATION, getFirst(parameters, "name"));
+        } else if ("CareTeam".equals(resourceName)) {
+            history.record(AccessKind.CARE_TEAM, getFirst(parameters, "team"));
+        }
+
+        return true;
+    }
+
+    private static String getFirst(Map<String, String[]> parameters, String name) {
+        String[] values = parameters == null ? null : parameters.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+}
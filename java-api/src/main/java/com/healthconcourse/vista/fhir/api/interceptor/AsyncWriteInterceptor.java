@@ -0,0 +1,87 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.interceptor;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import com.healthconcourse.vista.fhir.api.service.ConditionWrite;
+import com.healthconcourse.vista.fhir.api.service.ConditionWriteQueue;
+import org.hl7.fhir.r4.model.Condition;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Hands Condition creates sent with {@code Prefer: respond-async} to the
+ * {@link ConditionWriteQueue} and answers 202 Accepted, with the status URL to poll in
+ * the Content-Location header. The optional {@code Idempotency-Key} header identifies the
+ * write, so a client retrying a create does not write it twice.
+ *
+ * When the queue is full the create is written synchronously as usual, which holds a
+ * bulk import back to the pace VistA takes the writes at.
+ */
+public class AsyncWriteInterceptor extends InterceptorAdapter {
+
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final String RESPOND_ASYNC = "respond-async";
+
+    private final ConditionWriteQueue queue;
+
+    public AsyncWriteInterceptor(ConditionWriteQueue queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) {
+
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.CREATE
+                || !"Condition".equals(theRequestDetails.getResourceName())) {
+            return true;
+        }
+        String prefer = theRequest.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(RESPOND_ASYNC)) {
+            return true;
+        }
+
+        Optional<ConditionWrite> write = queue.submit(theRequest.getHeader(IDEMPOTENCY_KEY), parse(theRequestDetails));
+        if (!write.isPresent()) {
+            return true;
+        }
+
+        theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                String.format("%s/$write-status?_jobId=%s", theRequestDetails.getFhirServerBase(), write.get().getId()));
+        return false;
+    }
+
+    private static Condition parse(RequestDetails request) {
+        Charset charset = request.getCharset() == null ? StandardCharsets.UTF_8 : request.getCharset();
+        try {
+            return RestfulServerUtils.determineRequestEncoding(request).newParser(request.getServer().getFhirContext())
+                    .parseResource(Condition.class, new String(request.loadRequestContents(), charset));
+        } catch (DataFormatException ex) {
+            throw new InvalidRequestException("Unable to parse the Condition: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.interceptor;
+
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import com.healthconcourse.vista.fhir.api.cache.CacheWarmer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Answers requests with 503 Service Unavailable until the {@link CacheWarmer} has loaded
+ * the configured share of the access history, so a load balancer only routes traffic
+ * to the instance once its caches are warm. The gate opens for good once warming
+ * reaches the target, finishes, or the maximum wait has passed.
+ */
+public class WarmupReadinessInterceptor extends InterceptorAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmupReadinessInterceptor.class);
+
+    private final CacheWarmer warmer;
+    private final int readyPercent;
+    private final long deadline;
+    private volatile boolean ready;
+
+    /**
+     * @param warmer Required. The warmer to wait for
+     * @param readyPercent Required. The share of the history that must be warmed
+     * @param maxWait Required. How long to wait at most, after which requests are let through regardless
+     */
+    public WarmupReadinessInterceptor(CacheWarmer warmer, int readyPercent, Duration maxWait) {
+        this.warmer = warmer;
+        this.readyPercent = readyPercent;
+        this.deadline = System.currentTimeMillis() + maxWait.toMillis();
+    }
+
+    public boolean isReady() {
+        if (!ready && (warmer.isFinished() || warmer.getPercentComplete() >= readyPercent || System.currentTimeMillis() >= deadline)) {
+            ready = true;
+            LOG.info(String.format("Accepting requests, cache warming %d%% complete", warmer.getPercentComplete()));
+        }
+        return ready;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+
+        if (isReady()) {
+            return true;
+        }
+
+        try {
+            theResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            theResponse.setHeader("Retry-After", "10");
+            theResponse.setContentType("text/plain");
+            theResponse.getWriter().write(String.format("Warming caches: %d%% complete (%d of %d)",
+                    warmer.getPercentComplete(), warmer.getCompleted(), warmer.getTotal()));
+        } catch (IOException ex) {
+            LOG.error("Unable to write warm up response", ex);
+        }
+        return false;
+    }
+}
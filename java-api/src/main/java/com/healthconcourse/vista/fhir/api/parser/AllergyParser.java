@@ -88,6 +88,23 @@ public class AllergyParser implements VistaParser<AllergyIntolerance> {
         return result;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData.trim();
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2 || RecordCounter.first(data, '^').equalsIgnoreCase("-1")) {
+            return 0;
+        }
+
+        return records - 1;
+    }
+
     private CodeableConcept getAllergenCode(String display, String code) {
 
         String[] codeParts = code.split(":");
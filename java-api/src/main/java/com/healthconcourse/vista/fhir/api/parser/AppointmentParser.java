@@ -74,6 +74,23 @@ public class AppointmentParser implements VistaParser<Appointment> {
         return result;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData.trim();
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2) {
+            return 0;
+        }
+
+        return records - 1;
+    }
+
     private CodeableConcept convertToType(String vistaType) {
 
         switch (vistaType) {
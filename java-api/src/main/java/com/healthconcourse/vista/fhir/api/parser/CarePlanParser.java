@@ -108,6 +108,27 @@ public class CarePlanParser {
         return results;
     }
 
+    /**
+     * @return how many care plans parseCarePlan would give, read from the JSON without building them
+     */
+    public int countCarePlan(String httpData, String icn) {
+
+        if (org.apache.commons.lang3.StringUtils.isEmpty(httpData) || httpData.trim().equalsIgnoreCase("{}")) {
+            return 0;
+        }
+
+        ReadContext ctx = JsonPath.parse(httpData);
+
+        try {
+            Integer totalCarePlans = ctx.read("$.CarePlan.length()");
+            Integer totalVisits = ctx.read("$.CarePlan[0].Visit.length()");
+            // One care plan is built per visit of the first care plan
+            return totalCarePlans * totalVisits;
+        } catch (PathNotFoundException pex) {
+            return parseCarePlan(httpData, icn).size();
+        }
+    }
+
     private CarePlan.CarePlanActivityComponent getActivity(ReadContext ctx, String basePath) {
 
         CarePlan.CarePlanActivityComponent activity = new CarePlan.CarePlanActivityComponent();
@@ -163,4 +163,14 @@ public class ConditionParser implements VistaParser<Condition> {
        }
         return result;
     }
+
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData) || RecordCounter.count(httpData, '|') <= 1) {
+            return 0;
+        }
+
+        return RecordCounter.countWithFields(httpData, '|', 0, '^', 4);
+    }
 }
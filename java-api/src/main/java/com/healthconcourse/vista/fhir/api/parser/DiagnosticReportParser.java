@@ -55,6 +55,16 @@ public class DiagnosticReportParser implements VistaParser<DiagnosticReport> {
         return results;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return RecordCounter.countWithFields(httpData.trim(), '^', 1, '|', 6);
+    }
+
     private Optional<DiagnosticReport> parseDiagnosticReportRecord(String record, boolean isFirst) {
 
         DiagnosticReport result = new DiagnosticReport();
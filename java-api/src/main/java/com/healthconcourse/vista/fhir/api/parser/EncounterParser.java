@@ -59,6 +59,16 @@ public class EncounterParser implements VistaParser<Encounter> {
         return results;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return RecordCounter.countWithFields(httpData.trim(), '|', 0, '^', 2);
+    }
+
     private Encounter parseEncounter(final String record, boolean isFirst) {
 
         Encounter encounter = new Encounter();
@@ -78,4 +78,21 @@ public class FlagParser implements VistaParser<Flag> {
 
         return result;
     }
+
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData;
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2) {
+            return 0;
+        }
+
+        return records - 1;
+    }
 }
@@ -19,6 +19,7 @@ package com.healthconcourse.vista.fhir.api.parser;
 import com.healthconcourse.vista.fhir.api.HcConstants;
 import com.healthconcourse.vista.fhir.api.utils.InputValidator;
 import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
+import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Goal;
@@ -57,6 +58,16 @@ public class GoalParser implements VistaParser<Goal> {
         return results;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return RecordCounter.countWithFields(httpData.trim(), '^', 1, '|', 5);
+    }
+
     private Optional<Goal> parseGoalRecord(String record, boolean isFirst) {
 
         Goal result = new Goal();
@@ -86,4 +86,21 @@ public class ImmunizationParser  implements VistaParser<Immunization> {
 
         return result;
     }
+
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData.trim();
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2 || RecordCounter.first(data, '^').equalsIgnoreCase("-1")) {
+            return 0;
+        }
+
+        return records - 1;
+    }
 }
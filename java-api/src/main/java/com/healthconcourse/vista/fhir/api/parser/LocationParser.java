@@ -29,6 +29,14 @@ import java.util.Optional;
 public class LocationParser {
 
     private static final Logger LOG = LoggerFactory.getLogger(LocationParser.class);
+    /**
+     * @return true when VistA answered that it has no location by the name, rather than not answering
+     */
+    public boolean isNotFound(String httpData) {
+
+        return !StringUtils.isEmpty(httpData) && "-1".equals(httpData.split("\\^")[0]);
+    }
+
     public Optional<Location> parseSingleLocation(String httpData) {
 
         if(StringUtils.isEmpty(httpData)) {
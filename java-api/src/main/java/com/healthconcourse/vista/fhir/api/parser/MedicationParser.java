@@ -19,6 +19,7 @@ package com.healthconcourse.vista.fhir.api.parser;
 
 import com.healthconcourse.vista.fhir.api.HcConstants;
 import com.healthconcourse.vista.fhir.api.utils.InputValidator;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
 import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import org.apache.commons.lang.StringUtils;
 import org.hl7.fhir.r4.model.*;
@@ -46,6 +47,14 @@ public class MedicationParser {
 
     public List<MedicationStatement> parseMedicationStatement(String httpData) {
 
+        return parseMedicationStatement(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse medication statements, building only the elements in the projection
+     */
+    public List<MedicationStatement> parseMedicationStatement(String httpData, Projection projection) {
+
         List<MedicationStatement> results = new ArrayList<>();
 
         if (StringUtils.isEmpty(httpData)) {
@@ -56,7 +65,7 @@ public class MedicationParser {
         boolean isFirst = true;
 
         for(String record : records) {
-            Optional<MedicationStatement> med = parseMedicationStatementRecord(record, isFirst);
+            Optional<MedicationStatement> med = parseMedicationStatementRecord(record, isFirst, projection);
             med.ifPresent(results::add);
             isFirst = false;
         }
@@ -67,13 +76,21 @@ public class MedicationParser {
 
     public List<MedicationDispense> parseMedicationDispense(String httpData) {
 
+        return parseMedicationDispense(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse medication dispenses, building only the elements in the projection
+     */
+    public List<MedicationDispense> parseMedicationDispense(String httpData, Projection projection) {
+
         List<MedicationDispense> results = new ArrayList<>();
 
         String[] records = httpData.trim().split("\\|");
         boolean isFirst = true;
 
         for(String record : records) {
-            Optional<MedicationDispense> med = parseMedicationDispenseRecord(record, isFirst);
+            Optional<MedicationDispense> med = parseMedicationDispenseRecord(record, isFirst, projection);
             med.ifPresent(results::add);
             isFirst = false;
         }
@@ -83,6 +100,14 @@ public class MedicationParser {
 
     public List<MedicationAdministration> parseMedicationAdmin(String httpData) {
 
+        return parseMedicationAdmin(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse medication administrations, building only the elements in the projection
+     */
+    public List<MedicationAdministration> parseMedicationAdmin(String httpData, Projection projection) {
+
         LOG.debug(httpData);
 
         List<MedicationAdministration> results = new ArrayList<>();
@@ -92,7 +117,7 @@ public class MedicationParser {
 
         for(String record : records) {
 
-            Optional<MedicationAdministration> med = parseMedicationAdminRecord(record, isFirst);
+            Optional<MedicationAdministration> med = parseMedicationAdminRecord(record, isFirst, projection);
             med.ifPresent(results::add);
             isFirst = false;
         }
@@ -100,7 +125,48 @@ public class MedicationParser {
         return results;
     }
 
-    private Optional<MedicationStatement> parseMedicationStatementRecord(String record, boolean isFirst) {
+    /**
+     * @return how many statements parseMedicationStatement would give, without building them
+     */
+    public int countMedicationStatement(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return countRecords(httpData);
+    }
+
+    /**
+     * @return how many dispenses parseMedicationDispense would give, without building them
+     */
+    public int countMedicationDispense(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return countRecords(httpData);
+    }
+
+    /**
+     * @return how many administrations parseMedicationAdmin would give, without building them
+     */
+    public int countMedicationAdmin(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return countRecords(httpData);
+    }
+
+    private static int countRecords(String httpData) {
+
+        return RecordCounter.countWithFields(httpData.trim(), '|', 0, '^', 5);
+    }
+
+    private Optional<MedicationStatement> parseMedicationStatementRecord(String record, boolean isFirst, Projection projection) {
 
         MedicationStatement result = new MedicationStatement();
 
@@ -117,7 +183,9 @@ public class MedicationParser {
             index = 1;
         }
 
-        result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        if (projection.includes("subject")) {
+            result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        }
 
         result.setId(fields[index]);
 
@@ -128,21 +196,33 @@ public class MedicationParser {
         }
 
         // 3 dates: asserted ; start ; end
-        String[] rawDates = fields[index +3].split(";");
-        Optional<Date> assertedDate = InputValidator.parseAnyDate(rawDates[0]);
-        if (assertedDate.isPresent()) result.setDateAsserted(assertedDate.get());
-        Optional<Date> startDate    = InputValidator.parseAnyDate(rawDates[1]);
-        Optional<Date> endDate      = InputValidator.parseAnyDate(rawDates[2]);
-        if (startDate.isPresent() && endDate.isPresent()) {
-            Period period = new Period();
-            period.setStart(startDate.get());
-            period.setEnd(endDate.get());
-            result.setEffective(period);
+        if (projection.includes("dateAsserted") || projection.includes("effective")) {
+            String[] rawDates = fields[index +3].split(";");
+            if (projection.includes("dateAsserted")) {
+                Optional<Date> assertedDate = InputValidator.parseAnyDate(rawDates[0]);
+                if (assertedDate.isPresent()) result.setDateAsserted(assertedDate.get());
+            }
+            if (projection.includes("effective")) {
+                Optional<Date> startDate    = InputValidator.parseAnyDate(rawDates[1]);
+                Optional<Date> endDate      = InputValidator.parseAnyDate(rawDates[2]);
+                if (startDate.isPresent() && endDate.isPresent()) {
+                    Period period = new Period();
+                    period.setStart(startDate.get());
+                    period.setEnd(endDate.get());
+                    result.setEffective(period);
+                }
+            }
         }
 
         result.setMeta(ResourceHelper.getVistaMeta());
 
-        result.setDosage(getDosages(fields[index + 5]));
+        if (projection.includes("dosage")) {
+            result.setDosage(getDosages(fields[index + 5]));
+        }
+
+        if (!projection.includes("medication")) {
+            return Optional.of(result);
+        }
 
         String system = "";
         String code = "";
@@ -175,7 +255,7 @@ public class MedicationParser {
 
 
 
-    private Optional<MedicationDispense> parseMedicationDispenseRecord(String record, boolean isFirst) {
+    private Optional<MedicationDispense> parseMedicationDispenseRecord(String record, boolean isFirst, Projection projection) {
 
         MedicationDispense result = new MedicationDispense();
 
@@ -192,7 +272,9 @@ public class MedicationParser {
             index = 1;
         }
 
-        result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        if (projection.includes("subject")) {
+            result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        }
         result.setId(fields[0]);
 
         result.setStatus(fields[index + 1]);
@@ -201,9 +283,11 @@ public class MedicationParser {
         reference.setDisplay(fields[index + 2]);
         result.setMedication(reference);
 
-        result.setDosageInstruction(getDosages(fields[index + 5]));
+        if (projection.includes("dosageInstruction")) {
+            result.setDosageInstruction(getDosages(fields[index + 5]));
+        }
 
-        if(fields.length > (6 + index) && !fields[index + 6].isEmpty()) {
+        if(fields.length > (6 + index) && !fields[index + 6].isEmpty() && projection.includes("quantity")) {
 
             try {
                 SimpleQuantity simpleNumber = new SimpleQuantity();
@@ -215,7 +299,7 @@ public class MedicationParser {
             }
         }
 
-        if(fields.length > (7 + index) && !fields[index + 7].isEmpty()) {
+        if(fields.length > (7 + index) && !fields[index + 7].isEmpty() && projection.includes("daysSupply")) {
 
             try {
                 SimpleQuantity simpleNumber = new SimpleQuantity();
@@ -232,7 +316,7 @@ public class MedicationParser {
         return Optional.of(result);
     }
 
-    private Optional<MedicationAdministration> parseMedicationAdminRecord(String record, boolean isFirst) {
+    private Optional<MedicationAdministration> parseMedicationAdminRecord(String record, boolean isFirst, Projection projection) {
 
         MedicationAdministration result = new MedicationAdministration();
 
@@ -249,7 +333,9 @@ public class MedicationParser {
             index = 1;
         }
 
-        result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        if (projection.includes("subject")) {
+            result.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, mPatientId, "", ResourceHelper.ReferenceType.Patient));
+        }
 
         result.setId(fields[0]);
 
@@ -259,28 +345,32 @@ public class MedicationParser {
         reference.setDisplay(fields[index + 2]);
         result.setMedication(reference);
 
-        Optional<Date> effectivDate = InputValidator.parseAnyDate(fields[index + 3]);
-        if (effectivDate.isPresent()) {
-            result.setEffective(new DateTimeType());
+        if (projection.includes("effective")) {
+            Optional<Date> effectivDate = InputValidator.parseAnyDate(fields[index + 3]);
+            if (effectivDate.isPresent()) {
+                result.setEffective(new DateTimeType());
+            }
         }
 
-        String[] doseParts = fields[index +5].split(";");
+        if (projection.includes("dosage")) {
+            String[] doseParts = fields[index +5].split(";");
 
-        MedicationAdministration.MedicationAdministrationDosageComponent dosage = new MedicationAdministration.MedicationAdministrationDosageComponent();
+            MedicationAdministration.MedicationAdministrationDosageComponent dosage = new MedicationAdministration.MedicationAdministrationDosageComponent();
 
-        if(doseParts.length > 1 && !doseParts[1].isEmpty()) {
-            Optional<CodeableConcept> route = getDoseRoute(doseParts[1]);
-            if(route.isPresent()) {
-                dosage.setRoute(route.get());
+            if(doseParts.length > 1 && !doseParts[1].isEmpty()) {
+                Optional<CodeableConcept> route = getDoseRoute(doseParts[1]);
+                if(route.isPresent()) {
+                    dosage.setRoute(route.get());
+                }
             }
-        }
 
-        if(doseParts.length > 2) {
-            dosage.setText(doseParts[2]);
-            dosage.setDose(getDoseQuantity(doseParts[2]));
-        }
+            if(doseParts.length > 2) {
+                dosage.setText(doseParts[2]);
+                dosage.setDose(getDoseQuantity(doseParts[2]));
+            }
 
-        result.setDosage(dosage);
+            result.setDosage(dosage);
+        }
 
         result.setMeta(ResourceHelper.getVistaMeta());
 
@@ -18,6 +18,7 @@ package com.healthconcourse.vista.fhir.api.parser;
 
 import com.healthconcourse.vista.fhir.api.HcConstants;
 import com.healthconcourse.vista.fhir.api.utils.InputValidator;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
 import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Composition;
@@ -33,6 +34,15 @@ public class NoteParser implements VistaParser<Composition> {
 
     @Override
     public List<Composition> parseList(String httpData) {
+
+        return parseList(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse notes, building only the elements in the projection. Skipping the text
+     * avoids building the XHTML narrative holding the whole note.
+     */
+    public List<Composition> parseList(String httpData, Projection projection) {
         List<Composition> result = new ArrayList<>();
 
         if(StringUtils.isEmpty(httpData)) {
@@ -46,35 +56,46 @@ public class NoteParser implements VistaParser<Composition> {
         for(int i = 1; i < records.length; i++) {
             Composition note = new Composition();
             note.setMeta(ResourceHelper.getVistaMeta());
-            note.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, icn, "", ResourceHelper.ReferenceType.Patient));
+            if (projection.includes("subject")) {
+                note.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, icn, "", ResourceHelper.ReferenceType.Patient));
+            }
 
             String[] fields = records[i].split("\\|");
 
             note.setId(fields[0]);
 
-            Optional<Date> noteDate = InputValidator.parseAnyDate(fields[1]);
-            if (noteDate.isPresent()) {
-                note.setDate(noteDate.get());
+            if (projection.includes("date")) {
+                Optional<Date> noteDate = InputValidator.parseAnyDate(fields[1]);
+                if (noteDate.isPresent()) {
+                    note.setDate(noteDate.get());
+                }
             }
 
-            if(!StringUtils.isEmpty(fields[2])) {
+            if(!StringUtils.isEmpty(fields[2]) && projection.includes("status")) {
                 note.setStatus(getStatus(fields[2]));
             }
 
-            if(!StringUtils.isEmpty(fields[3]) && fields[3].length() == 1 && Arrays.asList(confidentialityValues).contains(fields[3])) {
+            if(!StringUtils.isEmpty(fields[3]) && fields[3].length() == 1 && Arrays.asList(confidentialityValues).contains(fields[3])
+                    && projection.includes("confidentiality")) {
                 note.setConfidentiality(this.getConfidentiality(fields[3]));
             }
 
-            if(!StringUtils.isEmpty(fields[4])) {
+            if(!StringUtils.isEmpty(fields[4]) && projection.includes("author")) {
                 note.setAuthor(ResourceHelper.createSingleReferenceAsList(HcConstants.URN_VISTA_PRACTITIONER, fields[4],"", ResourceHelper.ReferenceType.Practitioner));
             }
 
-            String[] content = fields[5].split("\\^");
+            if (projection.includes("title") || projection.includes("text")) {
+                String[] content = fields[5].split("\\^");
 
-            note.setTitle(this.getTitle(content[0]));
-            note.setText(this.setContent(content));
+                if (projection.includes("title")) {
+                    note.setTitle(this.getTitle(content[0]));
+                }
+                if (projection.includes("text")) {
+                    note.setText(this.setContent(content));
+                }
+            }
 
-            if (fields.length > 6) {
+            if (fields.length > 6 && projection.includes("type")) {
                 String[] loincParts = fields[6].split("_");
 
                 if (loincParts.length == 2) {
@@ -88,6 +109,16 @@ public class NoteParser implements VistaParser<Composition> {
         return result;
     }
 
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return Math.max(RecordCounter.count(httpData.trim(), '~') - 1, 0);
+    }
+
     private Narrative setContent(String[] rawContent) {
         Narrative text = new Narrative();
         text.setStatus(Narrative.NarrativeStatus.GENERATED);
@@ -18,6 +18,7 @@ package com.healthconcourse.vista.fhir.api.parser;
 
 import com.healthconcourse.vista.fhir.api.HcConstants;
 import com.healthconcourse.vista.fhir.api.utils.InputValidator;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
 import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
@@ -34,6 +35,14 @@ public class ObservationParser {
     private static final Logger LOG = LoggerFactory.getLogger(ObservationParser.class);
     public List<Observation> parseVitalsList(String httpData) {
 
+        return parseVitalsList(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse vitals, building only the elements in the projection
+     */
+    public List<Observation> parseVitalsList(String httpData, Projection projection) {
+
         List<Observation> result = new ArrayList<>();
 
         if(StringUtils.isEmpty(httpData)) {
@@ -42,9 +51,6 @@ public class ObservationParser {
 
         String[] parts = httpData.split("\\^");
 
-        String snomedCode;
-        String rawData;
-
         if(parts.length > 1) {
             String icn = parts[0].trim();
 
@@ -52,30 +58,27 @@ public class ObservationParser {
 
                 String[] observationParts = parts[i].split("\\|");
 
-                snomedCode = observationParts[0];
-                rawData = observationParts[2];
-
-                CodeableConcept concept = ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, snomedCode, observationParts[1]);
-
                 Observation observation = new Observation();
                 observation.setId(observationParts[4].replaceAll("(\\r|\\n)", ""));
                 observation.setStatus(Observation.ObservationStatus.FINAL);
-                observation.setCode(concept);
 
-                Optional<Date> observationDate = InputValidator.parseAnyDate(observationParts[3]);
-                if(observationDate.isPresent()) {
-                    observation.setIssued(observationDate.get());
-                    DateTimeType effective = new DateTimeType(observationDate.get());
-                    observation.setEffective(effective);
+                if (projection.includes("code")) {
+                    observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, observationParts[0], observationParts[1]));
                 }
 
-                observation.setValue(new StringType(rawData));
+                setEffective(observation, observationParts[3], projection);
 
-                Reference patient = ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, icn, "", ResourceHelper.ReferenceType.Patient);
+                if (projection.includes("value")) {
+                    observation.setValue(new StringType(observationParts[2]));
+                }
 
-                observation.setSubject(patient);
+                if (projection.includes("subject")) {
+                    observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, icn, "", ResourceHelper.ReferenceType.Patient));
+                }
 
-                observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "vital-signs", "Vital Signs"));
+                if (projection.includes("category")) {
+                    observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "vital-signs", "Vital Signs"));
+                }
 
                 observation.setMeta(ResourceHelper.getVistaMeta());
 
@@ -91,6 +94,14 @@ public class ObservationParser {
 
     public List<Observation> parseLabsList(String httpData) {
 
+        return parseLabsList(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse labs, building only the elements in the projection
+     */
+    public List<Observation> parseLabsList(String httpData, Projection projection) {
+
         List<Observation> result = new ArrayList<>();
 
         String[] records = httpData.split("\\^");
@@ -100,7 +111,9 @@ public class ObservationParser {
         for(int i = 1; i < records.length; i++) {
             Observation observation = new Observation();
 
-            observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            if (projection.includes("subject")) {
+                observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            }
 
             String[] fields = records[i].split("\\|");
 
@@ -108,21 +121,21 @@ public class ObservationParser {
 
             observation.setId(id);
             observation.setStatus(Observation.ObservationStatus.FINAL);
-            Optional<Date> observationDate = InputValidator.parseAnyDate(fields[3]);
 
-            if(observationDate.isPresent()) {
-                observation.setIssued(observationDate.get());
-                DateTimeType effective = new DateTimeType(observationDate.get());
-                observation.setEffective(effective);
-            }
+            setEffective(observation, fields[3], projection);
 
-            observation.setValue(new StringType(fields[2]));
-
-            String[] codeParts = fields[1].split(":");
+            if (projection.includes("value")) {
+                observation.setValue(new StringType(fields[2]));
+            }
 
-            observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.LOINC, fields[0], codeParts[0]));
+            if (projection.includes("code")) {
+                String[] codeParts = fields[1].split(":");
+                observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.LOINC, fields[0], codeParts[0]));
+            }
 
-            observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "laboratory", "Laboratory"));
+            if (projection.includes("category")) {
+                observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "laboratory", "Laboratory"));
+            }
 
             observation.setMeta(ResourceHelper.getVistaMeta());
 
@@ -134,6 +147,14 @@ public class ObservationParser {
 
     public List<Observation> parseHealthFactorsList(String httpData) {
 
+        return parseHealthFactorsList(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse health factors, building only the elements in the projection
+     */
+    public List<Observation> parseHealthFactorsList(String httpData, Projection projection) {
+
         List<Observation> result = new ArrayList<>();
 
          String[] records = httpData.split("\\^");
@@ -144,7 +165,9 @@ public class ObservationParser {
         for(int i = 1; i < records.length; i++) {
             Observation observation = new Observation();
 
-            observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            if (projection.includes("subject")) {
+                observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            }
 
             String[] fields = records[i].split("\\|");
 
@@ -153,34 +176,43 @@ public class ObservationParser {
             String snomedDesc = fields[1];
             String id = fields[2];
             String severity = fields[3]; // interpretation? maybe Value
-            String provider = "";
-            if (fields.length > 4) {
-                provider = fields[4].replaceAll("(\\r|\\n)", ""); // performer (reference)
-            }
 
             // Id and required status
             observation.setId(id);
             observation.setStatus(Observation.ObservationStatus.FINAL);
 
             // snomed codes
-            observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, snomedCode, snomedDesc));
+            if (projection.includes("code")) {
+                observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, snomedCode, snomedDesc));
+            }
 
             // category
-            observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "social-history", "Social History"));
+            if (projection.includes("category")) {
+                observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "social-history", "Social History"));
+            }
 
             // severity
-            observation.setValue(new StringType(severity));
+            if (projection.includes("value")) {
+                observation.setValue(new StringType(severity));
+            }
 
             // provider
-            List<Reference> thePerformer = new ArrayList<>();
-            Reference ref = ResourceHelper.createReference(HcConstants.URN_VISTA_PROVIDER, provider, provider, ResourceHelper.ReferenceType.Practitioner);
-            thePerformer.add(ref);
+            if (projection.includes("performer")) {
+                String provider = "";
+                if (fields.length > 4) {
+                    provider = fields[4].replaceAll("(\\r|\\n)", ""); // performer (reference)
+                }
 
-            observation.setPerformer(thePerformer); //mec... TODO: look up provider? getProvider(provider));
+                List<Reference> thePerformer = new ArrayList<>();
+                Reference ref = ResourceHelper.createReference(HcConstants.URN_VISTA_PROVIDER, provider, provider, ResourceHelper.ReferenceType.Practitioner);
+                thePerformer.add(ref);
+
+                observation.setPerformer(thePerformer); //mec... TODO: look up provider? getProvider(provider));
+            }
 
             observation.setMeta(ResourceHelper.getVistaMeta());
 
-            if(fields.length > 5) {
+            if(fields.length > 5 && projection.includes("effective")) {
                 Optional<Date> effective = InputValidator.parseAnyDate(fields[5]);
                 if(effective.isPresent()) {
                     DateTimeType effectiveDate = new DateTimeType(effective.get());
@@ -194,6 +226,14 @@ public class ObservationParser {
     }
 
     public List<Observation> parseMentalHealthList(String httpData) {
+
+        return parseMentalHealthList(httpData, Projection.ALL);
+    }
+
+    /**
+     * Parse mental health surveys, building only the elements in the projection
+     */
+    public List<Observation> parseMentalHealthList(String httpData, Projection projection) {
         List<Observation> result = new ArrayList<>();
 
         String[] records = httpData.split("\\^");
@@ -203,52 +243,99 @@ public class ObservationParser {
         for(int i = 1; i < records.length; i++) {
             Observation observation = new Observation();
 
-            observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            if (projection.includes("subject")) {
+                observation.setSubject(ResourceHelper.createReference(HcConstants.URN_VISTA_ICN, patientId, "", ResourceHelper.ReferenceType.Patient));
+            }
 
             observation.setStatus(Observation.ObservationStatus.FINAL);
-            observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "survey", "Survey"));
+            if (projection.includes("category")) {
+                observation.setCategory(ResourceHelper.createSingleCodeableConceptAsList(HcConstants.OBSERVATION_CODING_SYSTEM, "survey", "Survey"));
+            }
 
             String[] fields = records[i].split("\\|");
 
             observation.setId(fields[9]);
-            // SNOMED code
-            observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, fields[0], fields[1]));
-            // LOINC code
-            observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.LOINC, fields[2], fields[3]));
-
-            Optional<Date> observationDate = InputValidator.parseAnyDate(fields[5]);
-            if (observationDate.isPresent()) {
-                observation.setIssued(observationDate.get());
-                DateTimeType effective = new DateTimeType(observationDate.get());
-                observation.setEffective(effective);
+            if (projection.includes("code")) {
+                // SNOMED code
+                observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, fields[0], fields[1]));
+                // LOINC code
+                observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.LOINC, fields[2], fields[3]));
             }
 
+            setEffective(observation, fields[5], projection);
+
             // provider and location
-            List<Reference> orderedBy = new ArrayList<>();
-            Reference ref = ResourceHelper.createReference(HcConstants.URN_VISTA_PROVIDER, fields[7], fields[7], ResourceHelper.ReferenceType.Practitioner);
-            orderedBy.add(ref);
-            if (!StringUtils.isEmpty(fields[6])) {
-                ref = ResourceHelper.createReference(HcConstants.URN_VISTA_LOCATION, fields[6], fields[6], ResourceHelper.ReferenceType.Location);
+            if (projection.includes("performer")) {
+                List<Reference> orderedBy = new ArrayList<>();
+                Reference ref = ResourceHelper.createReference(HcConstants.URN_VISTA_PROVIDER, fields[7], fields[7], ResourceHelper.ReferenceType.Practitioner);
                 orderedBy.add(ref);
+                if (!StringUtils.isEmpty(fields[6])) {
+                    ref = ResourceHelper.createReference(HcConstants.URN_VISTA_LOCATION, fields[6], fields[6], ResourceHelper.ReferenceType.Location);
+                    orderedBy.add(ref);
+                }
+                observation.setPerformer(orderedBy);
             }
-            observation.setPerformer(orderedBy);
 
             observation.setMeta(ResourceHelper.getVistaMeta());
 
-            String[] quantities = fields[8].split("~");
+            if (projection.includes("value")) {
+                String[] quantities = fields[8].split("~");
 
-            // TODO: Handle more than one quantities entry?? Still unclear - DLT
-            String[] observationParts = quantities[0].split(":");
+                // TODO: Handle more than one quantities entry?? Still unclear - DLT
+                String[] observationParts = quantities[0].split(":");
 
-            if(observationParts.length == 2) {
-                Quantity value = new Quantity();
-                value.setUnit(observationParts[0]);
-                value.setValue(Long.parseLong(observationParts[1]));
-                observation.setValue(value);
+                if(observationParts.length == 2) {
+                    Quantity value = new Quantity();
+                    value.setUnit(observationParts[0]);
+                    value.setValue(Long.parseLong(observationParts[1]));
+                    observation.setValue(value);
+                }
             }
             result.add(observation);
         }
         return result;
     }
 
+    /**
+     * The VistA date is both when the observation was made and when it was issued, it is
+     * only parsed when one of them is wanted
+     */
+    private static void setEffective(Observation observation, String rawDate, Projection projection) {
+
+        if (!projection.includes("effective") && !projection.includes("issued")) {
+            return;
+        }
+
+        Optional<Date> observationDate = InputValidator.parseAnyDate(rawDate);
+        if(observationDate.isPresent()) {
+            if (projection.includes("issued")) {
+                observation.setIssued(observationDate.get());
+            }
+            if (projection.includes("effective")) {
+                observation.setEffective(new DateTimeType(observationDate.get()));
+            }
+        }
+    }
+
+    /**
+     * @return how many observations parseVitalsList would give, without building them
+     */
+    public int countVitals(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        return countRecords(httpData);
+    }
+
+    /**
+     * @return how many observations parseLabsList, parseHealthFactorsList or
+     * parseMentalHealthList would give, without building them
+     */
+    public int countRecords(String httpData) {
+
+        return Math.max(RecordCounter.count(httpData, '^') - 1, 0);
+    }
+
 }
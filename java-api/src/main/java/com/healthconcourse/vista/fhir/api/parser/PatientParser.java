@@ -242,6 +242,24 @@ public class PatientParser  {
         return result;
     }
 
+    /**
+     * @return how many patients parseList would give, without building them
+     */
+    public int countList(String httpData) {
+
+        int result = 0;
+
+        if (!httpData.isEmpty()) {
+            for (String record : httpData.split("\\|")) {
+                if (!StringUtils.isEmpty(record) && RecordCounter.count(record.trim(), '^') >= 6) {
+                    result++;
+                }
+            }
+        }
+
+        return result;
+    }
+
     public List<Patient> parseListFromSinglePatient(String httpData) {
         List<Patient> result = new ArrayList<>();
         try {
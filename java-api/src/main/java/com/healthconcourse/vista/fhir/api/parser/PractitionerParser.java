@@ -54,4 +54,21 @@ public class PractitionerParser implements VistaParser<Practitioner> {
 
         return result;
     }
+
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData.trim();
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2 || RecordCounter.first(data, '^').equals("-1")) {
+            return 0;
+        }
+
+        return records - 1;
+    }
 }
@@ -81,4 +81,21 @@ public class ProcedureParser implements VistaParser<Procedure> {
 
         return result;
     }
+
+    @Override
+    public int count(String httpData) {
+
+        if (StringUtils.isEmpty(httpData)) {
+            return 0;
+        }
+
+        String data = httpData.trim();
+        int records = RecordCounter.count(data, '^');
+
+        if (records < 2) {
+            return 0;
+        }
+
+        return records - 1;
+    }
 }
@@ -0,0 +1,90 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.parser;
+
+/**
+ * Counts the records in a VistA payload without splitting it. The counts match what
+ * {@link String#split} on the same delimiter gives, including the dropping of trailing
+ * empty items, so a parser's count agrees with the size of the list it builds.
+ */
+final class RecordCounter {
+
+    private RecordCounter() {
+    }
+
+    /**
+     * @return how many items {@code data.split(delimiter)} would give
+     */
+    static int count(String data, char delimiter) {
+        return count(data, 0, data.length(), delimiter);
+    }
+
+    /**
+     * @return how many of the items of {@code data.split(recordDelimiter)}, after skipping
+     * the first {@code skip}, themselves split into at least {@code minFields} fields
+     */
+    static int countWithFields(String data, char recordDelimiter, int skip, char fieldDelimiter, int minFields) {
+
+        int records = count(data, recordDelimiter);
+        int result = 0;
+        int start = 0;
+
+        for (int i = 0; i < records; i++) {
+            int end = data.indexOf(recordDelimiter, start);
+            if (end < 0) {
+                end = data.length();
+            }
+            if (i >= skip && count(data, start, end, fieldDelimiter) >= minFields) {
+                result++;
+            }
+            start = end + 1;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the first item of {@code data.split(delimiter)}
+     */
+    static String first(String data, char delimiter) {
+        int end = data.indexOf(delimiter);
+        return end < 0 ? data : data.substring(0, end);
+    }
+
+    private static int count(String data, int from, int to, char delimiter) {
+
+        int items = 0;
+        int lastNonEmpty = 0;
+        int start = from;
+        boolean matched = false;
+
+        for (int i = from; i <= to; i++) {
+            if (i == to || data.charAt(i) == delimiter) {
+                items++;
+                if (i > start) {
+                    lastNonEmpty = items;
+                }
+                if (i < to) {
+                    matched = true;
+                }
+                start = i + 1;
+            }
+        }
+
+        // Without a delimiter split gives back the whole input, even when it is empty
+        return matched ? lastNonEmpty : 1;
+    }
+}
@@ -23,4 +23,12 @@ import java.util.List;
 public interface VistaParser<T extends Resource> {
 
     List<T> parseList(String httpData);
+
+    /**
+     * @return how many resources parseList would give, parsers which can count the
+     * records in the payload without building them override this
+     */
+    default int count(String httpData) {
+        return parseList(httpData).size();
+    }
 }
@@ -0,0 +1,287 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One entry of a batch Bundle, presented to the servlet as a request of its own. The
+ * connection details come from the batch request, the method, path, query, headers and
+ * body from the entry. Attributes are kept apart so entries can run at the same time.
+ * Every entry of a batch carries the same VistA data, which providers serve the entry from.
+ */
+class BatchEntryRequest extends HttpServletRequestWrapper {
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final String method;
+    private final String path;
+    private final String query;
+    private final byte[] body;
+    private final Map<String, String[]> parameters;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+    private final VistaData data;
+
+    /**
+     * @param batch Required. The request carrying the batch Bundle
+     * @param method Required. The entry's HTTP method
+     * @param url Required. The entry's URL relative to the server base, with any query
+     * @param body Optional. The encoded resource sent with the entry
+     * @param entryHeaders Required. Conditional headers for the entry, replacing the batch's own
+     * @param data Required. The VistA data shared by the entries of the batch
+     */
+    BatchEntryRequest(HttpServletRequest batch, String method, String url, byte[] body, Map<String, String> entryHeaders,
+                      VistaData data) {
+        super(batch);
+
+        int queryStart = url.indexOf('?');
+        this.method = method;
+        this.path = queryStart < 0 ? url : url.substring(0, queryStart);
+        this.query = queryStart < 0 ? null : url.substring(queryStart + 1);
+        this.body = body == null ? new byte[0] : body;
+        this.parameters = parseQuery(query);
+        this.data = data;
+
+        for (Enumeration<String> names = batch.getHeaderNames(); names != null && names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            headers.put(name, batch.getHeader(name));
+        }
+        // Entries are answered as JSON without compression so they can be read back into the batch response
+        headers.remove(Constants.HEADER_ACCEPT_ENCODING);
+        headers.remove(CONTENT_LENGTH);
+        headers.remove(Constants.HEADER_IF_MATCH);
+        headers.remove(Constants.HEADER_IF_NONE_MATCH);
+        headers.remove(Constants.HEADER_IF_MODIFIED_SINCE);
+        headers.remove(Constants.HEADER_IF_NONE_EXIST);
+        headers.put(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+        if (this.body.length > 0) {
+            headers.put(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+            headers.put(CONTENT_LENGTH, Integer.toString(this.body.length));
+        } else {
+            headers.remove(Constants.HEADER_CONTENT_TYPE);
+        }
+        headers.putAll(entryHeaders);
+    }
+
+    /**
+     * @return the VistA data of the batch a request is an entry of, or null when it is not a batch entry
+     */
+    static VistaData getVistaData(RequestDetails request) {
+        if (request instanceof ServletRequestDetails
+                && ((ServletRequestDetails) request).getServletRequest() instanceof BatchEntryRequest) {
+            return ((BatchEntryRequest) ((ServletRequestDetails) request).getServletRequest()).data;
+        }
+        return null;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return "/" + path;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return getContextPath() + getServletPath() + "/" + path;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        StringBuffer url = new StringBuffer();
+        url.append(getScheme()).append("://").append(getServerName()).append(':').append(getServerPort());
+        return url.append(getRequestURI());
+    }
+
+    @Override
+    public String getQueryString() {
+        return query;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        String value = headers.get(name);
+        return Collections.enumeration(value == null ? Collections.<String>emptyList() : Collections.singletonList(value));
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(new ArrayList<>(headers.keySet()));
+    }
+
+    @Override
+    public String getContentType() {
+        return headers.get(Constants.HEADER_CONTENT_TYPE);
+    }
+
+    @Override
+    public int getContentLength() {
+        return body.length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        return body.length;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        ByteArrayInputStream input = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return input.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read() {
+                return input.read();
+            }
+        };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        Object value = attributes.get(name);
+        return value != null ? value : super.getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        Set<String> names = new LinkedHashSet<>(attributes.keySet());
+        names.addAll(Collections.list(super.getAttributeNames()));
+        return Collections.enumeration(names);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    private static Map<String, String[]> parseQuery(String query) {
+
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int split = pair.indexOf('=');
+                String name = decode(split < 0 ? pair : pair.substring(0, split));
+                String value = split < 0 ? "" : decode(pair.substring(split + 1));
+                values.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+            }
+        }
+
+        Map<String, String[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> item : values.entrySet()) {
+            result.put(item.getKey(), item.getValue().toArray(new String[0]));
+        }
+        return result;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
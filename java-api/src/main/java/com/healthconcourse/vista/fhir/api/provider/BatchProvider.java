@@ -0,0 +1,232 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+import com.healthconcourse.vista.fhir.api.vista.MemoizingVistaData;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Batch Bundles posted to the server base. Each entry is run through the servlet as a
+ * request of its own, so it is served exactly as it would be on its own, and entries
+ * run at the same time since a batch has no dependencies between them. Each batch reads
+ * VistA through a MemoizingVistaData of its own, handed to the entries with their request,
+ * so a payload needed by several entries is fetched once.
+ *
+ * Transactions are refused: VistA cannot apply several changes all or nothing. Entries
+ * posting another batch are refused as well, since they would wait on the same threads
+ * as the batch holding them.
+ */
+public class BatchProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchProvider.class);
+
+    private final HttpServlet servlet;
+    private final VistaData data;
+    private final Executor executor;
+    private final int maxEntries;
+
+    /**
+     * @param servlet Required. The servlet the entries are dispatched to
+     * @param data Required. Calls VistA for the entries
+     * @param executor Required. Runs the entries, refusing them when it is full
+     * @param maxEntries Required. The most entries accepted in one batch
+     */
+    public BatchProvider(HttpServlet servlet, VistaData data, Executor executor, int maxEntries) {
+        this.servlet = servlet;
+        this.data = data;
+        this.executor = executor;
+        this.maxEntries = Math.max(maxEntries, 1);
+    }
+
+    @Transaction
+    public Bundle batch(@TransactionParam Bundle bundle, RequestDetails request) {
+
+        if (bundle.getType() != Bundle.BundleType.BATCH) {
+            throw new InvalidRequestException("Only batch Bundles are supported, VistA cannot apply a transaction as a whole");
+        }
+        if (bundle.getEntry().size() > maxEntries) {
+            throw new InvalidRequestException(String.format("A batch may hold at most %d entries", maxEntries));
+        }
+
+        ServletRequestDetails servletRequest = (ServletRequestDetails) request;
+        FhirContext context = request.getFhirContext();
+        MemoizingVistaData memo = new MemoizingVistaData(data);
+
+        List<CompletableFuture<Bundle.BundleEntryComponent>> calls = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            CompletableFuture<Bundle.BundleEntryComponent> call;
+            try {
+                call = CompletableFuture.supplyAsync(() -> run(entry, servletRequest, context, memo), executor);
+            } catch (RejectedExecutionException ex) {
+                call = CompletableFuture.completedFuture(failed(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        OperationOutcome.IssueType.TRANSIENT, "Too many batch entries are running, try again later"));
+            }
+            calls.add(call.exceptionally(ex -> {
+                LOG.error("Unable to run batch entry", ex);
+                return failed(Constants.STATUS_HTTP_500_INTERNAL_ERROR, OperationOutcome.IssueType.EXCEPTION, ex.getMessage());
+            }));
+        }
+
+        Bundle result = new Bundle();
+        result.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (CompletableFuture<Bundle.BundleEntryComponent> call : calls) {
+            result.addEntry(call.join());
+        }
+
+        return result;
+    }
+
+    private Bundle.BundleEntryComponent run(Bundle.BundleEntryComponent entry, ServletRequestDetails batch, FhirContext context,
+                                            VistaData memo) {
+
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        if (request.getMethod() == null || StringUtils.isEmpty(request.getUrl())) {
+            return failed(Constants.STATUS_HTTP_400_BAD_REQUEST, OperationOutcome.IssueType.INVALID, "Each entry needs request.method and request.url");
+        }
+
+        String url = relativeUrl(request.getUrl(), batch.getFhirServerBase());
+        if (StringUtils.substringBefore(url, "?").isEmpty()) {
+            return failed(Constants.STATUS_HTTP_400_BAD_REQUEST, OperationOutcome.IssueType.INVALID, "A batch entry cannot be another batch or transaction");
+        }
+
+        byte[] body = null;
+        if (entry.hasResource()) {
+            body = context.newJsonParser().encodeResourceToString(entry.getResource()).getBytes(StandardCharsets.UTF_8);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (request.hasIfMatch()) {
+            headers.put(Constants.HEADER_IF_MATCH, request.getIfMatch());
+        }
+        if (request.hasIfNoneMatch()) {
+            headers.put(Constants.HEADER_IF_NONE_MATCH, request.getIfNoneMatch());
+        }
+        if (request.hasIfNoneExist()) {
+            headers.put(Constants.HEADER_IF_NONE_EXIST, request.getIfNoneExist());
+        }
+        if (request.hasIfModifiedSince()) {
+            headers.put(Constants.HEADER_IF_MODIFIED_SINCE, DateUtils.formatDate(request.getIfModifiedSince()));
+        }
+
+        HttpServletRequest entryRequest = new BatchEntryRequest(batch.getServletRequest(), request.getMethod().toCode(),
+                url, body, headers, memo);
+        BatchEntryResponse entryResponse = new BatchEntryResponse(batch.getServletResponse());
+
+        try {
+            servlet.service(entryRequest, entryResponse);
+        } catch (Exception ex) {
+            LOG.error("Unable to run batch entry " + request.getUrl(), ex);
+            return failed(Constants.STATUS_HTTP_500_INTERNAL_ERROR, OperationOutcome.IssueType.EXCEPTION, ex.getMessage());
+        }
+
+        return toEntry(entryResponse, context, batch.getFhirServerBase());
+    }
+
+    private static Bundle.BundleEntryComponent toEntry(BatchEntryResponse response, FhirContext context, String serverBase) {
+
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        Bundle.BundleEntryResponseComponent outcome = entry.getResponse();
+        outcome.setStatus(statusLine(response.getStatus()));
+
+        String location = response.getHeader(Constants.HEADER_LOCATION);
+        if (location == null) {
+            location = response.getHeader(Constants.HEADER_CONTENT_LOCATION);
+        }
+        outcome.setLocation(location);
+        outcome.setEtag(response.getHeader(Constants.HEADER_ETAG));
+        String lastModified = response.getHeader(Constants.HEADER_LAST_MODIFIED);
+        if (lastModified != null) {
+            outcome.setLastModified(DateUtils.parseDate(lastModified));
+        }
+
+        String body = response.getBodyAsString();
+        EncodingEnum encoding = EncodingEnum.forContentType(response.getContentType());
+        if (StringUtils.isBlank(body) || encoding == null) {
+            return entry;
+        }
+
+        IBaseResource resource = encoding.newParser(context).parseResource(body);
+        if (response.getStatus() >= 400 && resource instanceof OperationOutcome) {
+            outcome.setOutcome((Resource) resource);
+        } else {
+            entry.setResource((Resource) resource);
+            if (resource.getIdElement().hasIdPart() && resource.getIdElement().hasResourceType()) {
+                entry.setFullUrl(resource.getIdElement().toUnqualifiedVersionless().withServerBase(serverBase, resource.getIdElement().getResourceType()).getValue());
+            }
+        }
+
+        return entry;
+    }
+
+    private static Bundle.BundleEntryComponent failed(int status, OperationOutcome.IssueType type, String message) {
+
+        OperationOutcome issue = new OperationOutcome();
+        issue.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(type)
+                .setDiagnostics(message);
+
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.getResponse().setStatus(statusLine(status)).setOutcome(issue);
+        return entry;
+    }
+
+    private static String statusLine(int status) {
+        String name = Constants.HTTP_STATUS_NAMES.get(status);
+        return name == null ? Integer.toString(status) : status + " " + name;
+    }
+
+    /**
+     * Entry URLs are usually relative to the server base, but may repeat it
+     */
+    private static String relativeUrl(String url, String serverBase) {
+        if (serverBase != null && url.startsWith(serverBase)) {
+            url = url.substring(serverBase.length());
+        }
+        while (url.startsWith("/")) {
+            url = url.substring(1);
+        }
+        return url;
+    }
+}
@@ -22,7 +22,9 @@ import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
 import com.healthconcourse.vista.fhir.api.service.CareTeamService;
 import com.healthconcourse.vista.fhir.api.service.VistaCareTeamService;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
@@ -43,13 +45,15 @@ public class CareTeamProvider extends AbstractJaxRsResourceProvider<CareTeam> {
 
     private static final Logger LOG = LoggerFactory.getLogger(CareTeamProvider.class);
     private final CareTeamService service;
+    private final ReferenceDataCache references;
 
     @Autowired
-    public CareTeamProvider(VistaData data) {
+    public CareTeamProvider(VistaData data, ReferenceDataCache references) {
 
         super(FhirContext.forR4(), ConditionProvider.class);
 
-        service = new VistaCareTeamService(data);
+        service = new VistaCareTeamService(data, references);
+        this.references = references;
     }
 
     @Override
@@ -57,9 +61,14 @@ public class CareTeamProvider extends AbstractJaxRsResourceProvider<CareTeam> {
         return CareTeam.class;
     }
 
+    private CareTeamService service(RequestDetails request) {
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? service : new VistaCareTeamService(batch, references);
+    }
+
     @Search
-    public List<CareTeam> search(@RequiredParam(name = "team") final StringParam name) {
-        List<CareTeam> results = service.getCareTeamByName(name.getValue());
+    public List<CareTeam> search(@RequiredParam(name = "team") final StringParam name, RequestDetails request) {
+        List<CareTeam> results = service(request).getCareTeamByName(name.getValue());
 
         if(results.isEmpty()) {
             String message = "No care teams found for " + name.getValue();
@@ -71,8 +80,8 @@ public class CareTeamProvider extends AbstractJaxRsResourceProvider<CareTeam> {
     }
 
     @Search
-    public List<CareTeam> getAllCareTeams() {
-        List<CareTeam> results = service.getAllCareTeams();
+    public List<CareTeam> getAllCareTeams(RequestDetails request) {
+        List<CareTeam> results = service(request).getAllCareTeams();
 
         if(results.isEmpty()) {
             String message = "No care teams found";
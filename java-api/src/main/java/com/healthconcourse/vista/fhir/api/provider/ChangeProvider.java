@@ -0,0 +1,120 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.ChangeLog;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.List;
+
+/**
+ * Incremental sync: what has changed since a sequence token
+ *
+ * Each change is listed as an informational OperationOutcome naming the patient and
+ * category, followed by the category's current resources, so that a category which is
+ * now empty is still reported. The next link carries the token to ask from next time.
+ * Without _since nothing is returned but the token of the latest change, which is where
+ * a consumer that has just done a full export starts from.
+ */
+public class ChangeProvider {
+
+    private final PatientService patients;
+    private final ChangeLog changes;
+
+    public ChangeProvider(PatientService patientService, ChangeLog changeLog) {
+        this.patients = patientService;
+        this.changes = changeLog;
+    }
+
+    @Operation(name = "$changes", idempotent = true)
+    public Bundle changes(@OperationParam(name = "_since") final StringType since,
+                          @OperationParam(name = "_count") final IntegerType count,
+                          RequestDetails request) {
+
+        if (!changes.isEnabled()) {
+            throw new NotImplementedOperationException("The change log is not enabled");
+        }
+
+        int max = count == null || count.getValue() == null ? HcConstants.DEFAULT_CHANGES_PAGE_SIZE : count.getValue();
+        if (max < 1 || max > HcConstants.MAX_CHANGES_PAGE_SIZE) {
+            throw new InvalidRequestException("_count must be between 1 and " + HcConstants.MAX_CHANGES_PAGE_SIZE);
+        }
+
+        Bundle result = ResourceHelper.createSearchBundle(request.getCompleteUrl());
+
+        if (since == null || since.getValue() == null) {
+            addNextLink(result, request, changes.getLastSequence());
+            result.setTotal(0);
+            return result;
+        }
+
+        long from;
+        try {
+            from = Long.parseLong(since.getValue());
+        } catch (NumberFormatException ex) {
+            throw new InvalidRequestException("_since must be a token from a previous $changes response");
+        }
+
+        if (changes.isTooOld(from)) {
+            throw new ResourceGoneException("Changes since " + from + " are no longer held, a full export is needed");
+        }
+
+        long next = from;
+        int total = 0;
+        for (ChangeLog.Change change : changes.getChanges(from, max)) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                    .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                    .setDiagnostics(String.format("%s changed for patient %s at %d", change.getCategory(), change.getIcn(), change.getSequence()));
+            result.addEntry().setResource(outcome).getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+
+            try {
+                for (DomainResource resource : patients.getResources(change.getIcn(), change.getCategory())) {
+                    result.addEntry().setResource(resource).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+                    total++;
+                }
+            } catch (ResourceNotFoundException ex) {
+                // The patient is gone, the outcome is all there is to report
+            }
+            next = change.getSequence();
+        }
+
+        addNextLink(result, request, next);
+        result.setTotal(total);
+        return result;
+    }
+
+    private static void addNextLink(Bundle bundle, RequestDetails request, long since) {
+        bundle.addLink()
+                .setRelation("next")
+                .setUrl(String.format("%s/$changes?_since=%d", request.getFhirServerBase(), since));
+    }
+}
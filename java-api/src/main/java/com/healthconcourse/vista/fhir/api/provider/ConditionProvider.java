@@ -26,10 +26,13 @@ import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.CohortIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
 import com.healthconcourse.vista.fhir.api.service.ConditionService;
+import com.healthconcourse.vista.fhir.api.service.PatientFetcher;
 import com.healthconcourse.vista.fhir.api.service.PatientService;
 import com.healthconcourse.vista.fhir.api.service.VistaConditionService;
-import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
@@ -48,11 +51,18 @@ public class ConditionProvider extends AbstractJaxRsResourceProvider<Condition>
     private static final Logger LOG = LoggerFactory.getLogger(ConditionProvider.class);
     private final ConditionService conditionService;
     private final PatientService patientService;
+    private final CohortIndex cohorts;
+    private final PatientSearchIndex patients;
+    private final PatientFetcher fetcher;
 
-    public ConditionProvider(VistaData data) {
+    public ConditionProvider(VistaData data, PatientService patientService, CohortIndex cohorts, PatientSearchIndex patients,
+                             PatientFetcher fetcher) {
         super(FhirContext.forR4(), ConditionProvider.class);
-        patientService   = new VistaPatientService(data);
-        conditionService = new VistaConditionService(data);
+        this.patientService = patientService;
+        this.cohorts = cohorts;
+        this.patients = patients;
+        this.fetcher = fetcher;
+        conditionService = new VistaConditionService(data, cohorts, patients, fetcher);
     }
 
     @Override
@@ -60,11 +70,21 @@ public class ConditionProvider extends AbstractJaxRsResourceProvider<Condition>
         return Condition.class;
     }
 
+    private ConditionService conditionService(RequestDetails request) {
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? conditionService : new VistaConditionService(batch, cohorts, patients, fetcher);
+    }
+
+    private PatientService patientService(RequestDetails request) {
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? patientService : patientService.withData(batch);
+    }
+
 
     @Search(compartmentName = "Patient")
-    public List<Patient> search(@IdParam IdType theIdn) {
+    public List<Patient> search(@IdParam IdType theIdn, RequestDetails request) {
 
-        List<Patient> results = conditionService.getPatientsByCode(theIdn.getIdPart());
+        List<Patient> results = conditionService(request).getPatientsByCode(theIdn.getIdPart());
 
         if (results.isEmpty()) {
             String message = "No patients found for code: " + theIdn.getIdPart();
@@ -75,11 +95,35 @@ public class ConditionProvider extends AbstractJaxRsResourceProvider<Condition>
         return results;
     }
 
+    /**
+     * Patients with every SNOMED code in all, at least one in any and none of those in
+     * none, each a comma separated list. With materialize the full demographics of every
+     * patient are returned, read from VistA in parallel where they are not already held.
+     */
+    @Operation(name = "$cohort", idempotent = true)
+    public Bundle cohort(@OperationParam(name = "all")         final StringType all,
+                         @OperationParam(name = "any")         final StringType any,
+                         @OperationParam(name = "none")        final StringType none,
+                         @OperationParam(name = "materialize") final BooleanType materialize,
+                         RequestDetails request) {
+
+        List<Patient> results = conditionService(request).getPatientsByCodes(getValue(all), getValue(any), getValue(none),
+                materialize != null && materialize.booleanValue());
+
+        Bundle bundle = ResourceHelper.createSearchBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
+        for (Patient patient : results) {
+            bundle.addEntry().setResource(patient);
+        }
+        bundle.setTotal(results.size());
+
+        return bundle;
+    }
+
     @Read
-    public List<Condition> conditionById(@IdParam IdType theIdn) {
+    public List<Condition> conditionById(@IdParam IdType theIdn, RequestDetails request) {
         HashMap<String, String> options = new HashMap<String, String>();
         options.put("_id", theIdn.getIdPart());
-        return patientService.getConditionsForPatient(options);
+        return patientService(request).getConditionsForPatient(options);
     }
 
     @Search
@@ -96,15 +140,19 @@ public class ConditionProvider extends AbstractJaxRsResourceProvider<Condition>
          for (Map.Entry<String, String[]> entry: request.getParameters().entrySet()) {
              options.put(entry.getKey(), entry.getValue()[0]);
          }
-        return patientService.getConditionsForPatient(options);
+        return patientService(request).getConditionsForPatient(options);
     }
 
     @Create()
     public MethodOutcome createCondition(
-            @ResourceParam Condition theCondition
+            @ResourceParam Condition theCondition,
+            RequestDetails request
     ) {
-        MethodOutcome methodOutcome = conditionService.putCondition(theCondition);
+        MethodOutcome methodOutcome = conditionService(request).putCondition(theCondition);
         return methodOutcome;
     }
 
+    private static String getValue(StringType value) {
+        return value == null || value.isEmpty() ? null : value.getValue();
+    }
 }
@@ -0,0 +1,78 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.service.ConditionWrite;
+import com.healthconcourse.vista.fhir.api.service.ConditionWriteQueue;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Status of the Condition creates queued by the
+ * {@link com.healthconcourse.vista.fhir.api.interceptor.AsyncWriteInterceptor}
+ *
+ * Answers 202 while the write waits for VistA, and once written the OperationOutcome
+ * the create would have returned.
+ */
+public class ConditionWriteProvider {
+
+    private final ConditionWriteQueue writes;
+
+    public ConditionWriteProvider(ConditionWriteQueue writeQueue) {
+        this.writes = writeQueue;
+    }
+
+    @Operation(name = "$write-status", idempotent = true, manualResponse = true)
+    public void status(@OperationParam(name = "_jobId") final StringType jobId,
+                       RequestDetails request, HttpServletResponse response) throws IOException {
+
+        if (jobId == null || jobId.getValue() == null) {
+            throw new InvalidRequestException("_jobId is required");
+        }
+        ConditionWrite write = writes.get(jobId.getValue()).orElseThrow(() -> new ResourceNotFoundException("Write Not Found"));
+
+        switch (write.getStatus()) {
+            case COMPLETE:
+                OperationOutcome outcome = new OperationOutcome();
+                CodeableConcept details = new CodeableConcept();
+                details.setText(write.getMessage());
+                outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                        .setCode(OperationOutcome.IssueType.INFORMATIONAL).setDetails(details).setId(write.getCode());
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(Constants.CT_FHIR_JSON_NEW);
+                response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+                request.getServer().getFhirContext().newJsonParser().encodeResourceToWriter(outcome, response.getWriter());
+                break;
+            case FAILED:
+                throw new InternalErrorException("Write failed: " + write.getMessage());
+            default:
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", String.format("%d writes queued", writes.getQueued()));
+                response.setHeader("Retry-After", "1");
+        }
+    }
+}
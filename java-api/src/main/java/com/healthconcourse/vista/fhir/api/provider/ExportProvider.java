@@ -0,0 +1,182 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.service.ExportJob;
+import com.healthconcourse.vista.fhir.api.service.ExportService;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * FHIR bulk data export: kick-off, status and download
+ *
+ * Exports run in the background, the kick-off returns the status URL to poll in its
+ * Content-Location header and the completed status lists the files to download.
+ */
+public class ExportProvider {
+
+    private static final String RESPOND_ASYNC = "respond-async";
+    private static final int BUFFER_SIZE = 8192;
+    private static final Set<String> OUTPUT_FORMATS = new LinkedHashSet<>(Arrays.asList(
+            HcConstants.CT_FHIR_NDJSON, "application/ndjson", "ndjson"));
+
+    private final ExportService exports;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public ExportProvider(ExportService exportService) {
+        this.exports = exportService;
+    }
+
+    @Operation(name = "$export", type = Patient.class, idempotent = true, manualResponse = true)
+    public void export(@OperationParam(name = "_type") final StringType types,
+                       @OperationParam(name = "_outputFormat") final StringType outputFormat,
+                       @OperationParam(name = "_since") final InstantType since,
+                       RequestDetails request, HttpServletRequest servletRequest, HttpServletResponse response) {
+
+        String prefer = servletRequest.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(RESPOND_ASYNC)) {
+            throw new InvalidRequestException("Prefer: respond-async is required");
+        }
+        if (outputFormat != null && !OUTPUT_FORMATS.contains(outputFormat.getValue())) {
+            throw new InvalidRequestException("_outputFormat must be " + HcConstants.CT_FHIR_NDJSON);
+        }
+        if (since != null) {
+            throw new InvalidRequestException("_since is not supported, VistA does not record when data changed");
+        }
+
+        Set<String> typeFilter = new LinkedHashSet<>();
+        if (types != null && types.getValue() != null) {
+            for (String type : types.getValue().split(",")) {
+                if (!type.trim().isEmpty()) {
+                    typeFilter.add(type.trim());
+                }
+            }
+        }
+
+        ExportJob job = exports.start(request.getCompleteUrl(), typeFilter);
+
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                String.format("%s/$export-poll-status?_jobId=%s", request.getFhirServerBase(), job.getId()));
+    }
+
+    @Operation(name = "$export-poll-status", idempotent = true, manualResponse = true)
+    public void status(@OperationParam(name = "_jobId") final StringType jobId,
+                       RequestDetails request, HttpServletResponse response) throws IOException {
+
+        ExportJob job = getJob(jobId);
+
+        switch (job.getStatus()) {
+            case COMPLETE:
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(Constants.CT_JSON);
+                response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+                mapper.writeValue(response.getWriter(), createManifest(job, request.getFhirServerBase()));
+                break;
+            case FAILED:
+                throw new InternalErrorException("Export failed: " + job.getMessage());
+            default:
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", String.format("%d of %d patients", job.getPatientsDone(), job.getPatientCount()));
+                response.setHeader("Retry-After", "10");
+        }
+    }
+
+    /**
+     * Files are kept as a gzip member per checkpoint, which not every HTTP client can
+     * decompress, so they are sent as one gzip stream, or plain when gzip is not accepted
+     */
+    @Operation(name = "$export-download", idempotent = true, manualResponse = true)
+    public void download(@OperationParam(name = "_jobId") final StringType jobId,
+                         @OperationParam(name = "_type") final StringType type,
+                         HttpServletRequest servletRequest, HttpServletResponse response) throws IOException {
+
+        ExportJob job = getJob(jobId);
+        Path file = exports.getFile(job.getId(), type == null ? "" : type.getValue())
+                .orElseThrow(() -> new ResourceNotFoundException("No file for that type"));
+
+        String acceptEncoding = servletRequest.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains(Constants.ENCODING_GZIP);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(HcConstants.CT_FHIR_NDJSON);
+        if (gzip) {
+            response.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+        }
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            OutputStream out = gzip ? new GZIPOutputStream(response.getOutputStream()) : response.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+        }
+    }
+
+    private ExportJob getJob(StringType jobId) {
+        if (jobId == null || jobId.getValue() == null) {
+            throw new InvalidRequestException("_jobId is required");
+        }
+        return exports.get(jobId.getValue()).orElseThrow(() -> new ResourceNotFoundException("Export Not Found"));
+    }
+
+    private ObjectNode createManifest(ExportJob job, String serverBase) {
+        ObjectNode manifest = mapper.createObjectNode();
+        manifest.put("transactionTime", new InstantType(job.getTransactionTime()).getValueAsString());
+        manifest.put("request", job.getRequest());
+        manifest.put("requiresAccessToken", false);
+        addFiles(manifest.putArray("output"), job, job.getOutputs(), serverBase);
+        addFiles(manifest.putArray("error"), job, job.getErrors(), serverBase);
+        return manifest;
+    }
+
+    private static void addFiles(ArrayNode files, ExportJob job, Map<String, Integer> counts, String serverBase) {
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            ObjectNode file = files.addObject();
+            file.put("type", count.getKey());
+            file.put("url", String.format("%s/$export-download?_jobId=%s&_type=%s", serverBase, job.getId(), count.getKey()));
+            file.put("count", count.getValue());
+        }
+    }
+}
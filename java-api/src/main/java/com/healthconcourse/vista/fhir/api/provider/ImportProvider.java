@@ -0,0 +1,85 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.service.BulkImport;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk import of vital sign and laboratory Observations and Immunizations into VistA
+ *
+ * The request body is NDJSON, one resource per line, and is read as it arrives. The
+ * response lists each record which could not be saved by its line number, along with
+ * how many records were saved and how quickly.
+ */
+public class ImportProvider {
+
+    private static final Set<String> INPUT_FORMATS = new LinkedHashSet<>(Arrays.asList(
+            HcConstants.CT_FHIR_NDJSON, "application/ndjson", "application/x-ndjson"));
+
+    private final BulkImport imports;
+
+    public ImportProvider(BulkImport bulkImport) {
+        this.imports = bulkImport;
+    }
+
+    @Operation(name = "$import", manualRequest = true)
+    public OperationOutcome importResources(HttpServletRequest request) throws IOException {
+
+        String contentType = request.getContentType();
+        if (contentType != null && !INPUT_FORMATS.contains(contentType.split(";")[0].trim())) {
+            throw new InvalidRequestException("The body must be " + HcConstants.CT_FHIR_NDJSON);
+        }
+
+        BulkImport.Result result;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
+            result = imports.run(reader);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Import interrupted");
+        }
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION).setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics(String.format("Imported %d of %d records in %d ms (%.1f records/sec)",
+                        result.getImported(), result.getRecords(), result.getElapsedMillis(), result.getRecordsPerSecond()));
+
+        Map<Integer, String> failures = result.getFailures();
+        for (Map.Entry<Integer, String> failure : failures.entrySet()) {
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setCode(OperationOutcome.IssueType.PROCESSING)
+                    .setDiagnostics(String.format("Line %d: %s", failure.getKey(), failure.getValue()));
+        }
+        if (result.getFailed() > failures.size()) {
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING).setCode(OperationOutcome.IssueType.TOOCOSTLY)
+                    .setDiagnostics(String.format("%d more records failed", result.getFailed() - failures.size()));
+        }
+        return outcome;
+    }
+}
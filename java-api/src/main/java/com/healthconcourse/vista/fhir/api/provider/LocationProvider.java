@@ -18,32 +18,49 @@ package com.healthconcourse.vista.fhir.api.provider;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jaxrs.server.AbstractJaxRsResourceProvider;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.LocationDirectory;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
 import com.healthconcourse.vista.fhir.api.service.LocationService;
 import com.healthconcourse.vista.fhir.api.service.VistaLocationService;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Location;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 
 @Path("Location")
 @Produces({ MediaType.APPLICATION_JSON, Constants.CT_FHIR_JSON, Constants.CT_FHIR_XML })
 public class LocationProvider extends AbstractJaxRsResourceProvider<Location> {
 
     private final LocationService service;
+    private final ReferenceDataCache references;
+    private final LocationDirectory directory;
 
     @Autowired
-    public LocationProvider(VistaData data) {
+    public LocationProvider(VistaData data, ReferenceDataCache references, LocationDirectory directory) {
 
         super(FhirContext.forR4(), LocationProvider.class);
 
-        service = new VistaLocationService(data);
+        this.service = new VistaLocationService(data, references, directory);
+        this.references = references;
+        this.directory = directory;
     }
 
 
@@ -52,10 +69,44 @@ public class LocationProvider extends AbstractJaxRsResourceProvider<Location> {
         return Location.class;
     }
 
+    private LocationService service(RequestDetails request) {
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? service : new VistaLocationService(batch, references, directory);
+    }
+
+    /**
+     * Locations are referenced by their VistA ID or, from encounters and observations, by name
+     */
+    @Read
+    public Location getLocationById(@IdParam final IdType theId, RequestDetails request) {
+
+        Optional<Location> location = directory.getById(theId.getIdPart());
+        if (location.isPresent()) {
+            return location.get();
+        }
+
+        try {
+            return service(request).findLocationByName(URLDecoder.decode(theId.getIdPart(), StandardCharsets.UTF_8.name()));
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            throw new ResourceNotFoundException(theId);
+        }
+    }
+
+    /**
+     * Names match the start of the location name, or anywhere in it with :contains, from the
+     * directory. A name the directory has no match for is looked up in VistA.
+     */
     @Search
-    public Location getLocationByName(@RequiredParam(name = Location.SP_NAME) final StringParam name) {
+    public List<Location> getLocationByName(@RequiredParam(name = Location.SP_NAME) final StringParam name,
+                                            RequestDetails request) {
 
-        return service.findLocationByName(name.getValue());
+        if (!name.isExact()) {
+            List<Location> found = directory.search(name.getValue(), name.isContains());
+            if (!found.isEmpty() || name.isContains()) {
+                return found;
+            }
+        }
 
+        return Collections.singletonList(service(request).findLocationByName(name.getValue()));
     }
 }
@@ -49,11 +49,16 @@ public class MedicationProvider extends AbstractJaxRsResourceProvider<Medication
         return MedicationStatement.class;
     }
 
+    private PatientService patientService(RequestDetails request) {
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? patientService : patientService.withData(batch);
+    }
+
     @Read
-    public List<MedicationStatement> medicationStatementById(@IdParam IdType theIdn) {
+    public List<MedicationStatement> medicationStatementById(@IdParam IdType theIdn, RequestDetails request) {
         HashMap<String, String> options = new HashMap<String, String>();
         options.put("_id", theIdn.getIdPart());
-        return patientService.getMedicationStatement(options);
+        return patientService(request).getMedicationStatement(options);
     }
 
     @Search
@@ -69,7 +74,7 @@ public class MedicationProvider extends AbstractJaxRsResourceProvider<Medication
         for (Map.Entry<String, String[]> entry: request.getParameters().entrySet()) {
              options.put(entry.getKey(), entry.getValue()[0]);
         }
-        return patientService.getMedicationStatement(options);
+        return patientService(request).getMedicationStatement(options);
     }
 
 }
\ No newline at end of file
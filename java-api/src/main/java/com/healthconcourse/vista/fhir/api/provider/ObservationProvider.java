@@ -22,15 +22,30 @@ import ca.uhn.fhir.rest.annotation.*;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeries;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeriesIndex;
 import com.healthconcourse.vista.fhir.api.service.ObservationService;
 
+import com.healthconcourse.vista.fhir.api.service.PatientService;
 import com.healthconcourse.vista.fhir.api.service.VistaObservationService;
 import com.healthconcourse.vista.fhir.api.utils.InputValidator;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DecimalType;
 import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -38,7 +53,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -51,14 +68,20 @@ import java.util.List;
 public class ObservationProvider extends AbstractJaxRsResourceProvider<Observation> {
 
     private static final Logger LOG = LoggerFactory.getLogger(ObservationProvider.class);
+    private static final String PATIENT_PREFIX = "Patient/";
+    private static final String DOWNSAMPLE_BUCKET = "bucket";
+    private static final String DOWNSAMPLE_LTTB = "lttb";
+
     private ObservationService service;
+    private PatientService patientService;
 
     @Autowired
-    public ObservationProvider(VistaData data){
+    public ObservationProvider(VistaData data, PatientService patients){
 
         super(FhirContext.forR4(), ObservationProvider.class);
 
         service = new VistaObservationService(data);
+        patientService = patients;
     }
 
     @Override
@@ -67,15 +90,28 @@ public class ObservationProvider extends AbstractJaxRsResourceProvider<Observati
         return Observation.class;
     }
 
+    private ObservationService service(RequestDetails request) {
+
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? service : new VistaObservationService(batch);
+    }
+
+    private PatientService patientService(RequestDetails request) {
+
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? patientService : patientService.withData(batch);
+    }
+
     @Search
     public List<Observation> search(@RequiredParam(name = Patient.SP_NAME) final StringParam name,
                                 @RequiredParam(name = Patient.SP_BIRTHDATE) final DateParam dob,
                                 @RequiredParam(name = Patient.SP_GENDER) final StringParam gender,
-                                @RequiredParam(name = Patient.SP_IDENTIFIER) final StringParam ssn) {
+                                @RequiredParam(name = Patient.SP_IDENTIFIER) final StringParam ssn,
+                                RequestDetails request) {
 
         Enumerations.AdministrativeGender administrativeGender = InputValidator.parseGender(gender);
 
-        List<Observation> results = service.getObservationsByCriteria(name.getValue(), dob.getValue(), administrativeGender, ssn.getValue());
+        List<Observation> results = service(request).getObservationsByCriteria(name.getValue(), dob.getValue(), administrativeGender, ssn.getValue());
 
         if(results.isEmpty()) {
             String message = "No observations found search criteria";
@@ -85,4 +121,180 @@ public class ObservationProvider extends AbstractJaxRsResourceProvider<Observati
 
         return results;
     }
+
+    /**
+     * The most recent observations for each code a patient has, newest first
+     */
+    @Operation(name = "$lastn", idempotent = true)
+    public Bundle lastN(@OperationParam(name = "patient", min = 1) final StringType patient,
+                        @OperationParam(name = "category")         final StringType category,
+                        @OperationParam(name = "code")             final StringType code,
+                        @OperationParam(name = "max")              final IntegerType max,
+                        RequestDetails request) {
+
+        String icn = getPatientIcn(patient);
+
+        int count = max == null || max.isEmpty() ? 1 : max.getValue();
+        if(count < 1) {
+            throw new InvalidRequestException("max must be at least 1");
+        }
+
+        List<Observation> results = patientService(request).getLastObservations(icn,
+                category == null || category.isEmpty() ? null : category.getValue(),
+                code == null || code.isEmpty() ? null : code.getValue(),
+                count);
+
+        Bundle bundle = ResourceHelper.createSearchBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
+
+        for(Observation item : results) {
+            bundle.addEntry().setResource(item);
+        }
+
+        bundle.setTotal(results.size());
+
+        return bundle;
+    }
+
+    /**
+     * Count, minimum, maximum and average of a patient's numeric vitals and labs per
+     * code, optionally limited to a period or to the last duration hours
+     */
+    @Operation(name = "$stats", idempotent = true)
+    public Parameters stats(@OperationParam(name = "subject", min = 1) final StringType subject,
+                            @OperationParam(name = "code", min = 1)    final StringType code,
+                            @OperationParam(name = "duration")         final DecimalType duration,
+                            @OperationParam(name = "period")           final Period period,
+                            RequestDetails request) {
+
+        String icn = getPatientIcn(subject);
+
+        if(code == null || code.isEmpty()) {
+            throw new InvalidRequestException("code is required");
+        }
+
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        if(duration != null && !duration.isEmpty()) {
+            double hours = duration.getValue().doubleValue();
+            if(!Double.isFinite(hours) || hours <= 0) {
+                throw new InvalidRequestException("duration must be a positive number of hours");
+            }
+            to = System.currentTimeMillis();
+            from = to - (long) (hours * TimeUnit.HOURS.toMillis(1));
+        } else if(period != null) {
+            from = period.hasStart() ? period.getStart().getTime() : from;
+            to = period.hasEnd() ? period.getEnd().getTime() : to;
+        }
+
+        ObservationSeriesIndex index = patientService(request).getObservationSeries(icn);
+        Parameters result = new Parameters();
+
+        for(String value : code.getValue().split(",")) {
+            for(ObservationSeries series : index.find(value.trim())) {
+                ObservationSeries.Summary summary = series.summarize(from, to);
+
+                Parameters.ParametersParameterComponent statistic = result.addParameter().setName("statistic");
+                statistic.addPart().setName("code").setValue(new CodeType(series.getCode()));
+                if(series.getDisplay() != null) {
+                    statistic.addPart().setName("display").setValue(new StringType(series.getDisplay()));
+                }
+                if(series.getComponent() != null) {
+                    statistic.addPart().setName("component").setValue(new StringType(series.getComponent()));
+                }
+                statistic.addPart().setName("count").setValue(new IntegerType(summary.getCount()));
+                if(summary.getCount() > 0) {
+                    statistic.addPart().setName("minimum").setValue(new DecimalType(summary.getMinimum()));
+                    statistic.addPart().setName("maximum").setValue(new DecimalType(summary.getMaximum()));
+                    statistic.addPart().setName("average").setValue(new DecimalType(summary.getAverage()));
+                    statistic.addPart().setName("first").setValue(new DateTimeType(new Date(summary.getFirst())));
+                    statistic.addPart().setName("last").setValue(new DateTimeType(new Date(summary.getLast())));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * A patient's numeric vitals and labs per code reduced to a chartable number of
+     * points, either as time buckets (min, max, average and last per bucket) or as a
+     * Largest-Triangle-Three-Buckets sample of the original points
+     */
+    @Operation(name = "$downsample", idempotent = true)
+    public Parameters downsample(@OperationParam(name = "patient", min = 1) final StringType patient,
+                                 @OperationParam(name = "code", min = 1)    final StringType code,
+                                 @OperationParam(name = "buckets")          final IntegerType buckets,
+                                 @OperationParam(name = "method")           final StringType method,
+                                 @OperationParam(name = "start")            final DateTimeType start,
+                                 @OperationParam(name = "end")              final DateTimeType end,
+                                 RequestDetails request) {
+
+        String icn = getPatientIcn(patient);
+
+        if(code == null || code.isEmpty()) {
+            throw new InvalidRequestException("code is required");
+        }
+
+        int count = buckets == null || buckets.isEmpty() ? HcConstants.DEFAULT_DOWNSAMPLE_BUCKETS : buckets.getValue();
+        if(count < 1 || count > HcConstants.MAX_DOWNSAMPLE_BUCKETS) {
+            throw new InvalidRequestException("buckets must be between 1 and " + HcConstants.MAX_DOWNSAMPLE_BUCKETS);
+        }
+
+        String reduction = method == null || method.isEmpty() ? DOWNSAMPLE_BUCKET : method.getValue();
+        if(!DOWNSAMPLE_BUCKET.equals(reduction) && !DOWNSAMPLE_LTTB.equals(reduction)) {
+            throw new InvalidRequestException("method must be bucket or lttb");
+        }
+
+        Date from = start == null || start.isEmpty() ? null : start.getValue();
+        Date to = end == null || end.isEmpty() ? null : end.getValue();
+
+        ObservationSeriesIndex index = patientService(request).getObservationSeries(icn, from, to);
+        Parameters result = new Parameters();
+
+        for(String value : code.getValue().split(",")) {
+            for(ObservationSeries series : index.find(value.trim())) {
+
+                Parameters.ParametersParameterComponent item = result.addParameter().setName("series");
+                item.addPart().setName("code").setValue(new CodeType(series.getCode()));
+                if(series.getComponent() != null) {
+                    item.addPart().setName("component").setValue(new StringType(series.getComponent()));
+                }
+                item.addPart().setName("method").setValue(new CodeType(reduction));
+
+                long rangeStart = from == null ? Long.MIN_VALUE : from.getTime();
+                long rangeEnd = to == null ? Long.MAX_VALUE : to.getTime();
+
+                if(DOWNSAMPLE_LTTB.equals(reduction)) {
+                    ObservationSeries sample = series.largestTriangleThreeBuckets(rangeStart, rangeEnd, count);
+                    for(int i = 0; i < sample.size(); i++) {
+                        Parameters.ParametersParameterComponent point = item.addPart().setName("point");
+                        point.addPart().setName("time").setValue(new DateTimeType(new Date(sample.getTime(i))));
+                        point.addPart().setName("value").setValue(new DecimalType(sample.getValue(i)));
+                    }
+                } else {
+                    for(ObservationSeries.Bucket bucket : series.bucketize(rangeStart, rangeEnd, count)) {
+                        Parameters.ParametersParameterComponent part = item.addPart().setName("bucket");
+                        part.addPart().setName("start").setValue(new DateTimeType(new Date(bucket.getStart())));
+                        part.addPart().setName("end").setValue(new DateTimeType(new Date(bucket.getEnd())));
+                        part.addPart().setName("count").setValue(new IntegerType(bucket.getSummary().getCount()));
+                        part.addPart().setName("minimum").setValue(new DecimalType(bucket.getSummary().getMinimum()));
+                        part.addPart().setName("maximum").setValue(new DecimalType(bucket.getSummary().getMaximum()));
+                        part.addPart().setName("average").setValue(new DecimalType(bucket.getSummary().getAverage()));
+                        part.addPart().setName("last").setValue(new DecimalType(bucket.getLastValue()));
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static String getPatientIcn(StringType patient) {
+
+        if(patient == null || patient.isEmpty()) {
+            throw new InvalidRequestException("patient is required");
+        }
+
+        return patient.getValue().startsWith(PATIENT_PREFIX) ? patient.getValue().substring(PATIENT_PREFIX.length()) : patient.getValue();
+    }
 }
@@ -17,39 +17,68 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api.provider;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServletResponse;
 
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.service.BulkEverything;
+import com.healthconcourse.vista.fhir.api.service.IncludeResolver;
 import com.healthconcourse.vista.fhir.api.service.PatientService;
-import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.jaxrs.server.AbstractJaxRsResourceProvider;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
 import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.NumberParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 
@@ -64,15 +93,25 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
 
     private static final Logger LOG = LoggerFactory.getLogger(PatientProvider.class);
     private static final Integer DEFAULT_MONTHS = 6;
+    private static final RateLimiter UNLIMITED = new RateLimiter(0);
 
-    private final PatientService service;
+    private final PatientService sharedService;
+    private final VistaCallScheduler scheduler;
+    private final int patientsInFlight;
+    private final IncludeResolver includes;
+    private final int maxRevIncludePatients;
 
     @Autowired
-    public PatientProvider(VistaData data) {
+    public PatientProvider(PatientService service, VistaCallScheduler scheduler, int patientsInFlight, long maxPractitioners,
+                           int maxRevIncludePatients) {
 
         super(FhirContext.forR4(), PatientProvider.class);
 
-        service = new VistaPatientService(data);
+        sharedService = service;
+        includes = new IncludeResolver(service, maxPractitioners);
+        this.scheduler = scheduler;
+        this.patientsInFlight = Math.max(patientsInFlight, 1);
+        this.maxRevIncludePatients = Math.max(maxRevIncludePatients, 1);
     }
 
 
@@ -82,238 +121,200 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
         return Patient.class;
     }
 
-    @Read
-    public Patient find(@IdParam final IdType theId) {
+    /**
+     * Entries of a batch read through the VistA data of their batch, so reads are shared between them
+     */
+    private PatientService service(RequestDetails request) {
 
-        return service.getPatientById(theId.getIdPart());
+        VistaData batch = BatchEntryRequest.getVistaData(request);
+        return batch == null ? sharedService : sharedService.withData(batch);
     }
 
-    @Search(compartmentName = "Encounter")
-    public List<Encounter> findEncounters(@IdParam IdType theId) {
-
-        List<Encounter> results = service.getEncountersForPatient(theId.getIdPart());
+    @Read
+    public Patient find(@IdParam final IdType theId, RequestDetails request) {
 
-        if(results.isEmpty()) {
-            String message = "No encounters found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+        return service(request).getPatientById(theId.getIdPart());
+    }
 
-        return results;
+    @Search(compartmentName = "Encounter")
+    public IBundleProvider findEncounters(@IdParam IdType theId, SummaryEnum summary,
+                                          @IncludeParam(allow = {IncludeResolver.ENCOUNTER_PARTICIPANT}) Set<Include> include,
+                                          RequestDetails request) {
+
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
+
+        // Participants are resolved here, HAPI adds them to the page of encounters they are referenced from
+        return search(summary, () -> service.countResources(icn, DataCategory.ENCOUNTER), () -> include == null || include.isEmpty()
+                        ? service.getEncountersForPatient(icn)
+                        : includes.withService(service).includeParticipants(icn, service.getEncountersForPatient(icn)),
+                "No encounters found for patient: " + icn);
     }
 
     @Search(compartmentName = "MedicationDispense")
-    public List<MedicationDispense> findMedicationDispenses(@IdParam IdType theId) {
-
-        List<MedicationDispense> results;
+    public IBundleProvider findMedicationDispenses(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getMedicationDispense(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
+        Projection projection = Projection.forRequest(request, MedicationDispense.class);
 
-        if(results.isEmpty()) {
-            String message = "No medication dispense found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.MEDICATION_DISPENSE), () -> service.getMedicationDispense(icn, projection),
+                "No medication dispense found for ICN: " + icn);
     }
 
     @Search(compartmentName = "MedicationAdministration")
-    public List<MedicationAdministration> findMedicationAdmin(@IdParam IdType theId) {
-
-        List<MedicationAdministration> results;
+    public IBundleProvider findMedicationAdmin(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getMMedicationAdministration(theId.getIdPart());
-
-        if(results.isEmpty()) {
-            String message = "No medication administrations found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
+        Projection projection = Projection.forRequest(request, MedicationAdministration.class);
 
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.MEDICATION_ADMINISTRATION), () -> service.getMMedicationAdministration(icn, projection),
+                "No medication administrations found for ICN: " + icn);
     }
 
     @Search(compartmentName = "MedicationStatement")
-    public List<MedicationStatement> findMedicationStatement(@IdParam IdType theId) {
-        List<MedicationStatement> results;
+    public IBundleProvider findMedicationStatement(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getMedicationStatement(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
+        Projection projection = Projection.forRequest(request, MedicationStatement.class);
 
-        if(results.isEmpty()) {
-            String message = "No medication statements found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.MEDICATION_STATEMENT), () -> service.getMedicationStatement(icn, projection),
+                "No medication statements found for ICN: " + icn);
     }
 
     @Search(compartmentName = "Procedure")
-    public List<Procedure> findProcedures(@IdParam IdType theId) {
-        List<Procedure> results;
-
-        results = service.getProcedures(theId.getIdPart());
+    public IBundleProvider findProcedures(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        if(results.isEmpty()) {
-            String message = "No procedures found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.PROCEDURE), () -> service.getProcedures(icn),
+                "No procedures found for ICN: " + icn);
     }
 
     @Search(compartmentName = "Observation")
-    public List<Observation> findObservations(@IdParam IdType theIdn, @OptionalParam(name = Observation.SP_CODE) final StringParam code) {
-
-        List<Observation> results;
-
-        if(code == null) {
-            results = service.getObservationsByIcn(theIdn.getIdPart());
-        } else {
-            results = service.getObservationsByIcnAndCode(theIdn.getIdPart(), code.getValue());
-        }
-
-        if(results.isEmpty()) {
-            String message = "No observations found for ICN: " + theIdn.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
+    public IBundleProvider findObservations(@IdParam IdType theIdn,
+                                            @OptionalParam(name = Observation.SP_CODE)     final StringParam code,
+                                            @OptionalParam(name = Observation.SP_CATEGORY) final StringParam category,
+                                            @IncludeParam(allow = {IncludeResolver.OBSERVATION_PERFORMER}) Set<Include> include,
+                                            SummaryEnum summary, RequestDetails request) {
+
+        PatientService service = service(request);
+        String icn = theIdn.getIdPart();
+        String message = "No observations found for ICN: " + icn;
+        boolean includePerformers = include != null && !include.isEmpty();
+        // Performers are included from the observations, so they are built whatever _elements asks for
+        Projection projection = includePerformers
+                ? Projection.forRequest(request, Observation.class).with("performer")
+                : Projection.forRequest(request, Observation.class);
+        Function<List<Observation>, List<Observation>> performers = includePerformers
+                ? observations -> includes.withService(service).includePerformers(icn, observations)
+                : Function.identity();
+
+        if(code != null) {
+            // Codes are only known once observations are built, these are counted from the cached index
+            String categories = category == null ? null : category.getValue();
+            return search(summary, () -> service.getObservationsByIcnAndCode(icn, code.getValue(), categories).size(),
+                    () -> performers.apply(service.getObservationsByIcnAndCode(icn, code.getValue(), categories)), message);
+        } else if(category != null) {
+            return search(summary, () -> service.countObservations(icn, category.getValue()),
+                    () -> performers.apply(service.getObservationsByIcnAndCategory(icn, category.getValue(), projection)), message);
         }
 
-        return results;
+        return search(summary, () -> service.countObservations(icn, null),
+                () -> performers.apply(service.getObservationsByIcn(icn, projection)), message);
     }
 
     @Search(compartmentName = "Condition")
-    public List<Condition> findConditions(@IdParam IdType theId) {
-
-        List<Condition> results = service.getConditionsForPatient(theId.getIdPart());
-
-        if(results.isEmpty()) {
-            String message = "No conditions found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+    public IBundleProvider findConditions(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        return results;
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
+        return search(summary, () -> service.countResources(icn, DataCategory.CONDITION), () -> service.getConditionsForPatient(icn),
+                "No conditions found for patient: " + icn);
     }
 
     @Search(compartmentName = "Practitioner")
-    public List<Practitioner> findPractitioner(@IdParam IdType theId) {
+    public IBundleProvider findPractitioner(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        List<Practitioner> results = service.getPractitionersById(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No practitioners found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.PRACTITIONER), () -> service.getPractitionersById(icn),
+                "No practitioners found for patient: " + icn);
     }
 
     @Search(compartmentName = "Flag")
-    public List<Flag> findFlags(@IdParam IdType theId) {
+    public IBundleProvider findFlags(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        List<Flag> results = service.getFlagsByIcn(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No flags found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.FLAG), () -> service.getFlagsByIcn(icn),
+                "No flags found for patient: " + icn);
     }
 
     @Search(compartmentName = "Appointment")
-    public List<Appointment> findAppointments(@IdParam IdType theId) {
+    public IBundleProvider findAppointments(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        List<Appointment> results = service.getAppointmentsByIcn(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No appointments found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.APPOINTMENT), () -> service.getAppointmentsByIcn(icn),
+                "No appointments found for patient: " + icn);
     }
 
     @Search(compartmentName = "AllergyIntolerance")
-    public List<AllergyIntolerance> findAllergy(@IdParam IdType theId) {
+    public IBundleProvider findAllergy(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        List<AllergyIntolerance> results = service.getAllergyByIcn(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No allergy intolerance found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.ALLERGY), () -> service.getAllergyByIcn(icn),
+                "No allergy intolerance found for patient: " + icn);
     }
 
     @Search(compartmentName = "Immunization")
-    public List<Immunization> findImmunizations(@IdParam IdType theId) {
+    public IBundleProvider findImmunizations(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        List<Immunization> results = service.getImmunizationsByIcn(theId.getIdPart());
-
-        if(results.isEmpty()) {
-            String message = "No immunizations found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.IMMUNIZATION), () -> service.getImmunizationsByIcn(icn),
+                "No immunizations found for patient: " + icn);
     }
 
     @Search(compartmentName = "Goal")
-    public List<Goal> findGoals(@IdParam IdType theId) {
-
-        List<Goal> results;
+    public IBundleProvider findGoals(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getGoal(theId.getIdPart());
-
-        if(results.isEmpty()) {
-            String message = "No goal found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.GOAL), () -> service.getGoal(icn),
+                "No goal found for ICN: " + icn);
     }
 
     @Search(compartmentName = "DiagnosticReport")
-    public List<DiagnosticReport> findDiagnosticReports(@IdParam IdType theId) {
-
-        List<DiagnosticReport> results;
+    public IBundleProvider findDiagnosticReports(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getDiagnosticReport(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No DiagnosticReport found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.DIAGNOSTIC_REPORT), () -> service.getDiagnosticReport(icn),
+                "No DiagnosticReport found for ICN: " + icn);
     }
 
     @Search(compartmentName = "CarePlan")
-    public List<CarePlan> findCarePlans(@IdParam IdType theId) {
-
-        List<CarePlan> results;
+    public IBundleProvider findCarePlans(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
 
-        results = service.getCarePlan(theId.getIdPart());
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
 
-        if(results.isEmpty()) {
-            String message = "No CarePlan found for ICN: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
-        }
-
-        return results;
+        return search(summary, () -> service.countResources(icn, DataCategory.CARE_PLAN), () -> service.getCarePlan(icn),
+                "No CarePlan found for ICN: " + icn);
     }
 
     @Search
@@ -327,18 +328,32 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
             @OptionalParam(name = Patient.SP_BIRTHDATE)  final DateParam   dob,
             @OptionalParam(name = Constants.PARAM_COUNT) final NumberParam count,
             @OptionalParam(name = "_page")               final NumberParam page,
+            @IncludeParam(reverse = true)                final Set<Include> revIncludes,
+            SummaryEnum summary,
             RequestDetails request
             )
     {
+        PatientService service = service(request);
         int defaultServerCount = 100;
 
-        Bundle bundle = createBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
+        Bundle bundle = ResourceHelper.createSearchBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
 
         HashMap<String, String> options = new HashMap<String, String>();
          for (Map.Entry<String, String[]> entry: request.getParameters().entrySet()) {
              options.put(entry.getKey(), entry.getValue()[0]);
          }
 
+        // Only the total is wanted, so the patients are counted rather than built
+        if (summary == SummaryEnum.COUNT) {
+            options.remove(Constants.PARAM_SUMMARY);
+            bundle.setTotal(service.countPatients(options));
+            return bundle;
+        }
+
+        // Checked before searching, so a value which cannot be served costs no VistA calls
+        Set<DataCategory> revIncluded = revIncludes == null || revIncludes.isEmpty()
+                ? Collections.emptySet() : includes.getRevIncludeCategories(revIncludes);
+
         List<Patient> results = service.getAllPatients(options);
 
         if(results.isEmpty()) {
@@ -351,6 +366,27 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
             bundle.addEntry().setResource(item);
         }
 
+        // Resources pointing at the patients are added after them, they are not counted in the total.
+        // As for $everything the patients are loaded through the scheduler, side by side.
+        if (!revIncluded.isEmpty()) {
+            if (results.size() > maxRevIncludePatients) {
+                throw new InvalidRequestException(String.format("_revinclude is limited to %d patients, ask for a smaller _count",
+                        maxRevIncludePatients));
+            }
+
+            IncludeResolver resolver = includes.withService(service);
+            List<CompletableFuture<List<DomainResource>>> calls = new ArrayList<>();
+            for (Patient patient : results) {
+                String icn = patient.getIdElement().getIdPart();
+                calls.add(CompletableFuture.supplyAsync(() -> resolver.getResources(icn, revIncluded), scheduler.forPatient(icn)));
+            }
+            for (CompletableFuture<List<DomainResource>> call : calls) {
+                for (Resource item : await(call)) {
+                    bundle.addEntry().setResource(item).getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+                }
+            }
+        }
+
         bundle.setTotal(results.size());
 
         // if a single patient was requested, no reason to try to return next/
@@ -411,17 +447,36 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
     }
 
     @Search(compartmentName = "Composition")
-    public List<Composition> findNotes(@IdParam IdType theId) {
+    public IBundleProvider findNotes(@IdParam IdType theId, SummaryEnum summary, RequestDetails request) {
+
+        PatientService service = service(request);
+        String icn = theId.getIdPart();
+        Projection projection = Projection.forRequest(request, Composition.class);
+
+        return search(summary, () -> service.countResources(icn, DataCategory.NOTE), () -> service.getTiuNotes(icn, projection),
+                "No compositions/notes found for patient: " + icn);
+    }
 
-        List<Composition> results = service.getTiuNotes(theId.getIdPart());
+    /**
+     * Run a compartment search. With _summary=count the resources are counted from the
+     * cache or the VistA payload instead of being built, and only the total is returned,
+     * which may be 0.
+     */
+    private static IBundleProvider search(SummaryEnum summary, IntSupplier counter, Supplier<List<? extends IBaseResource>> loader,
+                                          String notFound) {
+
+        if (summary == SummaryEnum.COUNT) {
+            return new CountBundleProvider(counter.getAsInt());
+        }
+
+        List<? extends IBaseResource> results = loader.get();
 
         if(results.isEmpty()) {
-            String message = "No compositions/notes found for patient: " + theId.getIdPart();
-            LOG.info(message);
-            throw new ResourceNotFoundException(message);
+            LOG.info(notFound);
+            throw new ResourceNotFoundException(notFound);
         }
 
-        return results;
+        return new SimpleBundleProvider(results);
     }
 
     private static Date getDateFromOptionalParameter(DateParam dateParam) {
@@ -443,9 +498,10 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
     @Operation(name="$everything", idempotent=true)
     public Bundle patientInstanceOperation(@IdParam IdType theId, RequestDetails request) {
 
-        Bundle result = createBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
+        PatientService service = service(request);
+        Bundle result = ResourceHelper.createSearchBundle(String.format("%s/%s", request.getFhirServerBase(), request.getRequestPath()));
 
-        List<DomainResource> resources = service.getEverything(theId.getIdPart());
+        List<DomainResource> resources = await(service.getEverything(theId.getIdPart(), scheduler.forPatient(theId.getIdPart())));
 
         for(Resource item : resources){
             result.addEntry().setResource(item);
@@ -456,21 +512,107 @@ public class PatientProvider extends AbstractJaxRsResourceProvider<Patient> {
         return result;
     }
 
-    private static Bundle createBundle(String url) {
-        Bundle result = new Bundle();
-        result.setType(Bundle.BundleType.SEARCHSET);
+    /**
+     * $everything for many patients at once, given as repeated or comma separated patient
+     * parameters. Resources are written as newline delimited JSON as each patient
+     * completes, with an OperationOutcome line for patients that could not be read.
+     * Only a few patients are worked on at a time and their VistA calls share the
+     * scheduler with every other request, so a batch is paced to what VistA can take.
+     */
+    @Operation(name = "$everything", idempotent = true, manualResponse = true)
+    public void bulkEverything(@OperationParam(name = "patient", max = OperationParam.MAX_UNLIMITED) List<StringType> patients,
+                               HttpServletResponse response) throws IOException {
+
+        Set<String> icns = new LinkedHashSet<>();
+        if (patients != null) {
+            for (StringType patient : patients) {
+                for (String icn : patient.getValueNotNull().split(",")) {
+                    if (!icn.trim().isEmpty()) {
+                        icns.add(icn.trim());
+                    }
+                }
+            }
+        }
 
-        Meta lastUpdate = new Meta();
-        lastUpdate.setLastUpdated(new Date());
-        result.setMeta(lastUpdate);
+        if (icns.isEmpty()) {
+            throw new InvalidRequestException("patient is required");
+        }
 
-        Bundle.BundleLinkComponent link = new Bundle.BundleLinkComponent();
-        link.setRelation("self");
-        link.setUrl(url);
-        List<Bundle.BundleLinkComponent> links = new ArrayList<>();
-        links.add(link);
-        result.setLink(links);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(HcConstants.CT_FHIR_NDJSON);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+
+        IParser parser = getFhirContext().newJsonParser();
+        Writer writer = response.getWriter();
+
+        try {
+            new BulkEverything(sharedService, scheduler, patientsInFlight).run(icns.iterator(), UNLIMITED, new BulkEverything.Listener() {
+                @Override
+                public void completed(String icn, List<DomainResource> resources) throws IOException {
+                    write(resources);
+                }
+
+                @Override
+                public void failed(String icn, RuntimeException ex) throws IOException {
+                    if (ex instanceof ResourceNotFoundException) {
+                        write(createOutcome(OperationOutcome.IssueType.NOTFOUND, "Patient Not Found: " + icn));
+                    } else {
+                        LOG.error("Unable to fetch everything for " + icn, ex);
+                        write(createOutcome(OperationOutcome.IssueType.EXCEPTION, "Unable to fetch everything for " + icn));
+                    }
+                }
+
+                private void write(List<? extends Resource> resources) throws IOException {
+                    for (Resource resource : resources) {
+                        writer.write(parser.encodeResourceToString(resource));
+                        writer.write("\n");
+                    }
+                    writer.flush();
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted while waiting for VistA");
+        }
+    }
 
+    private static List<OperationOutcome> createOutcome(OperationOutcome.IssueType type, String message) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(type)
+                .setDiagnostics(message);
+        List<OperationOutcome> result = new ArrayList<>();
+        result.add(outcome);
         return result;
     }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Search results holding only a total, for _summary=count
+     */
+    private static final class CountBundleProvider extends SimpleBundleProvider {
+
+        private final int total;
+
+        CountBundleProvider(int total) {
+            super(Collections.emptyList());
+            this.total = total;
+        }
+
+        @Override
+        public Integer size() {
+            return total;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
+import org.hl7.fhir.r4.model.DomainResource;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs $everything for many patients, a few at a time, handing each patient's
+ * resources to a listener as soon as that patient completes.
+ *
+ * The compartment calls of every patient go through the shared {@link VistaCallScheduler},
+ * and the listener is only ever called from the thread which called {@link #run}, so it
+ * may write to a stream without further locking.
+ */
+public class BulkEverything {
+
+    private final PatientService patients;
+    private final VistaCallScheduler scheduler;
+    private final int patientsInFlight;
+
+    /**
+     * @param patients Required. Fetches everything for one patient
+     * @param scheduler Required. Runs the VistA calls
+     * @param patientsInFlight Required. How many patients are worked on at once
+     */
+    public BulkEverything(PatientService patients, VistaCallScheduler scheduler, int patientsInFlight) {
+        this.patients = patients;
+        this.scheduler = scheduler;
+        this.patientsInFlight = Math.max(patientsInFlight, 1);
+    }
+
+    /**
+     * Fetch everything for each patient, returning once every patient has been passed to the listener
+     *
+     * @param icns Required. The patients to fetch
+     * @param limiter Required. Paces the start of each patient
+     * @param listener Required. Receives each patient as it completes
+     */
+    public void run(Iterator<String> icns, RateLimiter limiter, Listener listener) throws IOException, InterruptedException {
+
+        BlockingQueue<Map.Entry<String, CompletableFuture<List<DomainResource>>>> completed = new LinkedBlockingQueue<>();
+        int running = 0;
+
+        while (running < patientsInFlight && icns.hasNext()) {
+            start(icns.next(), limiter, completed);
+            running++;
+        }
+
+        while (running > 0) {
+            Map.Entry<String, CompletableFuture<List<DomainResource>>> next = completed.take();
+            running--;
+            if (icns.hasNext()) {
+                start(icns.next(), limiter, completed);
+                running++;
+            }
+
+            List<DomainResource> resources;
+            try {
+                resources = next.getValue().join();
+            } catch (CompletionException ex) {
+                RuntimeException cause = ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+                listener.failed(next.getKey(), cause);
+                continue;
+            }
+            listener.completed(next.getKey(), resources);
+        }
+    }
+
+    private void start(String icn, RateLimiter limiter,
+                       BlockingQueue<Map.Entry<String, CompletableFuture<List<DomainResource>>>> completed) throws InterruptedException {
+        limiter.acquire(1);
+        CompletableFuture<List<DomainResource>> everything = patients.getEverything(icn, scheduler.forPatient(icn));
+        everything.whenComplete((resources, ex) -> completed.add(new AbstractMap.SimpleImmutableEntry<>(icn, everything)));
+    }
+
+    /**
+     * Receives the outcome of each patient
+     */
+    public interface Listener {
+
+        void completed(String icn, List<DomainResource> resources) throws IOException;
+
+        void failed(String icn, RuntimeException ex) throws IOException;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves NDJSON Observations and Immunizations to VistA, one VistA call per record.
+ *
+ * Records are read, checked and mapped by the calling thread and sent by the sender
+ * executor, with at most the in-flight window of calls outstanding. Once the window is
+ * full no more is read until a call returns, so a client streaming a large file is held
+ * back to the pace VistA takes the records at. Cached copies of the saved patients
+ * are dropped by the {@link com.healthconcourse.vista.fhir.api.cache.InvalidationBus}
+ * as each write succeeds.
+ */
+public class BulkImport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkImport.class);
+    private static final int MAX_REPORTED_FAILURES = 1000;
+
+    private final VistaData data;
+    private final ImportMapper mapper;
+    private final Executor sender;
+    private final int inFlight;
+    private final FhirContext context = FhirContext.forR4();
+
+    /**
+     * @param data Required. Where the records are saved
+     * @param mapper Required. Checks and maps the records
+     * @param sender Required. Makes the VistA calls
+     * @param inFlight Required. How many VistA calls one import may have outstanding
+     */
+    public BulkImport(VistaData data, ImportMapper mapper, Executor sender, int inFlight) {
+        this.data = data;
+        this.mapper = mapper;
+        this.sender = sender;
+        this.inFlight = Math.max(inFlight, 1);
+    }
+
+    /**
+     * Save every record, returning once VistA has answered for each of them
+     *
+     * @param ndjson Required. One resource per line
+     */
+    public Result run(BufferedReader ndjson) throws IOException, InterruptedException {
+
+        IParser parser = context.newJsonParser();
+        Result result = new Result();
+        Semaphore window = new Semaphore(inFlight);
+        long started = System.nanoTime();
+
+        String line;
+        int number = 0;
+        while ((line = ndjson.readLine()) != null) {
+            number++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            result.records.incrementAndGet();
+
+            ImportMapper.Record record;
+            try {
+                record = mapper.map(parser.parseResource(line));
+            } catch (DataFormatException | BaseServerResponseException ex) {
+                result.failed(number, ex.getMessage());
+                continue;
+            }
+
+            window.acquire();
+            int lineNumber = number;
+            try {
+                sender.execute(() -> {
+                    try {
+                        send(record, lineNumber, result);
+                    } finally {
+                        window.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                window.release();
+                throw ex;
+            }
+        }
+
+        window.acquire(inFlight);
+        result.elapsedNanos = System.nanoTime() - started;
+        LOG.info(String.format("Imported %d of %d records in %d ms, %.1f records/sec", result.getImported(), result.getRecords(),
+                TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos), result.getRecordsPerSecond()));
+        return result;
+    }
+
+    private void send(ImportMapper.Record record, int line, Result result) {
+
+        String reply;
+        try {
+            switch (record.getTarget()) {
+                case VITALS:
+                    reply = data.putVitals(record.getParameters());
+                    break;
+                case LABS:
+                    reply = data.putLabResult(record.getParameters());
+                    break;
+                default:
+                    reply = data.putImmunization(record.getParameters());
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to import line " + line, ex);
+            result.failed(line, ex.getMessage());
+            return;
+        }
+
+        String[] fields = reply == null ? new String[] {""} : reply.split("\\^", 2);
+        if ("1".equals(fields[0])) {
+            result.imported.incrementAndGet();
+        } else {
+            result.failed(line, "-1".equals(fields[0]) && fields.length > 1 ? fields[1] : "VistA answered " + reply);
+        }
+    }
+
+    /**
+     * What became of an import
+     */
+    public static final class Result {
+
+        private final AtomicInteger records = new AtomicInteger();
+        private final AtomicInteger imported = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final SortedMap<Integer, String> failures = new TreeMap<>();
+        private volatile long elapsedNanos;
+
+        public int getRecords() {
+            return records.get();
+        }
+
+        public int getImported() {
+            return imported.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return why records failed by line number, up to the first thousand
+         */
+        public synchronized SortedMap<Integer, String> getFailures() {
+            return new TreeMap<>(failures);
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        private synchronized void failed(int line, String message) {
+            failed.incrementAndGet();
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.put(line, message);
+            }
+        }
+    }
+}
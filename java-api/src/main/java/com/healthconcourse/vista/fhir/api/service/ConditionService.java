@@ -25,5 +25,14 @@ import java.util.List;
 
 public interface ConditionService {
     List<Patient> getPatientsByCode(String code);
+
+    /**
+     * Find the patients with every code in one list, at least one code in another and
+     * none of the codes in a third. Each list is comma separated and may be null.
+     *
+     * @param materialize read the full demographics of patients which are not already
+     *                    held, rather than returning bare references for them
+     */
+    List<Patient> getPatientsByCodes(String all, String any, String none, boolean materialize);
     MethodOutcome putCondition(Condition theCondition);
 }
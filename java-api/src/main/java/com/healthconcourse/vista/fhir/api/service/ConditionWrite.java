@@ -0,0 +1,92 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+/**
+ * A Condition create accepted by the {@link ConditionWriteQueue}, along with how VistA
+ * answered once it was written.
+ */
+public class ConditionWrite {
+
+    public enum Status {
+        QUEUED,
+        COMPLETE,
+        FAILED
+    }
+
+    private final String id;
+    private final long submittedAt;
+    private volatile String resource;
+    private volatile Status status = Status.QUEUED;
+    private volatile String code;
+    private volatile String message;
+    private volatile long finishedAt;
+
+    ConditionWrite(String id, long submittedAt, String resource) {
+        this.id = id;
+        this.submittedAt = submittedAt;
+        this.resource = resource;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the code VistA answered with, null when it could not be reached
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return the message VistA answered with, or why the write failed
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    boolean isFinished() {
+        return status != Status.QUEUED;
+    }
+
+    /**
+     * @return the encoded Condition, only held until it has been written
+     */
+    String getResource() {
+        return resource;
+    }
+
+    void finish(Status finalStatus, String finalCode, String finalMessage, long at) {
+        code = finalCode;
+        message = finalMessage;
+        finishedAt = at;
+        resource = null;
+        status = finalStatus;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.hl7.fhir.r4.model.Condition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes Conditions to VistA in the background, so a bulk problem list import is
+ * limited by how quickly VistA takes them rather than by each client request waiting
+ * for its DHPPATPRBUPD call.
+ *
+ * Each accepted write is appended to a journal, and the journal is flushed to disk
+ * before the write is acknowledged. Writes arriving together share one flush. The writes
+ * are then sent by the writer executor, which bounds how many VistA calls are made at
+ * once, and their outcome is appended as well. On start up {@link #resume} replays the
+ * journal and sends whatever was accepted but not answered. A write which VistA took
+ * just before a restart can therefore be sent twice.
+ *
+ * Writes are identified by their idempotency key, or by their content when no key is
+ * given, so a write submitted again while it is queued or once it has succeeded is not
+ * sent a second time. Finished writes are kept for the retention period, and the
+ * journal is rewritten with just the writes held once it has grown to twice their number.
+ */
+public class ConditionWriteQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConditionWriteQueue.class);
+    private static final String JOURNAL_FILE = "conditions.journal";
+    private static final String QUEUED = "queued";
+    private static final String DONE = "done";
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private final VistaData data;
+    private final Executor writers;
+    private final Path directory;
+    private final Duration retention;
+    private final int maxQueued;
+    private final FhirContext context = FhirContext.forR4();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ConcurrentMap<String, ConditionWrite> writes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Object flushLock = new Object();
+
+    // Guarded by this
+    private FileChannel journal;
+    private long appended;
+    private long recordsSinceCompaction;
+
+    // Guarded by flushLock
+    private long flushed;
+
+    /**
+     * @param data Required. Where the Conditions are written
+     * @param writers Required. Sends the writes, its thread count bounds the VistA calls made at once
+     * @param directory Required. Where the journal is kept
+     * @param retention Required. How long finished writes are kept for their status to be read
+     * @param maxQueued Required. How many writes may wait at once, beyond which none are accepted
+     */
+    public ConditionWriteQueue(VistaData data, Executor writers, Path directory, Duration retention, int maxQueued) {
+        this.data = data;
+        this.writers = writers;
+        this.directory = directory;
+        this.retention = retention;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Queue a Condition to be written
+     *
+     * @param key Optional. Identifies the write, by default the encoded Condition is used
+     * @param condition Required. The Condition to write
+     * @return the write, or the earlier one with the same key unless it failed. Empty when
+     * the queue is full or the journal cannot be written, so the caller should write synchronously.
+     */
+    public Optional<ConditionWrite> submit(String key, Condition condition) {
+
+        String resource = context.newJsonParser().encodeResourceToString(condition);
+        String id = hash(key == null || key.isEmpty() ? resource : key);
+
+        ConditionWrite write;
+        long position;
+        synchronized (this) {
+            ConditionWrite existing = writes.get(id);
+            if (existing != null && existing.getStatus() != ConditionWrite.Status.FAILED) {
+                return Optional.of(existing);
+            }
+            if (queued.get() >= maxQueued) {
+                return Optional.empty();
+            }
+
+            write = new ConditionWrite(id, System.currentTimeMillis(), resource);
+            writes.put(id, write);
+            try {
+                position = append(queuedRecord(write));
+            } catch (IOException ex) {
+                LOG.error("Unable to journal the write of a Condition", ex);
+                writes.remove(id, write);
+                return Optional.empty();
+            }
+            queued.incrementAndGet();
+        }
+
+        try {
+            flush(position);
+        } catch (IOException ex) {
+            // Already sent, since the write is in the journal it may still be read after a restart
+            LOG.error("Unable to flush the write journal", ex);
+        }
+
+        writers.execute(() -> send(write));
+        return Optional.of(write);
+    }
+
+    public Optional<ConditionWrite> get(String id) {
+        return Optional.ofNullable(writes.get(id));
+    }
+
+    /**
+     * @return how many writes are waiting to be sent to VistA
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Replay the journal, typically at start up, and send the writes which were
+     * accepted but not answered before the application stopped
+     */
+    public void resume() {
+
+        Path file = directory.resolve(JOURNAL_FILE);
+        try {
+            if (Files.exists(file)) {
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        replay(line);
+                    }
+                }
+            }
+            compact();
+        } catch (IOException ex) {
+            LOG.error("Unable to read the write journal " + file, ex);
+            return;
+        }
+
+        List<ConditionWrite> pending = new ArrayList<>();
+        for (ConditionWrite write : writes.values()) {
+            if (!write.isFinished()) {
+                pending.add(write);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOG.info(String.format("Resuming %d Condition writes", pending.size()));
+        }
+        queued.addAndGet(pending.size());
+        for (ConditionWrite write : pending) {
+            writers.execute(() -> send(write));
+        }
+    }
+
+    private void send(ConditionWrite write) {
+
+        ConditionWrite.Status status;
+        String code = null;
+        String message;
+        try {
+            String reply = data.putTheCondition(context.newJsonParser().parseResource(Condition.class, write.getResource()));
+            String[] fields = reply == null ? new String[0] : reply.split("\\^");
+            if (fields.length > 0 && !fields[0].isEmpty()) {
+                code = fields[0];
+            }
+            status = isSuccess(code) ? ConditionWrite.Status.COMPLETE : ConditionWrite.Status.FAILED;
+            message = fields.length > 1 ? fields[1] : (status == ConditionWrite.Status.COMPLETE ? "Success" : "Unknown error");
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to write Condition " + write.getId(), ex);
+            status = ConditionWrite.Status.FAILED;
+            message = ex.getMessage();
+        }
+
+        write.finish(status, code, message, System.currentTimeMillis());
+        queued.decrementAndGet();
+
+        try {
+            long position;
+            synchronized (this) {
+                position = append(doneRecord(write));
+            }
+            flush(position);
+        } catch (IOException ex) {
+            LOG.error("Unable to journal the outcome of Condition write " + write.getId(), ex);
+        }
+    }
+
+    /**
+     * DHPPATPRBUPD answers with the HTTP status, older versions with 1 for success
+     */
+    private static boolean isSuccess(String code) {
+        return "1".equals(code) || "200".equals(code) || "201".equals(code);
+    }
+
+    /**
+     * @return the position of the record, to be passed to {@link #flush}
+     */
+    private synchronized long append(ObjectNode record) throws IOException {
+
+        if (journal == null) {
+            Files.createDirectories(directory);
+            journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap((mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        recordsSinceCompaction++;
+        return ++appended;
+    }
+
+    /**
+     * Make sure the journal is on disk up to a position. Whoever flushes covers every
+     * record appended so far, so the others waiting find their record already flushed.
+     */
+    private void flush(long position) throws IOException {
+        synchronized (flushLock) {
+            if (flushed >= position) {
+                return;
+            }
+            boolean compact;
+            long upTo;
+            synchronized (this) {
+                compact = recordsSinceCompaction > Math.max(MIN_COMPACT_RECORDS, 2L * writes.size());
+                upTo = appended;
+                if (!compact) {
+                    journal.force(false);
+                }
+            }
+            if (compact) {
+                compact();
+            } else {
+                flushed = upTo;
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with just the writes held, dropping the finished ones past
+     * the retention period
+     */
+    private void compact() throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                long cutoff = System.currentTimeMillis() - retention.toMillis();
+                Files.createDirectories(directory);
+                Path temp = Files.createTempFile(directory, "conditions", ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    for (ConditionWrite write : new ArrayList<>(writes.values())) {
+                        if (write.isFinished() && write.getFinishedAt() < cutoff) {
+                            writes.remove(write.getId(), write);
+                            continue;
+                        }
+                        writer.write(mapper.writeValueAsString(write.isFinished() ? doneRecord(write) : queuedRecord(write)));
+                        writer.newLine();
+                    }
+                }
+
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+                if (journal != null) {
+                    journal.close();
+                }
+                Path file = directory.resolve(JOURNAL_FILE);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                journal = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                recordsSinceCompaction = writes.size();
+                flushed = appended;
+            }
+        }
+    }
+
+    private void replay(String line) {
+
+        JsonNode record;
+        try {
+            record = mapper.readTree(line);
+        } catch (IOException ex) {
+            // The last line is cut short when the application stopped while appending it
+            LOG.warn("Skipping unreadable write journal record");
+            return;
+        }
+
+        String id = record.path("id").asText();
+        if (QUEUED.equals(record.path("op").asText())) {
+            writes.put(id, new ConditionWrite(id, record.path("submittedAt").asLong(), record.path("resource").asText()));
+        } else if (DONE.equals(record.path("op").asText())) {
+            ConditionWrite write = new ConditionWrite(id, record.path("submittedAt").asLong(), null);
+            write.finish(ConditionWrite.Status.valueOf(record.path("status").asText()),
+                    record.hasNonNull("code") ? record.get("code").asText() : null,
+                    record.hasNonNull("message") ? record.get("message").asText() : null,
+                    record.path("finishedAt").asLong());
+            writes.put(id, write);
+        }
+    }
+
+    private ObjectNode queuedRecord(ConditionWrite write) {
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", QUEUED);
+        record.put("id", write.getId());
+        record.put("submittedAt", write.getSubmittedAt());
+        record.put("resource", write.getResource());
+        return record;
+    }
+
+    private ObjectNode doneRecord(ConditionWrite write) {
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", DONE);
+        record.put("id", write.getId());
+        record.put("submittedAt", write.getSubmittedAt());
+        record.put("status", write.getStatus().name());
+        record.put("code", write.getCode());
+        record.put("message", write.getMessage());
+        record.put("finishedAt", write.getFinishedAt());
+        return record;
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(String.format("%02x", b & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
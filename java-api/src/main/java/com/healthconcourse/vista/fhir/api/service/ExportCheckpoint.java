@@ -0,0 +1,159 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Saves and restores an {@link ExportJob}, with the length of each of its files, in the
+ * job's directory so that an export interrupted by a restart can carry on where it
+ * stopped. The patient list is saved alongside so a resumed job walks the same patients.
+ */
+final class ExportCheckpoint {
+
+    private static final String CHECKPOINT_FILE = "checkpoint.properties";
+    private static final String PATIENTS_FILE = "patients.txt";
+    private static final String OUTPUT = "output.";
+    private static final String ERROR = "error.";
+    private static final String OFFSET = "offset.";
+
+    private ExportCheckpoint() {
+    }
+
+    static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(CHECKPOINT_FILE));
+    }
+
+    static void savePatients(Path directory, List<String> icns) throws IOException {
+        Path temp = Files.createTempFile(directory, "patients", ".tmp");
+        Files.write(temp, icns, StandardCharsets.UTF_8);
+        Files.move(temp, directory.resolve(PATIENTS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static List<String> loadPatients(Path directory) throws IOException {
+        return Files.readAllLines(directory.resolve(PATIENTS_FILE), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param offsets Required. How much of each type's file is complete
+     */
+    static void save(ExportJob job, Map<String, Long> offsets) throws IOException {
+
+        Properties properties = new Properties();
+        properties.setProperty("request", job.getRequest());
+        properties.setProperty("types", String.join(",", job.getTypes()));
+        properties.setProperty("transactionTime", Long.toString(job.getTransactionTime().getTime()));
+        properties.setProperty("status", job.getStatus().name());
+        if (job.getMessage() != null) {
+            properties.setProperty("message", job.getMessage());
+        }
+        properties.setProperty("finishedAt", Long.toString(job.getFinishedAt()));
+        properties.setProperty("patientCount", Integer.toString(job.getPatientCount()));
+        properties.setProperty("position", Integer.toString(job.getPosition()));
+        properties.setProperty("doneBeyond", join(job.getDoneBeyond()));
+        properties.setProperty("failed", String.join(",", job.getFailed()));
+        for (Map.Entry<String, Integer> output : job.getOutputs().entrySet()) {
+            properties.setProperty(OUTPUT + output.getKey(), output.getValue().toString());
+        }
+        for (Map.Entry<String, Integer> error : job.getErrors().entrySet()) {
+            properties.setProperty(ERROR + error.getKey(), error.getValue().toString());
+        }
+        for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+            properties.setProperty(OFFSET + offset.getKey(), offset.getValue().toString());
+        }
+
+        Path temp = Files.createTempFile(job.getDirectory(), "checkpoint", ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, "Export " + job.getId());
+        }
+        Files.move(temp, job.getDirectory().resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore a job from its directory
+     *
+     * @param offsets Required. Filled with how much of each type's file is complete
+     */
+    static ExportJob load(Path directory, Map<String, Long> offsets) throws IOException {
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(CHECKPOINT_FILE), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        ExportJob job = new ExportJob(directory.getFileName().toString(), properties.getProperty("request"),
+                new LinkedHashSet<>(split(properties.getProperty("types", ""))),
+                new Date(Long.parseLong(properties.getProperty("transactionTime"))), directory);
+
+        Set<Integer> doneBeyond = new HashSet<>();
+        for (String index : split(properties.getProperty("doneBeyond", ""))) {
+            doneBeyond.add(Integer.parseInt(index));
+        }
+
+        Map<String, Integer> outputs = new TreeMap<>();
+        Map<String, Integer> errors = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.startsWith(OUTPUT)) {
+                outputs.put(key.substring(OUTPUT.length()), Integer.parseInt(value));
+            } else if (key.startsWith(ERROR)) {
+                errors.put(key.substring(ERROR.length()), Integer.parseInt(value));
+            } else if (key.startsWith(OFFSET)) {
+                offsets.put(key.substring(OFFSET.length()), Long.parseLong(value));
+            }
+        }
+
+        job.restore(ExportJob.Status.valueOf(properties.getProperty("status")), properties.getProperty("message"),
+                Long.parseLong(properties.getProperty("finishedAt", "0")), Integer.parseInt(properties.getProperty("patientCount", "0")),
+                Integer.parseInt(properties.getProperty("position", "0")), doneBeyond, split(properties.getProperty("failed", "")),
+                outputs, errors);
+        return job;
+    }
+
+    private static String join(Set<Integer> values) {
+        List<String> result = new ArrayList<>();
+        for (Integer value : values) {
+            result.add(value.toString());
+        }
+        return String.join(",", result);
+    }
+
+    private static List<String> split(String value) {
+        List<String> result = new ArrayList<>();
+        for (String item : Arrays.asList(value.split(","))) {
+            if (!item.isEmpty()) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+}
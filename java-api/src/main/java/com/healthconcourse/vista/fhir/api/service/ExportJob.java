@@ -0,0 +1,221 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bulk data export run by the {@link ExportService}, along with its progress and,
+ * once complete, how many resources of each type were written.
+ *
+ * Progress through the patient list is kept as the position before which every patient
+ * is done plus the few done beyond it, since patients are worked on a few at a time and
+ * do not complete in order. Together with the patients to retry this is what is saved
+ * in a checkpoint.
+ */
+public class ExportJob {
+
+    public enum Status {
+        ACCEPTED,
+        IN_PROGRESS,
+        COMPLETE,
+        FAILED
+    }
+
+    private final String id;
+    private final String request;
+    private final Set<String> types;
+    private final Date transactionTime;
+    private final Path directory;
+    private final Map<String, Integer> outputs = new TreeMap<>();
+    private final Map<String, Integer> errors = new TreeMap<>();
+    private final AtomicInteger patientsDone = new AtomicInteger();
+    private final Set<Integer> doneBeyond = new HashSet<>();
+    private final List<String> failed = new ArrayList<>();
+    private int position;
+    private volatile int patientCount;
+    private volatile Status status = Status.ACCEPTED;
+    private volatile String message;
+    private volatile long finishedAt;
+
+    ExportJob(String id, String request, Set<String> types, Date transactionTime, Path directory) {
+        this.id = id;
+        this.request = request;
+        this.types = Collections.unmodifiableSet(types);
+        this.transactionTime = transactionTime;
+        this.directory = directory;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the kick-off request URL
+     */
+    public String getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the resource types to export, empty for every type
+     */
+    public Set<String> getTypes() {
+        return types;
+    }
+
+    public Date getTransactionTime() {
+        return transactionTime;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return why the job failed
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public int getPatientsDone() {
+        return patientsDone.get();
+    }
+
+    public int getPatientCount() {
+        return patientCount;
+    }
+
+    /**
+     * @return the number of resources written per resource type
+     */
+    public synchronized Map<String, Integer> getOutputs() {
+        return new TreeMap<>(outputs);
+    }
+
+    /**
+     * @return the number of OperationOutcomes written for patients which could not be exported
+     */
+    public synchronized Map<String, Integer> getErrors() {
+        return new TreeMap<>(errors);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    boolean isFinished() {
+        return status == Status.COMPLETE || status == Status.FAILED;
+    }
+
+    synchronized boolean hasFile(String type) {
+        return status == Status.COMPLETE && (outputs.containsKey(type) || errors.containsKey(type));
+    }
+
+    void start(int patients) {
+        patientCount = patients;
+        status = Status.IN_PROGRESS;
+    }
+
+    /**
+     * @return the position in the patient list before which every patient is done
+     */
+    synchronized int getPosition() {
+        return position;
+    }
+
+    synchronized Set<Integer> getDoneBeyond() {
+        return new HashSet<>(doneBeyond);
+    }
+
+    synchronized boolean isDone(int index) {
+        return index < position || doneBeyond.contains(index);
+    }
+
+    synchronized void markDone(int index) {
+        doneBeyond.add(index);
+        while (doneBeyond.remove(position)) {
+            position++;
+        }
+        patientsDone.incrementAndGet();
+    }
+
+    /**
+     * @return the patients which failed for a reason other than not being found, to be retried
+     */
+    synchronized List<String> getFailed() {
+        return new ArrayList<>(failed);
+    }
+
+    synchronized void addFailed(String icn) {
+        failed.add(icn);
+    }
+
+    synchronized void clearFailed() {
+        failed.clear();
+    }
+
+    /**
+     * Restore the progress saved in a checkpoint
+     */
+    synchronized void restore(Status savedStatus, String savedMessage, long savedFinishedAt, int savedPatientCount, int savedPosition,
+                              Set<Integer> savedDoneBeyond, List<String> savedFailed,
+                              Map<String, Integer> savedOutputs, Map<String, Integer> savedErrors) {
+        status = savedStatus;
+        message = savedMessage;
+        finishedAt = savedFinishedAt;
+        patientCount = savedPatientCount;
+        position = savedPosition;
+        doneBeyond.addAll(savedDoneBeyond);
+        failed.addAll(savedFailed);
+        outputs.putAll(savedOutputs);
+        errors.putAll(savedErrors);
+        patientsDone.set(savedPosition + savedDoneBeyond.size());
+    }
+
+    synchronized void addOutput(String type) {
+        outputs.merge(type, 1, Integer::sum);
+    }
+
+    synchronized void addError(String type) {
+        errors.merge(type, 1, Integer::sum);
+    }
+
+    void complete() {
+        finishedAt = System.currentTimeMillis();
+        status = Status.COMPLETE;
+    }
+
+    void fail(String reason) {
+        message = reason;
+        finishedAt = System.currentTimeMillis();
+        status = Status.FAILED;
+    }
+}
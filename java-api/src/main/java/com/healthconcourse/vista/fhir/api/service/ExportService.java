@@ -0,0 +1,382 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * Runs FHIR bulk data exports of every known patient in the background.
+ *
+ * Each job walks the patients through {@link BulkEverything}, so its VistA calls are
+ * paced and share the call scheduler with interactive requests, and writes one gzipped
+ * NDJSON file per resource type to its own directory. Patients which are not found are written as OperationOutcomes to an error file, those which
+ * fail for other reasons are retried once the rest are done.
+ *
+ * Progress is checkpointed to the job's directory every so many patients, so a job
+ * interrupted by a restart is resumed by {@link #resume} rather than started over.
+ * Finished jobs and their files are removed once they are older than the retention period.
+ */
+public class ExportService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExportService.class);
+    private static final String FILE_SUFFIX = ".ndjson.gz";
+    private static final String ERROR_TYPE = "OperationOutcome";
+
+    private final PatientService patients;
+    private final PatientSearchIndex index;
+    private final BulkEverything everything;
+    private final RateLimiter limiter;
+    private final Executor jobRunner;
+    private final Path directory;
+    private final Duration retention;
+    private final int checkpointInterval;
+    private final IParser parser = FhirContext.forR4().newJsonParser();
+    private final ConcurrentMap<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param patients Required. Fetches the patients, best without a cache so an export does not evict interactive patients
+     * @param index Required. Lists the patients to export once it is ready
+     * @param everything Required. Fetches everything for each patient
+     * @param limiter Required. Paces how quickly patients are started
+     * @param jobRunner Required. Runs the jobs
+     * @param directory Required. Where the job directories are written
+     * @param retention Required. How long finished jobs are kept
+     * @param checkpointInterval Required. How many patients are exported between checkpoints
+     */
+    public ExportService(PatientService patients, PatientSearchIndex index, BulkEverything everything, RateLimiter limiter,
+                         Executor jobRunner, Path directory, Duration retention, int checkpointInterval) {
+        this.patients = patients;
+        this.index = index;
+        this.everything = everything;
+        this.limiter = limiter;
+        this.jobRunner = jobRunner;
+        this.directory = directory;
+        this.retention = retention;
+        this.checkpointInterval = Math.max(checkpointInterval, 1);
+    }
+
+    /**
+     * Queue an export
+     *
+     * @param request Required. The kick-off request URL
+     * @param types Required. The resource types to export, empty for every type
+     * @return the queued job
+     */
+    public ExportJob start(String request, Set<String> types) {
+
+        purgeExpired();
+
+        String id = UUID.randomUUID().toString();
+        ExportJob job = new ExportJob(id, request, types, new Date(), directory.resolve(id));
+        jobs.put(id, job);
+        jobRunner.execute(() -> run(job));
+        return job;
+    }
+
+    public Optional<ExportJob> get(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * @return the file written for a type by a completed job
+     */
+    public Optional<Path> getFile(String id, String type) {
+        ExportJob job = jobs.get(id);
+        if (job == null || !job.hasFile(type)) {
+            return Optional.empty();
+        }
+        return Optional.of(getPath(job, type));
+    }
+
+    /**
+     * Remove finished jobs, and their files, which are older than the retention period
+     */
+    public void purgeExpired() {
+        long cutoff = System.currentTimeMillis() - retention.toMillis();
+        for (ExportJob job : new ArrayList<>(jobs.values())) {
+            if (job.isFinished() && job.getFinishedAt() < cutoff) {
+                jobs.remove(job.getId());
+                delete(job.getDirectory());
+            }
+        }
+    }
+
+    /**
+     * Pick up the jobs found in the export directory, typically after a restart. Finished
+     * jobs can be downloaded again and unfinished ones carry on from their last checkpoint.
+     */
+    public void resume() {
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path jobDirectory : directories) {
+                if (!ExportCheckpoint.exists(jobDirectory)) {
+                    continue;
+                }
+                try {
+                    Map<String, Long> offsets = new HashMap<>();
+                    ExportJob job = ExportCheckpoint.load(jobDirectory, offsets);
+                    jobs.put(job.getId(), job);
+                    if (!job.isFinished()) {
+                        LOG.info(String.format("Resuming export %s at %d of %d patients", job.getId(), job.getPatientsDone(), job.getPatientCount()));
+                        jobRunner.execute(() -> run(job, offsets));
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    LOG.warn("Unable to resume export in " + jobDirectory, ex);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Unable to read export directory " + directory, ex);
+        }
+
+        purgeExpired();
+    }
+
+    private void run(ExportJob job) {
+        run(job, new HashMap<>());
+    }
+
+    /**
+     * Export every patient not yet done, checkpointing as it goes, then retry the patients
+     * which failed in a final pass
+     *
+     * @param offsets Required. How much of each file the last checkpoint covered, empty for a new job
+     */
+    private void run(ExportJob job, Map<String, Long> offsets) {
+
+        Map<String, NdjsonFile> files = new HashMap<>();
+
+        try {
+            boolean resumed = ExportCheckpoint.exists(job.getDirectory());
+            List<String> icns;
+            if (resumed) {
+                icns = ExportCheckpoint.loadPatients(job.getDirectory());
+                for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                    files.put(offset.getKey(), new NdjsonFile(getPath(job, offset.getKey()), offset.getValue()));
+                }
+            } else {
+                Files.createDirectories(job.getDirectory());
+                icns = getIcns();
+                ExportCheckpoint.savePatients(job.getDirectory(), icns);
+            }
+
+            job.start(icns.size());
+            if (!resumed) {
+                checkpoint(job, files);
+            }
+
+            Map<String, Integer> positions = new HashMap<>();
+            List<String> remaining = new ArrayList<>();
+            for (int i = 0; i < icns.size(); i++) {
+                positions.putIfAbsent(icns.get(i), i);
+                if (!job.isDone(i)) {
+                    remaining.add(icns.get(i));
+                }
+            }
+
+            int[] sinceCheckpoint = {0};
+            everything.run(remaining.iterator(), limiter, new BulkEverything.Listener() {
+                @Override
+                public void completed(String icn, List<DomainResource> resources) throws IOException {
+                    writeResources(job, files, resources);
+                    done(icn);
+                }
+
+                @Override
+                public void failed(String icn, RuntimeException ex) throws IOException {
+                    if (ex instanceof ResourceNotFoundException) {
+                        writeError(job, files, icn, ex);
+                    } else {
+                        job.addFailed(icn);
+                    }
+                    done(icn);
+                }
+
+                private void done(String icn) throws IOException {
+                    job.markDone(positions.get(icn));
+                    if (++sinceCheckpoint[0] >= checkpointInterval) {
+                        checkpoint(job, files);
+                        sinceCheckpoint[0] = 0;
+                    }
+                }
+            });
+            checkpoint(job, files);
+
+            List<String> retries = job.getFailed();
+            if (!retries.isEmpty()) {
+                LOG.info(String.format("Export %s retrying %d patients", job.getId(), retries.size()));
+                everything.run(retries.iterator(), limiter, new BulkEverything.Listener() {
+                    @Override
+                    public void completed(String icn, List<DomainResource> resources) throws IOException {
+                        writeResources(job, files, resources);
+                    }
+
+                    @Override
+                    public void failed(String icn, RuntimeException ex) throws IOException {
+                        writeError(job, files, icn, ex);
+                    }
+                });
+                job.clearFailed();
+            }
+
+            job.complete();
+            checkpoint(job, files);
+            close(files);
+            LOG.info(String.format("Export %s wrote %d patients", job.getId(), job.getPatientsDone()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            closeQuietly(files);
+            LOG.info("Export " + job.getId() + " interrupted, it will resume from its last checkpoint");
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Export " + job.getId() + " failed", ex);
+            closeQuietly(files);
+            job.fail(ex.getMessage());
+            saveQuietly(job, files);
+        }
+    }
+
+    private List<String> getIcns() {
+        if (index.isReady()) {
+            return index.getIcns();
+        }
+
+        List<String> icns = new ArrayList<>();
+        for (Patient patient : patients.getAllPatients(new HashMap<>())) {
+            icns.add(patient.getIdElement().getIdPart());
+        }
+        return icns;
+    }
+
+    private void writeResources(ExportJob job, Map<String, NdjsonFile> files, List<DomainResource> resources) throws IOException {
+        for (Resource resource : resources) {
+            String type = resource.fhirType();
+            if (job.getTypes().isEmpty() || job.getTypes().contains(type)) {
+                write(job, files, type, resource);
+                job.addOutput(type);
+            }
+        }
+    }
+
+    private void writeError(ExportJob job, Map<String, NdjsonFile> files, String icn, RuntimeException ex) throws IOException {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(ex instanceof ResourceNotFoundException ? OperationOutcome.IssueType.NOTFOUND : OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics("Unable to export patient " + icn + ": " + ex.getMessage());
+        write(job, files, ERROR_TYPE, outcome);
+        job.addError(ERROR_TYPE);
+    }
+
+    private void write(ExportJob job, Map<String, NdjsonFile> files, String type, Resource resource) throws IOException {
+        NdjsonFile file = files.get(type);
+        if (file == null) {
+            file = new NdjsonFile(getPath(job, type), 0);
+            files.put(type, file);
+        }
+        file.write(parser.encodeResourceToString(resource));
+    }
+
+    /**
+     * Make everything written so far safe on disk, then record how far each file and the
+     * patient list have got
+     */
+    private static void checkpoint(ExportJob job, Map<String, NdjsonFile> files) throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+        for (Map.Entry<String, NdjsonFile> file : files.entrySet()) {
+            offsets.put(file.getKey(), file.getValue().checkpoint());
+        }
+        ExportCheckpoint.save(job, offsets);
+    }
+
+    private static void saveQuietly(ExportJob job, Map<String, NdjsonFile> files) {
+        try {
+            Map<String, Long> offsets = new HashMap<>();
+            for (String type : files.keySet()) {
+                offsets.put(type, Files.size(getPath(job, type)));
+            }
+            ExportCheckpoint.save(job, offsets);
+        } catch (IOException ex) {
+            LOG.warn("Unable to save export " + job.getId(), ex);
+        }
+    }
+
+    private static Path getPath(ExportJob job, String type) {
+        return job.getDirectory().resolve(type + FILE_SUFFIX);
+    }
+
+    private static void close(Map<String, NdjsonFile> files) throws IOException {
+        for (NdjsonFile file : files.values()) {
+            file.close();
+        }
+    }
+
+    private static void closeQuietly(Map<String, NdjsonFile> files) {
+        try {
+            close(files);
+        } catch (IOException ex) {
+            LOG.warn("Unable to close export file", ex);
+        }
+    }
+
+    private static void delete(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException ex) {
+                    LOG.warn("Unable to delete export file " + file, ex);
+                }
+            });
+        } catch (IOException ex) {
+            LOG.warn("Unable to delete export " + path, ex);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Type;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Turns imported Observations and Immunizations into the parameters of the VistA calls
+ * which save them, refusing those VistA could not take.
+ *
+ * Vital sign Observations go to DHPPATVITUPD, which knows vitals by SNOMED CT code, so the
+ * LOINC codes device feeds usually send are translated for the common vitals. Laboratory
+ * Observations go to DHPPATLABUPD and Immunizations to DHPPATIMMUPD, which records them
+ * against the VistA visit given as the Immunization's encounter.
+ */
+public class ImportMapper {
+
+    public enum Target {
+        VITALS(DataCategory.VITALS),
+        LABS(DataCategory.LABS),
+        IMMUNIZATION(DataCategory.IMMUNIZATION);
+
+        private final DataCategory category;
+
+        Target(DataCategory category) {
+            this.category = category;
+        }
+
+        /**
+         * @return the cached category the saved record belongs to
+         */
+        public DataCategory getCategory() {
+            return category;
+        }
+    }
+
+    private static final String VITAL_SIGNS = "vital-signs";
+    private static final String LABORATORY = "laboratory";
+    private static final Map<String, String> VITALS_BY_LOINC;
+
+    static {
+        Map<String, String> vitals = new HashMap<>();
+        vitals.put("29463-7", "27113001");  // Body weight
+        vitals.put("8302-2", "50373000");   // Body height
+        vitals.put("85354-9", "75367002");  // Blood pressure
+        vitals.put("55284-4", "75367002");  // Blood pressure
+        vitals.put("8867-4", "78564009");   // Pulse rate
+        vitals.put("9279-1", "86290005");   // Respiration
+        vitals.put("8310-5", "386725007");  // Body temperature
+        VITALS_BY_LOINC = Collections.unmodifiableMap(vitals);
+    }
+
+    private static final String SYSTOLIC = "8480-6";
+    private static final String DIASTOLIC = "8462-4";
+
+    private final String labLocation;
+
+    /**
+     * @param labLocation Optional. The VistA location lab results are filed under, without it labs are refused
+     */
+    public ImportMapper(String labLocation) {
+        this.labLocation = labLocation;
+    }
+
+    /**
+     * @return the VistA call to make for the resource
+     * @throws UnprocessableEntityException when the resource cannot be saved to VistA
+     */
+    public Record map(IBaseResource resource) {
+
+        if (resource instanceof Observation) {
+            return mapObservation((Observation) resource);
+        }
+        if (resource instanceof Immunization) {
+            return mapImmunization((Immunization) resource);
+        }
+        throw new UnprocessableEntityException(resource.fhirType() + " cannot be imported");
+    }
+
+    private Record mapObservation(Observation observation) {
+
+        String icn = getPatient(observation.getSubject(), "Observation.subject");
+        String date = toHl7(observation.getEffective(), "Observation.effectiveDateTime");
+
+        if (hasCode(observation, VITAL_SIGNS)) {
+            String[] value = getVitalValue(observation);
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("ICN", icn);
+            parameters.put("SCT", getVitalCode(observation.getCode()));
+            parameters.put("OBS", value[0]);
+            parameters.put("UNT", value[1]);
+            parameters.put("DTM", date);
+            return new Record(Target.VITALS, icn, parameters);
+        }
+
+        if (hasCode(observation, LABORATORY)) {
+            if (labLocation == null || labLocation.isEmpty()) {
+                throw new UnprocessableEntityException("Lab results cannot be imported, no lab location is configured");
+            }
+            String loinc = getCode(observation.getCode(), HcConstants.LOINC);
+            String test = observation.getCode().hasText() ? observation.getCode().getText() : getDisplay(observation.getCode());
+            if (loinc.isEmpty() && test.isEmpty()) {
+                throw new UnprocessableEntityException("Observation.code needs a LOINC code or a test name");
+            }
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("PAT", icn);
+            parameters.put("LOC", labLocation);
+            parameters.put("TEST", test);
+            parameters.put("RSLT", getLabValue(observation));
+            parameters.put("RSDT", date);
+            parameters.put("LOINC", loinc);
+            return new Record(Target.LABS, icn, parameters);
+        }
+
+        throw new UnprocessableEntityException("Only vital-signs and laboratory Observations can be imported");
+    }
+
+    private Record mapImmunization(Immunization immunization) {
+
+        String icn = getPatient(immunization.getPatient(), "Immunization.patient");
+        String visit = immunization.getEncounter().getReferenceElement().getIdPart();
+        if (visit == null) {
+            throw new UnprocessableEntityException("Immunization.encounter is required, VistA records immunizations against a visit");
+        }
+        String cvx = getCode(immunization.getVaccineCode(), HcConstants.VACCINE);
+        if (cvx.isEmpty()) {
+            throw new UnprocessableEntityException("Immunization.vaccineCode needs a CVX code");
+        }
+
+        String provider = "";
+        if (immunization.hasPerformer()) {
+            Reference actor = immunization.getPerformerFirstRep().getActor();
+            provider = actor.getIdentifier().hasValue() ? actor.getIdentifier().getValue() : valueOf(actor.getReferenceElement().getIdPart());
+        }
+
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("ICN", icn);
+        parameters.put("VIS", visit);
+        parameters.put("CVX", cvx);
+        parameters.put("LOC", getCodeOrText(immunization.getSite()));
+        parameters.put("ROU", getCodeOrText(immunization.getRoute()));
+        parameters.put("DOS", immunization.getDoseQuantity().hasValue() ? immunization.getDoseQuantity().getValue().toPlainString() : "");
+        parameters.put("DTM", toHl7(immunization.getOccurrence(), "Immunization.occurrenceDateTime"));
+        parameters.put("PROV", provider);
+        return new Record(Target.IMMUNIZATION, icn, parameters);
+    }
+
+    private static String getPatient(Reference reference, String element) {
+        String icn = reference.getReferenceElement().getIdPart();
+        if (icn == null && reference.getIdentifier().hasValue()) {
+            icn = reference.getIdentifier().getValue();
+        }
+        if (icn == null || icn.isEmpty()) {
+            throw new UnprocessableEntityException(element + " must reference the patient's ICN");
+        }
+        return icn;
+    }
+
+    private static boolean hasCode(Observation observation, String category) {
+        for (CodeableConcept concept : observation.getCategory()) {
+            for (Coding coding : concept.getCoding()) {
+                if (category.equals(coding.getCode())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getVitalCode(CodeableConcept code) {
+        String snomed = getCode(code, HcConstants.SNOMED_URN);
+        if (snomed.isEmpty()) {
+            snomed = VITALS_BY_LOINC.getOrDefault(getCode(code, HcConstants.LOINC), "");
+        }
+        if (snomed.isEmpty()) {
+            throw new UnprocessableEntityException("Observation.code needs a SNOMED CT code, or the LOINC code of a vital sign VistA records");
+        }
+        return snomed;
+    }
+
+    /**
+     * @return the value and its unit, blood pressure as systolic/diastolic
+     */
+    private static String[] getVitalValue(Observation observation) {
+
+        if (observation.hasValueQuantity() && observation.getValueQuantity().hasValue()) {
+            Quantity quantity = observation.getValueQuantity();
+            return new String[] {quantity.getValue().toPlainString(), getUnit(quantity)};
+        }
+
+        Quantity systolic = null;
+        Quantity diastolic = null;
+        for (Observation.ObservationComponentComponent component : observation.getComponent()) {
+            String loinc = getCode(component.getCode(), HcConstants.LOINC);
+            if (component.hasValueQuantity() && component.getValueQuantity().hasValue()) {
+                if (SYSTOLIC.equals(loinc)) {
+                    systolic = component.getValueQuantity();
+                } else if (DIASTOLIC.equals(loinc)) {
+                    diastolic = component.getValueQuantity();
+                }
+            }
+        }
+        if (systolic != null && diastolic != null) {
+            return new String[] {systolic.getValue().toPlainString() + "/" + diastolic.getValue().toPlainString(), getUnit(systolic)};
+        }
+
+        throw new UnprocessableEntityException("Observation.valueQuantity, or systolic and diastolic components, are required");
+    }
+
+    private static String getLabValue(Observation observation) {
+        if (observation.hasValueQuantity() && observation.getValueQuantity().hasValue()) {
+            return observation.getValueQuantity().getValue().toPlainString();
+        }
+        if (observation.hasValueStringType() && observation.getValueStringType().hasValue()) {
+            return observation.getValueStringType().getValue();
+        }
+        throw new UnprocessableEntityException("Observation.valueQuantity or valueString is required");
+    }
+
+    private static String getUnit(Quantity quantity) {
+        return quantity.hasUnit() ? quantity.getUnit() : valueOf(quantity.getCode());
+    }
+
+    private static String getCode(CodeableConcept concept, String system) {
+        for (Coding coding : concept.getCoding()) {
+            if (system.equals(coding.getSystem()) && coding.hasCode()) {
+                return coding.getCode();
+            }
+        }
+        return "";
+    }
+
+    private static String getDisplay(CodeableConcept concept) {
+        for (Coding coding : concept.getCoding()) {
+            if (coding.hasDisplay()) {
+                return coding.getDisplay();
+            }
+        }
+        return "";
+    }
+
+    private static String getCodeOrText(CodeableConcept concept) {
+        if (concept.hasCoding() && concept.getCodingFirstRep().hasCode()) {
+            return concept.getCodingFirstRep().getCode();
+        }
+        return valueOf(concept.getText());
+    }
+
+    /**
+     * VistA takes HL7 dates, in the time zone they were given in
+     */
+    private static String toHl7(Type value, String element) {
+        if (!(value instanceof BaseDateTimeType) || !((BaseDateTimeType) value).hasValue()) {
+            throw new UnprocessableEntityException(element + " is required");
+        }
+        BaseDateTimeType date = (BaseDateTimeType) value;
+        SimpleDateFormat format = new SimpleDateFormat(
+                date.getPrecision().ordinal() <= TemporalPrecisionEnum.DAY.ordinal() ? "yyyyMMdd" : "yyyyMMddHHmmssZ");
+        format.setTimeZone(date.getTimeZone() == null ? TimeZone.getDefault() : date.getTimeZone());
+        return format.format(date.getValue());
+    }
+
+    private static String valueOf(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * A VistA call to make for one imported resource
+     */
+    public static final class Record {
+
+        private final Target target;
+        private final String icn;
+        private final Map<String, String> parameters;
+
+        Record(Target target, String icn, Map<String, String> parameters) {
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                // The VistA side splits the body on these
+                if (parameter.getValue().contains(",") || parameter.getValue().contains(":")) {
+                    throw new UnprocessableEntityException(String.format("%s cannot contain a comma or colon: %s",
+                            parameter.getKey(), parameter.getValue()));
+                }
+            }
+            this.target = target;
+            this.icn = icn;
+            this.parameters = Collections.unmodifiableMap(parameters);
+        }
+
+        public Target getTarget() {
+            return target;
+        }
+
+        public String getIcn() {
+            return icn;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+    }
+}
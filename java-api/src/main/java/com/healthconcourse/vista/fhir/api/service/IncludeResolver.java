@@ -0,0 +1,271 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.data.Provider;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Resolves _include and _revinclude for patient searches from data already fetched for
+ * the patient, so a client gets referenced resources in the same response instead of
+ * following each reference with another call.
+ *
+ * Practitioners are resolved from the patient's encounter providers, by VistA id or by
+ * name. Providers seen for any patient are also kept in a bounded cache by VistA id,
+ * since observations can name a provider who is not on the patient's encounters; names
+ * are not unique across VistA, so they are only matched within the patient's own providers.
+ */
+public class IncludeResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncludeResolver.class);
+
+    public static final String ENCOUNTER_PARTICIPANT = "Encounter:participant";
+    public static final String OBSERVATION_PERFORMER = "Observation:performer";
+
+    private static final String PRACTITIONER_PREFIX = "/Practitioner/";
+    private static final String PRACTITIONER_ROLE_PREFIX = "/PractitionerRole/";
+    private static final Set<String> PATIENT_PARAMETERS = new HashSet<>(Arrays.asList("patient", "subject"));
+
+    private static final Map<String, Set<DataCategory>> COMPARTMENT = new HashMap<>();
+    static {
+        COMPARTMENT.put("AllergyIntolerance", EnumSet.of(DataCategory.ALLERGY));
+        COMPARTMENT.put("Appointment", EnumSet.of(DataCategory.APPOINTMENT));
+        COMPARTMENT.put("CarePlan", EnumSet.of(DataCategory.CARE_PLAN));
+        COMPARTMENT.put("Composition", EnumSet.of(DataCategory.NOTE));
+        COMPARTMENT.put("Condition", EnumSet.of(DataCategory.CONDITION));
+        COMPARTMENT.put("DiagnosticReport", EnumSet.of(DataCategory.DIAGNOSTIC_REPORT));
+        COMPARTMENT.put("Encounter", EnumSet.of(DataCategory.ENCOUNTER));
+        COMPARTMENT.put("Flag", EnumSet.of(DataCategory.FLAG));
+        COMPARTMENT.put("Goal", EnumSet.of(DataCategory.GOAL));
+        COMPARTMENT.put("Immunization", EnumSet.of(DataCategory.IMMUNIZATION));
+        COMPARTMENT.put("MedicationAdministration", EnumSet.of(DataCategory.MEDICATION_ADMINISTRATION));
+        COMPARTMENT.put("MedicationDispense", EnumSet.of(DataCategory.MEDICATION_DISPENSE));
+        COMPARTMENT.put("MedicationStatement", EnumSet.of(DataCategory.MEDICATION_STATEMENT));
+        COMPARTMENT.put("Observation", EnumSet.of(DataCategory.VITALS, DataCategory.LABS, DataCategory.HEALTH_FACTOR, DataCategory.MENTAL_HEALTH));
+        COMPARTMENT.put("Procedure", EnumSet.of(DataCategory.PROCEDURE));
+    }
+
+    private final PatientService service;
+    private final Cache<String, Provider> practitioners;
+
+    /**
+     * @param service Required. Loads the patient's data, normally through the snapshot cache
+     * @param maxPractitioners Required. How many providers to remember across patients
+     */
+    public IncludeResolver(PatientService service, long maxPractitioners) {
+        this(service, Caffeine.newBuilder()
+                .maximumSize(Math.max(maxPractitioners, 0))
+                .<String, Provider>build());
+    }
+
+    private IncludeResolver(PatientService service, Cache<String, Provider> practitioners) {
+        this.service = service;
+        this.practitioners = practitioners;
+    }
+
+    /**
+     * @return a resolver loading the patient's data through another service, sharing the providers remembered
+     */
+    public IncludeResolver withService(PatientService other) {
+        return other == service ? this : new IncludeResolver(other, practitioners);
+    }
+
+    /**
+     * @return copies of the encounters with each participant reference carrying the
+     * PractitionerRole it points to, where the provider is known
+     */
+    public List<Encounter> includeParticipants(String icn, List<Encounter> encounters) {
+
+        Map<String, Provider> providers = getProviders(icn);
+
+        List<Encounter> results = new ArrayList<>(encounters.size());
+        for (Encounter encounter : encounters) {
+            Encounter copy = encounter.copy();
+            for (Encounter.EncounterParticipantComponent participant : copy.getParticipant()) {
+                Provider provider = resolve(providers, participant.getIndividual(), PRACTITIONER_ROLE_PREFIX);
+                if (provider != null) {
+                    participant.getIndividual().setResource(createPractitionerRole(provider));
+                }
+            }
+            results.add(copy);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return copies of the observations with each performer reference carrying the
+     * Practitioner it points to, where the provider is known
+     */
+    public List<Observation> includePerformers(String icn, List<Observation> observations) {
+
+        Map<String, Provider> providers = getProviders(icn);
+
+        List<Observation> results = new ArrayList<>(observations.size());
+        for (Observation observation : observations) {
+            Observation copy = observation.copy();
+            for (Reference performer : copy.getPerformer()) {
+                Provider provider = resolve(providers, performer, PRACTITIONER_PREFIX);
+                if (provider != null) {
+                    String id = performer.getReference().substring(PRACTITIONER_PREFIX.length());
+                    performer.setResource(createPractitioner(id, provider));
+                }
+            }
+            results.add(copy);
+        }
+
+        return results;
+    }
+
+    /**
+     * The patient's resources named by _revinclude values such as "Encounter:patient" or
+     * "Observation:subject". A category which cannot be loaded is logged and left out.
+     *
+     * @throws InvalidRequestException when a value does not point at the patient compartment
+     */
+    public List<DomainResource> revInclude(String icn, Set<Include> revIncludes) {
+
+        return getResources(icn, getRevIncludeCategories(revIncludes));
+    }
+
+    /**
+     * @return the compartment categories _revinclude values such as "Encounter:patient" ask for
+     * @throws InvalidRequestException when a value does not point at the patient compartment
+     */
+    public Set<DataCategory> getRevIncludeCategories(Set<Include> revIncludes) {
+
+        Set<DataCategory> categories = EnumSet.noneOf(DataCategory.class);
+        for (Include include : revIncludes) {
+            String type = include.getParamType();
+            if (!COMPARTMENT.containsKey(type) || !PATIENT_PARAMETERS.contains(include.getParamName())) {
+                throw new InvalidRequestException("_revinclude is only supported for the patient or subject of "
+                        + String.join(", ", new TreeSet<>(COMPARTMENT.keySet())) + ": " + include.getValue());
+            }
+            categories.addAll(COMPARTMENT.get(type));
+        }
+
+        return categories;
+    }
+
+    /**
+     * The patient's resources of some compartment categories. A category which cannot be
+     * loaded is logged and left out.
+     */
+    public List<DomainResource> getResources(String icn, Set<DataCategory> categories) {
+
+        List<DomainResource> results = new ArrayList<>();
+        for (DataCategory category : categories) {
+            try {
+                results.addAll(service.getResources(icn, category));
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to fetch or parse " + category, ex);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Index the patient's providers by VistA id and by name, remembering them by VistA id
+     * for later lookups of providers this patient has not seen
+     */
+    private Map<String, Provider> getProviders(String icn) {
+
+        Map<String, Provider> providers = new HashMap<>();
+        for (Provider provider : service.getEncounterProviders(icn)) {
+            for (String key : keys(provider)) {
+                providers.put(key, provider);
+            }
+            practitioners.put(provider.getVistaId().toUpperCase(Locale.ROOT), provider);
+        }
+
+        return providers;
+    }
+
+    private Provider resolve(Map<String, Provider> providers, Reference reference, String prefix) {
+
+        String value = reference.getReference();
+        if (value == null || !value.startsWith(prefix)) {
+            return null;
+        }
+
+        String key = value.substring(prefix.length()).toUpperCase(Locale.ROOT);
+        Provider provider = providers.get(key);
+
+        return provider != null ? provider : practitioners.getIfPresent(key);
+    }
+
+    private static List<String> keys(Provider provider) {
+
+        if (provider.getName() == null || provider.getName().isEmpty()) {
+            return Collections.singletonList(provider.getVistaId().toUpperCase(Locale.ROOT));
+        }
+
+        return Arrays.asList(provider.getVistaId().toUpperCase(Locale.ROOT), provider.getName().toUpperCase(Locale.ROOT));
+    }
+
+    private static PractitionerRole createPractitionerRole(Provider provider) {
+
+        PractitionerRole role = new PractitionerRole();
+        role.setId(new IdType("PractitionerRole", provider.getVistaId()));
+        role.setPractitioner(ResourceHelper.createReference(HcConstants.URN_VISTA_PROVIDER, provider.getVistaId(), provider.getName(),
+                ResourceHelper.ReferenceType.Practitioner));
+        if (provider.getRole() != null) {
+            role.addCode().setText(provider.getRole());
+        }
+        role.setMeta(ResourceHelper.getVistaMeta());
+
+        return role;
+    }
+
+    private static Practitioner createPractitioner(String id, Provider provider) {
+
+        Practitioner practitioner = new Practitioner();
+        practitioner.setId(new IdType("Practitioner", id));
+        practitioner.addIdentifier().setSystem(HcConstants.URN_VISTA_PROVIDER).setValue(provider.getVistaId());
+        if (provider.getName() != null && !provider.getName().isEmpty()) {
+            String[] nameParts = provider.getName().split(",");
+            HumanName name = practitioner.addName().setFamily(nameParts[0]);
+            if (nameParts.length > 1) {
+                name.addGiven(nameParts[1]);
+            }
+        }
+        practitioner.setMeta(ResourceHelper.getVistaMeta());
+
+        return practitioner;
+    }
+}
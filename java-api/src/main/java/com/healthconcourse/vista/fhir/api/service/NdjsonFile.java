@@ -0,0 +1,96 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzipped NDJSON export file which can be cut back to a checkpoint and appended to.
+ *
+ * Each checkpoint ends the current gzip member, so the file up to the checkpointed
+ * offset is complete on its own. Resuming truncates anything written after it and
+ * starts a new member; readers see the members as one continuous stream.
+ */
+class NdjsonFile {
+
+    private final FileChannel channel;
+    private final OutputStream out;
+    private GZIPOutputStream gzip;
+    private Writer writer;
+
+    /**
+     * @param path Required. The file
+     * @param offset Required. Where the last checkpoint ended, 0 for a new file
+     */
+    NdjsonFile(Path path, long offset) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(offset);
+        channel.position(offset);
+        out = Channels.newOutputStream(channel);
+        startMember();
+    }
+
+    void write(String line) throws IOException {
+        writer.write(line);
+        writer.write("\n");
+    }
+
+    /**
+     * End the current gzip member and start another
+     *
+     * @return the length of the file, everything up to which is safely written
+     */
+    long checkpoint() throws IOException {
+        writer.flush();
+        gzip.finish();
+        channel.force(false);
+        long offset = channel.position();
+        startMember();
+        return offset;
+    }
+
+    void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void startMember() throws IOException {
+        gzip = new GZIPOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        });
+        writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.service;
+
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshot;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads the demographics of many patients at once, such as every member of a cohort.
+ *
+ * Patients are read through the snapshot cache, a bounded number at a time, and the
+ * reads which have to go to VistA are paced by a {@link RateLimiter}. Results are
+ * collected in order as the oldest outstanding read completes, so no more than the
+ * window of reads is ever pending however large the list is.
+ */
+public class PatientFetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientFetcher.class);
+
+    private final PatientService patients;
+    private final PatientSnapshotCache snapshots;
+    private final Executor executor;
+    private final RateLimiter limiter;
+    private final int maxInFlight;
+
+    /**
+     * @param patients Required. Reads a single patient
+     * @param snapshots Required. The cache the patients are read through, cached patients are not paced
+     * @param executor Required. Runs the reads
+     * @param limiter Required. Paces the reads that go to VistA
+     * @param maxInFlight Required. The most reads outstanding at once
+     */
+    public PatientFetcher(PatientService patients, PatientSnapshotCache snapshots, Executor executor, RateLimiter limiter, int maxInFlight) {
+        this.patients = patients;
+        this.snapshots = snapshots;
+        this.executor = executor;
+        this.limiter = limiter;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+    }
+
+    /**
+     * @return a result per ICN, in the same order, empty where the patient could not be read
+     */
+    public List<Optional<Patient>> fetch(List<String> icns) {
+
+        List<Optional<Patient>> results = new ArrayList<>(icns.size());
+        Deque<CompletableFuture<Optional<Patient>>> window = new ArrayDeque<>();
+
+        for (String icn : icns) {
+            if (window.size() >= maxInFlight) {
+                results.add(window.removeFirst().join());
+            }
+            window.addLast(CompletableFuture.supplyAsync(() -> read(icn), executor));
+        }
+
+        while (!window.isEmpty()) {
+            results.add(window.removeFirst().join());
+        }
+
+        return results;
+    }
+
+    private Optional<Patient> read(String icn) {
+        try {
+            if (!isCached(icn)) {
+                limiter.acquire(1);
+            }
+            return Optional.of(patients.getPatientById(icn));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (RuntimeException ex) {
+            LOG.debug(String.format("Unable to read patient %s: %s", icn, ex.getMessage()));
+            return Optional.empty();
+        }
+    }
+
+    private boolean isCached(String icn) {
+        PatientSnapshot snapshot = snapshots.getIfPresent(icn);
+        return snapshot != null && snapshot.getCachedCategories().contains(DataCategory.PATIENT);
+    }
+}
@@ -17,29 +17,54 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api.service;
 
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.ObservationIndex;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeriesIndex;
+import com.healthconcourse.vista.fhir.api.data.Provider;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.*;
 
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface PatientService {
 
     Patient getPatientById(String id);
     List<Patient> findPatient(String name, Date dob, String ssn, Enumerations.AdministrativeGender gender);
     List<Patient> getAllPatients(HashMap<String, String> options);
+    int countPatients(HashMap<String, String> options);
     List<Condition> getConditionsForPatient(String patientIcn);
     List<Condition> getConditionsForPatient(HashMap<String, String> options);
     List<Encounter> getEncountersForPatient(String patientIcn);
+    List<Provider> getEncounterProviders(String patientIcn);
     List<Observation> getObservationsByIcn(String id);
+    List<Observation> getObservationsByIcn(String id, Projection projection);
+    List<Observation> getObservationsByIcnAndCategory(String id, String category);
+    List<Observation> getObservationsByIcnAndCategory(String id, String category, Projection projection);
     List<Observation> getObservationsByIcnAndCode(String id, String code);
+    List<Observation> getObservationsByIcnAndCode(String id, String code, String category);
+    int countObservations(String id, String category);
+    ObservationIndex getObservationIndex(String id);
+    ObservationSeriesIndex getObservationSeries(String id);
+    ObservationSeriesIndex getObservationSeries(String id, Date from, Date to);
+    List<Observation> getLastObservations(String id, String category, String code, int max);
     List<MedicationStatement> getMedicationStatement(String patientIcn);
+    List<MedicationStatement> getMedicationStatement(String patientIcn, Projection projection);
     List<MedicationStatement> getMedicationStatement(HashMap<String, String> options);
     List<MedicationDispense> getMedicationDispense(String patientIcn);
+    List<MedicationDispense> getMedicationDispense(String patientIcn, Projection projection);
     List<MedicationAdministration> getMMedicationAdministration(String patientIcn);
+    List<MedicationAdministration> getMMedicationAdministration(String patientIcn, Projection projection);
     List<Procedure> getProcedures(String patientIcn);
     List<Practitioner> getPractitionersById(String patientIcn);
+    List<? extends DomainResource> getResources(String patientIcn, DataCategory category);
+    int countResources(String patientIcn, DataCategory category);
     List<DomainResource> getEverything(String patientIcn);
+    CompletableFuture<List<DomainResource>> getEverything(String patientIcn, Executor executor);
     List<Flag> getFlagsByIcn(String patientIcn);
     List<Appointment> getAppointmentsByIcn(String patientIcn);
     List<AllergyIntolerance> getAllergyByIcn(String patientIcn);
@@ -48,4 +73,10 @@ public interface PatientService {
     List<DiagnosticReport> getDiagnosticReport(String patientIcn);
     List<CarePlan> getCarePlan(String patientIcn);
     List<Composition> getTiuNotes(String patientIcn);
+    List<Composition> getTiuNotes(String patientIcn, Projection projection);
+
+    /**
+     * @return a service reading from other VistA data, sharing this one's caches
+     */
+    PatientService withData(VistaData data);
 }
@@ -16,6 +16,8 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api.service;
 
+import com.healthconcourse.vista.fhir.api.cache.AccessKind;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
 import com.healthconcourse.vista.fhir.api.parser.CareTeamParser;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.CareTeam;
@@ -24,18 +26,26 @@ import java.util.List;
 
 public class VistaCareTeamService implements CareTeamService {
     private VistaData service;
+    private ReferenceDataCache cache;
 
     public VistaCareTeamService(VistaData vista) {
+        this(vista, ReferenceDataCache.disabled());
+    }
+
+    public VistaCareTeamService(VistaData vista, ReferenceDataCache cache) {
         this.service = vista;
+        this.cache = cache;
     }
 
     @Override
     public List<CareTeam> getCareTeamByName(String name) {
-        String httpJson = service.getCareTeamByHame(name);
+        return cache.get(AccessKind.CARE_TEAM, name, () -> {
+            String httpJson = service.getCareTeamByHame(name);
 
-        CareTeamParser parser = new CareTeamParser();
+            CareTeamParser parser = new CareTeamParser();
 
-        return parser.parseList(httpJson);
+            return parser.parseList(httpJson);
+        });
     }
 
     @Override
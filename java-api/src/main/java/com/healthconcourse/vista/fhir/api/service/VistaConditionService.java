@@ -17,27 +17,118 @@ limitations under the License.
 package com.healthconcourse.vista.fhir.api.service;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.CohortIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
 import com.healthconcourse.vista.fhir.api.parser.PatientParser;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Patient;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 public class VistaConditionService implements ConditionService {
 
     private VistaData service;
+    private CohortIndex cohorts;
+    private PatientSearchIndex patients;
+    private PatientFetcher fetcher;
 
     public VistaConditionService(VistaData data) {
+        this(data, new CohortIndex(), new PatientSearchIndex(),
+                new PatientFetcher(new VistaPatientService(data), PatientSnapshotCache.disabled(), Runnable::run, new RateLimiter(0), 1));
+    }
+
+    public VistaConditionService(VistaData data, CohortIndex cohortIndex, PatientSearchIndex patientIndex, PatientFetcher patientFetcher) {
         service = data;
+        cohorts = cohortIndex;
+        patients = patientIndex;
+        fetcher = patientFetcher;
     }
 
     @Override
     public List<Patient> getPatientsByCode(String code) {
 
+        if (cohorts.isReady()) {
+            return toPatients(cohorts.find(Collections.singleton(code), Collections.emptySet(), Collections.emptySet()),
+                    Collections.emptyMap(), false);
+        }
+
+        return getPatientsFromVista(code);
+    }
+
+    @Override
+    public List<Patient> getPatientsByCodes(String all, String any, String none, boolean materialize) {
+
+        Set<String> allCodes = parseCodes(all);
+        Set<String> anyCodes = parseCodes(any);
+        Set<String> noneCodes = parseCodes(none);
+
+        if (allCodes.isEmpty() && anyCodes.isEmpty()) {
+            throw new InvalidRequestException("At least one code is required in all or any");
+        }
+
+        Map<String, Patient> found = new LinkedHashMap<>();
+        List<String> icns = cohorts.isReady() ? cohorts.find(allCodes, anyCodes, noneCodes)
+                : findInVista(allCodes, anyCodes, noneCodes, found);
+
+        return toPatients(icns, found, materialize);
+    }
+
+    /**
+     * Without the cohort index, each code is one VistA search and the sets are combined here
+     */
+    private List<String> findInVista(Set<String> allCodes, Set<String> anyCodes, Set<String> noneCodes, Map<String, Patient> found) {
+
+        Set<String> result = null;
+
+        for (String code : allCodes) {
+            Set<String> icns = getIcnsFromVista(code, found);
+            if (result == null) {
+                result = icns;
+            } else {
+                result.retainAll(icns);
+            }
+        }
+
+        if (!anyCodes.isEmpty()) {
+            Set<String> either = new LinkedHashSet<>();
+            for (String code : anyCodes) {
+                either.addAll(getIcnsFromVista(code, found));
+            }
+            if (result == null) {
+                result = either;
+            } else {
+                result.retainAll(either);
+            }
+        }
+
+        for (String code : noneCodes) {
+            if (!result.isEmpty()) {
+                result.removeAll(getIcnsFromVista(code, found));
+            }
+        }
+
+        return new ArrayList<>(result);
+    }
+
+    private List<Patient> getPatientsFromVista(String code) {
+
         String httpBody = service.getPatientsByCondition(code);
 
         PatientParser parser = new PatientParser();
@@ -45,6 +136,74 @@ public class VistaConditionService implements ConditionService {
         return parser.parseCodeList(httpBody);
     }
 
+    private Set<String> getIcnsFromVista(String code, Map<String, Patient> found) {
+
+        Set<String> icns = new LinkedHashSet<>();
+        for (Patient patient : getPatientsFromVista(code)) {
+            String icn = patient.getIdElement().getIdPart();
+            icns.add(icn);
+            found.putIfAbsent(icn, patient);
+        }
+        return icns;
+    }
+
+    /**
+     * Patients are returned with the demographics held in the patient index where it has
+     * them. The rest are read from VistA when materializing, and are otherwise returned as
+     * the bare references VistA searches give
+     *
+     * @param stubs The bare references already returned by VistA, by ICN
+     */
+    private List<Patient> toPatients(List<String> icns, Map<String, Patient> stubs, boolean materialize) {
+
+        List<Patient> result = new ArrayList<>(icns.size());
+        List<Integer> positions = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String icn : icns) {
+            Optional<Patient> indexed = patients.get(icn);
+            if (!indexed.isPresent() && materialize) {
+                positions.add(result.size());
+                missing.add(icn);
+            }
+            result.add(indexed.orElseGet(() -> stubs.containsKey(icn) ? stubs.get(icn) : createReference(icn)));
+        }
+
+        if (!missing.isEmpty()) {
+            List<Optional<Patient>> fetched = fetcher.fetch(missing);
+            for (int i = 0; i < fetched.size(); i++) {
+                if (fetched.get(i).isPresent()) {
+                    result.set(positions.get(i), fetched.get(i).get());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static Patient createReference(String icn) {
+        Patient patient = new Patient();
+        patient.setId(new IdType("Patient", icn, "" + HcConstants.VERSION));
+        patient.addIdentifier().setSystem(HcConstants.URN_VISTA_ICN).setValue(icn);
+        patient.setMeta(ResourceHelper.getVistaMeta());
+        return patient;
+    }
+
+    private static Set<String> parseCodes(String value) {
+
+        Set<String> codes = new LinkedHashSet<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                String code = item.substring(item.indexOf('|') + 1).trim();
+                if (!code.isEmpty()) {
+                    codes.add(code);
+                }
+            }
+        }
+
+        return codes;
+    }
+
     @Override
     public MethodOutcome putCondition(Condition theCondition) {
         MethodOutcome methodOutcome = new MethodOutcome();
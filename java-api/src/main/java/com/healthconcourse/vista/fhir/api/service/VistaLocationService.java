@@ -17,36 +17,65 @@ limitations under the License.
 package com.healthconcourse.vista.fhir.api.service;
 
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.AccessKind;
+import com.healthconcourse.vista.fhir.api.cache.LocationDirectory;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
 import com.healthconcourse.vista.fhir.api.parser.LocationParser;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.Location;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 public class VistaLocationService implements LocationService {
 
     private static final Logger LOG = LoggerFactory.getLogger(VistaLocationService.class);
     private VistaData service;
+    private ReferenceDataCache cache;
+    private LocationDirectory directory;
 
     public VistaLocationService(VistaData data) {
+        this(data, ReferenceDataCache.disabled());
+    }
+
+    public VistaLocationService(VistaData data, ReferenceDataCache cache) {
+        this(data, cache, null);
+    }
+
+    /**
+     * @param directory Optional. Answers for the locations it holds, and is given those read from VistA
+     */
+    public VistaLocationService(VistaData data, ReferenceDataCache cache, LocationDirectory directory) {
         this.service = data;
+        this.cache = cache;
+        this.directory = directory;
     }
 
     @Override
     public Location findLocationByName(String name) {
-        String httpBody = service.getLocationByName(name);
-
-        LocationParser parser = new LocationParser();
-
-        Optional<Location> location = parser.parseSingleLocation(httpBody);
-
-        if(location.isPresent()) {
-            return  location.get();
-        } else {
-            LOG.error(String.format("Unable to parse location for %s", name));
-            throw new ResourceNotFoundException(name);
+        if (directory != null) {
+            Optional<Location> known = directory.getByName(name);
+            if (known.isPresent()) {
+                return known.get();
+            }
         }
+        List<Location> location = cache.get(AccessKind.LOCATION, name, () -> {
+            String httpBody = service.getLocationByName(name);
+            LocationParser parser = new LocationParser();
+            Optional<Location> result = parser.parseSingleLocation(httpBody);
+            if(result.isPresent()) {
+                if (directory != null) {
+                    directory.put(name, result.get());
+                }
+                return Collections.singletonList(result.get());
+            } else {
+                LOG.error(String.format("Unable to parse location for %s", name));
+                throw new ResourceNotFoundException(name);
+            }
+        });
+        return location.get(0);
     }
 }
@@ -19,8 +19,16 @@ package com.healthconcourse.vista.fhir.api.service;
 
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.ObservationIndex;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeriesIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshot;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
 import com.healthconcourse.vista.fhir.api.data.Provider;
 import com.healthconcourse.vista.fhir.api.parser.*;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
 import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
 import com.healthconcourse.vista.fhir.api.vista.VistaData;
 import org.hl7.fhir.r4.model.*;
@@ -29,28 +37,89 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
 public class VistaPatientService implements PatientService {
 
     private static final Logger LOG = LoggerFactory.getLogger(VistaPatientService.class);
+    private static final String OBSERVATION_INDEX = "observation-index";
+    private static final String OBSERVATION_SERIES = "observation-series";
+    private static final Executor DEFAULT_EXECUTOR = ForkJoinPool.getCommonPoolParallelism() > 1
+            ? ForkJoinPool.commonPool() : runnable -> new Thread(runnable).start();
+    private static final Map<String, DataCategory> OBSERVATION_CATEGORIES = new LinkedHashMap<>();
+
+    static {
+        OBSERVATION_CATEGORIES.put("vital-signs", DataCategory.VITALS);
+        OBSERVATION_CATEGORIES.put("laboratory", DataCategory.LABS);
+        OBSERVATION_CATEGORIES.put("social-history", DataCategory.HEALTH_FACTOR);
+        OBSERVATION_CATEGORIES.put("survey", DataCategory.MENTAL_HEALTH);
+    }
+
     private VistaData service;
+    private PatientSnapshotCache snapshots;
+    private PatientSearchIndex searchIndex;
+    private KnownPatientFilter knownPatients;
 
     public VistaPatientService(VistaData data) {
+        this(data, PatientSnapshotCache.disabled());
+    }
+
+    public VistaPatientService(VistaData data, PatientSnapshotCache cache) {
+        this(data, cache, new PatientSearchIndex(), new KnownPatientFilter(HcConstants.DEFAULT_KNOWN_PATIENT_FALSE_POSITIVE_RATE));
+    }
+
+    public VistaPatientService(VistaData data, PatientSnapshotCache cache, PatientSearchIndex index, KnownPatientFilter known) {
         service = data;
+        snapshots = cache;
+        searchIndex = index;
+        knownPatients = known;
+    }
+
+    @Override
+    public PatientService withData(VistaData data) {
+        return new VistaPatientService(data, snapshots, searchIndex, knownPatients);
     }
 
     @Override
     public Patient getPatientById(String icn) {
 
-        String httpBody = service.getPatientData(icn);
-        PatientParser parser = new PatientParser();
-        Optional<Patient> patient = parser.parseSingle(httpBody);
-        if (patient.isPresent()) {
-            return patient.get();
-        } else {
-            //TODO: better here
+        // A patient missing from the known patient filter may have been registered since it
+        // was filled, so VistA is asked; the answer is remembered either way
+        if (knownPatients.isRecentlyMissing(icn)) {
             throw new ResourceNotFoundException(icn);
         }
+        boolean known = knownPatients.mightContain(icn);
+
+        List<Patient> patient;
+        try {
+            patient = snapshots.get(icn, DataCategory.PATIENT, Projection.ALL, () -> service.getPatientData(icn), httpBody -> {
+                PatientParser parser = new PatientParser();
+                Optional<Patient> result = parser.parseSingle(httpBody);
+                if (result.isPresent()) {
+                    return Collections.singletonList(result.get());
+                } else {
+                    //TODO: better here
+                    throw new ResourceNotFoundException(icn);
+                }
+            });
+        } catch (ResourceNotFoundException ex) {
+            if (!known) {
+                knownPatients.putMissing(icn);
+            }
+            throw ex;
+        }
+
+        if (!known) {
+            knownPatients.put(icn);
+        }
+
+        return patient.get(0);
     }
 
     @Override
@@ -65,6 +134,12 @@ public class VistaPatientService implements PatientService {
 
     @Override
     public List<Patient> getAllPatients(HashMap<String, String> options) {
+
+        Optional<List<Patient>> indexed = searchIndex.search(options);
+        if (indexed.isPresent()) {
+            return indexed.get();
+        }
+
         String httpBody = service.getAllPatients(options);
 
         PatientParser parser = new PatientParser();
@@ -72,6 +147,21 @@ public class VistaPatientService implements PatientService {
         return parser.parseList(httpBody);
     }
 
+    /**
+     * Count the patients a search matches without building them. The index counts every
+     * match, otherwise the patients in the page VistA returns are counted.
+     */
+    @Override
+    public int countPatients(HashMap<String, String> options) {
+
+        Optional<Integer> indexed = searchIndex.count(options);
+        if (indexed.isPresent()) {
+            return indexed.get();
+        }
+
+        return new PatientParser().countList(service.getAllPatients(options));
+    }
+
     @Override
     public List<Condition> getConditionsForPatient(HashMap<String, String> options) {
 
@@ -85,11 +175,9 @@ public class VistaPatientService implements PatientService {
     @Override
     public List<Condition> getConditionsForPatient(String ICN) {
 
-        String httpBody = service.getConditions(ICN);
-
         ConditionParser parser = new ConditionParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(ICN, DataCategory.CONDITION, () -> service.getConditions(ICN), parser::parseList);
     }
 
     @Override
@@ -98,14 +186,17 @@ public class VistaPatientService implements PatientService {
         List<Encounter> results = new ArrayList<>();
         HashMap<String, List<Provider>> providerData = new HashMap<String, List<Provider>>();
 
-        CompletableFuture<List<Encounter>> encounterFetcher = CompletableFuture.supplyAsync(() -> service.getEncountersByPatient(code))
-                .thenApply(httpBody -> {
+        CompletableFuture<List<Encounter>> encounterFetcher = CompletableFuture.supplyAsync(() ->
+                getCategory(code, DataCategory.ENCOUNTER, () -> service.getEncountersByPatient(code), httpBody -> {
                     EncounterParser parser = new EncounterParser();
                     return parser.parseList(httpBody);
-                })
+                }))
                 .whenComplete((encounters, exception) -> {
                     if (exception == null) {
-                        results.addAll(encounters);
+                        // Cached encounters are shared, participants are added to a copy
+                        for (Encounter encounter : encounters) {
+                            results.add(encounter.copy());
+                        }
                     } else {
                         LOG.error("Unable to fetch or parse Encounters", exception);
                     }
@@ -114,11 +205,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Provider>> practitionerFetcher = CompletableFuture.supplyAsync(() -> service.getProvidersByIcn(code))
-                .thenApply(httpBody -> {
-                    ProviderParser parser = new ProviderParser();
-                    return parser.parseList(httpBody);
-                })
+        CompletableFuture<List<Provider>> practitionerFetcher = CompletableFuture.supplyAsync(() -> getEncounterProviders(code))
                 .whenComplete((providers, exception) -> {
                     if (exception == null) {
                         for (Provider item : providers) {
@@ -153,6 +240,14 @@ public class VistaPatientService implements PatientService {
         return results;
     }
 
+    @Override
+    public List<Provider> getEncounterProviders(String code) {
+
+        ProviderParser parser = new ProviderParser();
+
+        return getCategory(code, DataCategory.ENCOUNTER_PROVIDER, () -> service.getProvidersByIcn(code), parser::parseList);
+    }
+
     private Encounter.EncounterParticipantComponent getParticipant(Provider provider) {
 
         Encounter.EncounterParticipantComponent participant = new Encounter.EncounterParticipantComponent();
@@ -183,98 +278,331 @@ public class VistaPatientService implements PatientService {
     @Override
     public List<Observation> getObservationsByIcn(String id) {
 
-        List<Observation> results = new ArrayList<>();
+        return getObservationsByIcn(id, Projection.ALL);
+    }
 
-        CompletableFuture<List<Observation>> vitals = CompletableFuture.supplyAsync(() -> service.getVitalsObservationsByIcn(id))
-                .thenApply(x -> {
-                    ObservationParser parser = new ObservationParser();
-                    return parser.parseVitalsList(x);
-                })
-                .whenComplete((observations, exception) -> {
-                    if (exception == null) {
-                        results.addAll(observations);
-                    } else {
-                        LOG.error("Unable to fetch or parse Vitals", exception);
-                    }
-                }).exceptionally(ex -> {
-                    LOG.error("Unable to fetch or parse Vitals", ex);
-                    return null;
-                });
+    @Override
+    public List<Observation> getObservationsByIcn(String id, Projection projection) {
 
+        return getObservations(id, EnumSet.copyOf(OBSERVATION_CATEGORIES.values()), projection);
+    }
 
-        CompletableFuture<List<Observation>> labs = CompletableFuture.supplyAsync(() -> service.getLabObservationsByIcn(id))
-                .thenApply(x -> {
-                    ObservationParser parser = new ObservationParser();
-                    return parser.parseLabsList(x);
-                })
-                .whenComplete((observations, exception) -> {
-                    if (exception == null) {
-                        results.addAll(observations);
-                    } else {
-                        LOG.error("Unable to fetch or parse labs", exception);
-                    }
-                }).exceptionally(ex -> {
-                    LOG.error("Unable to fetch or parse labs", ex);
-                    return null;
-                });
+    @Override
+    public List<Observation> getObservationsByIcnAndCategory(String id, String category) {
 
+        return getObservationsByIcnAndCategory(id, category, Projection.ALL);
+    }
 
-        CompletableFuture<List<Observation>> healthFactors = CompletableFuture.supplyAsync(() -> service.getHealthFactorObservationsByIcn(id))
-                .thenApply(x -> {
-                    ObservationParser parser = new ObservationParser();
-                    return parser.parseHealthFactorsList(x);
-                })
-                .whenComplete((observations, exception) -> {
-                    if (exception == null) {
-                        results.addAll(observations);
-                    } else {
-                        LOG.error("Unable to fetch or parse Health Factors", exception);
-                    }
-                }).exceptionally(ex -> {
-                    LOG.error("Unable to fetch or parse Health Factors", ex);
-                    return null;
-                });
+    @Override
+    public List<Observation> getObservationsByIcnAndCategory(String id, String category, Projection projection) {
 
-        CompletableFuture<List<Observation>> mentalHealth = CompletableFuture.supplyAsync(() -> service.getMentalHealthObservationsByIcn(id))
-                .thenApply(x -> {
-                    ObservationParser parser = new ObservationParser();
-                    return parser.parseMentalHealthList(x);
-                })
-                .whenComplete((observations, exception) -> {
-                    if (exception == null) {
-                        results.addAll(observations);
-                    } else {
-                        LOG.error("Unable to fetch or parse Mental Health", exception);
-                    }
-                }).exceptionally(ex -> {
-                    LOG.error("Unable to fetch or parse Mental Health", ex);
-                    return null;
+        Set<DataCategory> categories = EnumSet.noneOf(DataCategory.class);
+
+        for (String value : parseCodes(category)) {
+            DataCategory match = OBSERVATION_CATEGORIES.get(value);
+            if (match != null) {
+                categories.add(match);
+            }
+        }
+
+        return getObservations(id, categories, projection);
+    }
+
+    @Override
+    public List<Observation> getObservationsByIcnAndCode(String id, String code) {
+
+        return getObservationsByIcnAndCode(id, code, null);
+    }
+
+    /**
+     * Observations with any of the codes, optionally only those in one of the categories.
+     * An observation matching several of the codes is returned once.
+     */
+    @Override
+    public List<Observation> getObservationsByIcnAndCode(String id, String code, String category) {
+
+        ObservationIndex index = getObservationIndex(id);
+        Predicate<Observation> filter = inCategories(category);
+
+        Set<Observation> results = new LinkedHashSet<>();
+        for (String value : code.split(",")) {
+            for (Observation observation : index.find(value.trim())) {
+                if (filter.test(observation)) {
+                    results.add(observation);
+                }
+            }
+        }
+
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Count observations, optionally of some categories, without building them. Like
+     * the search, a category which cannot be loaded is logged and counted as empty.
+     */
+    @Override
+    public int countObservations(String id, String category) {
+
+        Collection<DataCategory> categories = OBSERVATION_CATEGORIES.values();
+        if (category != null) {
+            categories = EnumSet.noneOf(DataCategory.class);
+            for (String value : parseCodes(category)) {
+                DataCategory match = OBSERVATION_CATEGORIES.get(value);
+                if (match != null) {
+                    categories.add(match);
+                }
+            }
+        }
+
+        int result = 0;
+        for (DataCategory match : EnumSet.copyOf(categories)) {
+            try {
+                result += countResources(id, match);
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to fetch or count " + match, ex);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public List<Observation> getLastObservations(String id, String category, String code, int max) {
+
+        ObservationIndex index = getObservationIndex(id);
+        Predicate<Observation> filter = inCategories(category);
+
+        Collection<String> codes = index.getCodes();
+        if (code != null) {
+            codes = new LinkedHashSet<>();
+            for (String value : code.split(",")) {
+                codes.add(value.trim());
+            }
+        }
+
+        // An observation with several codings is found under each of them, it is returned once
+        Set<Observation> results = new LinkedHashSet<>();
+        for (String value : codes) {
+            results.addAll(index.findLatest(value, max, filter));
+        }
+
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * @param category Optional. Comma separated category codes, everything matches when null
+     */
+    private static Predicate<Observation> inCategories(String category) {
+
+        if (category == null) {
+            return observation -> true;
+        }
+
+        Set<String> categories = parseCodes(category);
+        return observation -> observation.getCategory().stream()
+                .flatMap(concept -> concept.getCoding().stream())
+                .anyMatch(coding -> categories.contains(coding.getCode()));
+    }
+
+    @Override
+    public ObservationIndex getObservationIndex(String id) {
+
+        List<List<Observation>> sources = loadObservationLists(id, EnumSet.copyOf(OBSERVATION_CATEGORIES.values()), Projection.ALL);
+
+        return snapshots.derive(id, OBSERVATION_INDEX, sources, () -> ObservationIndex.build(sources));
+    }
+
+    @Override
+    public ObservationSeriesIndex getObservationSeries(String id) {
+
+        List<List<Observation>> sources = loadObservationLists(id, EnumSet.of(DataCategory.VITALS, DataCategory.LABS), Projection.ALL);
+
+        return snapshots.derive(id, OBSERVATION_SERIES, sources, () -> ObservationSeriesIndex.build(sources));
+    }
+
+    /**
+     * Series limited to a date range. When the patient's vitals and labs are already
+     * cached the full series are used, the caller narrows them down. Otherwise only the
+     * range is requested from VistA, and the result is not cached since it is partial.
+     * As with the full series, a category which cannot be loaded is logged and left empty.
+     */
+    @Override
+    public ObservationSeriesIndex getObservationSeries(String id, Date from, Date to) {
+
+        PatientSnapshot snapshot = snapshots.getIfPresent(id);
+        if ((from == null && to == null)
+                || (snapshot != null && snapshot.getCachedCategories().containsAll(EnumSet.of(DataCategory.VITALS, DataCategory.LABS)))) {
+            return getObservationSeries(id);
+        }
+
+        if (!isKnown(id)) {
+            return ObservationSeriesIndex.build(Collections.emptyList());
+        }
+
+        CompletableFuture<List<Observation>> vitals = CompletableFuture.supplyAsync(() ->
+                new ObservationParser().parseVitalsList(service.getVitalsObservationsByIcn(id, from, to)))
+                .exceptionally(ex -> {
+                    LOG.error("Unable to fetch or parse " + DataCategory.VITALS, ex);
+                    return Collections.emptyList();
+                });
+        CompletableFuture<List<Observation>> labs = CompletableFuture.supplyAsync(() ->
+                new ObservationParser().parseLabsList(service.getLabObservationsByIcn(id, from, to)))
+                .exceptionally(ex -> {
+                    LOG.error("Unable to fetch or parse " + DataCategory.LABS, ex);
+                    return Collections.emptyList();
                 });
 
+        return ObservationSeriesIndex.build(Arrays.asList(vitals.join(), labs.join()));
+    }
+
+    private List<Observation> getObservations(String id, Set<DataCategory> categories, Projection projection) {
+
+        List<Observation> results = new ArrayList<>();
+        for (List<Observation> observations : loadObservationLists(id, categories, projection)) {
+            results.addAll(observations);
+        }
+
+        return results;
+    }
+
+    /**
+     * Load observations from only the VistA endpoints backing the requested categories,
+     * in parallel when there is more than one. A category which cannot be loaded is
+     * logged and left empty.
+     */
+    private List<List<Observation>> loadObservationLists(String id, Set<DataCategory> categories, Projection projection) {
+
+        if (categories.size() == 1) {
+            DataCategory category = categories.iterator().next();
+            try {
+                return Collections.singletonList(loadObservations(id, category, projection));
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to fetch or parse " + category, ex);
+                return Collections.singletonList(Collections.emptyList());
+            }
+        }
+
+        List<CompletableFuture<List<Observation>>> calls = new ArrayList<>();
+        for (DataCategory category : categories) {
+            calls.add(CompletableFuture.supplyAsync(() -> loadObservations(id, category, projection))
+                    .exceptionally(ex -> {
+                        LOG.error("Unable to fetch or parse " + category, ex);
+                        return Collections.emptyList();
+                    }));
+        }
+
         //Wait for completion
-        CompletableFuture.allOf(vitals, labs, healthFactors, mentalHealth).join();
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+
+        List<List<Observation>> results = new ArrayList<>();
+        for (CompletableFuture<List<Observation>> call : calls) {
+            results.add(call.join());
+        }
 
         return results;
     }
 
-    @Override
-    public List<Observation> getObservationsByIcnAndCode(String id, String code) {
+    /**
+     * Read the codes out of a token parameter, accepting "code", "system|code" and
+     * comma separated lists of either
+     */
+    private static Set<String> parseCodes(String value) {
+
+        Set<String> codes = new HashSet<>();
+        for (String item : value.split(",")) {
+            codes.add(item.substring(item.indexOf('|') + 1).trim());
+        }
+
+        return codes;
+    }
+
+    /**
+     * Read a category through the snapshot cache, without calling VistA for patients
+     * which do not exist
+     */
+    private <T> List<T> getCategory(String icn, DataCategory category, Supplier<String> fetcher, Function<String, List<T>> parser) {
+
+        return getCategory(icn, category, Projection.ALL, fetcher, parser);
+    }
+
+    private <T> List<T> getCategory(String icn, DataCategory category, Projection projection, Supplier<String> fetcher,
+                                    Function<String, List<T>> parser) {
+
+        if (!isKnown(icn)) {
+            return Collections.emptyList();
+        }
+
+        return snapshots.get(icn, category, projection, fetcher, parser);
+    }
+
+    private int countCategory(String icn, DataCategory category, Supplier<String> fetcher, ToIntFunction<String> counter) {
+
+        if (!isKnown(icn)) {
+            return 0;
+        }
+
+        return snapshots.count(icn, category, fetcher, counter);
+    }
+
+    /**
+     * The known patient filter answers for the patients VistA had when it was filled.
+     * Any other ICN is looked up, which adds a newly registered patient to it; one VistA
+     * did not have is refused without a call for a while
+     */
+    private boolean isKnown(String icn) {
+
+        if (knownPatients.mightContain(icn)) {
+            return true;
+        }
+
+        try {
+            getPatientById(icn);
+            return true;
+        } catch (ResourceNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private List<Observation> loadObservations(String id, DataCategory category) {
+
+        return loadObservations(id, category, Projection.ALL);
+    }
 
-        String httpBody = service.getObservationsByIcnAndCode(id, code);
+    private List<Observation> loadObservations(String id, DataCategory category, Projection projection) {
 
         ObservationParser parser = new ObservationParser();
 
-        return parser.parseVitalsList(httpBody);
+        switch (category) {
+            case VITALS:
+                return getCategory(id, category, projection, () -> service.getVitalsObservationsByIcn(id),
+                        httpBody -> parser.parseVitalsList(httpBody, projection));
+            case LABS:
+                return getCategory(id, category, projection, () -> service.getLabObservationsByIcn(id),
+                        httpBody -> parser.parseLabsList(httpBody, projection));
+            case HEALTH_FACTOR:
+                return getCategory(id, category, projection, () -> service.getHealthFactorObservationsByIcn(id),
+                        httpBody -> parser.parseHealthFactorsList(httpBody, projection));
+            case MENTAL_HEALTH:
+                return getCategory(id, category, projection, () -> service.getMentalHealthObservationsByIcn(id),
+                        httpBody -> parser.parseMentalHealthList(httpBody, projection));
+            default:
+                throw new IllegalArgumentException("Not an observation category: " + category);
+        }
     }
 
     @Override
     public List<MedicationStatement> getMedicationStatement(String patientIcn) {
 
-        String httpBody = service.getMedicationStatement(patientIcn);
+        return getMedicationStatement(patientIcn, Projection.ALL);
+    }
+
+    @Override
+    public List<MedicationStatement> getMedicationStatement(String patientIcn, Projection projection) {
 
         MedicationParser parser = new MedicationParser();
 
-        return parser.parseMedicationStatement(httpBody);
+        return getCategory(patientIcn, DataCategory.MEDICATION_STATEMENT, projection, () -> service.getMedicationStatement(patientIcn),
+                httpBody -> parser.parseMedicationStatement(httpBody, projection));
     }
 
     @Override
@@ -290,126 +618,258 @@ public class VistaPatientService implements PatientService {
     @Override
     public List<MedicationDispense> getMedicationDispense(String patientIcn) {
 
-        String httpBody = service.getMedicationAdministration(patientIcn);
+        return getMedicationDispense(patientIcn, Projection.ALL);
+    }
+
+    @Override
+    public List<MedicationDispense> getMedicationDispense(String patientIcn, Projection projection) {
 
         MedicationParser parser = new MedicationParser();
 
-        return parser.parseMedicationDispense(httpBody);
+        return getCategory(patientIcn, DataCategory.MEDICATION_DISPENSE, projection, () -> service.getMedicationAdministration(patientIcn),
+                httpBody -> parser.parseMedicationDispense(httpBody, projection));
     }
 
     @Override
     public List<MedicationAdministration> getMMedicationAdministration(String patientIcn) {
 
-        String httpBody = service.getMedicationAdministration(patientIcn);
+        return getMMedicationAdministration(patientIcn, Projection.ALL);
+    }
+
+    @Override
+    public List<MedicationAdministration> getMMedicationAdministration(String patientIcn, Projection projection) {
 
         MedicationParser parser = new MedicationParser();
 
-        return parser.parseMedicationAdmin(httpBody);
+        return getCategory(patientIcn, DataCategory.MEDICATION_ADMINISTRATION, projection, () -> service.getMedicationAdministration(patientIcn),
+                httpBody -> parser.parseMedicationAdmin(httpBody, projection));
     }
 
     @Override
     public List<Procedure> getProcedures(String patientIcn) {
 
-        String httpBody = service.getProceduresByIcn(patientIcn);
-
         ProcedureParser parser = new ProcedureParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.PROCEDURE, () -> service.getProceduresByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<Practitioner> getPractitionersById(String patientIcn) {
 
-        String httpBody = service.getProvidersByIcn(patientIcn);
-
         PractitionerParser parser = new PractitionerParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.PRACTITIONER, () -> service.getProvidersByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<Flag> getFlagsByIcn(String patientIcn) {
-        String httpBody = service.getFlagByIcn(patientIcn);
 
         FlagParser parser = new FlagParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.FLAG, () -> service.getFlagByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<Appointment> getAppointmentsByIcn(String patientIcn) {
-        String httpBody = service.getAppointmentsByIcn(patientIcn);
 
         AppointmentParser parser = new AppointmentParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.APPOINTMENT, () -> service.getAppointmentsByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<AllergyIntolerance> getAllergyByIcn(String patientIcn) {
-        String httpBody = service.getAllergiesByIcn(patientIcn);
 
         AllergyParser parser = new AllergyParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.ALLERGY, () -> service.getAllergiesByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<Immunization> getImmunizationsByIcn(String patientIcn) {
-        String httpBody = service.getImmunizationsByIcn(patientIcn);
 
         ImmunizationParser parser = new ImmunizationParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.IMMUNIZATION, () -> service.getImmunizationsByIcn(patientIcn), parser::parseList);
     }
 
     @Override
     public List<Goal> getGoal(String patientIcn) {
 
-        String httpBody = service.getGoal(patientIcn);
-
         GoalParser parser = new GoalParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.GOAL, () -> service.getGoal(patientIcn), parser::parseList);
     }
 
     @Override
     public List<DiagnosticReport> getDiagnosticReport(String patientIcn) {
 
-        String httpBody = service.getDiagnosticReport(patientIcn);
-
         DiagnosticReportParser parser = new DiagnosticReportParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.DIAGNOSTIC_REPORT, () -> service.getDiagnosticReport(patientIcn), parser::parseList);
     }
 
     @Override
     public List<CarePlan> getCarePlan(String patientIcn) {
 
-        String httpBody = service.getCarePlan(patientIcn);
-
         CarePlanParser parser = new CarePlanParser();
 
-        return parser.parseCarePlan(httpBody, patientIcn);
+        return getCategory(patientIcn, DataCategory.CARE_PLAN, () -> service.getCarePlan(patientIcn), httpBody -> parser.parseCarePlan(httpBody, patientIcn));
     }
 
     @Override
     public List<Composition> getTiuNotes(String patientIcn) {
-        String httpBody = service.getTiuNotes(patientIcn);
+
+        return getTiuNotes(patientIcn, Projection.ALL);
+    }
+
+    @Override
+    public List<Composition> getTiuNotes(String patientIcn, Projection projection) {
 
         NoteParser parser = new NoteParser();
 
-        return parser.parseList(httpBody);
+        return getCategory(patientIcn, DataCategory.NOTE, projection, () -> service.getTiuNotes(patientIcn),
+                httpBody -> parser.parseList(httpBody, projection));
+    }
+
+    @Override
+    public List<? extends DomainResource> getResources(String patientIcn, DataCategory category) {
+
+        switch (category) {
+            case PATIENT:
+                return Collections.singletonList(getPatientById(patientIcn));
+            case CONDITION:
+                return getConditionsForPatient(patientIcn);
+            case ENCOUNTER:
+            case ENCOUNTER_PROVIDER:
+                return getEncountersForPatient(patientIcn);
+            case PRACTITIONER:
+                return getPractitionersById(patientIcn);
+            case VITALS:
+            case LABS:
+            case HEALTH_FACTOR:
+            case MENTAL_HEALTH:
+                return loadObservations(patientIcn, category);
+            case MEDICATION_STATEMENT:
+                return getMedicationStatement(patientIcn);
+            case MEDICATION_DISPENSE:
+                return getMedicationDispense(patientIcn);
+            case MEDICATION_ADMINISTRATION:
+                return getMMedicationAdministration(patientIcn);
+            case PROCEDURE:
+                return getProcedures(patientIcn);
+            case FLAG:
+                return getFlagsByIcn(patientIcn);
+            case APPOINTMENT:
+                return getAppointmentsByIcn(patientIcn);
+            case ALLERGY:
+                return getAllergyByIcn(patientIcn);
+            case IMMUNIZATION:
+                return getImmunizationsByIcn(patientIcn);
+            case GOAL:
+                return getGoal(patientIcn);
+            case DIAGNOSTIC_REPORT:
+                return getDiagnosticReport(patientIcn);
+            case CARE_PLAN:
+                return getCarePlan(patientIcn);
+            case NOTE:
+                return getTiuNotes(patientIcn);
+            default:
+                throw new IllegalArgumentException("Unknown category: " + category);
+        }
+    }
+
+    /**
+     * Count the resources of a category from the cache or the VistA payload, without
+     * building them. Each count agrees with the size of the matching list above.
+     */
+    @Override
+    public int countResources(String patientIcn, DataCategory category) {
+
+        switch (category) {
+            case PATIENT:
+                return getResources(patientIcn, category).size();
+            case CONDITION:
+                return countCategory(patientIcn, category, () -> service.getConditions(patientIcn), new ConditionParser()::count);
+            case ENCOUNTER:
+            case ENCOUNTER_PROVIDER:
+                return countCategory(patientIcn, DataCategory.ENCOUNTER, () -> service.getEncountersByPatient(patientIcn), new EncounterParser()::count);
+            case PRACTITIONER:
+                return countCategory(patientIcn, category, () -> service.getProvidersByIcn(patientIcn), new PractitionerParser()::count);
+            case VITALS:
+                return countCategory(patientIcn, category, () -> service.getVitalsObservationsByIcn(patientIcn), new ObservationParser()::countVitals);
+            case LABS:
+                return countCategory(patientIcn, category, () -> service.getLabObservationsByIcn(patientIcn), new ObservationParser()::countRecords);
+            case HEALTH_FACTOR:
+                return countCategory(patientIcn, category, () -> service.getHealthFactorObservationsByIcn(patientIcn), new ObservationParser()::countRecords);
+            case MENTAL_HEALTH:
+                return countCategory(patientIcn, category, () -> service.getMentalHealthObservationsByIcn(patientIcn), new ObservationParser()::countRecords);
+            case MEDICATION_STATEMENT:
+                return countCategory(patientIcn, category, () -> service.getMedicationStatement(patientIcn), new MedicationParser()::countMedicationStatement);
+            case MEDICATION_DISPENSE:
+                return countCategory(patientIcn, category, () -> service.getMedicationAdministration(patientIcn), new MedicationParser()::countMedicationDispense);
+            case MEDICATION_ADMINISTRATION:
+                return countCategory(patientIcn, category, () -> service.getMedicationAdministration(patientIcn), new MedicationParser()::countMedicationAdmin);
+            case PROCEDURE:
+                return countCategory(patientIcn, category, () -> service.getProceduresByIcn(patientIcn), new ProcedureParser()::count);
+            case FLAG:
+                return countCategory(patientIcn, category, () -> service.getFlagByIcn(patientIcn), new FlagParser()::count);
+            case APPOINTMENT:
+                return countCategory(patientIcn, category, () -> service.getAppointmentsByIcn(patientIcn), new AppointmentParser()::count);
+            case ALLERGY:
+                return countCategory(patientIcn, category, () -> service.getAllergiesByIcn(patientIcn), new AllergyParser()::count);
+            case IMMUNIZATION:
+                return countCategory(patientIcn, category, () -> service.getImmunizationsByIcn(patientIcn), new ImmunizationParser()::count);
+            case GOAL:
+                return countCategory(patientIcn, category, () -> service.getGoal(patientIcn), new GoalParser()::count);
+            case DIAGNOSTIC_REPORT:
+                return countCategory(patientIcn, category, () -> service.getDiagnosticReport(patientIcn), new DiagnosticReportParser()::count);
+            case CARE_PLAN:
+                return countCategory(patientIcn, category, () -> service.getCarePlan(patientIcn), httpBody -> new CarePlanParser().countCarePlan(httpBody, patientIcn));
+            case NOTE:
+                return countCategory(patientIcn, category, () -> service.getTiuNotes(patientIcn), new NoteParser()::count);
+            default:
+                throw new IllegalArgumentException("Unknown category: " + category);
+        }
     }
 
     @Override
     public List<DomainResource> getEverything(String patientIcn) {
+        try {
+            return getEverything(patientIcn, DEFAULT_EXECUTOR).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
 
-        List<DomainResource> results = new ArrayList<>();
+    @Override
+    public CompletableFuture<List<DomainResource>> getEverything(String patientIcn, Executor executor) {
+
+        // Unless the known patient filter is filled and has the patient, the patient is
+        // looked up first, so that a missing patient costs one VistA call rather than one
+        // per compartment, and one registered since the filter was filled is still found
+        if (knownPatients.isReady() && knownPatients.mightContain(patientIcn)) {
+            return fetchEverything(patientIcn, CompletableFuture.supplyAsync(() -> getPatientById(patientIcn), executor), executor);
+        }
+
+        return CompletableFuture.supplyAsync(() -> getPatientById(patientIcn), executor)
+                .exceptionally(ex -> {
+                    LOG.error("Unable to find patient", ex);
+                    throw new ResourceNotFoundException("Patient Not Found");
+                })
+                .thenCompose(patient -> fetchEverything(patientIcn, CompletableFuture.completedFuture(patient), executor));
+    }
+
+    private CompletableFuture<List<DomainResource>> fetchEverything(String patientIcn, CompletableFuture<Patient> patientLookup, Executor executor) {
+
+        List<DomainResource> results = Collections.synchronizedList(new ArrayList<>());
 
         final boolean[] patientFound = {false};
 
-        CompletableFuture<Patient> patientCall = CompletableFuture.supplyAsync(() -> getPatientById(patientIcn))
+        CompletableFuture<Patient> patientCall = patientLookup
                 .whenComplete((patient, exception) -> {
                     if (exception == null) {
                         results.add(patient);
@@ -422,7 +882,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Condition>> condition = CompletableFuture.supplyAsync(() -> getConditionsForPatient(patientIcn))
+        CompletableFuture<List<Condition>> condition = CompletableFuture.supplyAsync(() -> getConditionsForPatient(patientIcn), executor)
                 .whenComplete((conditions, exception) -> {
                     if (exception == null) {
                         results.addAll(conditions);
@@ -434,7 +894,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Observation>> observation = CompletableFuture.supplyAsync(() -> getObservationsByIcn(patientIcn))
+        CompletableFuture<List<Observation>> observation = CompletableFuture.supplyAsync(() -> getObservationsByIcn(patientIcn), executor)
                 .whenComplete((observations, exception) -> {
                     if (exception == null) {
                         results.addAll(observations);
@@ -445,7 +905,7 @@ public class VistaPatientService implements PatientService {
                     LOG.error("Unable to fetch or parse observations", ex);
                     return null;
                 });
-        CompletableFuture<List<Encounter>> encounter = CompletableFuture.supplyAsync(() -> getEncountersForPatient(patientIcn))
+        CompletableFuture<List<Encounter>> encounter = CompletableFuture.supplyAsync(() -> getEncountersForPatient(patientIcn), executor)
                 .whenComplete((encounters, exception) -> {
                     if (exception == null) {
                         results.addAll(encounters);
@@ -457,7 +917,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Procedure>> procedure = CompletableFuture.supplyAsync(() -> getProcedures(patientIcn))
+        CompletableFuture<List<Procedure>> procedure = CompletableFuture.supplyAsync(() -> getProcedures(patientIcn), executor)
                 .whenComplete((procedures, exception) -> {
                     if (exception == null) {
                         results.addAll(procedures);
@@ -469,7 +929,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<MedicationStatement>> medStatement = CompletableFuture.supplyAsync(() -> getMedicationStatement(patientIcn))
+        CompletableFuture<List<MedicationStatement>> medStatement = CompletableFuture.supplyAsync(() -> getMedicationStatement(patientIcn), executor)
                 .whenComplete((statements, exception) -> {
                     if (exception == null) {
                         results.addAll(statements);
@@ -481,7 +941,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<MedicationAdministration>> medAdmin = CompletableFuture.supplyAsync(() -> getMMedicationAdministration(patientIcn))
+        CompletableFuture<List<MedicationAdministration>> medAdmin = CompletableFuture.supplyAsync(() -> getMMedicationAdministration(patientIcn), executor)
                 .whenComplete((admins, exception) -> {
                     if (exception == null) {
                         results.addAll(admins);
@@ -494,7 +954,7 @@ public class VistaPatientService implements PatientService {
                 });
 
 
-        CompletableFuture<List<MedicationDispense>> medDispense = CompletableFuture.supplyAsync(() -> getMedicationDispense(patientIcn))
+        CompletableFuture<List<MedicationDispense>> medDispense = CompletableFuture.supplyAsync(() -> getMedicationDispense(patientIcn), executor)
                 .whenComplete((dispenses, exception) -> {
                     if (exception == null) {
                         results.addAll(dispenses);
@@ -506,7 +966,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Flag>> flag = CompletableFuture.supplyAsync(() -> getFlagsByIcn(patientIcn))
+        CompletableFuture<List<Flag>> flag = CompletableFuture.supplyAsync(() -> getFlagsByIcn(patientIcn), executor)
                 .whenComplete((flags, exception) -> {
                     if (exception == null) {
                         results.addAll(flags);
@@ -519,7 +979,7 @@ public class VistaPatientService implements PatientService {
                 });
 
 
-        CompletableFuture<List<Appointment>> appointment = CompletableFuture.supplyAsync(() -> getAppointmentsByIcn(patientIcn))
+        CompletableFuture<List<Appointment>> appointment = CompletableFuture.supplyAsync(() -> getAppointmentsByIcn(patientIcn), executor)
                 .whenComplete((appointments, exception) -> {
                     if (exception == null) {
                         results.addAll(appointments);
@@ -531,7 +991,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Practitioner>> practitioner = CompletableFuture.supplyAsync(() -> getPractitionersById(patientIcn))
+        CompletableFuture<List<Practitioner>> practitioner = CompletableFuture.supplyAsync(() -> getPractitionersById(patientIcn), executor)
                 .whenComplete((practitioners, exception) -> {
                     if (exception == null) {
                         results.addAll(practitioners);
@@ -543,7 +1003,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<AllergyIntolerance>> allergy = CompletableFuture.supplyAsync(() -> getAllergyByIcn(patientIcn))
+        CompletableFuture<List<AllergyIntolerance>> allergy = CompletableFuture.supplyAsync(() -> getAllergyByIcn(patientIcn), executor)
                 .whenComplete((allergies, exception) -> {
                     if (exception == null) {
                         results.addAll(allergies);
@@ -555,7 +1015,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Immunization>> immunization = CompletableFuture.supplyAsync(() -> getImmunizationsByIcn(patientIcn))
+        CompletableFuture<List<Immunization>> immunization = CompletableFuture.supplyAsync(() -> getImmunizationsByIcn(patientIcn), executor)
                 .whenComplete((immunizations, exception) -> {
                     if (exception == null) {
                         results.addAll(immunizations);
@@ -567,7 +1027,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Goal>> goal = CompletableFuture.supplyAsync(() -> getGoal(patientIcn))
+        CompletableFuture<List<Goal>> goal = CompletableFuture.supplyAsync(() -> getGoal(patientIcn), executor)
                 .whenComplete((goals, exception) -> {
                     if (exception == null) {
                         results.addAll(goals);
@@ -579,7 +1039,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<DiagnosticReport>> diagnosticReport = CompletableFuture.supplyAsync(() -> getDiagnosticReport(patientIcn))
+        CompletableFuture<List<DiagnosticReport>> diagnosticReport = CompletableFuture.supplyAsync(() -> getDiagnosticReport(patientIcn), executor)
                 .whenComplete((diagnosticReports, exception) -> {
                     if (exception == null) {
                         results.addAll(diagnosticReports);
@@ -591,7 +1051,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<CarePlan>> careplan = CompletableFuture.supplyAsync(() -> getCarePlan(patientIcn))
+        CompletableFuture<List<CarePlan>> careplan = CompletableFuture.supplyAsync(() -> getCarePlan(patientIcn), executor)
                 .whenComplete((careplans, exception) -> {
                     if (exception == null) {
                         results.addAll(careplans);
@@ -603,7 +1063,7 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture<List<Composition>> composition = CompletableFuture.supplyAsync(() -> getTiuNotes(patientIcn))
+        CompletableFuture<List<Composition>> composition = CompletableFuture.supplyAsync(() -> getTiuNotes(patientIcn), executor)
                 .whenComplete((compositions, exception) -> {
                     if (exception == null) {
                         results.addAll(compositions);
@@ -615,12 +1075,12 @@ public class VistaPatientService implements PatientService {
                     return null;
                 });
 
-        CompletableFuture.allOf(patientCall, condition, observation, encounter, procedure, medStatement, medAdmin, flag, appointment, practitioner, allergy, immunization, medDispense, goal, diagnosticReport, careplan, composition).join();
-
-        if (!patientFound[0]) {
-            throw new ResourceNotFoundException("Patient Not Found");
-        }
-
-        return results;
+        return CompletableFuture.allOf(patientCall, condition, observation, encounter, procedure, medStatement, medAdmin, flag, appointment, practitioner, allergy, immunization, medDispense, goal, diagnosticReport, careplan, composition)
+                .thenApply(done -> {
+                    if (!patientFound[0]) {
+                        throw new ResourceNotFoundException("Patient Not Found");
+                    }
+                    return new ArrayList<>(results);
+                });
     }
 }
@@ -0,0 +1,189 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.utils;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The top level elements of a resource a client asked for, through _elements or _summary,
+ * so parsers can skip building the ones that will not be returned.
+ *
+ * Names are element names without the choice suffix, a request for "effectiveDateTime"
+ * asks for "effective". The id, meta and elements the resource requires are always included.
+ */
+public final class Projection {
+
+    public static final Projection ALL = new Projection(null);
+
+    private static final String CHOICE_SUFFIX = "[x]";
+
+    private final Set<String> elements;
+
+    private Projection(Set<String> elements) {
+        this.elements = elements;
+    }
+
+    /**
+     * @param elements Required. The element names to build
+     */
+    public static Projection of(Collection<String> elements) {
+        Set<String> names = new HashSet<>();
+        for (String element : elements) {
+            names.add(normalize(element));
+        }
+        names.add("id");
+        names.add("meta");
+        return new Projection(Collections.unmodifiableSet(names));
+    }
+
+    /**
+     * Work out what a request needs from its _elements and _summary parameters
+     *
+     * @param request Required. The request being served
+     * @param type Required. The type of resource being returned
+     * @return the elements to build, {@link #ALL} when everything is wanted
+     */
+    public static Projection forRequest(RequestDetails request, Class<? extends IBaseResource> type) {
+
+        String[] summary = request.getParameters().get(Constants.PARAM_SUMMARY);
+        String[] elements = request.getParameters().get(Constants.PARAM_ELEMENTS);
+
+        RuntimeResourceDefinition definition = request.getFhirContext().getResourceDefinition(type);
+        Set<String> names = new HashSet<>();
+
+        if (summary != null && summary.length > 0) {
+            switch (summary[0]) {
+                case "true":
+                    for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+                        if (child.isSummary()) {
+                            names.add(child.getElementName());
+                        }
+                    }
+                    break;
+                case "text":
+                    names.add("text");
+                    break;
+                case "data":
+                    for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+                        if (!"text".equals(child.getElementName())) {
+                            names.add(child.getElementName());
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (names.isEmpty() && elements != null) {
+            Map<String, String> byChildName = new HashMap<>();
+            for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+                for (String childName : child.getValidChildNames()) {
+                    byChildName.put(childName, child.getElementName());
+                }
+            }
+
+            String prefix = definition.getName() + ".";
+            for (String value : elements) {
+                for (String element : value.split(",")) {
+                    String name = element.trim();
+                    if (name.startsWith(prefix)) {
+                        name = name.substring(prefix.length());
+                    }
+                    int dot = name.indexOf('.');
+                    name = dot < 0 ? name : name.substring(0, dot);
+                    names.add(byChildName.getOrDefault(name, name));
+                }
+            }
+        }
+
+        if (names.isEmpty() || names.contains("*")) {
+            return ALL;
+        }
+
+        for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+            if (child.getMin() > 0) {
+                names.add(child.getElementName());
+            }
+        }
+
+        return of(names);
+    }
+
+    /**
+     * @param element Required. An element something other than the client needs, such as an _include target
+     * @return this projection with the element built as well
+     */
+    public Projection with(String element) {
+        if (includes(element)) {
+            return this;
+        }
+        Set<String> names = new HashSet<>(elements);
+        names.add(normalize(element));
+        return new Projection(Collections.unmodifiableSet(names));
+    }
+
+    public boolean isAll() {
+        return elements == null;
+    }
+
+    /**
+     * @return whether the element should be built
+     */
+    public boolean includes(String element) {
+        return elements == null || elements.contains(element);
+    }
+
+    /**
+     * @return whether resources built for this projection hold everything the other needs
+     */
+    public boolean covers(Projection other) {
+        return elements == null || (other.elements != null && elements.containsAll(other.elements));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Projection && (elements == null
+                ? ((Projection) other).elements == null
+                : elements.equals(((Projection) other).elements));
+    }
+
+    @Override
+    public int hashCode() {
+        return elements == null ? 0 : elements.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return elements == null ? "*" : String.join(",", elements);
+    }
+
+    private static String normalize(String element) {
+        return element.endsWith(CHOICE_SUFFIX) ? element.substring(0, element.length() - CHOICE_SUFFIX.length()) : element;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out calls so that background work (cache warming, crawls) does not
+ * swamp VistA. Permits are handed out at a steady rate, callers which ask for
+ * several permits at once simply wait longer before the next caller may proceed.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private long nextFree;
+
+    /**
+     * @param permitsPerSecond Required. The sustained rate, 0 or less means unlimited
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.intervalNanos = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        this.nextFree = System.nanoTime();
+    }
+
+    /**
+     * Block until the requested number of permits is available
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long wait = reserve(permits);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Reserve permits and return how long (in nanoseconds) the caller must wait to use them
+     */
+    synchronized long reserve(int permits) {
+        long now = System.nanoTime();
+        long start = Math.max(nextFree, now);
+        nextFree = start + intervalNanos * Math.max(permits, 0);
+        return start - now;
+    }
+}
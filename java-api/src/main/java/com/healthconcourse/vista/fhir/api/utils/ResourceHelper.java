@@ -25,6 +25,7 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 public class ResourceHelper {
@@ -177,4 +178,28 @@ public class ResourceHelper {
         result.addTag(code);
         return result;
     }
+
+    /**
+     * Create an empty searchset Bundle
+     *
+     * @param url Required. The URL the bundle was requested from, used as its self link
+     * @return a FHIR Bundle
+     */
+    public static Bundle createSearchBundle(String url) {
+        Bundle result = new Bundle();
+        result.setType(Bundle.BundleType.SEARCHSET);
+
+        Meta lastUpdate = new Meta();
+        lastUpdate.setLastUpdated(new Date());
+        result.setMeta(lastUpdate);
+
+        Bundle.BundleLinkComponent link = new Bundle.BundleLinkComponent();
+        link.setRelation("self");
+        link.setUrl(url);
+        List<Bundle.BundleLinkComponent> links = new ArrayList<>();
+        links.add(link);
+        result.setLink(links);
+
+        return result;
+    }
 }
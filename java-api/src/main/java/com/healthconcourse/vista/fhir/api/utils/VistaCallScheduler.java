@@ -0,0 +1,122 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Caps how many VistA calls are outstanding at once across every request, and takes
+ * turns between patients when more calls are waiting than may run.
+ *
+ * Calls are queued per patient and started one patient at a time in rotation, so a
+ * patient whose compartments were queued first does not hold up every patient after
+ * it, and a batch of many patients cannot starve a single chart being opened.
+ */
+public class VistaCallScheduler {
+
+    private final Executor workers;
+    private final int maxOutstanding;
+    private final Map<String, Deque<Runnable>> queues = new HashMap<>();
+    private final Deque<String> turns = new ArrayDeque<>();
+    private int outstanding;
+    private int queued;
+
+    /**
+     * @param workers Required. Runs the calls, needs a thread per outstanding call
+     * @param maxOutstanding Required. The most calls running at once
+     */
+    public VistaCallScheduler(Executor workers, int maxOutstanding) {
+        this.workers = workers;
+        this.maxOutstanding = Math.max(maxOutstanding, 1);
+    }
+
+    /**
+     * @return an executor which runs calls for the patient through the scheduler
+     */
+    public Executor forPatient(String icn) {
+        return task -> submit(icn, task);
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    private void submit(String icn, Runnable task) {
+        synchronized (this) {
+            Deque<Runnable> queue = queues.get(icn);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(icn, queue);
+                turns.addLast(icn);
+            }
+            queue.addLast(task);
+            queued++;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (outstanding >= maxOutstanding || turns.isEmpty()) {
+                    return;
+                }
+                String icn = turns.removeFirst();
+                Deque<Runnable> queue = queues.get(icn);
+                next = queue.removeFirst();
+                if (queue.isEmpty()) {
+                    queues.remove(icn);
+                } else {
+                    turns.addLast(icn);
+                }
+                queued--;
+                outstanding++;
+            }
+
+            try {
+                workers.execute(() -> {
+                    try {
+                        next.run();
+                    } finally {
+                        finished();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    outstanding--;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (this) {
+            outstanding--;
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.vista;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares VistA reads between the parts of one client request, such as the entries of a
+ * batch Bundle, so a payload needed by several entries is fetched once.
+ *
+ * An instance is made for each request and handed to the services serving it; it is
+ * used from whichever threads they fan out to. Calls which are still running are shared
+ * as well, and failures are not remembered. A write forgets everything read so far, so
+ * later entries see what was written.
+ */
+public class MemoizingVistaData implements VistaData {
+
+    private final VistaData delegate;
+    private final ConcurrentMap<List<Object>, CompletableFuture<String>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate Required. Calls VistA
+     */
+    public MemoizingVistaData(VistaData delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the number of reads remembered
+     */
+    public int size() {
+        return calls.size();
+    }
+
+    @Override
+    public String getPatientData(String icn) {
+        return read(() -> delegate.getPatientData(icn), "getPatientData", icn);
+    }
+
+    @Override
+    public String getPatientData(String name, String ssn, Date dob, AdministrativeGender gender) {
+        return read(() -> delegate.getPatientData(name, ssn, dob, gender), "getPatientData", name, ssn, dob, gender);
+    }
+
+    @Override
+    public String getConditions(String name, String ssn, Date dob, AdministrativeGender gender) {
+        return read(() -> delegate.getConditions(name, ssn, dob, gender), "getConditions", name, ssn, dob, gender);
+    }
+
+    @Override
+    public String getConditions(String icn) {
+        return read(() -> delegate.getConditions(icn), "getConditions", icn);
+    }
+
+    @Override
+    public String getConditions(HashMap<String, String> options) {
+        return read(() -> delegate.getConditions(options), "getConditions", options);
+    }
+
+    @Override
+    public String getPatientsByCondition(String code) {
+        return read(() -> delegate.getPatientsByCondition(code), "getPatientsByCondition", code);
+    }
+
+    @Override
+    public String putTheCondition(Condition theCondition) {
+        return write(() -> delegate.putTheCondition(theCondition));
+    }
+
+    @Override
+    public String putVitals(Map<String, String> parameters) {
+        return write(() -> delegate.putVitals(parameters));
+    }
+
+    @Override
+    public String putLabResult(Map<String, String> parameters) {
+        return write(() -> delegate.putLabResult(parameters));
+    }
+
+    @Override
+    public String putImmunization(Map<String, String> parameters) {
+        return write(() -> delegate.putImmunization(parameters));
+    }
+
+    @Override
+    public String getVitalsObservationsByIcn(String icn) {
+        return read(() -> delegate.getVitalsObservationsByIcn(icn), "getVitalsObservationsByIcn", icn);
+    }
+
+    @Override
+    public String getVitalsObservationsByIcn(String icn, Date from, Date to) {
+        return read(() -> delegate.getVitalsObservationsByIcn(icn, from, to), "getVitalsObservationsByIcn", icn, from, to);
+    }
+
+    @Override
+    public String getObservationsByCriteria(String name, String ssn, Date dob, AdministrativeGender gender) {
+        return read(() -> delegate.getObservationsByCriteria(name, ssn, dob, gender), "getObservationsByCriteria", name, ssn, dob, gender);
+    }
+
+    @Override
+    public String getEncountersByPatient(String code) {
+        return read(() -> delegate.getEncountersByPatient(code), "getEncountersByPatient", code);
+    }
+
+    @Override
+    public String getMedicationStatement(String code) {
+        return read(() -> delegate.getMedicationStatement(code), "getMedicationStatement", code);
+    }
+
+    @Override
+    public String getMedicationStatement(HashMap<String, String> options) {
+        return read(() -> delegate.getMedicationStatement(options), "getMedicationStatement", options);
+    }
+
+    @Override
+    public String getMedicationAdministration(String code) {
+        return read(() -> delegate.getMedicationAdministration(code), "getMedicationAdministration", code);
+    }
+
+    @Override
+    public String getProceduresByIcn(String icn) {
+        return read(() -> delegate.getProceduresByIcn(icn), "getProceduresByIcn", icn);
+    }
+
+    @Override
+    public String getLabObservationsByIcn(String icn) {
+        return read(() -> delegate.getLabObservationsByIcn(icn), "getLabObservationsByIcn", icn);
+    }
+
+    @Override
+    public String getLabObservationsByIcn(String icn, Date from, Date to) {
+        return read(() -> delegate.getLabObservationsByIcn(icn, from, to), "getLabObservationsByIcn", icn, from, to);
+    }
+
+    @Override
+    public String getHealthFactorObservationsByIcn(String icn) {
+        return read(() -> delegate.getHealthFactorObservationsByIcn(icn), "getHealthFactorObservationsByIcn", icn);
+    }
+
+    @Override
+    public String getMentalHealthObservationsByIcn(String icn) {
+        return read(() -> delegate.getMentalHealthObservationsByIcn(icn), "getMentalHealthObservationsByIcn", icn);
+    }
+
+    @Override
+    public String getProvidersByIcn(String icn) {
+        return read(() -> delegate.getProvidersByIcn(icn), "getProvidersByIcn", icn);
+    }
+
+    @Override
+    public String getLocationByName(String name) {
+        return read(() -> delegate.getLocationByName(name), "getLocationByName", name);
+    }
+
+    @Override
+    public String getFlagByIcn(String icn) {
+        return read(() -> delegate.getFlagByIcn(icn), "getFlagByIcn", icn);
+    }
+
+    @Override
+    public String getAppointmentsByIcn(String icn) {
+        return read(() -> delegate.getAppointmentsByIcn(icn), "getAppointmentsByIcn", icn);
+    }
+
+    @Override
+    public String getAllergiesByIcn(String icn) {
+        return read(() -> delegate.getAllergiesByIcn(icn), "getAllergiesByIcn", icn);
+    }
+
+    @Override
+    public String getImmunizationsByIcn(String icn) {
+        return read(() -> delegate.getImmunizationsByIcn(icn), "getImmunizationsByIcn", icn);
+    }
+
+    @Override
+    public String getGoal(String code) {
+        return read(() -> delegate.getGoal(code), "getGoal", code);
+    }
+
+    @Override
+    public String getDiagnosticReport(String code) {
+        return read(() -> delegate.getDiagnosticReport(code), "getDiagnosticReport", code);
+    }
+
+    @Override
+    public String getCarePlan(String code) {
+        return read(() -> delegate.getCarePlan(code), "getCarePlan", code);
+    }
+
+    @Override
+    public String getAllPatients(HashMap<String, String> options) {
+        return read(() -> delegate.getAllPatients(options), "getAllPatients", options);
+    }
+
+    @Override
+    public String getPatientsByRange(long firstDfn, long lastDfn) {
+        return read(() -> delegate.getPatientsByRange(firstDfn, lastDfn), "getPatientsByRange", firstDfn, lastDfn);
+    }
+
+    @Override
+    public String getTiuNotes(String icn) {
+        return read(() -> delegate.getTiuNotes(icn), "getTiuNotes", icn);
+    }
+
+    @Override
+    public String getAllCareTeams() {
+        return read(delegate::getAllCareTeams, "getAllCareTeams");
+    }
+
+    @Override
+    public String getCareTeamByHame(String name) {
+        return read(() -> delegate.getCareTeamByHame(name), "getCareTeamByHame", name);
+    }
+
+    private String read(Supplier<String> call, Object... key) {
+
+        List<Object> callKey = Arrays.asList(key);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> existing = calls.putIfAbsent(callKey, result);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+            }
+        }
+
+        try {
+            String value = call.get();
+            result.complete(value);
+            return value;
+        } catch (RuntimeException | Error ex) {
+            calls.remove(callKey, result);
+            result.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    private String write(Supplier<String> call) {
+        try {
+            return call.get();
+        } finally {
+            calls.clear();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 public interface VistaData {
 
@@ -38,9 +39,33 @@ public interface VistaData {
 
     String putTheCondition(Condition theCondition);
 
+    /**
+     * Save one vital sign with DHPPATVITUPD
+     *
+     * @param parameters Required. ICN, SCT, OBS, UNT and DTM
+     * @return 1 on success, -1^reason when VistA refused it, or the HTTP status and message when the call failed
+     */
+    String putVitals(Map<String, String> parameters);
+
+    /**
+     * Save one lab result with DHPPATLABUPD
+     *
+     * @param parameters Required. PAT, LOC, TEST, RSLT, RSDT and LOINC
+     * @return as {@link #putVitals}
+     */
+    String putLabResult(Map<String, String> parameters);
+
+    /**
+     * Save one immunization with DHPPATIMMUPD
+     *
+     * @param parameters Required. ICN, VIS, CVX, LOC, ROU, DOS, DTM and PROV
+     * @return as {@link #putVitals}
+     */
+    String putImmunization(Map<String, String> parameters);
+
     String getVitalsObservationsByIcn(String icn);
 
-    String getObservationsByIcnAndCode(String icn, String code);
+    String getVitalsObservationsByIcn(String icn, Date from, Date to);
 
     String getObservationsByCriteria(String name, String ssn, Date dob, AdministrativeGender gender);
 
@@ -55,6 +80,8 @@ public interface VistaData {
 
     String getLabObservationsByIcn(String icn);
 
+    String getLabObservationsByIcn(String icn, Date from, Date to);
+
     String getHealthFactorObservationsByIcn(String icn);
 
     String getMentalHealthObservationsByIcn(String icn);
@@ -79,6 +106,14 @@ public interface VistaData {
 
     String getAllPatients(HashMap<String, String> options);
 
+    /**
+     * Demographics for every patient whose DFN falls in an inclusive range, in the same
+     * format as {@link #getAllPatients}. A range without patients is an empty string; a
+     * call VistA did not answer is thrown as an InternalErrorException, so it is not taken
+     * for an empty range.
+     */
+    String getPatientsByRange(long firstDfn, long lastDfn);
+
     String getTiuNotes(String icn);
 
     String getAllCareTeams();
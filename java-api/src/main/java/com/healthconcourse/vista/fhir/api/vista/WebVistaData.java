@@ -18,6 +18,9 @@ limitations under the License.
 package com.healthconcourse.vista.fhir.api.vista;
 
 import okhttp3.*;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.InvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.LocalInvalidationBus;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.slf4j.Logger;
@@ -29,14 +32,17 @@ import com.jayway.jsonpath.JsonPath;
 import com.jayway.jsonpath.PathNotFoundException;
 import com.jayway.jsonpath.ReadContext;
 
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 
@@ -52,12 +58,30 @@ public class WebVistaData implements VistaData {
     private final OkHttpClient mClient;
     private static final MediaType MEDIA_TYPE_TEXTPLAIN = MediaType.parse("text/plain; charset=utf-8");
     private static final String ICN = "ICN";
+    private static final Map<String, Set<DataCategory>> WRITTEN_CATEGORIES = new HashMap<>();
+    private final InvalidationBus mInvalidations;
+
+    static {
+        WRITTEN_CATEGORIES.put("DHPPATPRBUPD", EnumSet.of(DataCategory.CONDITION));
+        WRITTEN_CATEGORIES.put("DHPPATVITUPD", EnumSet.of(DataCategory.VITALS));
+        WRITTEN_CATEGORIES.put("DHPPATLABUPD", EnumSet.of(DataCategory.LABS, DataCategory.DIAGNOSTIC_REPORT));
+        WRITTEN_CATEGORIES.put("DHPPATIMMUPD", EnumSet.of(DataCategory.IMMUNIZATION));
+    }
 
     public WebVistaData(String baseUrl) {
 
+        this(baseUrl, new LocalInvalidationBus());
+    }
+
+    /**
+     * @param invalidations Required. Told of every successful write
+     */
+    public WebVistaData(String baseUrl, InvalidationBus invalidations) {
+
         LOG.info("VistA URL is: " + baseUrl);
 
         this.mVistaBaseUrl = baseUrl;
+        this.mInvalidations = invalidations;
 
         this.mClient = new OkHttpClient.Builder()
                 .readTimeout(5, TimeUnit.SECONDS)
@@ -109,6 +133,24 @@ public class WebVistaData implements VistaData {
         return postVista("DHPPATPRBUPD", map);
     }
 
+    @Override
+    public String putVitals(Map<String, String> parameters) {
+
+        return postVista("DHPPATVITUPD", parameters, true);
+    }
+
+    @Override
+    public String putLabResult(Map<String, String> parameters) {
+
+        return postVista("DHPPATLABUPD", parameters, true);
+    }
+
+    @Override
+    public String putImmunization(Map<String, String> parameters) {
+
+        return postVista("DHPPATIMMUPD", parameters, true);
+    }
+
     @Override
     public String getVitalsObservationsByIcn(String icn) {
 
@@ -117,8 +159,9 @@ public class WebVistaData implements VistaData {
     }
 
     @Override
-    public String getObservationsByIcnAndCode(String icn, String code) {
-        throw new UnsupportedOperationException();
+    public String getVitalsObservationsByIcn(String icn, Date from, Date to) {
+
+        return queryVista("DHPPATVITICN", createMapForDateRange(icn, from, to));
     }
 
     @Override
@@ -168,6 +211,12 @@ public class WebVistaData implements VistaData {
         return queryVista("DHPPATLABICN", createMapForSingleParameter(icn));
     }
 
+    @Override
+    public String getLabObservationsByIcn(String icn, Date from, Date to) {
+
+        return queryVista("DHPPATLABICN", createMapForDateRange(icn, from, to));
+    }
+
     @Override
     public String getHealthFactorObservationsByIcn(String icn) {
 
@@ -233,6 +282,11 @@ public class WebVistaData implements VistaData {
         return queryVista("DHPPATDEMALL", options);
     }
 
+    @Override
+    public String getPatientsByRange(long firstDfn, long lastDfn) {
+        return requireVista("DHPPATDEMRNG", createMapForSingleParameter(firstDfn + "R" + lastDfn));
+    }
+
     @Override
     public String getTiuNotes(String icn) {
 
@@ -273,8 +327,36 @@ public class WebVistaData implements VistaData {
         }
     }
 
+    /**
+     * As queryVista, but a call which fails or is not answered with 200 is thrown rather
+     * than returned as an empty reply
+     */
+    private String requireVista(String path, Map<String, String> parameters) {
+
+        Request request = new Request.Builder()
+                .url(createUrl(path, parameters))
+                .build();
+        LOG.info("Calling URL: " + request.url());
+
+        try (okhttp3.Response response = mClient.newCall(request).execute()) {
+            if (response.code() != 200) {
+                throw new InternalErrorException(String.format("VistA answered %s with HTTP status %d", path, response.code()));
+            }
+            return response.body() == null ? "" : response.body().string();
+        } catch (IOException e) {
+            throw new InternalErrorException("Error calling Vista " + path, e);
+        }
+    }
 
     private String postVista(String path, Map<String, String> parameters) {
+
+        return postVista(path, parameters, false);
+    }
+
+    /**
+     * @param keepReply Return what VistA answered when the call succeeded, rather than just its status
+     */
+    private String postVista(String path, Map<String, String> parameters, boolean keepReply) {
         String resp = "???^Unknown error";
         try {
             String parms = createStringFromMap(parameters);
@@ -289,8 +371,11 @@ public class WebVistaData implements VistaData {
             if (response != null) {
                 resp = Integer.toString(response.code()) + "^" + response.message();
                 if (response.code() == 200 || response.code() == 201) {
-                    resp = response.body().string();
-                    resp = Integer.toString(response.code()) + "^" + "Success";
+                    resp = response.body().string().trim();
+                    if (!resp.startsWith("-1")) {
+                        publishWrite(path, parameters);
+                    }
+                    resp = keepReply ? resp : Integer.toString(response.code()) + "^" + "Success";
                 }
             }
         } catch (IOException e) {
@@ -299,6 +384,17 @@ public class WebVistaData implements VistaData {
         return resp;
     }
 
+    /**
+     * VistA answers a refused write with -1^reason, anything else has changed the patient.
+     * A write to an endpoint not listed here is assumed to touch anything.
+     */
+    private void publishWrite(String path, Map<String, String> parameters) {
+        String icn = parameters.containsKey(ICN) ? parameters.get(ICN) : parameters.get("PAT");
+        if (icn != null && !icn.isEmpty()) {
+            mInvalidations.publish(icn, WRITTEN_CATEGORIES.getOrDefault(path, EnumSet.allOf(DataCategory.class)));
+        }
+    }
+
     private String createStringFromMap(Map<String, String> parameters) {
         StringBuilder stringBuilder = new StringBuilder();
 
@@ -371,6 +467,24 @@ public class WebVistaData implements VistaData {
         return createMapForSingleParameter(icn, ICN);
     }
 
+    /**
+     * ICN with the optional, inclusive, FRDAT and TODAT day range accepted by the patient endpoints
+     */
+    private static HashMap<String, String> createMapForDateRange(String icn, Date from, Date to) {
+
+        HashMap<String, String> map = createMapForSingleParameter(icn);
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+
+        if (from != null) {
+            map.put("FRDAT", format.format(from));
+        }
+        if (to != null) {
+            map.put("TODAT", format.format(to));
+        }
+
+        return map;
+    }
+
     private static LinkedHashMap<String, String> createMapForCondition(Condition theCondition) {
         LinkedHashMap<String, String> map = new LinkedHashMap<>();
 
@@ -0,0 +1,93 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test;
+
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.vista.MemoizingVistaData;
+import com.healthconcourse.vista.fhir.api.vista.VistaData;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoizingVistaDataTest {
+
+    private static final String ICN = "5000001534V744140";
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger vitalsCalls = new AtomicInteger();
+
+    private final VistaData vista = new MockVistaData() {
+        @Override
+        public String getPatientData(String icn) {
+            calls.incrementAndGet();
+            return super.getPatientData(icn);
+        }
+
+        @Override
+        public String getVitalsObservationsByIcn(String icn) {
+            vitalsCalls.incrementAndGet();
+            return super.getVitalsObservationsByIcn(icn);
+        }
+    };
+
+    @Test
+    public void TestReadsAreShared() {
+
+        MemoizingVistaData data = new MemoizingVistaData(vista);
+        String first = data.getPatientData(ICN);
+        assertEquals(first, data.getPatientData(ICN));
+        data.getPatientData("5000001519V211431");
+
+        assertEquals(2, calls.get());
+        assertEquals(2, data.size());
+    }
+
+    @Test
+    public void TestInstancesDoNotShareReads() {
+
+        new MemoizingVistaData(vista).getPatientData(ICN);
+        new MemoizingVistaData(vista).getPatientData(ICN);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestWriteForgetsReads() {
+
+        MemoizingVistaData data = new MemoizingVistaData(vista);
+        data.getPatientData(ICN);
+        data.putVitals(new HashMap<>());
+        data.getPatientData(ICN);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestReadsAreSharedAcrossServiceThreads() {
+
+        // The patient service reads each category on the common pool
+        VistaPatientService service = new VistaPatientService(new MemoizingVistaData(vista), PatientSnapshotCache.disabled());
+        service.getObservationIndex(ICN);
+        service.getObservationIndex(ICN);
+
+        assertEquals(1, vitalsCalls.get());
+    }
+}
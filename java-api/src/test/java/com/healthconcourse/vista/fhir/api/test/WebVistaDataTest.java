@@ -16,6 +16,9 @@ limitations under the License.
 */
 package com.healthconcourse.vista.fhir.api.test;
 
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.LocalInvalidationBus;
 import com.healthconcourse.vista.fhir.api.vista.WebVistaData;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -28,6 +31,11 @@ import org.junit.Test;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 
@@ -83,6 +91,15 @@ public class WebVistaDataTest {
         assertEquals("", result);
     }
 
+    @Test(expected = InternalErrorException.class)
+    public void getPatientsByRangeError() throws IOException {
+        setServer("This is an error message", "/DHPPATDEMRNG?ICN=1R100", 500);
+
+        WebVistaData data = new WebVistaData(getServerUrl(mServer));
+
+        data.getPatientsByRange(1, 100);
+    }
+
     @Test
     public void getPatientByCriteriaSuccess() throws IOException, ParseException {
 
@@ -153,6 +170,23 @@ public class WebVistaDataTest {
         assertEquals(result, DEFAULT_BODY);
     }
 
+    @Test
+    public void getVitalsByIcnAndDateRangeSuccess() throws IOException, InterruptedException, ParseException {
+
+        setServer(DEFAULT_BODY, "/DHPPATVITICN");
+
+        WebVistaData data = new WebVistaData(getServerUrl(mServer));
+
+        String result = data.getVitalsObservationsByIcn("12345", DATE_FORMAT.parse("02/01/2015"), DATE_FORMAT.parse("31/12/2016"));
+        RecordedRequest request = mServer.takeRequest();
+        mServer.close();
+
+        assertEquals("12345", request.getRequestUrl().queryParameter("ICN"));
+        assertEquals("20150102", request.getRequestUrl().queryParameter("FRDAT"));
+        assertEquals("20161231", request.getRequestUrl().queryParameter("TODAT"));
+        assertEquals(result, DEFAULT_BODY);
+    }
+
     @Test
     public void getEncountersByIcnSuccess() throws IOException, InterruptedException {
 
@@ -302,6 +336,41 @@ public class WebVistaDataTest {
         assertEquals(result, DEFAULT_BODY);
     }
 
+    @Test
+    public void writeInvalidatesPatient() throws IOException {
+        setServer("1", "/DHPPATVITUPD");
+
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        List<String> invalidated = new ArrayList<>();
+        bus.subscribe((icn, categories) -> invalidated.add(icn + " " + categories));
+        WebVistaData data = new WebVistaData(getServerUrl(mServer), bus);
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("ICN", "12345");
+        parameters.put("SCT", "27113001");
+        String result = data.putVitals(parameters);
+
+        assertEquals("1", result);
+        assertEquals(1, invalidated.size());
+        assertEquals("12345 " + EnumSet.of(DataCategory.VITALS), invalidated.get(0));
+    }
+
+    @Test
+    public void refusedWriteDoesNotInvalidate() throws IOException {
+        setServer("-1^Patient not recognised", "/DHPPATLABUPD");
+
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        List<String> invalidated = new ArrayList<>();
+        bus.subscribe((icn, categories) -> invalidated.add(icn));
+        WebVistaData data = new WebVistaData(getServerUrl(mServer), bus);
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("PAT", "12345");
+        data.putLabResult(parameters);
+
+        assertEquals(0, invalidated.size());
+    }
+
     private String getServerUrl(MockWebServer server) {
         return String.format("http://%s:%s/", server.getHostName(), server.getPort());
     }
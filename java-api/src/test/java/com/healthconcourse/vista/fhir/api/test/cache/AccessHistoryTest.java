@@ -0,0 +1,112 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.AccessHistory;
+import com.healthconcourse.vista.fhir.api.cache.AccessKind;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+public class AccessHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void TestMostUsedIsOrderedByCount() {
+
+        AccessHistory history = new AccessHistory(10, null);
+        history.record(AccessKind.PATIENT, "1");
+        history.record(AccessKind.PATIENT, "2");
+        history.record(AccessKind.PATIENT, "2");
+        history.record(AccessKind.LOCATION, "ALBANY");
+        history.record(AccessKind.LOCATION, "ALBANY");
+        history.record(AccessKind.LOCATION, "ALBANY");
+
+        List<AccessHistory.Item> items = history.getMostUsed(2);
+
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals("ALBANY", items.get(0).getKey());
+        Assert.assertEquals(3, items.get(0).getCount());
+        Assert.assertEquals("2", items.get(1).getKey());
+    }
+
+    @Test
+    public void TestOldAccessesRankLower() {
+
+        Instant now = Instant.parse("2019-10-01T00:00:00Z");
+        Path file = folder.getRoot().toPath().resolve("history.tsv");
+
+        AccessHistory lastMonth = new AccessHistory(10, file, Clock.fixed(now.minus(Duration.ofDays(30)), ZoneOffset.UTC));
+        for (int i = 0; i < 5; i++) {
+            lastMonth.record(AccessKind.PATIENT, "old");
+        }
+        lastMonth.save();
+
+        AccessHistory history = new AccessHistory(10, file, Clock.fixed(now, ZoneOffset.UTC));
+        history.load();
+        history.record(AccessKind.PATIENT, "new");
+        history.record(AccessKind.PATIENT, "new");
+
+        List<AccessHistory.Item> items = history.getMostUsed(10);
+        Assert.assertEquals("new", items.get(0).getKey());
+        Assert.assertEquals("old", items.get(1).getKey());
+        Assert.assertEquals(5, items.get(1).getCount());
+    }
+
+    @Test
+    public void TestSaveAndLoad() throws IOException {
+
+        Path file = folder.newFile("history.tsv").toPath();
+
+        AccessHistory history = new AccessHistory(2, file);
+        history.record(AccessKind.PATIENT, "5000001534V744140");
+        history.record(AccessKind.PATIENT, "5000001534V744140");
+        history.record(AccessKind.CARE_TEAM, "TEAM A");
+        history.record(AccessKind.CARE_TEAM, "TEAM A");
+        history.record(AccessKind.LOCATION, "ALBANY");
+        history.save();
+
+        AccessHistory loaded = new AccessHistory(2, file);
+        loaded.load();
+
+        List<AccessHistory.Item> items = loaded.getMostUsed(10);
+        Assert.assertEquals("Only the busiest entries are saved", 2, items.size());
+        Assert.assertEquals(2, items.get(0).getCount());
+        Assert.assertEquals(2, items.get(1).getCount());
+    }
+
+    @Test
+    public void TestHistoryIsBounded() {
+
+        AccessHistory history = new AccessHistory(5, null);
+        for (int i = 0; i < 100; i++) {
+            history.record(AccessKind.PATIENT, String.valueOf(i));
+        }
+
+        Assert.assertTrue(history.size() <= 10);
+    }
+}
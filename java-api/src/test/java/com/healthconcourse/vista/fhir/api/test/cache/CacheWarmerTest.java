@@ -0,0 +1,104 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.AccessHistory;
+import com.healthconcourse.vista.fhir.api.cache.AccessKind;
+import com.healthconcourse.vista.fhir.api.cache.CacheWarmer;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
+import com.healthconcourse.vista.fhir.api.service.VistaCareTeamService;
+import com.healthconcourse.vista.fhir.api.service.VistaLocationService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheWarmerTest {
+
+    private final MockVistaData vista = new MockVistaData();
+    private final PatientSnapshotCache snapshots = new PatientSnapshotCache(new PatientCacheSettings());
+    private final ReferenceDataCache references = new ReferenceDataCache(100, Duration.ofMinutes(5));
+    private final ExecutorService workers = Executors.newFixedThreadPool(2);
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final VistaCallScheduler scheduler = new VistaCallScheduler(task -> {
+        scheduled.incrementAndGet();
+        workers.execute(task);
+    }, 2);
+
+    private CacheWarmer createWarmer(AccessHistory history) {
+        return new CacheWarmer(history,
+                new VistaPatientService(vista, snapshots),
+                new VistaLocationService(vista, references),
+                new VistaCareTeamService(vista, references),
+                new RateLimiter(0),
+                scheduler,
+                10);
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void TestWarmLoadsHistoryIntoCaches() throws InterruptedException {
+
+        AccessHistory history = new AccessHistory(10, null);
+        history.record(AccessKind.PATIENT, "5000001534V744140");
+        history.record(AccessKind.LOCATION, "ALBANY");
+        history.record(AccessKind.LOCATION, "nowhere");
+
+        CacheWarmer warmer = createWarmer(history);
+        warmer.warm();
+
+        Assert.assertTrue(warmer.isFinished());
+        Assert.assertEquals(3, warmer.getTotal());
+        Assert.assertEquals(100, warmer.getPercentComplete());
+        Assert.assertEquals("Unknown location is counted as a failure", 1, warmer.getFailed());
+        Assert.assertTrue(snapshots.getIfPresent("5000001534V744140").getCachedCategories().contains(DataCategory.CONDITION));
+        Assert.assertEquals(1, references.size());
+        Assert.assertTrue("Every call goes through the scheduler", scheduled.get() > DataCategory.values().length / 2);
+
+        // A call is only counted as finished after the caller has seen its result
+        workers.shutdown();
+        Assert.assertTrue(workers.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, scheduler.getOutstanding());
+    }
+
+    @Test
+    public void TestEmptyHistoryIsComplete() {
+
+        CacheWarmer warmer = createWarmer(new AccessHistory(10, null));
+        Assert.assertEquals(0, warmer.getPercentComplete());
+
+        warmer.warm();
+
+        Assert.assertTrue(warmer.isFinished());
+        Assert.assertEquals(100, warmer.getPercentComplete());
+    }
+}
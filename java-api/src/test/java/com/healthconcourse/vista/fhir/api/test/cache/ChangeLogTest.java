@@ -0,0 +1,103 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.ChangeLog;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChangeLogTest {
+
+    private final Clock clock = Clock.fixed(Instant.parse("2019-06-01T00:00:00Z"), ZoneOffset.UTC);
+
+    @Test
+    public void TestOnlyChangedPayloadsAreLogged() {
+
+        ChangeLog log = new ChangeLog(100, 100, clock);
+        long start = log.getLastSequence();
+
+        Assert.assertTrue("First payload seen is a change", log.record("123", DataCategory.VITALS, "a^b"));
+        Assert.assertFalse(log.record("123", DataCategory.VITALS, "a^b"));
+        Assert.assertTrue(log.record("123", DataCategory.LABS, "a^b"));
+        Assert.assertTrue(log.record("123", DataCategory.VITALS, "a^c"));
+
+        List<ChangeLog.Change> changes = log.getChanges(start, 10);
+        Assert.assertEquals("Only the latest change per category is kept", 2, changes.size());
+        Assert.assertEquals(DataCategory.LABS, changes.get(0).getCategory());
+        Assert.assertEquals(DataCategory.VITALS, changes.get(1).getCategory());
+        Assert.assertTrue(changes.get(0).getSequence() < changes.get(1).getSequence());
+
+        Assert.assertEquals(1, log.getChanges(changes.get(0).getSequence(), 10).size());
+        Assert.assertTrue(log.getChanges(log.getLastSequence(), 10).isEmpty());
+        Assert.assertEquals(1, log.getChanges(start, 1).size());
+    }
+
+    @Test
+    public void TestDroppedChangesNeedResync() {
+
+        ChangeLog log = new ChangeLog(2, 100, clock);
+        long start = log.getLastSequence();
+
+        Assert.assertTrue("Tokens from before the log started are too old", log.isTooOld(start - 1));
+        Assert.assertFalse(log.isTooOld(start));
+
+        log.record("1", DataCategory.PATIENT, "a");
+        long first = log.getLastSequence();
+        log.record("2", DataCategory.PATIENT, "a");
+        log.record("3", DataCategory.PATIENT, "a");
+
+        Assert.assertEquals(2, log.size());
+        Assert.assertTrue(log.isTooOld(start));
+        Assert.assertFalse(log.isTooOld(first));
+    }
+
+    @Test
+    public void TestDisabledLogRecordsNothing() {
+
+        ChangeLog log = ChangeLog.disabled();
+
+        Assert.assertFalse(log.isEnabled());
+        Assert.assertFalse(log.record("123", DataCategory.VITALS, "a"));
+        Assert.assertEquals(0, log.size());
+    }
+
+    @Test
+    public void TestCacheReportsFetchedPayloads() {
+
+        ChangeLog log = new ChangeLog(100, 100, clock);
+        PatientCacheSettings settings = new PatientCacheSettings();
+        settings.setDefaultTimeToLive(Duration.ZERO);
+        PatientSnapshotCache cache = new PatientSnapshotCache(settings, Runnable::run, System::nanoTime, log);
+
+        cache.get("123", DataCategory.VITALS, () -> "a^b", payload -> Arrays.asList(payload.split("\\^")));
+        cache.get("123", DataCategory.VITALS, () -> "a^b", payload -> Arrays.asList(payload.split("\\^")));
+        cache.get("123", DataCategory.VITALS, () -> "a^c", payload -> Arrays.asList(payload.split("\\^")));
+        PatientSnapshotCache.disabled(log).get("456", DataCategory.LABS, () -> "x", payload -> Arrays.asList(payload));
+
+        Assert.assertEquals(2, log.size());
+        Assert.assertEquals(DataCategory.LABS, log.getChanges(0, 10).get(1).getCategory());
+    }
+}
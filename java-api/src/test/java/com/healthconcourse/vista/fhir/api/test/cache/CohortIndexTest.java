@@ -0,0 +1,286 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.CohortBitmap;
+import com.healthconcourse.vista.fhir.api.cache.CohortCrawler;
+import com.healthconcourse.vista.fhir.api.cache.CohortIndex;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.InvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.LocalInvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.PatientIndexCrawler;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.ConditionService;
+import com.healthconcourse.vista.fhir.api.service.PatientFetcher;
+import com.healthconcourse.vista.fhir.api.service.VistaConditionService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CohortIndexTest {
+
+    // A patient's only condition, without a SNOMED code
+    private static final String RESOLVED = "7849159139V519746^V-999-9000011-1225^473.9;UNSPECIFIED SINUSITIS (CHRONIC);ICD^19381021^;^INACTIVE^^problem|";
+
+    @Test
+    public void TestSparseBitmapOperations() {
+
+        CohortBitmap a = CohortBitmap.of(1, 5, 70000, 3);
+        CohortBitmap b = CohortBitmap.of(5, 70000, 9);
+
+        Assert.assertArrayEquals(new int[]{1, 3, 5, 70000}, a.toArray());
+        Assert.assertArrayEquals(new int[]{5, 70000}, a.and(b).toArray());
+        Assert.assertArrayEquals(new int[]{1, 3, 5, 9, 70000}, a.or(b).toArray());
+        Assert.assertArrayEquals(new int[]{1, 3}, a.andNot(b).toArray());
+
+        a.remove(70000);
+        Assert.assertFalse(a.contains(70000));
+        Assert.assertEquals(3, a.cardinality());
+    }
+
+    @Test
+    public void TestDenseBitmapOperationsMatchSets() {
+
+        CohortBitmap evens = new CohortBitmap();
+        CohortBitmap threes = new CohortBitmap();
+        Set<Integer> evenSet = new TreeSet<>();
+        Set<Integer> threeSet = new TreeSet<>();
+        for (int i = 0; i < 200000; i++) {
+            if (i % 2 == 0) {
+                evens.add(i);
+                evenSet.add(i);
+            }
+            if (i % 3 == 0) {
+                threes.add(i);
+                threeSet.add(i);
+            }
+        }
+
+        Set<Integer> both = new TreeSet<>(evenSet);
+        both.retainAll(threeSet);
+        Set<Integer> either = new TreeSet<>(evenSet);
+        either.addAll(threeSet);
+        Set<Integer> onlyEven = new TreeSet<>(evenSet);
+        onlyEven.removeAll(threeSet);
+
+        Assert.assertArrayEquals(toArray(both), evens.and(threes).toArray());
+        Assert.assertArrayEquals(toArray(either), evens.or(threes).toArray());
+        Assert.assertArrayEquals(toArray(onlyEven), evens.andNot(threes).toArray());
+        Assert.assertEquals(evenSet.size(), evens.copy().cardinality());
+
+        for (int i = 0; i < 200000; i += 2) {
+            evens.remove(i);
+        }
+        Assert.assertTrue(evens.isEmpty());
+    }
+
+    @Test
+    public void TestFindCombinesCodes() {
+
+        CohortIndex index = new CohortIndex();
+        index.update("A", Arrays.asList("diabetes", "hypertension"));
+        index.update("B", Arrays.asList("diabetes", "hypertension", "ckd"));
+        index.update("C", Collections.singletonList("diabetes"));
+        index.update("D", Collections.singletonList("asthma"));
+
+        Assert.assertEquals(Collections.singletonList("A"),
+                index.find(Arrays.asList("diabetes", "hypertension"), Collections.emptyList(), Collections.singletonList("ckd")));
+        Assert.assertEquals(Arrays.asList("A", "B", "D"),
+                index.find(Collections.emptyList(), Arrays.asList("hypertension", "asthma"), Collections.emptyList()));
+        Assert.assertEquals(Arrays.asList("C", "D"),
+                index.find(Collections.emptyList(), Collections.emptyList(), Collections.singletonList("hypertension")));
+
+        index.update("B", Collections.singletonList("asthma"));
+        Assert.assertEquals(1, index.count("hypertension"));
+        Assert.assertFalse(index.getCodes().contains("ckd"));
+        Assert.assertEquals(4, index.getPatientCount());
+    }
+
+    @Test
+    public void TestRetainAllForgetsRemovedPatients() {
+
+        CohortIndex index = new CohortIndex();
+        index.update("A", Arrays.asList("diabetes", "hypertension"));
+        index.update("B", Collections.singletonList("diabetes"));
+
+        index.retainAll(Collections.singletonList("B"));
+
+        Assert.assertEquals(Collections.singletonList("B"),
+                index.find(Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+        Assert.assertEquals(0, index.count("hypertension"));
+        Assert.assertEquals(1, index.getPatientCount());
+
+        index.update("A", Collections.singletonList("asthma"));
+        Assert.assertEquals(Collections.singletonList("A"),
+                index.find(Collections.singletonList("asthma"), Collections.emptyList(), Collections.emptyList()));
+    }
+
+    @Test
+    public void TestConditionWriteRefreshesPatient() throws InterruptedException {
+
+        AtomicReference<String> resolved = new AtomicReference<>();
+        MockVistaData vista = new MockVistaData() {
+            @Override
+            public String getConditions(String icn) {
+                return icn.equals(resolved.get()) ? RESOLVED : super.getConditions(icn);
+            }
+        };
+        PatientSearchIndex patients = new PatientSearchIndex();
+        new PatientIndexCrawler(vista, patients, new KnownPatientFilter(0.01), new RateLimiter(0), 100, 1,
+                Duration.ofMinutes(15), Duration.ofHours(24)).crawlAll();
+
+        String icn = patients.getIcns().get(0);
+
+        CohortIndex cohorts = new CohortIndex();
+        CohortCrawler crawler = new CohortCrawler(vista, patients, cohorts, new RateLimiter(0), Duration.ofHours(24));
+        InvalidationBus invalidations = new LocalInvalidationBus();
+        invalidations.subscribe(crawler::invalidated);
+        crawler.crawl();
+        Assert.assertTrue(cohorts.find(Collections.singletonList("68496003"), Collections.emptyList(), Collections.emptyList()).contains(icn));
+
+        resolved.set(icn);
+        invalidations.publish(icn, EnumSet.of(DataCategory.VITALS));
+        Thread.sleep(100);
+        Assert.assertTrue("Only condition writes are read again",
+                cohorts.find(Collections.singletonList("68496003"), Collections.emptyList(), Collections.emptyList()).contains(icn));
+
+        invalidations.publish(icn, EnumSet.of(DataCategory.CONDITION));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cohorts.find(Collections.singletonList("68496003"), Collections.emptyList(), Collections.emptyList()).contains(icn)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(cohorts.find(Collections.singletonList("68496003"), Collections.emptyList(), Collections.emptyList()).contains(icn));
+    }
+
+    @Test
+    public void TestEmptyReplyKeepsCodes() throws InterruptedException {
+
+        AtomicBoolean down = new AtomicBoolean();
+        MockVistaData vista = new MockVistaData() {
+            @Override
+            public String getConditions(String icn) {
+                return down.get() ? "" : super.getConditions(icn);
+            }
+        };
+        PatientSearchIndex patients = new PatientSearchIndex();
+        CohortIndex cohorts = new CohortIndex();
+        CohortCrawler crawler = new CohortCrawler(vista, patients, cohorts, new RateLimiter(0), Duration.ofHours(24));
+
+        Assert.assertEquals("No patients to walk", 0, crawler.crawl());
+        Assert.assertFalse(cohorts.isReady());
+
+        new PatientIndexCrawler(vista, patients, new KnownPatientFilter(0.01), new RateLimiter(0), 100, 1,
+                Duration.ofMinutes(15), Duration.ofHours(24)).crawlAll();
+        down.set(true);
+        Assert.assertEquals(9, crawler.crawl());
+        Assert.assertFalse("Nothing was read", cohorts.isReady());
+
+        down.set(false);
+        crawler.crawl();
+        down.set(true);
+        Assert.assertEquals(9, crawler.crawl());
+        Assert.assertTrue(cohorts.isReady());
+        Assert.assertEquals(9, cohorts.count("68496003"));
+        crawler.refresh(patients.getIcns().get(0));
+        Assert.assertEquals(9, cohorts.count("68496003"));
+    }
+
+    @Test
+    public void TestCrawlFeedsConditionService() throws InterruptedException {
+
+        MockVistaData vista = new MockVistaData();
+        PatientSearchIndex patients = new PatientSearchIndex();
+        new PatientIndexCrawler(vista, patients, new KnownPatientFilter(0.01), new RateLimiter(0), 100, 1,
+                Duration.ofMinutes(15), Duration.ofHours(24)).crawlAll();
+
+        CohortIndex cohorts = new CohortIndex();
+        ConditionService service = new VistaConditionService(vista, cohorts, patients,
+                new PatientFetcher(new VistaPatientService(vista), PatientSnapshotCache.disabled(), Runnable::run, new RateLimiter(0), 1));
+        int fromVista = service.getPatientsByCode("68496003").size();
+
+        CohortCrawler crawler = new CohortCrawler(vista, patients, cohorts, new RateLimiter(0), Duration.ofHours(24));
+        Assert.assertEquals(0, crawler.crawl());
+        Assert.assertTrue(cohorts.isReady());
+
+        List<Patient> found = service.getPatientsByCode("68496003");
+        Assert.assertEquals(9, found.size());
+        Assert.assertTrue(found.get(0).hasBirthDate());
+        Assert.assertEquals(5, fromVista);
+        Assert.assertTrue(service.getPatientsByCodes("68496003", null, "68496003", false).isEmpty());
+    }
+
+    @Test
+    public void TestFetcherKeepsOrderWithinWindow() {
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger mostActive = new AtomicInteger();
+        // Counted around the read itself, a pool thread is still busy for a moment after its read has completed
+        MockVistaData vista = new MockVistaData() {
+            @Override
+            public String getPatientData(String icn) {
+                mostActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                try {
+                    return super.getPatientData(icn);
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        };
+
+        try {
+            PatientFetcher fetcher = new PatientFetcher(new VistaPatientService(vista), PatientSnapshotCache.disabled(),
+                    pool, new RateLimiter(0), 2);
+            List<String> icns = Arrays.asList("5000001534V744140", "444", "5000001519V211431", "5000001534V744140", "444");
+
+            List<Optional<Patient>> results = fetcher.fetch(icns);
+
+            Assert.assertEquals(icns.size(), results.size());
+            Assert.assertEquals("5000001534V744140", results.get(0).get().getIdElement().getIdPart());
+            Assert.assertFalse("Unreadable patients are left empty", results.get(1).isPresent());
+            Assert.assertEquals("5000001519V211431", results.get(2).get().getIdElement().getIdPart());
+            Assert.assertEquals("5000001534V744140", results.get(3).get().getIdElement().getIdPart());
+            Assert.assertFalse(results.get(4).isPresent());
+            Assert.assertTrue("No more than the window was read at once", mostActive.get() <= 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int[] toArray(Set<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
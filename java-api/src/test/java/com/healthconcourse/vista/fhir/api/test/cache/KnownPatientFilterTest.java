@@ -0,0 +1,179 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KnownPatientFilterTest {
+
+    private static final String KNOWN_ICN = "5000001534V744140";
+    private static final String NEW_ICN = "5000001519V211431";
+
+    private final AtomicInteger patientCalls = new AtomicInteger();
+    private final AtomicInteger conditionCalls = new AtomicInteger();
+    private final AtomicInteger vitalsCalls = new AtomicInteger();
+    private final MockVistaData vista = new MockVistaData() {
+        @Override
+        public String getPatientData(String icn) {
+            patientCalls.incrementAndGet();
+            return super.getPatientData(icn);
+        }
+
+        @Override
+        public String getVitalsObservationsByIcn(String icn, Date from, Date to) {
+            vitalsCalls.incrementAndGet();
+            return super.getVitalsObservationsByIcn(icn, from, to);
+        }
+
+        @Override
+        public String getConditions(String icn) {
+            conditionCalls.incrementAndGet();
+            return super.getConditions(icn);
+        }
+    };
+
+    private PatientService createService(KnownPatientFilter filter) {
+        return new VistaPatientService(vista, PatientSnapshotCache.disabled(), new PatientSearchIndex(), filter);
+    }
+
+    @Test
+    public void TestEmptyFilterPassesEverything() {
+
+        KnownPatientFilter filter = new KnownPatientFilter(0.01);
+
+        Assert.assertFalse(filter.isReady());
+        Assert.assertTrue(filter.mightContain("anything"));
+    }
+
+    @Test
+    public void TestKnownIcnsAreAlwaysFound() {
+
+        List<String> icns = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            icns.add((1000000000L + i * 7919L) + "V" + (100000 + i));
+        }
+
+        KnownPatientFilter filter = new KnownPatientFilter(0.01);
+        filter.replaceAll(icns);
+
+        for (String icn : icns) {
+            Assert.assertTrue(icn, filter.mightContain(icn));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain((2000000000L + i) + "V" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("False positive rate " + falsePositives / 100.0 + "%", falsePositives < 300);
+
+        Assert.assertFalse(filter.mightContain("1234567890V123456"));
+        filter.put("1234567890V123456");
+        Assert.assertTrue(filter.mightContain("1234567890V123456"));
+    }
+
+    @Test
+    public void TestUnknownPatientIsLookedUpOnce() {
+
+        KnownPatientFilter filter = new KnownPatientFilter(0.01);
+        filter.replaceAll(Collections.singletonList(KNOWN_ICN));
+        PatientService service = createService(filter);
+
+        try {
+            service.getPatientById("1234567890V123456");
+            Assert.fail("Expected ResourceNotFoundException");
+        } catch (ResourceNotFoundException ex) {
+            // expected
+        }
+        try {
+            service.getEverything("1234567890V123456");
+            Assert.fail("Expected ResourceNotFoundException");
+        } catch (ResourceNotFoundException ex) {
+            // expected
+        }
+        Assert.assertTrue(service.getConditionsForPatient("1234567890V123456").isEmpty());
+        Assert.assertTrue(service.getObservationSeries("1234567890V123456", new Date(0), new Date()).find("27113001").isEmpty());
+
+        Assert.assertEquals("Looked up once, then refused while the miss is remembered", 1, patientCalls.get());
+        Assert.assertEquals(0, conditionCalls.get());
+        Assert.assertEquals(0, vitalsCalls.get());
+        Assert.assertFalse(filter.mightContain("1234567890V123456"));
+        Assert.assertFalse(service.getConditionsForPatient(KNOWN_ICN).isEmpty());
+        Assert.assertEquals(1, patientCalls.get());
+    }
+
+    @Test
+    public void TestMissIsAskedAgainOnceForgotten() {
+
+        KnownPatientFilter filter = new KnownPatientFilter(0.01, 100, Duration.ZERO);
+        filter.replaceAll(Collections.singletonList(KNOWN_ICN));
+        PatientService service = createService(filter);
+
+        Assert.assertTrue(service.getConditionsForPatient("1234567890V123456").isEmpty());
+        Assert.assertTrue(service.getConditionsForPatient("1234567890V123456").isEmpty());
+
+        Assert.assertEquals(2, patientCalls.get());
+        Assert.assertFalse(filter.isRecentlyMissing("1234567890V123456"));
+    }
+
+    @Test
+    public void TestNewPatientIsAddedToFilter() {
+
+        KnownPatientFilter filter = new KnownPatientFilter(0.01);
+        filter.replaceAll(Collections.singletonList(KNOWN_ICN));
+        PatientService service = createService(filter);
+
+        Assert.assertFalse(service.getConditionsForPatient(NEW_ICN).isEmpty());
+        Assert.assertTrue(filter.mightContain(NEW_ICN));
+        Assert.assertEquals(1, patientCalls.get());
+
+        Assert.assertFalse(service.getConditionsForPatient(NEW_ICN).isEmpty());
+        Assert.assertEquals("Found once, no further lookups", 1, patientCalls.get());
+    }
+
+    @Test
+    public void TestEverythingConfirmsPatientBeforeFanningOut() {
+
+        PatientService service = createService(new KnownPatientFilter(0.01));
+
+        try {
+            service.getEverything("444");
+            Assert.fail("Expected ResourceNotFoundException");
+        } catch (ResourceNotFoundException ex) {
+            // expected
+        }
+
+        Assert.assertEquals(1, patientCalls.get());
+        Assert.assertEquals("No compartments fetched for a missing patient", 0, conditionCalls.get());
+        Assert.assertFalse(service.getEverything(KNOWN_ICN).isEmpty());
+    }
+}
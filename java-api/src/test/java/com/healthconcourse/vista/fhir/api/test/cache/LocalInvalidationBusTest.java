@@ -0,0 +1,61 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.LocalInvalidationBus;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+public class LocalInvalidationBusTest {
+
+    @Test
+    public void TestWrittenCategoryIsDropped() {
+
+        PatientSnapshotCache cache = new PatientSnapshotCache(new PatientCacheSettings(), Runnable::run, System::nanoTime);
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        bus.subscribe(cache::invalidate);
+
+        cache.get("123", DataCategory.VITALS, () -> "a^b", Collections::singletonList);
+        cache.get("123", DataCategory.LABS, () -> "a^b", Collections::singletonList);
+        bus.publish("123", EnumSet.of(DataCategory.VITALS));
+        bus.publish("456", EnumSet.of(DataCategory.LABS));
+
+        Assert.assertEquals(EnumSet.of(DataCategory.LABS), cache.getIfPresent("123").getCachedCategories());
+    }
+
+    @Test
+    public void TestFailingListenerDoesNotStopOthers() {
+
+        LocalInvalidationBus bus = new LocalInvalidationBus();
+        List<String> invalidated = new ArrayList<>();
+        bus.subscribe((icn, categories) -> {
+            throw new IllegalStateException("Unavailable");
+        });
+        bus.subscribe((icn, categories) -> invalidated.add(icn));
+
+        bus.publish("123", EnumSet.of(DataCategory.CONDITION));
+
+        Assert.assertEquals(Collections.singletonList("123"), invalidated);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.cache.LocationDirectory;
+import com.healthconcourse.vista.fhir.api.cache.ReferenceDataCache;
+import com.healthconcourse.vista.fhir.api.service.VistaLocationService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LocationDirectoryTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Map<String, String> payloads = new HashMap<>();
+    private volatile boolean vistaDown;
+
+    private final MockVistaData data = new MockVistaData() {
+        @Override
+        public String getLocationByName(String name) {
+            calls.incrementAndGet();
+            if (vistaDown) {
+                return "";
+            }
+            return payloads.getOrDefault(name, "-1^Location not found");
+        }
+    };
+
+    private LocationDirectory createDirectory() {
+        payloads.put("GENERAL MEDICINE", "GENERAL MEDICINE^23|CAMP MASTER|500|1 MAIN ST||ABILENE|KANSAS|67410");
+        payloads.put("GENERAL SURGERY", "GENERAL SURGERY^24|CAMP MASTER|500|1 MAIN ST||ABILENE|KANSAS|67410");
+        payloads.put("CARDIOLOGY", "CARDIOLOGY^31|CAMP MASTER|500|1 MAIN ST||ABILENE|KANSAS|67410");
+        return new LocationDirectory(data, new RateLimiter(1000), Duration.ofMinutes(60));
+    }
+
+    private static String getIds(List<Location> locations) {
+        StringBuilder ids = new StringBuilder();
+        for (Location location : locations) {
+            ids.append(location.getIdElement().getIdPart()).append(' ');
+        }
+        return ids.toString().trim();
+    }
+
+    @Test
+    public void TestConfiguredNamesAreLoaded() {
+
+        LocationDirectory directory = createDirectory();
+        directory.addNames(Arrays.asList("general medicine", " GENERAL SURGERY", "CARDIOLOGY"));
+        directory.refresh();
+
+        Assert.assertEquals(3, directory.size());
+        Assert.assertEquals("GENERAL SURGERY", directory.getById("24").get().getName());
+        Assert.assertEquals("23", directory.getByName("General Medicine").get().getIdElement().getIdPart());
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void TestSearchByPrefixAndContains() {
+
+        LocationDirectory directory = createDirectory();
+        directory.addNames(Arrays.asList("GENERAL MEDICINE", "GENERAL SURGERY", "CARDIOLOGY"));
+        directory.refresh();
+
+        Assert.assertEquals("23 24", getIds(directory.search("gen", false)));
+        Assert.assertEquals("", getIds(directory.search("surg", false)));
+        Assert.assertEquals("24", getIds(directory.search("surg", true)));
+        Assert.assertEquals("31 23", getIds(directory.search("c", true)));
+    }
+
+    @Test
+    public void TestLocationsFoundByNameAreKept() {
+
+        LocationDirectory directory = createDirectory();
+        VistaLocationService service = new VistaLocationService(data, ReferenceDataCache.disabled(), directory);
+
+        service.findLocationByName("CARDIOLOGY");
+        service.findLocationByName("CARDIOLOGY");
+        Assert.assertEquals("Second lookup answered by the directory", 1, calls.get());
+
+        directory.refresh();
+        Assert.assertEquals("31", getIds(directory.search("CARD", false)));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestRemovedLocationIsDropped() {
+
+        LocationDirectory directory = createDirectory();
+        directory.addNames(Arrays.asList("GENERAL MEDICINE", "CARDIOLOGY"));
+        directory.refresh();
+
+        payloads.remove("CARDIOLOGY");
+        directory.refresh();
+        directory.refresh();
+
+        Assert.assertFalse(directory.getById("31").isPresent());
+        Assert.assertEquals(1, directory.size());
+        Assert.assertEquals("No longer looked up once VistA had no such location", 2 + 2 + 1, calls.get());
+    }
+
+    @Test
+    public void TestLocationsAreKeptWhileVistaIsDown() {
+
+        LocationDirectory directory = createDirectory();
+        directory.addNames(Arrays.asList("GENERAL MEDICINE", "CARDIOLOGY"));
+        directory.refresh();
+
+        vistaDown = true;
+        directory.addNames(Collections.singletonList("GENERAL SURGERY"));
+        directory.refresh();
+        Assert.assertEquals(2, directory.size());
+        Assert.assertTrue(directory.getById("31").isPresent());
+
+        vistaDown = false;
+        directory.refresh();
+        Assert.assertEquals("Names read during the outage are still looked up", 3, directory.size());
+    }
+}
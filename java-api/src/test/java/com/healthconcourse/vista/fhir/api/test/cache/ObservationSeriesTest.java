@@ -0,0 +1,175 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import com.healthconcourse.vista.fhir.api.HcConstants;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeries;
+import com.healthconcourse.vista.fhir.api.cache.ObservationSeriesIndex;
+import com.healthconcourse.vista.fhir.api.utils.ResourceHelper;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class ObservationSeriesTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static Observation createObservation(String code, String value, long day) {
+        Observation observation = new Observation();
+        observation.setCode(ResourceHelper.createCodeableConcept(HcConstants.SNOMED_URN, code, code));
+        observation.setValue(new StringType(value));
+        observation.setEffective(new DateTimeType(new Date(day * DAY)));
+        return observation;
+    }
+
+    private static ObservationSeriesIndex createIndex() {
+        List<Observation> observations = Arrays.asList(
+                createObservation("27113001", "150", 3),
+                createObservation("27113001", "140", 1),
+                createObservation("27113001", "145", 2),
+                createObservation("75367002", "120/80", 1),
+                createObservation("75367002", "130/90", 2),
+                createObservation("123", "POS", 1));
+        return ObservationSeriesIndex.build(Collections.singletonList(observations));
+    }
+
+    @Test
+    public void TestSeriesIsSortedByTime() {
+
+        ObservationSeries weight = createIndex().find("27113001").get(0);
+
+        Assert.assertEquals(3, weight.size());
+        Assert.assertEquals(140, weight.getValue(0), 0);
+        Assert.assertEquals(150, weight.getValue(2), 0);
+        Assert.assertEquals(1, weight.indexOf(2 * DAY));
+    }
+
+    @Test
+    public void TestSummarize() {
+
+        ObservationSeries weight = createIndex().find(HcConstants.SNOMED_URN + "|27113001").get(0);
+
+        ObservationSeries.Summary all = weight.summarize(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(3, all.getCount());
+        Assert.assertEquals(140, all.getMinimum(), 0);
+        Assert.assertEquals(150, all.getMaximum(), 0);
+        Assert.assertEquals(145, all.getAverage(), 0.001);
+
+        ObservationSeries.Summary range = weight.summarize(2 * DAY, 3 * DAY);
+        Assert.assertEquals(2, range.getCount());
+        Assert.assertEquals(147.5, range.getAverage(), 0.001);
+        Assert.assertEquals(2 * DAY, range.getFirst());
+
+        Assert.assertEquals(0, weight.summarize(10 * DAY, 20 * DAY).getCount());
+    }
+
+    @Test
+    public void TestBloodPressureIsSplitIntoComponents() {
+
+        List<ObservationSeries> pressure = createIndex().find("75367002");
+
+        Assert.assertEquals(2, pressure.size());
+        Assert.assertEquals("systolic", pressure.get(0).getComponent());
+        Assert.assertEquals(125, pressure.get(0).summarize(Long.MIN_VALUE, Long.MAX_VALUE).getAverage(), 0.001);
+        Assert.assertEquals("diastolic", pressure.get(1).getComponent());
+        Assert.assertEquals(85, pressure.get(1).summarize(Long.MIN_VALUE, Long.MAX_VALUE).getAverage(), 0.001);
+    }
+
+    @Test
+    public void TestNonNumericValuesAreSkipped() {
+
+        Assert.assertTrue(createIndex().find("123").isEmpty());
+    }
+
+    @Test
+    public void TestNonFiniteValuesAreSkipped() {
+
+        List<Observation> observations = Arrays.asList(
+                createObservation("27113001", "150", 1),
+                createObservation("27113001", "NaN", 2),
+                createObservation("27113001", "Infinity", 3),
+                createObservation("75367002", "120/-Infinity", 1));
+        ObservationSeriesIndex index = ObservationSeriesIndex.build(Collections.singletonList(observations));
+
+        Assert.assertEquals(1, index.find("27113001").get(0).size());
+        Assert.assertTrue(index.find("75367002").isEmpty());
+    }
+
+    private static ObservationSeries createDailySeries(double... values) {
+        List<Observation> observations = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            observations.add(createObservation("27113001", String.valueOf(values[i]), i));
+        }
+        return ObservationSeriesIndex.build(Collections.singletonList(observations)).find("27113001").get(0);
+    }
+
+    @Test
+    public void TestBucketize() {
+
+        ObservationSeries series = createDailySeries(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        List<ObservationSeries.Bucket> buckets = series.bucketize(Long.MIN_VALUE, Long.MAX_VALUE, 5);
+
+        Assert.assertEquals(5, buckets.size());
+        for (int i = 0; i < buckets.size(); i++) {
+            Assert.assertEquals(2, buckets.get(i).getSummary().getCount());
+            Assert.assertEquals(2 * i, buckets.get(i).getSummary().getMinimum(), 0);
+            Assert.assertEquals(2 * i + 1, buckets.get(i).getLastValue(), 0);
+        }
+
+        List<ObservationSeries.Bucket> range = series.bucketize(2 * DAY, 5 * DAY, 2);
+        Assert.assertEquals(2, range.size());
+        Assert.assertEquals(2 * DAY, range.get(0).getStart());
+        Assert.assertEquals(4, range.get(0).getSummary().getCount() + range.get(1).getSummary().getCount());
+        Assert.assertEquals(5, range.get(1).getLastValue(), 0);
+    }
+
+    @Test
+    public void TestLargestTriangleThreeBucketsKeepsPeaks() {
+
+        double[] values = new double[100];
+        values[50] = 1000;
+        ObservationSeries series = createDailySeries(values);
+
+        ObservationSeries sample = series.largestTriangleThreeBuckets(Long.MIN_VALUE, Long.MAX_VALUE, 10);
+
+        Assert.assertEquals(10, sample.size());
+        Assert.assertEquals(0, sample.getTime(0));
+        Assert.assertEquals(99 * DAY, sample.getTime(9));
+        boolean peak = false;
+        for (int i = 0; i < sample.size(); i++) {
+            peak |= sample.getValue(i) == 1000;
+        }
+        Assert.assertTrue("The spike is kept", peak);
+    }
+
+    @Test
+    public void TestLargestTriangleThreeBucketsWithFewPoints() {
+
+        ObservationSeries series = createDailySeries(1, 2, 3, 4, 5);
+
+        Assert.assertEquals(5, series.largestTriangleThreeBuckets(Long.MIN_VALUE, Long.MAX_VALUE, 10).size());
+        Assert.assertEquals(3, series.largestTriangleThreeBuckets(DAY, 3 * DAY, 10).size());
+    }
+}
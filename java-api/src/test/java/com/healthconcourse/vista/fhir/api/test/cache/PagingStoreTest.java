@@ -0,0 +1,105 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.healthconcourse.vista.fhir.api.cache.PagingStore;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PagingStoreTest {
+
+    private static final FhirContext CONTEXT = FhirContext.forR4();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static IBundleProvider results(int count) {
+        List<IBaseResource> resources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            resources.add(new Observation().setId("Observation/" + i));
+        }
+        return new SimpleBundleProvider(resources);
+    }
+
+    @Test
+    public void TestStoredResultsArePaged() {
+
+        PagingStore store = new PagingStore(CONTEXT, 100, Duration.ofMinutes(5), null, Runnable::run);
+
+        String id = store.storeResultList(null, results(25));
+        IBundleProvider stored = store.retrieveResultList(null, id);
+
+        Assert.assertEquals(25, (int) stored.size());
+        List<IBaseResource> page = stored.getResources(10, 20);
+        Assert.assertEquals(10, page.size());
+        Assert.assertEquals("10", page.get(0).getIdElement().getIdPart());
+        Assert.assertEquals(25, store.getWeight());
+    }
+
+    @Test
+    public void TestUnknownIdIsNotFound() {
+
+        PagingStore store = new PagingStore(CONTEXT, 100, Duration.ofMinutes(5), null, Runnable::run);
+
+        Assert.assertNull(store.retrieveResultList(null, "nothing"));
+    }
+
+    @Test
+    public void TestResultsAreBoundedByResourceCount() {
+
+        PagingStore store = new PagingStore(CONTEXT, 50, Duration.ofMinutes(5), null, Runnable::run);
+
+        for (int i = 0; i < 10; i++) {
+            store.storeResultList(null, results(20));
+        }
+        store.cleanUp();
+
+        Assert.assertTrue("Held " + store.getWeight(), store.getWeight() <= 50);
+    }
+
+    @Test
+    public void TestEvictedResultsAreSpilledToDisk() throws IOException {
+
+        Path spill = folder.newFolder("paging").toPath();
+        PagingStore store = new PagingStore(CONTEXT, 50, Duration.ofMinutes(5), spill, Runnable::run);
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(store.storeResultList(null, results(20)));
+        }
+        store.cleanUp();
+
+        for (String id : ids) {
+            IBundleProvider stored = store.retrieveResultList(null, id);
+            Assert.assertNotNull(id, stored);
+            Assert.assertEquals(20, (int) stored.size());
+            Assert.assertEquals("19", stored.getResources(19, 20).get(0).getIdElement().getIdPart());
+        }
+    }
+}
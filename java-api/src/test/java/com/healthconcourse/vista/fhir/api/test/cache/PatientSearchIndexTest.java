@@ -0,0 +1,178 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.PatientIndexCrawler;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PatientSearchIndexTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean vistaDown;
+    private final MockVistaData vista = new MockVistaData() {
+        @Override
+        public String getPatientsByRange(long firstDfn, long lastDfn) {
+            calls.incrementAndGet();
+            if (vistaDown) {
+                throw new InternalErrorException("VistA is down");
+            }
+            return super.getPatientsByRange(firstDfn, lastDfn);
+        }
+    };
+    private final PatientSearchIndex index = new PatientSearchIndex();
+    private final KnownPatientFilter knownPatients = new KnownPatientFilter(0.01);
+    private final PatientIndexCrawler crawler = new PatientIndexCrawler(vista, index, knownPatients, new RateLimiter(0), 100, 3,
+            Duration.ofMinutes(15), Duration.ofHours(24));
+
+    @Before
+    public void setup() throws InterruptedException {
+        crawler.crawlAll();
+    }
+
+    private List<Patient> search(String... parameters) {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i < parameters.length; i += 2) {
+            options.put(parameters[i], parameters[i + 1]);
+        }
+        Optional<List<Patient>> result = index.search(options);
+        Assert.assertTrue("Search answered from the index", result.isPresent());
+        return result.get();
+    }
+
+    @Test
+    public void TestCrawlStopsAfterEmptyRanges() {
+
+        Assert.assertTrue(index.isReady());
+        Assert.assertEquals(9, index.size());
+        Assert.assertEquals("One range with patients and three empty ones", 4, calls.get());
+        Assert.assertEquals(1, crawler.getResumeFrom());
+    }
+
+    @Test
+    public void TestCrawlNewKeepsExistingPatients() throws InterruptedException {
+
+        crawler.crawlNew();
+
+        Assert.assertEquals(9, index.size());
+        Assert.assertEquals(8, calls.get());
+    }
+
+    @Test
+    public void TestFailedCrawlKeepsIndex() {
+
+        vistaDown = true;
+        crawler.refresh();
+
+        Assert.assertTrue(index.isReady());
+        Assert.assertEquals(9, index.size());
+        Assert.assertTrue(knownPatients.mightContain("1006145121V631417"));
+        Assert.assertEquals("The crawl ends at the first failed range", 5, calls.get());
+    }
+
+    @Test
+    public void TestFailedFirstCrawlLeavesIndexNotReady() throws InterruptedException {
+
+        PatientSearchIndex empty = new PatientSearchIndex();
+        vistaDown = true;
+        new PatientIndexCrawler(vista, empty, new KnownPatientFilter(0.01), new RateLimiter(0), 100, 3,
+                Duration.ofMinutes(15), Duration.ofHours(24)).refresh();
+
+        Assert.assertFalse(empty.isReady());
+    }
+
+    @Test
+    public void TestNameIsPrefixMatchedAndSorted() {
+
+        List<Patient> result = search("name", "bhie");
+
+        Assert.assertEquals(7, result.size());
+        Assert.assertEquals("1006167324V385420", result.get(0).getIdElement().getIdPart());
+        Assert.assertEquals(1, search("family", "BCMA").size());
+        Assert.assertEquals(1, search("given", "J").size());
+        Assert.assertEquals(0, search("name", "NOBODY").size());
+        Assert.assertEquals("Name and family both apply", 0, search("family", "BCMA", "name", "BHIE").size());
+        Assert.assertEquals(7, search("family", "BHIE", "name", "BHIE", "_summary", "count").size());
+    }
+
+    @Test
+    public void TestPaging() {
+
+        List<Patient> result = search("name", "BHIE", "_count", "2", "_page", "2");
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("SIX", result.get(0).getNameFirstRep().getGivenAsSingleString().substring(2));
+        Assert.assertEquals("SEVEN", result.get(1).getNameFirstRep().getGivenAsSingleString().substring(2));
+        Assert.assertEquals(9, search().size());
+    }
+
+    @Test
+    public void TestBirthDate() {
+
+        Assert.assertEquals(1, search("birthdate", "1995").size());
+        Assert.assertEquals(1, search("birthdate", "1965-02").size());
+        Assert.assertEquals(1, search("birthdate", "1965-02-10").size());
+        Assert.assertEquals(2, search("birthdate", "lt1940").size());
+        Assert.assertEquals(2, search("birthdate", "ge1995-01-01").size());
+        Assert.assertEquals(3, search("name", "BHIE", "birthdate", "gt1980").size());
+    }
+
+    @Test
+    public void TestGenderAndIdentifier() {
+
+        Assert.assertEquals(9, search("gender", "male").size());
+        Assert.assertEquals(0, search("gender", "female").size());
+        Assert.assertEquals(1, search("identifier", "1006145121V631417").size());
+        Assert.assertEquals(1, search("_id", "icn|1006145121V631417").size());
+        Assert.assertEquals(0, search("identifier", "123").size());
+    }
+
+    @Test
+    public void TestUnsupportedSearchesGoToVista() {
+
+        HashMap<String, String> options = new HashMap<>();
+        options.put("identifier", "ssn|000000000");
+        Assert.assertFalse(index.search(options).isPresent());
+
+        options.clear();
+        options.put("birthdate", "ap1950");
+        Assert.assertFalse(index.search(options).isPresent());
+
+        options.clear();
+        options.put("address", "ANYTOWN");
+        options.put("_count", "10");
+        Assert.assertFalse(index.search(options).isPresent());
+
+        Assert.assertFalse(new PatientSearchIndex().search(new HashMap<>()).isPresent());
+        VistaPatientService service = new VistaPatientService(vista, PatientSnapshotCache.disabled(), new PatientSearchIndex(), new KnownPatientFilter(0.01));
+        Assert.assertEquals(9, service.getAllPatients(new HashMap<>()).size());
+    }
+}
@@ -0,0 +1,316 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.cache;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.ObservationIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PatientSnapshotCacheTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong();
+    private final List<Runnable> refreshes = new ArrayList<>();
+
+    private PatientSnapshotCache createCache(Duration timeToLive) {
+        return createCache(timeToLive, 0, Duration.ZERO, Runnable::run);
+    }
+
+    private PatientSnapshotCache createCache(Duration timeToLive, int refreshAheadPercent, Duration maxStale, Executor refresher) {
+        PatientCacheSettings settings = new PatientCacheSettings();
+        settings.setMaxWeight(1_000_000);
+        settings.setIdleTimeout(Duration.ofMinutes(5));
+        settings.setDefaultTimeToLive(timeToLive);
+        settings.setRefreshAheadPercent(refreshAheadPercent);
+        settings.setMaxStale(maxStale);
+        return new PatientSnapshotCache(settings, refresher, now::get);
+    }
+
+    private String fetch() {
+        return "v" + calls.incrementAndGet() + "^b^c";
+    }
+
+    private void advance(long seconds) {
+        now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private String getVitals(PatientSnapshotCache cache) {
+        List<String> data = cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        return data.get(0);
+    }
+
+    private static List<String> parse(String payload) {
+        return Arrays.asList(payload.split("\\^"));
+    }
+
+    @Test
+    public void TestFreshCategoryIsServedFromCache() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+
+        List<String> first = cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        List<String> second = cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+
+        Assert.assertEquals(3, first.size());
+        Assert.assertEquals(first, second);
+        Assert.assertEquals("VistA called once", 1, calls.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(EnumSet.of(DataCategory.VITALS), cache.getIfPresent("123").getCachedCategories());
+    }
+
+    @Test
+    public void TestCategoriesAreCachedIndependently() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.LABS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("456", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void TestExpiredCategoryIsReloaded() {
+
+        PatientSnapshotCache cache = createCache(Duration.ZERO);
+
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestInvalidateCategory() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.LABS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.invalidate("123", EnumSet.of(DataCategory.LABS));
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.LABS, this::fetch, PatientSnapshotCacheTest::parse);
+
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void TestSnapshotDroppedDuringLoadIsNotPutBack() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+
+        cache.get("123", DataCategory.VITALS, () -> {
+            cache.invalidate("123");
+            return fetch();
+        }, PatientSnapshotCacheTest::parse);
+
+        Assert.assertNull(cache.getIfPresent("123"));
+        getVitals(cache);
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestFailuresAreNotCached() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("123", DataCategory.PATIENT, this::fetch, payload -> {
+                    throw new ResourceNotFoundException("123");
+                });
+                Assert.fail("Expected ResourceNotFoundException");
+            } catch (ResourceNotFoundException ex) {
+                // expected
+            }
+        }
+
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestDisabledCacheAlwaysCallsVista() {
+
+        PatientSnapshotCache cache = PatientSnapshotCache.disabled();
+
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+
+        Assert.assertEquals(2, calls.get());
+        Assert.assertNull(cache.getIfPresent("123"));
+    }
+
+    @Test
+    public void TestRefreshAheadReloadsInBackground() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100), 80, Duration.ZERO, Runnable::run);
+
+        Assert.assertEquals("v1", getVitals(cache));
+        advance(50);
+        Assert.assertEquals("v1", getVitals(cache));
+        Assert.assertEquals("No refresh early in the time-to-live", 1, calls.get());
+
+        advance(40);
+        Assert.assertEquals("Cached copy returned while refreshing", "v1", getVitals(cache));
+        Assert.assertEquals("v2", getVitals(cache));
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getRefreshCount());
+    }
+
+    @Test
+    public void TestExpiredCategoryIsServedWhileRevalidating() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100), 0, Duration.ofSeconds(50), Runnable::run);
+
+        Assert.assertEquals("v1", getVitals(cache));
+        advance(120);
+        Assert.assertEquals("v1", getVitals(cache));
+        Assert.assertEquals("v2", getVitals(cache));
+        Assert.assertEquals(1, cache.getStaleHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void TestCategoryPastStalenessBoundIsReloaded() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100), 0, Duration.ofSeconds(50), Runnable::run);
+
+        Assert.assertEquals("v1", getVitals(cache));
+        advance(200);
+        Assert.assertEquals("v2", getVitals(cache));
+        Assert.assertEquals(0, cache.getStaleHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void TestOneRefreshAtATime() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100), 80, Duration.ZERO, refreshes::add);
+
+        getVitals(cache);
+        advance(90);
+        getVitals(cache);
+        getVitals(cache);
+
+        Assert.assertEquals(1, refreshes.size());
+        refreshes.get(0).run();
+        Assert.assertEquals("v2", getVitals(cache));
+    }
+
+    @Test
+    public void TestRefreshIsDiscardedAfterInvalidate() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100), 80, Duration.ZERO, refreshes::add);
+
+        getVitals(cache);
+        advance(90);
+        getVitals(cache);
+        cache.invalidate("123", EnumSet.of(DataCategory.VITALS));
+        refreshes.get(0).run();
+
+        Assert.assertEquals(0, cache.getRefreshCount());
+        Assert.assertEquals("v3", getVitals(cache));
+    }
+
+    @Test
+    public void TestObservationIndexIsKeptUntilSourcesChange() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+        PatientService service = new VistaPatientService(new MockVistaData(), cache);
+
+        ObservationIndex first = service.getObservationIndex("5000001534V744140");
+        ObservationIndex second = service.getObservationIndex("5000001534V744140");
+        Assert.assertSame(first, second);
+
+        cache.invalidate("5000001534V744140", EnumSet.of(DataCategory.LABS));
+        ObservationIndex third = service.getObservationIndex("5000001534V744140");
+        Assert.assertNotSame(first, third);
+        Assert.assertEquals(first.size(), third.size());
+        Assert.assertEquals(4 + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void TestEverythingIsServedFromSnapshot() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+        PatientService service = new VistaPatientService(new MockVistaData(), cache);
+
+        service.getConditionsForPatient("5000001534V744140");
+        service.getObservationsByIcn("5000001534V744140");
+        long misses = cache.getMissCount();
+
+        List<DomainResource> everything = service.getEverything("5000001534V744140");
+
+        Assert.assertFalse(everything.isEmpty());
+        Assert.assertEquals("Conditions and observations were not fetched again", misses + 16, cache.getMissCount());
+    }
+
+    @Test
+    public void TestCountIsServedFromCache() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofSeconds(100));
+
+        Assert.assertEquals("Counted from the payload", 3, cache.count("123", DataCategory.VITALS, this::fetch, payload -> parse(payload).size()));
+        Assert.assertNull("Counting does not cache", cache.getIfPresent("123"));
+
+        cache.get("123", DataCategory.VITALS, this::fetch, PatientSnapshotCacheTest::parse);
+        Assert.assertEquals(3, cache.count("123", DataCategory.VITALS, this::fetch, payload -> -1));
+        Assert.assertEquals(2, calls.get());
+
+        advance(200);
+        Assert.assertEquals("Expired data is counted from VistA", -1, cache.count("123", DataCategory.VITALS, this::fetch, payload -> -1));
+    }
+
+    @Test
+    public void TestPartialCategoryIsReloadedForFullRequest() {
+
+        PatientSnapshotCache cache = createCache(Duration.ofMinutes(5));
+        Projection code = Projection.of(Collections.singletonList("code"));
+
+        cache.get("123", DataCategory.VITALS, code, this::fetch, PatientSnapshotCacheTest::parse);
+        cache.get("123", DataCategory.VITALS, code, this::fetch, PatientSnapshotCacheTest::parse);
+        Assert.assertEquals("Same projection served from cache", 1, calls.get());
+
+        Assert.assertEquals("v2", getVitals(cache));
+        Assert.assertEquals("Partial data reloaded for a full request", 2, calls.get());
+
+        cache.get("123", DataCategory.VITALS, code, this::fetch, PatientSnapshotCacheTest::parse);
+        Assert.assertEquals("Full data serves a narrower projection", 2, calls.get());
+    }
+}
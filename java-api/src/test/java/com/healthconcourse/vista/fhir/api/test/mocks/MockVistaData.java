@@ -22,6 +22,7 @@ import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 public class MockVistaData implements VistaData {
 
@@ -91,20 +92,31 @@ public class MockVistaData implements VistaData {
         }
     }
 
+    @Override
+    public String putVitals(Map<String, String> parameters) {
+        return "444".equals(parameters.get("ICN")) ? "-1^Patient not recognised" : "1";
+    }
 
     @Override
-    public String getVitalsObservationsByIcn(String icn) {
-        System.out.println("vitals thread: " + Thread.currentThread().getName());
+    public String putLabResult(Map<String, String> parameters) {
+        return "444".equals(parameters.get("PAT")) ? "-1^Patient not recognised" : "1";
+    }
 
-        if(icn.equalsIgnoreCase("444")) {
-            return "";
-        } else {
-            return "5000001534V744140^27113001|Body weight|144|20140630|442V29141^27113001|Body weight|145|20141125|442V29148^27113001|Body weight|151|2 0141229|442V29154^27113001|Body weight|143|20150107|442V29164^27113001|Body weight|149|20150630|442V29317^27113001|Body weight|145|2 0150706|442V29325^27113001|Body weight|142|20150810|442V29392^50373000|Body height|62|20140630|442V29142^50373000|Body height|62|201 50706|442V29323^75367002|Blood pressure|128/70|20140630|442V29137^75367002|Blood pressure|120/66|20141125|442V29143^75367002|Blood p ressure|123/71|20141229|442V29149^75367002|Blood pressure|115/64|20141229|442V29155^75367002|Blood pressure|107/58|20150107|442V2915 9^75367002|Blood pressure|115/70|20150630|442V29311^75367002|Blood pressure|103/62|20150706|442V29318^75367002|Blood pressure|118/66 |20150810|442V29386^78564009|Pulse rate|57|20140630|442V29138^78564009|Pulse rate|56|20141125|442V29144^78564009|Pulse rate|62|20141 229|442V29150^78564009|Pulse rate|59|20141229|442V29156^78564009|Pulse rate|63|20150107|442V29160^78564009|Pulse rate|63|20150630|44 2V29312^78564009|Pulse rate|65|20150706|442V29319^78564009|Pulse rate|62|20150810|442V29387^86290005|Respiration|14|20140630|442V291 40^86290005|Respiration|14|20141125|442V29147^86290005|Respiration|19|20141229|442V29153^86290005|Respiration|13|20141229|442V29158^ 86290005|Respiration|14|20150107|442V29163^86290005|Respiration|17|20150630|442V29315^86290005|Respiration|15|20150706|442V29320^862 90005|Respiration|12|20150810|442V29390^386725007|Body Temperature|98.9|20140630|442V29139^386725007|Body Temperature|97.8|20141125| 442V29146^386725007|Body Temperature|98.8|20141229|442V29152^386725007|Body Temperature|98.4|20150107|442V29162^386725007|Body Tempe rature|98.6|20150630|442V29314^386725007|Body Temperature|98.1|20150706|442V29321^386725007|Body Temperature|98.7|20150810|442V29389";
-        }
+    @Override
+    public String putImmunization(Map<String, String> parameters) {
+        return "444".equals(parameters.get("ICN")) ? "-1^Patient not recognised" : "1";
     }
 
+
     @Override
-    public String getObservationsByIcnAndCode(String icn, String code) {
+    public String getVitalsObservationsByIcn(String icn, Date from, Date to) {
+        return getVitalsObservationsByIcn(icn);
+    }
+
+    @Override
+    public String getVitalsObservationsByIcn(String icn) {
+        System.out.println("vitals thread: " + Thread.currentThread().getName());
+
         if(icn.equalsIgnoreCase("444")) {
             return "";
         } else {
@@ -112,7 +124,6 @@ public class MockVistaData implements VistaData {
         }
     }
 
-
     @Override
     public String getObservationsByCriteria(String name, String ssn, Date dob, AdministrativeGender gender) {
         if(name.equalsIgnoreCase("NoOne")) {
@@ -159,6 +170,11 @@ public class MockVistaData implements VistaData {
         return "5000000352V586511^10431008|Neuroplasty of median nerve at carpal tunnel|64721|20140803|442_130_10114^19780006|Debridement of Infection of Skin|11000|20100304|442_130_10110";
     }
 
+    @Override
+    public String getLabObservationsByIcn(String icn, Date from, Date to) {
+        return getLabObservationsByIcn(icn);
+    }
+
     @Override
     public String getLabObservationsByIcn(String icn) {
         System.out.println("labs thread: " + Thread.currentThread().getName());
@@ -279,6 +295,11 @@ public class MockVistaData implements VistaData {
         return "1003672118V388695^ZZZRETFIVEFORTYSEVEN,PATIENT^^MALE^11/05/1938^,,,|1005701355V934125^BCMA,EIGHTYTWO-PATIENT^^MALE^11/16/1944^,,,|1006145121V631417^BHIEPATIENT,J TEN^^MALE^12/28/1933^,,,|1006147126V079083^BHIEPATIENT,I NINE^^MALE^02/10/1995^,,,|1006147276V569483^BHIEPATIENT,H EIGHT^^MALE^02/10/1965^,,,|1006151329V503966^BHIEPATIENT,F SIX^^MALE^02/15/1997^,,,|1006152719V948936^BHIEPATIENT,G SEVEN^^MALE^04/05/1951^,,,|1006167324V385420^BHIEPATIENT,C THREE^^MALE^09/08/1962^,,,|1006170580V294705^BHIEPATIENT,E FIVE^^MALE^02/09/1984^,,,";
     }
 
+    @Override
+    public String getPatientsByRange(long firstDfn, long lastDfn) {
+        return firstDfn <= 1 ? getAllPatients(new HashMap<>()) : "";
+    }
+
     @Override
     public String getTiuNotes(String icn) {
         if(icn.equalsIgnoreCase("10112V399621")) {
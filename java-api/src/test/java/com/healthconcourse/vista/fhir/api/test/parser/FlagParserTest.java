@@ -57,4 +57,14 @@ public class FlagParserTest {
 
         Assert.assertEquals("Correct number of items", 0, result.size());
     }
+
+    @Test
+    public void TestCountMatchesParse() {
+        FlagParser parser = new FlagParser();
+
+        for (String input : new String[] {"", "5000000325V783252", "5000000325V783252^", "5000000325V783252^^",
+                "5000000023V897100^FALL RISK|129839007|116|Local|ACTIVE|CAMP MASTER|CAMP MASTER|^WANDERER|704448006|117|Local|ACTIVE|CAMP MASTER|CAMP MASTER|20151220^"}) {
+            Assert.assertEquals(input, parser.parseList(input).size(), parser.count(input));
+        }
+    }
 }
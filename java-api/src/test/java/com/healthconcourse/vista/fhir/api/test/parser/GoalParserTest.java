@@ -56,4 +56,16 @@ public class GoalParserTest {
 
         Assert.assertEquals("Correct number of items", 0, result.size());
     }
+
+    @Test
+    public void TestCountMatchesParse() {
+        GoalParser parser = new GoalParser();
+
+        for (String input : new String[] {"10104V248233", "10104V248233^442_216.8_229_31_19970603080702-0500|",
+                "10104V248233^442_216.8_229_31_19970603080702-0500|sleeps 7-9 hours without awakening|19970617|WARDCLERK,FIFTYTHREE|0;CURRENT^442_216.8_229_31_19970603080705-0500|verbalizes less trouble falling asleep|19970617|WARDCLERK,FIFTYTHREE|0;CURRENT"}) {
+            Assert.assertEquals(input, parser.parseList(input).size(), parser.count(input));
+        }
+        Assert.assertEquals(0, parser.count(""));
+        Assert.assertEquals(0, parser.count(null));
+    }
 }
@@ -127,4 +127,15 @@ public class MedicationParserTest {
 
         Assert.assertTrue("Record contains an RXNorm code", code.getCoding() != null);
     }
+
+    @Test
+    public void TestEmptyRepliesCountNothing() {
+        MedicationParser parser = new MedicationParser();
+
+        for (String input : new String[] {"", null}) {
+            Assert.assertEquals(0, parser.countMedicationDispense(input));
+            Assert.assertEquals(0, parser.countMedicationAdmin(input));
+            Assert.assertEquals(0, parser.countMedicationStatement(input));
+        }
+    }
 }
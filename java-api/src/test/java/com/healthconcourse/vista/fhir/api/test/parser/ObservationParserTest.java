@@ -17,9 +17,11 @@ limitations under the License.
 package com.healthconcourse.vista.fhir.api.test.parser;
 
 import com.healthconcourse.vista.fhir.api.parser.ObservationParser;
+import com.healthconcourse.vista.fhir.api.utils.Projection;
 import org.hl7.fhir.r4.model.Observation;
 import org.junit.Assert;
 import org.junit.Test;
+import java.util.Collections;
 import java.util.List;
 
 public class ObservationParserTest {
@@ -147,4 +149,39 @@ public class ObservationParserTest {
 
         Assert.assertNull(result.get(0).getEffective());
     }
+
+    @Test
+    public void TestProjectedLabsObservationParse() {
+        String input = "5000001533V676621^2000-8|CALCIUM:SCNC:PT:SER/PLAS:QN|70|20150720083901-0500|44263673^2093-3|CHOLESTEROL:MCNC:PT:SER/PLAS:QN|3.06|20131119092704-0500|44263673";
+
+        ObservationParser parser = new ObservationParser();
+
+        List<Observation> full = parser.parseLabsList(input);
+        List<Observation> result = parser.parseLabsList(input, Projection.of(Collections.singletonList("code")));
+
+        Assert.assertEquals("Correct number of items", full.size(), result.size());
+        for (int i = 0; i < result.size(); i++) {
+            Assert.assertEquals(full.get(i).getId(), result.get(i).getId());
+            Assert.assertEquals(full.get(i).getCode().getCodingFirstRep().getCode(), result.get(i).getCode().getCodingFirstRep().getCode());
+            Assert.assertFalse("Value not built", result.get(i).hasValue());
+            Assert.assertFalse("Subject not built", result.get(i).hasSubject());
+            Assert.assertFalse("Date not built", result.get(i).hasEffective());
+        }
+    }
+
+    @Test
+    public void TestProjectionWithPerformer() {
+        String input = "5000000352V586511^44249-1|PHQ9 Result|715252007|PHQ9 Result|PHQ9|201411121444-0500|PRIMARY CARE TELEPHONE|PROVIDER,SIX|Total:4|V_500_601.84_100012";
+
+        ObservationParser parser = new ObservationParser();
+        Projection projection = Projection.of(Collections.singletonList("code"));
+
+        Assert.assertFalse("Performer not built", parser.parseMentalHealthList(input, projection).get(0).hasPerformer());
+
+        Observation result = parser.parseMentalHealthList(input, projection.with("performer")).get(0);
+        Assert.assertTrue("Performer built for _include", result.hasPerformer());
+        Assert.assertTrue("Code still built", result.hasCode());
+        Assert.assertFalse("Value not built", result.hasValue());
+        Assert.assertSame("All already builds it", Projection.ALL, Projection.ALL.with("performer"));
+    }
 }
@@ -0,0 +1,94 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.provider;
+
+import com.healthconcourse.vista.fhir.api.Application;
+import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties= "spring.main.allow-bean-definition-overriding=true", classes = {Application.class, TestInjectionContext.class})
+public class BatchProviderTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private ResponseEntity<String> post(String bundle) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf("application/fhir+json"));
+        return this.restTemplate.postForEntity("/api", new HttpEntity<>(bundle, headers), String.class);
+    }
+
+    private static String entry(String url) {
+        return "{\"request\": {\"method\": \"GET\", \"url\": \"" + url + "\"}}";
+    }
+
+    @Test
+    public void testBatchRunsEachEntry() {
+        ResponseEntity<String> response = post("{\"resourceType\": \"Bundle\", \"type\": \"batch\", \"entry\": ["
+                + entry("Patient/5000001534V744140") + ","
+                + entry("Patient/5000001534V744140/Condition") + ","
+                + entry("Patient/5000001534V744140/AllergyIntolerance?_summary=count") + ","
+                + entry("Patient/444/Condition") + "]}");
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String json = response.getBody();
+        assertEquals("batch-response", JsonPath.parse(json).read("$.type"));
+
+        List<String> statuses = JsonPath.parse(json).read("$.entry[*].response.status");
+        assertThat(statuses).containsExactly("200 OK", "200 OK", "200 OK", "404 Not Found");
+        assertEquals("Patient", JsonPath.parse(json).read("$.entry[0].resource.resourceType"));
+        assertEquals("searchset", JsonPath.parse(json).read("$.entry[1].resource.type"));
+        assertEquals("OperationOutcome", JsonPath.parse(json).read("$.entry[3].response.outcome.resourceType"));
+    }
+
+    @Test
+    public void testTransactionIsRefused() {
+        ResponseEntity<String> response = post("{\"resourceType\": \"Bundle\", \"type\": \"transaction\", \"entry\": ["
+                + entry("Patient/5000001534V744140") + "]}");
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testNestedBatchIsRefused() {
+        String nested = "{\"resourceType\": \"Bundle\", \"type\": \"batch\", \"entry\": ["
+                + entry("Patient/5000001534V744140") + "]}";
+        ResponseEntity<String> response = post("{\"resourceType\": \"Bundle\", \"type\": \"batch\", \"entry\": ["
+                + "{\"resource\": " + nested + ", \"request\": {\"method\": \"POST\", \"url\": \"/\"}},"
+                + entry("Patient/5000001534V744140") + "]}");
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> statuses = JsonPath.parse(response.getBody()).read("$.entry[*].response.status");
+        assertThat(statuses).containsExactly("400 Bad Request", "200 OK");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.provider;
+
+import com.healthconcourse.vista.fhir.api.Application;
+import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"spring.main.allow-bean-definition-overriding=true", "changeLog.maxEntries=1000"},
+        classes = {Application.class, TestInjectionContext.class})
+public class ChangeProviderTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private String getNext(String body) {
+        List<String> next = JsonPath.read(body, "$.link[?(@.relation == 'next')].url");
+        return next.get(0).substring(next.get(0).indexOf("$changes"));
+    }
+
+    @Test
+    public void testChangesSinceToken() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/$changes", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<Integer>read(response.getBody(), "$.total")).isEqualTo(0);
+        String next = getNext(response.getBody());
+
+        this.restTemplate.getForEntity("/api/Patient/5000001519V211431/Immunization", String.class);
+
+        response = this.restTemplate.getForEntity("/api/" + next, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> outcomes = JsonPath.read(response.getBody(), "$.entry[?(@.search.mode == 'outcome')].resource.issue[0].diagnostics");
+        assertThat(outcomes).anyMatch(diagnostics -> diagnostics.startsWith("IMMUNIZATION changed for patient 5000001519V211431"));
+        List<String> types = JsonPath.read(response.getBody(), "$.entry[?(@.search.mode == 'match')].resource.resourceType");
+        assertThat(types).contains("Immunization");
+
+        response = this.restTemplate.getForEntity("/api/" + getNext(response.getBody()), String.class);
+        assertThat(JsonPath.<Integer>read(response.getBody(), "$.total")).isEqualTo(0);
+    }
+
+    @Test
+    public void testTokenBeforeLogIsGone() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/$changes?_since=1", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.GONE);
+    }
+
+    @Test
+    public void testBadToken() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/$changes?_since=abc", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+}
@@ -18,15 +18,21 @@ package com.healthconcourse.vista.fhir.api.test.provider;
 
 import com.healthconcourse.vista.fhir.api.Application;
 import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.util.UUID;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -50,4 +56,64 @@ public class ConditionProviderTest {
         ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Condition/38341003/Patient", String.class);
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
     }
+
+    @Test
+    public void testCohortCombinesCodes() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Condition/$cohort?all=38341003&none=12345", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<Integer>read(response.getBody(), "$.total")).isEqualTo(5);
+
+        response = this.restTemplate.getForEntity("/api/Condition/$cohort?any=12345,38341003&none=44054006", String.class);
+        assertThat(JsonPath.<Integer>read(response.getBody(), "$.total")).isEqualTo(0);
+    }
+
+    @Test
+    public void testCohortMaterializesPatients() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Condition/$cohort?all=38341003&materialize=true", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<Integer>read(response.getBody(), "$.total")).isEqualTo(5);
+        assertThat(JsonPath.<String>read(response.getBody(), "$.entry[3].resource.birthDate")).isEqualTo("1928-09-13");
+    }
+
+    @Test
+    public void testCohortRequiresCodes() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Condition/$cohort?none=38341003", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testCreateConditionAsync() throws InterruptedException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Prefer", "respond-async");
+        headers.set("Idempotency-Key", UUID.randomUUID().toString());
+        headers.setContentType(MediaType.valueOf("application/fhir+json"));
+        HttpEntity<String> create = new HttpEntity<>(
+                "{\"resourceType\":\"Condition\",\"id\":\"1\",\"subject\":{\"reference\":\"Patient/5000001534V744140\"}}", headers);
+
+        ResponseEntity<String> response = this.restTemplate.postForEntity("/api/Condition", create, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+        String status = response.getHeaders().getFirst("Content-Location");
+        assertThat(status).contains("$write-status?_jobId=");
+        String jobId = status.substring(status.indexOf("_jobId=") + "_jobId=".length());
+
+        response = this.restTemplate.postForEntity("/api/Condition", create, String.class);
+        assertThat(response.getHeaders().getFirst("Content-Location")).isEqualTo(status);
+
+        for (int i = 0; i < 100; i++) {
+            response = this.restTemplate.getForEntity("/api/$write-status?_jobId=" + jobId, String.class);
+            if (response.getStatusCode() != HttpStatus.ACCEPTED) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<String>read(response.getBody(), "$.resourceType")).isEqualTo("OperationOutcome");
+    }
+
+    @Test
+    public void testUnknownWrite() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/$write-status?_jobId=nope", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
 }
@@ -0,0 +1,97 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.provider;
+
+import com.healthconcourse.vista.fhir.api.Application;
+import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties= "spring.main.allow-bean-definition-overriding=true", classes = {Application.class, TestInjectionContext.class})
+public class ExportProviderTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private ResponseEntity<String> kickOff(String url) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Prefer", "respond-async");
+        return this.restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
+
+    @Test
+    public void testExportRunsToCompletion() throws InterruptedException {
+        ResponseEntity<String> response = kickOff("/api/Patient/$export?_type=Patient");
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.ACCEPTED);
+
+        String status = response.getHeaders().getFirst("Content-Location");
+        assertThat(status).contains("$export-poll-status?_jobId=");
+        String jobId = status.substring(status.indexOf("_jobId=") + "_jobId=".length());
+
+        for (int i = 0; i < 100; i++) {
+            response = this.restTemplate.getForEntity("/api/$export-poll-status?_jobId=" + jobId, String.class);
+            if (response.getStatusCode() != HttpStatus.ACCEPTED) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<String>read(response.getBody(), "$.request")).contains("$export");
+        List<String> types = JsonPath.read(response.getBody(), "$.error[*].type");
+        assertThat(types).containsExactly("OperationOutcome");
+
+        response = this.restTemplate.getForEntity("/api/$export-download?_jobId=" + jobId + "&_type=OperationOutcome", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String[] lines = response.getBody().split("\n");
+        assertThat(lines.length).isEqualTo(JsonPath.<Integer>read(status(jobId), "$.error[0].count"));
+        assertThat(JsonPath.<String>read(lines[0], "$.resourceType")).isEqualTo("OperationOutcome");
+
+        response = this.restTemplate.getForEntity("/api/$export-download?_jobId=" + jobId + "&_type=Goal", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+
+    private String status(String jobId) {
+        return this.restTemplate.getForEntity("/api/$export-poll-status?_jobId=" + jobId, String.class).getBody();
+    }
+
+    @Test
+    public void testExportRequiresRespondAsync() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/$export", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testUnknownExport() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/$export-poll-status?_jobId=nope", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+    }
+}
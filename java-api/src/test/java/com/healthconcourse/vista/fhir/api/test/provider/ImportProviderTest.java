@@ -0,0 +1,77 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.provider;
+
+import com.healthconcourse.vista.fhir.api.Application;
+import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for Import Provider
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties= "spring.main.allow-bean-definition-overriding=true", classes = {Application.class, TestInjectionContext.class})
+public class ImportProviderTest {
+
+    private static final String VITAL = "{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"category\":[{\"coding\":[{\"code\":\"vital-signs\"}]}],"
+            + "\"code\":{\"coding\":[{\"system\":\"http://snomed.info/sct\",\"code\":\"78564009\"}]},"
+            + "\"subject\":{\"reference\":\"Patient/%s\"},\"effectiveDateTime\":\"2019-10-02T10:15:00-07:00\","
+            + "\"valueQuantity\":{\"value\":62,\"unit\":\"/min\"}}";
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private ResponseEntity<String> post(String body, String contentType) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf(contentType));
+        return this.restTemplate.postForEntity("/api/$import", new HttpEntity<>(body, headers), String.class);
+    }
+
+    @Test
+    public void testImportReportsEachFailedLine() {
+        String body = String.format(VITAL, "5000001534V744140") + "\n" + String.format(VITAL, "444") + "\n"
+                + "{\"resourceType\":\"Patient\"}\n";
+
+        ResponseEntity<String> response = post(body, "application/fhir+ndjson");
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(JsonPath.<String>read(response.getBody(), "$.issue[0].diagnostics")).startsWith("Imported 1 of 3 records");
+        List<String> failures = JsonPath.read(response.getBody(), "$.issue[?(@.severity == 'error')].diagnostics");
+        assertThat(failures).containsExactly("Line 2: Patient not recognised", "Line 3: Patient cannot be imported");
+    }
+
+    @Test
+    public void testImportRequiresNdjson() {
+        ResponseEntity<String> response = post("<Observation/>", "application/fhir+xml");
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+}
@@ -18,6 +18,7 @@ package com.healthconcourse.vista.fhir.api.test.provider;
 
 import com.healthconcourse.vista.fhir.api.Application;
 import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -47,4 +48,28 @@ public class LocationProviderTest {
         ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Location?name=ALBANY%20FILE%20ROOM", String.class);
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
     }
+
+    @Test
+    public void testLocationReadByNameThenId() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Location/ALBANY+FILE+ROOM", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat((String) JsonPath.read(response.getBody(), "$.name")).isEqualTo("ALBANY FILE ROOM");
+
+        response = this.restTemplate.getForEntity("/api/Location/77", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat((String) JsonPath.read(response.getBody(), "$.name")).isEqualTo("ALBANY FILE ROOM");
+    }
+
+    @Test
+    public void testLocationNameContains() {
+        this.restTemplate.getForEntity("/api/Location?name=ALBANY%20FILE%20ROOM", String.class);
+
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Location?name:contains=file", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat((Integer) JsonPath.read(response.getBody(), "$.total")).isEqualTo(1);
+        assertThat((String) JsonPath.read(response.getBody(), "$.entry[0].resource.id")).endsWith("77");
+
+        response = this.restTemplate.getForEntity("/api/Location?name:contains=nowhere", String.class);
+        assertThat((Integer) JsonPath.read(response.getBody(), "$.total")).isEqualTo(0);
+    }
 }
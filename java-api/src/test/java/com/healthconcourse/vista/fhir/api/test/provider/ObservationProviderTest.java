@@ -19,6 +19,7 @@ package com.healthconcourse.vista.fhir.api.test.provider;
 import com.healthconcourse.vista.fhir.api.Application;
 import com.healthconcourse.vista.fhir.api.HcConstants;
 import com.healthconcourse.vista.fhir.api.test.TestInjectionContext;
+import com.jayway.jsonpath.JsonPath;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,8 +31,10 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
 
 /**
  * Unit tests for ObservationProvider
@@ -66,4 +69,76 @@ public class ObservationProviderTest {
         ResponseEntity<String> response = this.restTemplate.getForEntity(url.toString(), String.class);
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
     }
+
+    @Test
+    public void testLastNByCode() {
+        String url = "/api/Observation/$lastn?patient=Patient/5000001534V744140&code=27113001&max=2";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String json = response.getBody();
+        assertEquals(2, (int) JsonPath.parse(json).read("$.total", Integer.class));
+        String newest = JsonPath.parse(json).read("$.entry[0].resource.effectiveDateTime");
+        String older = JsonPath.parse(json).read("$.entry[1].resource.effectiveDateTime");
+        assertThat(newest.compareTo(older)).isGreaterThan(0);
+    }
+
+    @Test
+    public void testLastNByCategory() {
+        String url = "/api/Observation/$lastn?patient=5000001534V744140&category=vital-signs";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> categories = JsonPath.parse(response.getBody()).read("$.entry[*].resource.category[0].coding[0].code");
+        List<String> codes = JsonPath.parse(response.getBody()).read("$.entry[*].resource.code.coding[0].code");
+        assertThat(categories).containsOnly("vital-signs");
+        assertThat(codes).doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void testLastNRequiresPatient() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Observation/$lastn?code=27113001", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testStatsForBloodPressure() {
+        String url = "/api/Observation/$stats?subject=5000001534V744140&code=75367002";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<String> components = JsonPath.parse(response.getBody()).read("$.parameter[*].part[?(@.name == 'component')].valueString");
+        assertThat(components).containsExactly("systolic", "diastolic");
+    }
+
+    @Test
+    public void testStatsRejectsNonPositiveDuration() {
+        for (String duration : new String[] {"0", "-24"}) {
+            String url = "/api/Observation/$stats?subject=5000001534V744140&code=27113001&duration=" + duration;
+            ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+            assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @Test
+    public void testDownsampleBuckets() {
+        String url = "/api/Observation/$downsample?patient=5000001534V744140&code=75367002&buckets=3";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Object> buckets = JsonPath.parse(response.getBody()).read("$.parameter[0].part[?(@.name == 'bucket')]");
+        assertThat(buckets.size()).isBetween(1, 3);
+    }
+
+    @Test
+    public void testDownsampleLttbWithRange() {
+        String url = "/api/Observation/$downsample?patient=5000001534V744140&code=27113001&method=lttb&buckets=3&start=2014-01-01&end=2015-12-31";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        List<Object> points = JsonPath.parse(response.getBody()).read("$.parameter[0].part[?(@.name == 'point')]");
+        assertEquals(3, points.size());
+    }
+
+    @Test
+    public void testDownsampleUnknownMethod() {
+        String url = "/api/Observation/$downsample?patient=5000001534V744140&code=27113001&method=median";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
 }
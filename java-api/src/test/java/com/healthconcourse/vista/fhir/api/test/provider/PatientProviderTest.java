@@ -28,6 +28,8 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 
@@ -80,6 +82,100 @@ public class PatientProviderTest {
         assertEquals("should return six records", 6, recordCount);
     }
 
+    @Test
+    public void testPatientConditionsArePaged() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Condition?_count=4", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String json = response.getBody();
+        assertEquals(6, (int) JsonPath.parse(json).read("$.total", Integer.class));
+        assertEquals(4, (int) JsonPath.parse(json).read("$.entry.length()", Integer.class));
+
+        List<String> next = JsonPath.parse(json).read("$.link[?(@.relation == 'next')].url");
+        assertEquals(1, next.size());
+        String query = next.get(0).substring(next.get(0).indexOf('?'));
+
+        response = this.restTemplate.getForEntity("/api" + query, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        json = response.getBody();
+        assertEquals(2, (int) JsonPath.parse(json).read("$.entry.length()", Integer.class));
+    }
+
+    @Test
+    public void testPatientConditionsSummaryCount() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Condition?_summary=count", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String json = response.getBody();
+        assertEquals(6, (int) JsonPath.parse(json).read("$.total", Integer.class));
+        assertThat(json).doesNotContain("\"entry\"");
+    }
+
+    @Test
+    public void testPatientObservationsSummaryCount() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Observation", String.class);
+        int total = JsonPath.parse(response.getBody()).read("$.total", Integer.class);
+
+        response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Observation?_summary=count", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertEquals(total, (int) JsonPath.parse(response.getBody()).read("$.total", Integer.class));
+        assertThat(response.getBody()).doesNotContain("\"entry\"");
+    }
+
+    @Test
+    public void testPatientObservationsElements() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Observation?_elements=code", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        int total = JsonPath.parse(response.getBody()).read("$.total", Integer.class);
+        assertThat(response.getBody()).contains("\"code\"");
+
+        response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Observation", String.class);
+        assertEquals(total, (int) JsonPath.parse(response.getBody()).read("$.total", Integer.class));
+    }
+
+    @Test
+    public void testPatientObservationsIncludeUnknownParameter() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Observation?_include=Observation:subject", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testPatientSearchRevInclude() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient?_id=5000001534V744140&_revinclude=Condition:patient", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        int total = JsonPath.parse(response.getBody()).read("$.total", Integer.class);
+        List<String> matches = JsonPath.parse(response.getBody()).read("$.entry[?(@.resource.resourceType == 'Patient')].resource.id");
+        assertEquals("Included resources are not counted", total, matches.size());
+        List<String> included = JsonPath.parse(response.getBody()).read("$.entry[?(@.search.mode == 'include')].resource.resourceType");
+        assertThat(included).isNotEmpty().containsOnly("Condition");
+
+        response = this.restTemplate.getForEntity("/api/Patient?_id=5000001534V744140&_revinclude=Location:organization", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testPatientSearchRevIncludeCoversEveryPatient() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/5000001534V744140/Condition", String.class);
+        int perPatient = JsonPath.parse(response.getBody()).read("$.total", Integer.class);
+        assertThat(perPatient).isPositive();
+
+        response = this.restTemplate.getForEntity("/api/Patient?_revinclude=Condition:patient", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        int total = JsonPath.parse(response.getBody()).read("$.total", Integer.class);
+        List<String> included = JsonPath.parse(response.getBody()).read("$.entry[?(@.search.mode == 'include')].resource.resourceType");
+        assertEquals("The mock gives every patient the same conditions", total * perPatient, included.size());
+    }
+
+    @Test
+    public void testPatientSearchSummaryCount() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient?_summary=count", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertEquals(9, (int) JsonPath.parse(response.getBody()).read("$.total", Integer.class));
+        assertThat(response.getBody()).doesNotContain("\"entry\"");
+
+        response = this.restTemplate.getForEntity("/api/Patient/44/Goal?_summary=count", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertEquals(0, (int) JsonPath.parse(response.getBody()).read("$.total", Integer.class));
+    }
+
     @Test
     public void testPatientGetConditionsNoneFound() {
         ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/444/Condition", String.class);
@@ -109,11 +205,21 @@ public class PatientProviderTest {
 
     @Test
     public void testObservationByIcnAndCodeSuccess() {
-        String url = "/api/Patient/5000001534V744140/Observation?code=asdf";
+        String url = "/api/Patient/5000001534V744140/Observation?code=27113001";
         ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
     }
 
+    @Test
+    public void testObservationByIcnAndCategorySuccess() {
+        String url = "/api/Patient/5000001534V744140/Observation?category=vital-signs";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        String json = response.getBody();
+        String category = JsonPath.parse(json).read("$.entry[0].resource.category[0].coding[0].code");
+        assertEquals("should only return vital signs", "vital-signs", category);
+    }
+
     @Test
     public void testMedicationAdminByIcnSuccess() {
         String url = "/api/Patient/5000001534V744140/MedicationAdministration";
@@ -281,4 +387,34 @@ public class PatientProviderTest {
         ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
         assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
     }
+
+    @Test
+    public void testBulkEverythingStreamsEachPatient() {
+        String url = "/api/Patient/$everything?patient=5000001534V744140,444";
+        ResponseEntity<String> response = this.restTemplate.getForEntity(url, String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getHeaders().getContentType().toString()).startsWith("application/fhir+ndjson");
+
+        String[] lines = response.getBody().split("\n");
+        assertThat(lines.length).isGreaterThan(2);
+        int patients = 0;
+        int outcomes = 0;
+        for (String line : lines) {
+            String type = JsonPath.read(line, "$.resourceType");
+            if (type.equals("Patient")) {
+                patients++;
+            } else if (type.equals("OperationOutcome")) {
+                outcomes++;
+                assertThat(JsonPath.<String>read(line, "$.issue[0].diagnostics")).contains("444");
+            }
+        }
+        assertEquals(1, patients);
+        assertEquals(1, outcomes);
+    }
+
+    @Test
+    public void testBulkEverythingRequiresPatients() {
+        ResponseEntity<String> response = this.restTemplate.getForEntity("/api/Patient/$everything", String.class);
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    }
 }
@@ -0,0 +1,175 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.service;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import com.healthconcourse.vista.fhir.api.service.BulkImport;
+import com.healthconcourse.vista.fhir.api.service.ImportMapper;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BulkImportTest {
+
+    private static final String ICN = "5000001534V744140";
+
+    private static final String WEIGHT = "{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"category\":[{\"coding\":[{\"code\":\"vital-signs\"}]}],"
+            + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"29463-7\"}]},"
+            + "\"subject\":{\"reference\":\"Patient/%s\"},\"effectiveDateTime\":\"2019-10-02T10:15:00-07:00\","
+            + "\"valueQuantity\":{\"value\":72.5,\"unit\":\"kg\"}}";
+
+    private static final String BLOOD_PRESSURE = "{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"category\":[{\"coding\":[{\"code\":\"vital-signs\"}]}],"
+            + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"85354-9\"}]},"
+            + "\"subject\":{\"reference\":\"Patient/" + ICN + "\"},\"effectiveDateTime\":\"2019-10-02\","
+            + "\"component\":[{\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8480-6\"}]},\"valueQuantity\":{\"value\":120,\"unit\":\"mm[Hg]\"}},"
+            + "{\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8462-4\"}]},\"valueQuantity\":{\"value\":80,\"unit\":\"mm[Hg]\"}}]}";
+
+    private static final String LAB = "{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"category\":[{\"coding\":[{\"code\":\"laboratory\"}]}],"
+            + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"2345-7\",\"display\":\"GLUCOSE\"}]},"
+            + "\"subject\":{\"reference\":\"Patient/" + ICN + "\"},\"effectiveDateTime\":\"2019-10-02\",\"valueQuantity\":{\"value\":98}}";
+
+    private static final String IMMUNIZATION = "{\"resourceType\":\"Immunization\",\"status\":\"completed\","
+            + "\"vaccineCode\":{\"coding\":[{\"system\":\"http://hl7.org/fhir/sid/cvx\",\"code\":\"140\"}]},"
+            + "\"patient\":{\"reference\":\"Patient/" + ICN + "\"},\"encounter\":{\"reference\":\"Encounter/1234\"},"
+            + "\"occurrenceDateTime\":\"2019-10-02\",\"doseQuantity\":{\"value\":0.5}}";
+
+    private final List<Map<String, String>> saved = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger mostOutstanding = new AtomicInteger();
+
+    private final MockVistaData vista = new MockVistaData() {
+        @Override
+        public String putVitals(Map<String, String> parameters) {
+            mostOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            saved.add(parameters);
+            outstanding.decrementAndGet();
+            return super.putVitals(parameters);
+        }
+
+        @Override
+        public String putLabResult(Map<String, String> parameters) {
+            saved.add(parameters);
+            return super.putLabResult(parameters);
+        }
+
+        @Override
+        public String putImmunization(Map<String, String> parameters) {
+            saved.add(parameters);
+            return super.putImmunization(parameters);
+        }
+    };
+
+    private BulkImport.Result run(ImportMapper mapper, int inFlight, String ndjson)
+            throws IOException, InterruptedException {
+        ExecutorService sender = Executors.newFixedThreadPool(4);
+        try {
+            return new BulkImport(vista, mapper, sender, inFlight).run(new BufferedReader(new StringReader(ndjson)));
+        } finally {
+            sender.shutdown();
+        }
+    }
+
+    @Test
+    public void TestRecordsAreMappedToVistaParameters() throws IOException, InterruptedException {
+
+        BulkImport.Result result = run(new ImportMapper("LAB DIV"), 1,
+                String.join("\n", String.format(WEIGHT, ICN), BLOOD_PRESSURE, LAB, IMMUNIZATION));
+
+        Assert.assertEquals(4, result.getImported());
+        Assert.assertEquals(0, result.getFailed());
+
+        Map<String, String> weight = saved.get(0);
+        Assert.assertEquals(ICN, weight.get("ICN"));
+        Assert.assertEquals("27113001", weight.get("SCT"));
+        Assert.assertEquals("72.5", weight.get("OBS"));
+        Assert.assertEquals("kg", weight.get("UNT"));
+        Assert.assertEquals("20191002101500-0700", weight.get("DTM"));
+
+        Assert.assertEquals("120/80", saved.get(1).get("OBS"));
+        Assert.assertEquals("20191002", saved.get(1).get("DTM"));
+
+        Assert.assertEquals("LAB DIV", saved.get(2).get("LOC"));
+        Assert.assertEquals("GLUCOSE", saved.get(2).get("TEST"));
+        Assert.assertEquals("2345-7", saved.get(2).get("LOINC"));
+
+        Assert.assertEquals("1234", saved.get(3).get("VIS"));
+        Assert.assertEquals("140", saved.get(3).get("CVX"));
+        Assert.assertEquals("0.5", saved.get(3).get("DOS"));
+    }
+
+    @Test
+    public void TestFailuresAreReportedByLine() throws IOException, InterruptedException {
+
+        BulkImport.Result result = run(new ImportMapper(null), 2,
+                String.join("\n", String.format(WEIGHT, ICN), "{not json", "", LAB, String.format(WEIGHT, "444")));
+
+        Assert.assertEquals(4, result.getRecords());
+        Assert.assertEquals(1, result.getImported());
+        Assert.assertEquals(3, result.getFailed());
+        Assert.assertEquals(Arrays.asList(2, 4, 5), new ArrayList<>(result.getFailures().keySet()));
+        Assert.assertTrue(result.getFailures().get(4).contains("lab location"));
+        Assert.assertEquals("Patient not recognised", result.getFailures().get(5));
+    }
+
+    @Test
+    public void TestCallsAreBoundedByTheWindow() throws IOException, InterruptedException {
+
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            ndjson.append(String.format(WEIGHT, ICN)).append('\n');
+        }
+
+        BulkImport.Result result = run(new ImportMapper(null), 2, ndjson.toString());
+
+        Assert.assertEquals(40, result.getImported());
+        Assert.assertTrue("At most two calls outstanding", mostOutstanding.get() <= 2);
+        Assert.assertTrue(result.getRecordsPerSecond() > 0);
+    }
+
+    @Test(expected = UnprocessableEntityException.class)
+    public void TestValuesVistaCannotTakeAreRefused() {
+
+        Observation observation = new Observation();
+        observation.getSubject().setReference("Patient/" + ICN);
+        observation.addCategory().addCoding().setCode("laboratory");
+        observation.getCode().setText("GLUCOSE, SERUM");
+        observation.getEffectiveDateTimeType().setValueAsString("2019-10-02");
+        observation.getValueStringType().setValue("98");
+
+        new ImportMapper("LAB DIV").map(observation);
+    }
+}
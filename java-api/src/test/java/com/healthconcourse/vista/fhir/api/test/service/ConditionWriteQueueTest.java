@@ -0,0 +1,131 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.service;
+
+import com.healthconcourse.vista.fhir.api.service.ConditionWrite;
+import com.healthconcourse.vista.fhir.api.service.ConditionWriteQueue;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConditionWriteQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final List<Runnable> pending = new ArrayList<>();
+    private Path directory;
+
+    private final MockVistaData vista = new MockVistaData() {
+        @Override
+        public String putTheCondition(Condition theCondition) {
+            calls.incrementAndGet();
+            return "12345".equals(theCondition.getIdElement().getIdPart()) ? "400^Invalid problem" : super.putTheCondition(theCondition);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder().toPath();
+    }
+
+    private ConditionWriteQueue createQueue(Executor writers, int maxQueued) {
+        return new ConditionWriteQueue(vista, writers, directory, Duration.ofHours(1), maxQueued);
+    }
+
+    private static Condition createCondition(String id) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.setSubject(new Reference("Patient/5000001534V744140"));
+        return condition;
+    }
+
+    @Test
+    public void TestWriteIsSentAndDeduplicated() {
+
+        ConditionWriteQueue queue = createQueue(Runnable::run, 10);
+
+        ConditionWrite first = queue.submit(null, createCondition("1")).get();
+        ConditionWrite second = queue.submit(null, createCondition("1")).get();
+        ConditionWrite keyed = queue.submit("import-1", createCondition("2")).get();
+        ConditionWrite sameKey = queue.submit("import-1", createCondition("3")).get();
+
+        Assert.assertEquals(ConditionWrite.Status.COMPLETE, first.getStatus());
+        Assert.assertSame("Same content is the same write", first, second);
+        Assert.assertSame("Same key is the same write", keyed, sameKey);
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(0, queue.getQueued());
+    }
+
+    @Test
+    public void TestFailedWriteIsSentAgain() {
+
+        ConditionWriteQueue queue = createQueue(Runnable::run, 10);
+
+        ConditionWrite failed = queue.submit("key", createCondition("12345")).get();
+        Assert.assertEquals(ConditionWrite.Status.FAILED, failed.getStatus());
+        Assert.assertEquals("400", failed.getCode());
+        Assert.assertEquals("Invalid problem", failed.getMessage());
+
+        ConditionWrite retried = queue.submit("key", createCondition("12345")).get();
+        Assert.assertNotSame(failed, retried);
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void TestFullQueueRefusesWrites() {
+
+        ConditionWriteQueue queue = createQueue(pending::add, 1);
+
+        Assert.assertTrue(queue.submit(null, createCondition("1")).isPresent());
+        Assert.assertFalse(queue.submit(null, createCondition("2")).isPresent());
+
+        pending.get(0).run();
+        Assert.assertTrue(queue.submit(null, createCondition("2")).isPresent());
+    }
+
+    @Test
+    public void TestUnsentWritesAreResumed() {
+
+        ConditionWriteQueue stopped = createQueue(pending::add, 10);
+        String unsent = stopped.submit(null, createCondition("1")).get().getId();
+        stopped.submit(null, createCondition("2"));
+        pending.get(1).run();
+        Assert.assertEquals(1, calls.get());
+
+        ConditionWriteQueue resumed = createQueue(Runnable::run, 10);
+        resumed.resume();
+
+        Assert.assertEquals("Only the unsent write is sent again", 2, calls.get());
+        Assert.assertEquals(ConditionWrite.Status.COMPLETE, resumed.get(unsent).get().getStatus());
+        Assert.assertSame("Finished writes are kept", resumed.get(unsent).get(), resumed.submit(null, createCondition("1")).get());
+        Assert.assertEquals(2, calls.get());
+    }
+}
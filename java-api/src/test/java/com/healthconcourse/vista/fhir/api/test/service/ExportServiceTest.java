@@ -0,0 +1,209 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.service;
+
+import com.healthconcourse.vista.fhir.api.cache.KnownPatientFilter;
+import com.healthconcourse.vista.fhir.api.cache.PatientSearchIndex;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
+import com.healthconcourse.vista.fhir.api.service.BulkEverything;
+import com.healthconcourse.vista.fhir.api.service.ExportJob;
+import com.healthconcourse.vista.fhir.api.service.ExportService;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import com.healthconcourse.vista.fhir.api.utils.RateLimiter;
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
+import com.jayway.jsonpath.JsonPath;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+public class ExportServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PatientSearchIndex index = new PatientSearchIndex();
+    private PatientService patients;
+
+    @Before
+    public void setUp() {
+        index.replaceAll(Arrays.asList(createPatient("5000001534V744140"), createPatient("5000001519V211431"), createPatient("444")));
+        patients = new VistaPatientService(new MockVistaData(), PatientSnapshotCache.disabled(), index, new KnownPatientFilter(0.01));
+    }
+
+    private ExportService createService(Duration retention) throws IOException {
+        return createService(patients, folder.newFolder().toPath(), retention);
+    }
+
+    private ExportService createService(PatientService service, Path directory, Duration retention) {
+        BulkEverything everything = new BulkEverything(service, new VistaCallScheduler(Runnable::run, 4), 2);
+        return new ExportService(service, index, everything, new RateLimiter(0), Runnable::run, directory, retention, 1);
+    }
+
+    private static Patient createPatient(String icn) {
+        Patient patient = new Patient();
+        patient.setId(icn);
+        return patient;
+    }
+
+    private static List<String> readLines(Path file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void TestExportWritesFilePerType() throws IOException {
+
+        ExportService service = createService(Duration.ofHours(1));
+
+        ExportJob job = service.start("http://localhost/api/Patient/$export", Collections.emptySet());
+
+        Assert.assertEquals(ExportJob.Status.COMPLETE, job.getStatus());
+        Assert.assertEquals(3, job.getPatientsDone());
+        Assert.assertEquals(Integer.valueOf(2), job.getOutputs().get("Patient"));
+        Assert.assertTrue(job.getOutputs().containsKey("Condition"));
+        Assert.assertEquals(Integer.valueOf(1), job.getErrors().get("OperationOutcome"));
+
+        List<String> lines = readLines(service.getFile(job.getId(), "Patient").get());
+        Assert.assertEquals(2, lines.size());
+        for (String line : lines) {
+            Assert.assertEquals("Patient", JsonPath.read(line, "$.resourceType"));
+        }
+
+        List<String> errors = readLines(service.getFile(job.getId(), "OperationOutcome").get());
+        Assert.assertTrue(JsonPath.<String>read(errors.get(0), "$.issue[0].diagnostics").contains("444"));
+    }
+
+    @Test
+    public void TestExportLimitedToTypes() throws IOException {
+
+        ExportService service = createService(Duration.ofHours(1));
+
+        ExportJob job = service.start("http://localhost/api/Patient/$export?_type=Condition", new HashSet<>(Arrays.asList("Condition")));
+
+        Assert.assertEquals(Collections.singleton("Condition"), job.getOutputs().keySet());
+        Assert.assertFalse(service.getFile(job.getId(), "Patient").isPresent());
+        Assert.assertEquals(job.getOutputs().get("Condition").intValue(), readLines(service.getFile(job.getId(), "Condition").get()).size());
+    }
+
+    @Test
+    public void TestExpiredJobsAreRemoved() throws IOException {
+
+        ExportService service = createService(Duration.ZERO);
+
+        ExportJob job = service.start("http://localhost/api/Patient/$export", Collections.emptySet());
+        Path file = service.getFile(job.getId(), "Patient").get();
+        Assert.assertTrue(Files.exists(file));
+
+        service.purgeExpired();
+
+        Assert.assertFalse(service.get(job.getId()).isPresent());
+        Assert.assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void TestInterruptedExportResumesFromCheckpoint() throws IOException {
+
+        index.putAll(Collections.singletonList(createPatient("445")));
+        Path directory = folder.newFolder().toPath();
+        AtomicInteger calls = new AtomicInteger();
+        PatientService crashing = new VistaPatientService(new MockVistaData(), PatientSnapshotCache.disabled(), index, new KnownPatientFilter(0.01)) {
+            @Override
+            public CompletableFuture<List<DomainResource>> getEverything(String patientIcn, Executor executor) {
+                if (calls.incrementAndGet() == 4) {
+                    throw new Error("Simulated restart");
+                }
+                return super.getEverything(patientIcn, executor);
+            }
+        };
+
+        ExportService first = createService(crashing, directory, Duration.ofHours(1));
+        try {
+            first.start("http://localhost/api/Patient/$export", Collections.emptySet());
+            Assert.fail("Expected the simulated restart");
+        } catch (Error ex) {
+            // expected
+        }
+
+        ExportService second = createService(patients, directory, Duration.ofHours(1));
+        second.resume();
+
+        List<ExportJob> jobs = new ArrayList<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(directory)) {
+            for (Path jobDirectory : directories) {
+                jobs.add(second.get(jobDirectory.getFileName().toString()).get());
+            }
+        }
+        Assert.assertEquals(1, jobs.size());
+        ExportJob job = jobs.get(0);
+
+        Assert.assertEquals(ExportJob.Status.COMPLETE, job.getStatus());
+        Assert.assertEquals(4, job.getPatientsDone());
+        Assert.assertEquals("Patients done before the restart are not written twice", 2, readLines(second.getFile(job.getId(), "Patient").get()).size());
+        Assert.assertEquals(Integer.valueOf(2), job.getOutputs().get("Patient"));
+        Assert.assertEquals(2, readLines(second.getFile(job.getId(), "OperationOutcome").get()).size());
+    }
+
+    @Test
+    public void TestFailedPatientsAreRetried() throws IOException {
+
+        Set<String> failedOnce = new HashSet<>();
+        PatientService flaky = new VistaPatientService(new MockVistaData(), PatientSnapshotCache.disabled(), index, new KnownPatientFilter(0.01)) {
+            @Override
+            public CompletableFuture<List<DomainResource>> getEverything(String patientIcn, Executor executor) {
+                if (failedOnce.add(patientIcn)) {
+                    CompletableFuture<List<DomainResource>> busy = new CompletableFuture<>();
+                    busy.completeExceptionally(new IllegalStateException("VistA busy"));
+                    return busy;
+                }
+                return super.getEverything(patientIcn, executor);
+            }
+        };
+
+        ExportService service = createService(flaky, folder.newFolder().toPath(), Duration.ofHours(1));
+        ExportJob job = service.start("http://localhost/api/Patient/$export", Collections.emptySet());
+
+        Assert.assertEquals(ExportJob.Status.COMPLETE, job.getStatus());
+        Assert.assertEquals(Integer.valueOf(2), job.getOutputs().get("Patient"));
+        Assert.assertEquals("Only the patient which is not found is an error", Integer.valueOf(1), job.getErrors().get("OperationOutcome"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.service;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.healthconcourse.vista.fhir.api.service.IncludeResolver;
+import com.healthconcourse.vista.fhir.api.service.PatientService;
+import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
+import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
+import org.hl7.fhir.r4.model.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class IncludeResolverTest {
+
+    private static final String ICN = "5000001534V744140";
+
+    private final PatientService service = new VistaPatientService(new MockVistaData() {
+        @Override
+        public String getEncountersByPatient(String code) {
+            return "5000001533V676621^507_9000010_11525^VA^NOV 19, 2013@08:00^^;^AMBULATORY^^CAMP MASTER,VA MEDICAL CENTER;1 3RD sT.;ALBANY;12180-0097^GENERAL MEDICINE";
+        }
+    });
+
+    private final IncludeResolver resolver = new IncludeResolver(service, 100);
+
+    @Test
+    public void TestParticipantsAreResolved() {
+
+        List<Encounter> encounters = service.getEncountersForPatient(ICN);
+        List<Encounter> result = resolver.includeParticipants(ICN, encounters);
+
+        Assert.assertEquals(1, result.size());
+        Reference individual = result.get(0).getParticipantFirstRep().getIndividual();
+        Assert.assertTrue("Participant resolved", individual.getResource() instanceof PractitionerRole);
+
+        PractitionerRole role = (PractitionerRole) individual.getResource();
+        Assert.assertEquals(individual.getReference(), "/" + role.getIdElement().getValue());
+        Assert.assertEquals("PROVIDER,FIVE", role.getPractitioner().getDisplay());
+        Assert.assertNull("Original left untouched", encounters.get(0).getParticipantFirstRep().getIndividual().getResource());
+    }
+
+    @Test
+    public void TestPerformersAreResolvedByName() {
+
+        Observation observation = new Observation();
+        observation.setId("1");
+        observation.addPerformer().setReference("/Practitioner/PROVIDER,FIVE");
+        observation.addPerformer().setReference("/Practitioner/UNKNOWN,PROVIDER");
+
+        List<Observation> result = resolver.includePerformers(ICN, Collections.singletonList(observation));
+
+        Practitioner practitioner = (Practitioner) result.get(0).getPerformer().get(0).getResource();
+        Assert.assertEquals("PROVIDER,FIVE", practitioner.getIdElement().getIdPart());
+        Assert.assertEquals("PROVIDER", practitioner.getNameFirstRep().getFamily());
+        Assert.assertNull("Unknown providers are not included", result.get(0).getPerformer().get(1).getResource());
+    }
+
+    @Test
+    public void TestOtherPatientsProvidersAreOnlyFoundById() {
+
+        resolver.includePerformers(ICN, Collections.emptyList());
+
+        Observation observation = new Observation();
+        observation.setId("1");
+        observation.addPerformer().setReference("/Practitioner/201311190800-0500");
+        observation.addPerformer().setReference("/Practitioner/PROVIDER,FIVE");
+
+        // 444 has no encounter providers of their own
+        List<Observation> result = resolver.includePerformers("444", Collections.singletonList(observation));
+
+        Assert.assertTrue("Found by VistA id", result.get(0).getPerformer().get(0).getResource() instanceof Practitioner);
+        Assert.assertNull("Names are not shared between patients", result.get(0).getPerformer().get(1).getResource());
+    }
+
+    @Test
+    public void TestRevIncludeLoadsCompartment() {
+
+        List<DomainResource> result = resolver.revInclude(ICN, Collections.singleton(new Include("Condition:patient")));
+
+        Assert.assertEquals(service.getConditionsForPatient(ICN).size(), result.size());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void TestRevIncludeOutsideCompartment() {
+
+        resolver.revInclude(ICN, Collections.singleton(new Include("Location:organization")));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+(c) 2019 OSEHRA
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.healthconcourse.vista.fhir.api.test.service;
+
+import com.healthconcourse.vista.fhir.api.utils.VistaCallScheduler;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class VistaCallSchedulerTest {
+
+    private final List<Runnable> started = new ArrayList<>();
+    private final List<String> ran = new ArrayList<>();
+
+    private void runNext() {
+        started.remove(0).run();
+    }
+
+    @Test
+    public void TestOutstandingCallsAreCapped() {
+
+        VistaCallScheduler scheduler = new VistaCallScheduler(started::add, 2);
+        Executor patient = scheduler.forPatient("123");
+
+        for (int i = 0; i < 5; i++) {
+            String call = "call" + i;
+            patient.execute(() -> ran.add(call));
+        }
+
+        Assert.assertEquals(2, started.size());
+        Assert.assertEquals(2, scheduler.getOutstanding());
+        Assert.assertEquals(3, scheduler.getQueued());
+
+        while (!started.isEmpty()) {
+            runNext();
+            Assert.assertTrue(started.size() <= 2);
+        }
+
+        Assert.assertEquals(Arrays.asList("call0", "call1", "call2", "call3", "call4"), ran);
+        Assert.assertEquals(0, scheduler.getOutstanding());
+        Assert.assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    public void TestPatientsTakeTurns() {
+
+        VistaCallScheduler scheduler = new VistaCallScheduler(started::add, 1);
+        Executor first = scheduler.forPatient("123");
+        Executor second = scheduler.forPatient("456");
+
+        first.execute(() -> ran.add("a1"));
+        first.execute(() -> ran.add("a2"));
+        first.execute(() -> ran.add("a3"));
+        second.execute(() -> ran.add("b1"));
+        second.execute(() -> ran.add("b2"));
+
+        while (!started.isEmpty()) {
+            runNext();
+        }
+
+        Assert.assertEquals(Arrays.asList("a1", "a2", "b1", "a3", "b2"), ran);
+    }
+
+    @Test
+    public void TestFailedCallReleasesItsSlot() {
+
+        VistaCallScheduler scheduler = new VistaCallScheduler(started::add, 1);
+        Executor patient = scheduler.forPatient("123");
+
+        patient.execute(() -> {
+            throw new IllegalStateException("VistA unavailable");
+        });
+        patient.execute(() -> ran.add("next"));
+
+        try {
+            runNext();
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        runNext();
+        Assert.assertEquals(Arrays.asList("next"), ran);
+    }
+}
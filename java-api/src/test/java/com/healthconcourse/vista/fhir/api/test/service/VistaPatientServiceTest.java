@@ -17,6 +17,9 @@ limitations under the License.
 package com.healthconcourse.vista.fhir.api.test.service;
 
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.healthconcourse.vista.fhir.api.cache.DataCategory;
+import com.healthconcourse.vista.fhir.api.cache.PatientCacheSettings;
+import com.healthconcourse.vista.fhir.api.cache.PatientSnapshotCache;
 import com.healthconcourse.vista.fhir.api.service.PatientService;
 import com.healthconcourse.vista.fhir.api.service.VistaPatientService;
 import com.healthconcourse.vista.fhir.api.test.mocks.MockVistaData;
@@ -27,6 +30,7 @@ import org.junit.Test;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 public class VistaPatientServiceTest {
@@ -112,10 +116,46 @@ public class VistaPatientServiceTest {
 
     }
 
+    @Test
+    public void TestGetObservationsByIcnAndCategory() {
+
+        PatientSnapshotCache cache = new PatientSnapshotCache(new PatientCacheSettings());
+        PatientService cachedService = new VistaPatientService(new MockVistaData(), cache);
+
+        List<Observation> results = cachedService.getObservationsByIcnAndCategory("5000001534V744140", "vital-signs");
+
+        Assert.assertEquals(40, results.size());
+        for (Observation observation : results) {
+            Assert.assertEquals("vital-signs", observation.getCategoryFirstRep().getCodingFirstRep().getCode());
+        }
+        Assert.assertEquals("Only the vitals endpoint is called", 1, cache.getMissCount());
+    }
+
+    @Test
+    public void TestGetObservationsByIcnAndCategoryList() {
+
+        List<Observation> results = service.getObservationsByIcnAndCategory("5000001534V744140",
+                "http://terminology.hl7.org/CodeSystem/observation-category|laboratory,survey");
+
+        Assert.assertFalse(results.isEmpty());
+        for (Observation observation : results) {
+            String code = observation.getCategoryFirstRep().getCodingFirstRep().getCode();
+            Assert.assertTrue(code.equals("laboratory") || code.equals("survey"));
+        }
+    }
+
+    @Test
+    public void TestGetObservationsByIcnAndUnknownCategory() {
+
+        List<Observation> results = service.getObservationsByIcnAndCategory("5000001534V744140", "imaging");
+
+        Assert.assertEquals(0, results.size());
+    }
+
     @Test
     public void TestGetObservationsByIcnAndCodeNoData() {
 
-        List<Observation> results = service.getObservationsByIcnAndCode("444", "code");
+        List<Observation> results = service.getObservationsByIcnAndCode("444", "27113001");
 
         Assert.assertEquals(0, results.size());
 
@@ -124,10 +164,95 @@ public class VistaPatientServiceTest {
     @Test
     public void TestGetObservationsByIcnAndCodeSuccess() {
 
-        List<Observation> results = service.getObservationsByIcnAndCode("5000001534V744140", "code");
+        List<Observation> results = service.getObservationsByIcnAndCode("5000001534V744140", "27113001");
 
-        Assert.assertEquals(40, results.size());
+        Assert.assertEquals(7, results.size());
+        for (int i = 1; i < results.size(); i++) {
+            Assert.assertTrue("Sorted by effective time", results.get(i - 1).getEffectiveDateTimeType().getValue()
+                    .compareTo(results.get(i).getEffectiveDateTimeType().getValue()) <= 0);
+        }
+    }
+
+    @Test
+    public void TestGetObservationsByIcnAndCodeWithSystem() {
+
+        List<Observation> results = service.getObservationsByIcnAndCode("5000001534V744140", "http://snomed.info/sct|27113001,50373000");
+
+        Assert.assertEquals(9, results.size());
+    }
+
+    @Test
+    public void TestGetObservationsByIcnCodeAndCategory() {
+
+        Assert.assertEquals(7, service.getObservationsByIcnAndCode("5000001534V744140", "27113001", "vital-signs").size());
+        Assert.assertEquals(0, service.getObservationsByIcnAndCode("5000001534V744140", "27113001", "laboratory").size());
+        Assert.assertEquals("Listed once for each code it has", 7,
+                service.getObservationsByIcnAndCode("5000001534V744140", "27113001,http://snomed.info/sct|27113001", null).size());
+    }
+
+    @Test
+    public void TestGetObservationsByIcnAndUnknownCode() {
 
+        List<Observation> results = service.getObservationsByIcnAndCode("5000001534V744140", "asdf");
+
+        Assert.assertEquals(0, results.size());
+
+    }
+
+    @Test
+    public void TestGetLastObservations() {
+
+        List<Observation> results = service.getLastObservations("5000001534V744140", null, "27113001,50373000", 3);
+
+        Assert.assertEquals("Three weights and both heights", 5, results.size());
+        Assert.assertEquals("Newest weight first", "142", results.get(0).getValue().primitiveValue());
     }
 
+    @Test
+    public void TestGetLastObservationsListsEachOnce() {
+
+        List<Observation> results = service.getLastObservations("5000001534V744140", null, "27113001,http://snomed.info/sct|27113001", 3);
+
+        Assert.assertEquals("Same weights found under both forms of the code", 3, results.size());
+        Assert.assertEquals(results.size(), new HashSet<>(results).size());
+    }
+
+    @Test
+    public void TestSeriesForRangeKeepsVitalsWhenLabsFail() {
+
+        PatientService failing = new VistaPatientService(new MockVistaData() {
+            @Override
+            public String getLabObservationsByIcn(String icn, Date from, Date to) {
+                throw new IllegalStateException("VistA unavailable");
+            }
+        });
+
+        Assert.assertFalse(failing.getObservationSeries("5000001534V744140", new Date(0), new Date()).find("27113001").isEmpty());
+    }
+
+    @Test
+    public void TestGetLastObservationsByCategory() {
+
+        List<Observation> results = service.getLastObservations("5000001534V744140", "laboratory", "27113001", 3);
+
+        Assert.assertEquals(0, results.size());
+    }
+
+    @Test
+    public void TestCountsMatchParsedResources() {
+
+        for (String icn : new String[] {"5000001534V744140", "5000001519V211431"}) {
+            for (DataCategory category : DataCategory.values()) {
+                Assert.assertEquals(icn + " " + category, service.getResources(icn, category).size(), service.countResources(icn, category));
+            }
+        }
+    }
+
+    @Test
+    public void TestCountObservations() {
+
+        Assert.assertEquals(service.getObservationsByIcn("5000001534V744140").size(), service.countObservations("5000001534V744140", null));
+        Assert.assertEquals(service.getObservationsByIcnAndCategory("5000001534V744140", "vital-signs").size(),
+                service.countObservations("5000001534V744140", "vital-signs"));
+    }
 }